@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Crashes a background thread into a {@link CrashReporter} and checks the crash file it leaves
+ * behind for the next launch.
+ */
+public class CrashReporterTest extends AndroidTestCase {
+
+    private File pending;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pending = new File(getContext().getCacheDir(), "crash_test.bin");
+        pending.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pending.delete();
+        super.tearDown();
+    }
+
+    public void testCrashIsWrittenWithinBudget() throws Exception {
+        final AtomicLong elapsed = new AtomicLong();
+        final AtomicReference<CrashReporter.Record> written = new AtomicReference<>();
+        final CountDownLatch handled = new CountDownLatch(1);
+        final long[] thrown = new long[1];
+
+        // The previous handler runs right after the crash was written, read the file back from there
+        Thread.UncaughtExceptionHandler previous = new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                elapsed.set(System.nanoTime() - thrown[0]);
+                try {
+                    written.set(CrashReporter.Record.read(pending));
+                } catch (Exception e) {
+                    // Leaves the record unset
+                }
+                handled.countDown();
+            }
+        };
+
+        CrashReporter reporter = new CrashReporter(pending, CrashReporter.DEFAULT_BUFFER_SIZE,
+                CrashReporter.DEFAULT_BUDGET, new String[]{"version", "1.0"}, previous);
+        crash(reporter, thrown, new IllegalStateException("Background failure"));
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(elapsed.get());
+        assertTrue("Crash took " + millis + "ms to write", millis < CrashReporter.DEFAULT_BUDGET);
+
+        CrashReporter.Record record = written.get();
+        assertNotNull(record);
+        assertEquals("crashing", record.thread);
+        assertEquals("1.0", record.context.get("version"));
+        assertFalse(record.truncated);
+        assertTrue(record.stackTrace.startsWith(IllegalStateException.class.getName() + ": Background failure"));
+    }
+
+    public void testPreviousHandlerIsCalled() throws Exception {
+        final AtomicReference<Thread> crashedThread = new AtomicReference<>();
+        final AtomicReference<Throwable> crashedWith = new AtomicReference<>();
+        final CountDownLatch handled = new CountDownLatch(2);
+
+        Thread.UncaughtExceptionHandler previous = new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                crashedThread.set(thread);
+                crashedWith.set(ex);
+                handled.countDown();
+            }
+        };
+
+        // Only the first crash is written, but every crash is handed on
+        CrashReporter reporter = new CrashReporter(pending, CrashReporter.DEFAULT_BUFFER_SIZE,
+                CrashReporter.DEFAULT_BUDGET, new String[0], previous);
+        RuntimeException first = new RuntimeException("First");
+        RuntimeException second = new RuntimeException("Second");
+        Thread crashing = crash(reporter, new long[1], first);
+        crashing.join();
+        crash(reporter, new long[1], second);
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        assertEquals("crashing", crashedThread.get().getName());
+        assertSame(second, crashedWith.get());
+        assertTrue(CrashReporter.Record.read(pending).stackTrace.contains("First"));
+    }
+
+    public void testLongHeaderValuesAreCutShort() throws Exception {
+        StringBuilder name = new StringBuilder();
+        for(int i=0; i<600; i++) name.append('\u00FC');
+
+        CrashReporter reporter = new CrashReporter(pending, CrashReporter.DEFAULT_BUFFER_SIZE,
+                CrashReporter.DEFAULT_BUDGET, new String[]{"version", "1.0"}, null);
+        assertTrue(reporter.write(new Thread(name.toString()), new RuntimeException("Long name")));
+
+        CrashReporter.Record record = CrashReporter.Record.read(pending);
+        assertEquals(name.substring(0, 512), record.thread);
+        assertEquals("1.0", record.context.get("version"));
+        assertTrue(record.stackTrace.startsWith(RuntimeException.class.getName() + ": Long name"));
+    }
+
+    /**
+     * Throw an exception on a new background thread that reports to the reporter
+     *
+     * @param thrown    receives the time the exception was thrown at
+     */
+    private static Thread crash(CrashReporter reporter, final long[] thrown, final RuntimeException ex){
+        Thread thread = new Thread("crashing") {
+            @Override
+            public void run() {
+                thrown[0] = System.nanoTime();
+                throw ex;
+            }
+        };
+        thread.setUncaughtExceptionHandler(reporter);
+        thread.start();
+        return thread;
+    }
+
+}
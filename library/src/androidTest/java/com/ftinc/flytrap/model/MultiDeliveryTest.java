@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+import com.ftinc.flytrap.util.ArtifactStore;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fans reports out to stand-in deliveries and checks that the handler is finished exactly once,
+ * with the outcome of every delivery, once they all finished or the timeout passed.
+ */
+public class MultiDeliveryTest extends AndroidTestCase {
+
+    private static final long TIMESTAMP = 1413849600000L;
+
+    private Outcome outcome;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        outcome = new Outcome();
+        MultiDelivery.setOnDeliveryResultListener(outcome);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MultiDelivery.setOnDeliveryResultListener(null);
+        super.tearDown();
+    }
+
+    public void testDeliveriesRunConcurrently() throws Exception {
+        // Neither delivery finishes before both of them started
+        CountDownLatch started = new CountDownLatch(2);
+        MultiDelivery multi = new MultiDelivery(new StubDelivery(StubDelivery.SUCCEED, started),
+                new StubDelivery(StubDelivery.SUCCEED, started));
+
+        multi.onReportGenerated(getContext(), report(), outcome);
+        outcome.await();
+
+        assertEquals(1, outcome.finished.get());
+        assertEquals(0, outcome.failed.get());
+        assertResults(MultiDelivery.RESULT_SUCCESS, MultiDelivery.RESULT_SUCCESS);
+        assertTrue(outcome.mainThread);
+    }
+
+    public void testPartialFailureStillFinishes() throws Exception {
+        MultiDelivery multi = new MultiDelivery(new StubDelivery(StubDelivery.SUCCEED, null),
+                new StubDelivery(StubDelivery.FAIL, null), new StubDelivery(StubDelivery.THROW, null));
+
+        multi.onReportGenerated(getContext(), report(), outcome);
+        outcome.await();
+
+        assertEquals(1, outcome.finished.get());
+        assertEquals(0, outcome.failed.get());
+        assertResults(MultiDelivery.RESULT_SUCCESS, MultiDelivery.RESULT_FAILURE, MultiDelivery.RESULT_FAILURE);
+    }
+
+    public void testHandlerFailsWhenEveryDeliveryFailed() throws Exception {
+        MultiDelivery multi = new MultiDelivery(new StubDelivery(StubDelivery.FAIL, null),
+                new StubDelivery(StubDelivery.THROW, null));
+
+        multi.onReportGenerated(getContext(), report(), outcome);
+        outcome.await();
+
+        assertEquals(0, outcome.finished.get());
+        assertEquals(1, outcome.failed.get());
+        assertResults(MultiDelivery.RESULT_FAILURE, MultiDelivery.RESULT_FAILURE);
+    }
+
+    public void testTimeoutFinishesTheHandlerOnce() throws Exception {
+        StubDelivery hanging = new StubDelivery(StubDelivery.HANG, null);
+        MultiDelivery multi = new MultiDelivery(new StubDelivery(StubDelivery.SUCCEED, null), hanging)
+                .setTimeout(250);
+
+        multi.onReportGenerated(getContext(), report(), outcome);
+        outcome.await();
+
+        assertEquals(1, outcome.finished.get());
+        assertResults(MultiDelivery.RESULT_SUCCESS, MultiDelivery.RESULT_TIMEOUT);
+        assertEquals(250, outcome.results.get().get(1).latency);
+
+        // The late delivery doesn't finish the handler again
+        hanging.release();
+        Thread.sleep(250);
+        assertEquals(1, outcome.finished.get());
+        assertEquals(0, outcome.failed.get());
+    }
+
+    public void testPreparedAttachmentsAreReleased() throws Exception {
+        MultiDelivery multi = new MultiDelivery(new StubDelivery(StubDelivery.SUCCEED, null));
+
+        multi.onReportGenerated(getContext(), report(), outcome);
+        outcome.await();
+
+        assertFalse(ArtifactStore.get(getContext()).getFile("flytrap_prepared_" + TIMESTAMP).exists());
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static Report report(){
+        return new Report.Builder()
+                .setTimestamp(TIMESTAMP)
+                .build();
+    }
+
+    private void assertResults(int... expected){
+        List<MultiDelivery.Result> results = outcome.results.get();
+        assertNotNull(results);
+        assertEquals(expected.length, results.size());
+        for(int i=0; i<expected.length; i++){
+            assertEquals(results.get(i).toString(), expected[i], results.get(i).result);
+        }
+    }
+
+    /**
+     * Records how the handler was finished and the results handed to the listener
+     */
+    private static class Outcome implements Delivery.OnReportResultHandler, MultiDelivery.OnDeliveryResultListener {
+
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicReference<List<MultiDelivery.Result>> results = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean mainThread;
+
+        @Override
+        public void onDeliveryResults(Report report, List<MultiDelivery.Result> results) {
+            this.results.set(results);
+        }
+
+        @Override
+        public void onFinish() {
+            finished.incrementAndGet();
+            mainThread = Looper.myLooper() == Looper.getMainLooper();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure() {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("The handler was never finished", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A delivery that succeeds, fails, throws or hangs on the worker it is started on
+     */
+    private static class StubDelivery extends Delivery {
+
+        static final int SUCCEED = 0;
+        static final int FAIL = 1;
+        static final int THROW = 2;
+        static final int HANG = 3;
+
+        final int behavior;
+        final CountDownLatch started;
+        final CountDownLatch hang = new CountDownLatch(1);
+
+        StubDelivery(int behavior, CountDownLatch started){
+            this.behavior = behavior;
+            this.started = started;
+        }
+
+        void release(){
+            hang.countDown();
+        }
+
+        @Override
+        public void onReportGenerated(Context ctx, Report report, OnReportHandler handler) {
+            if(behavior == THROW) throw new IllegalStateException("Stub delivery failure");
+
+            // Deliveries that don't get to run alongside each other fail
+            boolean success = behavior != FAIL;
+            try {
+                if(started != null){
+                    started.countDown();
+                    success &= started.await(5, TimeUnit.SECONDS);
+                }
+                if(behavior == HANG) hang.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            finish(handler, success);
+        }
+
+        @Override
+        public int getType() {
+            return Delivery.TYPE_MULTI;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+        }
+    }
+
+}
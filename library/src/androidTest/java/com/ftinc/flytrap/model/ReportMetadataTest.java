@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import android.graphics.PointF;
+import android.test.AndroidTestCase;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import com.ftinc.flytrap.util.Utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams bugs and report metadata through {@link JsonWriter} and reads them back, checking
+ * that nothing is lost on the way.
+ */
+public class ReportMetadataTest extends AndroidTestCase {
+
+    private static final long TIMESTAMP = 1413849600000L;
+
+    public void testBugSurvivesJsonRoundTrip() throws Exception {
+        Bug bug = bug(7, 120.5f, 340.25f, 48f, 0xFFE91E63, "Total is \"wrong\"\nÜberlauf – 日本語");
+
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        bug.writeJson(writer);
+        writer.flush();
+
+        Bug read = Bug.fromJson(new JsonReader(new StringReader(out.toString())));
+        assertBug(bug, read);
+    }
+
+    public void testAccentColorIsWrittenAsHex() throws Exception {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        bug(1, 0f, 0f, 10f, 0xFF00897B, "").writeJson(writer);
+        writer.flush();
+
+        assertEquals("#00897B", new JSONObject(out.toString()).getString(Bug.KEY_COLOR));
+    }
+
+    public void testBugReaderAcceptsIntColorsAndSkipsUnknownKeys() throws Exception {
+        String json = "{\"extra\":{\"nested\":[1,2,{\"deep\":true}]},\"id\":3,"
+                + "\"center\":{\"x\":1.5,\"y\":2.5},\"radius\":4,\"accent_color\":-65536,"
+                + "\"tags\":[\"ui\"],\"comment\":\"Legacy\"}";
+
+        Bug read = Bug.fromJson(new JsonReader(new StringReader(json)));
+        assertEquals(3, read.getId());
+        assertEquals(1.5f, read.getCenterX());
+        assertEquals(2.5f, read.getCenterY());
+        assertEquals(4f, read.getRadius());
+        assertEquals(0xFFFF0000, read.getAccentColor());
+        assertEquals("Legacy", read.getComment());
+    }
+
+    public void testMetadataIsStreamedAsJson() throws Exception {
+        List<Bug> bugs = new ArrayList<>();
+        bugs.add(bug(1, 100f, 200f, 30f, 0xFFE91E63, "First"));
+        bugs.add(bug(2, 540f, 960f, 64f, 0xFF3F51B5, "Second, with a \"quote\""));
+        bugs.add(bug(3, 0f, 1919f, 12f, 0xFF000000, ""));
+
+        Report report = new Report.Builder()
+                .setTitle("Checkout – total is wrong")
+                .setTimestamp(TIMESTAMP)
+                .setDimensions(1080, 1920)
+                .addBugs(bugs)
+                .addSection(new DeviceSection())
+                .build();
+
+        StringWriter out = new StringWriter();
+        report.writeMetadata(out);
+        JSONObject json = new JSONObject(out.toString());
+
+        assertEquals("Checkout – total is wrong", json.getString("title"));
+        assertFalse(json.getString("timestamp").isEmpty());
+        assertEquals(1080, json.getInt("width"));
+        assertEquals(1920, json.getInt("height"));
+        assertEquals("vector", json.getString("shade"));
+        assertEquals("none", json.getString("attachments"));
+        assertFalse(json.has("crops"));
+        assertEquals("Nexus 5", json.getJSONObject("sections").getJSONObject("device").getString("model"));
+        assertEquals(21, json.getJSONObject("sections").getJSONObject("device").getInt("sdk"));
+
+        JSONArray array = json.getJSONArray("bugs");
+        assertEquals(bugs.size(), array.length());
+
+        // Stream the bugs back the way the server side reader would
+        JsonReader reader = new JsonReader(new StringReader(out.toString()));
+        List<Bug> read = new ArrayList<>();
+        reader.beginObject();
+        while(reader.hasNext()){
+            if("bugs".equals(reader.nextName())){
+                reader.beginArray();
+                while(reader.hasNext()){
+                    read.add(Bug.fromJson(reader));
+                }
+                reader.endArray();
+            }else{
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        assertEquals(bugs.size(), read.size());
+        for(int i=0; i<bugs.size(); i++){
+            assertBug(bugs.get(i), read.get(i));
+        }
+    }
+
+    public void testMetadataTitleDefaultsToTimestamp() throws Exception {
+        Report report = new Report.Builder()
+                .setTimestamp(TIMESTAMP)
+                .build();
+
+        StringWriter out = new StringWriter();
+        report.writeMetadata(out);
+        JSONObject json = new JSONObject(out.toString());
+
+        assertEquals("TRAP_REPORT_" + json.getString("timestamp"), json.getString("title"));
+        assertEquals(0, json.getJSONArray("bugs").length());
+        assertFalse(json.has("sections"));
+    }
+
+    public void testShadeIsNotRenderedWithoutDimensions() throws Exception {
+        List<Bug> bugs = new ArrayList<>();
+        bugs.add(bug(1, 100f, 200f, 30f, 0xFFE91E63, "First"));
+
+        // Crash reports are built without dimensions
+        Report report = new Report.Builder()
+                .setTimestamp(TIMESTAMP)
+                .addBugs(bugs)
+                .build();
+
+        assertNull(report.renderShade());
+        assertNull(report.renderShade(1080, 1920));
+    }
+
+    public void testHexColors() throws Exception {
+        assertEquals("#E91E63", Utils.toHexColor(0xFFE91E63));
+        assertEquals("#000000", Utils.toHexColor(0x80000000));
+        assertEquals("#FFFFFF", Utils.toHexColor(0xFFFFFFFF));
+
+        assertEquals(0xFFE91E63, Utils.parseHexColor("#E91E63"));
+        assertEquals(0xFFE91E63, Utils.parseHexColor("#e91e63"));
+        assertEquals(0xFFE91E63, Utils.parseHexColor("E91E63"));
+        assertEquals(0x80E91E63, Utils.parseHexColor("#80E91E63"));
+
+        assertEquals(0, Utils.parseHexColor(null));
+        assertEquals(0, Utils.parseHexColor(""));
+        assertEquals(0, Utils.parseHexColor("#E91E6"));
+        assertEquals(0, Utils.parseHexColor("#E91E6G"));
+        assertEquals(0, Utils.parseHexColor("#1E91E63"));
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static Bug bug(int id, float x, float y, float radius, int color, String comment){
+        return new Bug.Builder(id)
+                .setCenter(new PointF(x, y))
+                .setRadius(radius)
+                .setAccentColor(color)
+                .setComment(comment)
+                .build();
+    }
+
+    private static void assertBug(Bug expected, Bug actual){
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getCenterX(), actual.getCenterX());
+        assertEquals(expected.getCenterY(), actual.getCenterY());
+        assertEquals(expected.getRadius(), actual.getRadius());
+        assertEquals(expected.getAccentColor(), actual.getAccentColor());
+        assertEquals(expected.getComment(), actual.getComment());
+    }
+
+    private static class DeviceSection implements Report.Section {
+
+        @Override
+        public String getName() {
+            return "device";
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject()
+                    .name("model").value("Nexus 5")
+                    .name("sdk").value(21)
+                    .endObject();
+        }
+    }
+
+}
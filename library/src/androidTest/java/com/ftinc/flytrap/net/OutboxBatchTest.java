@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import android.test.AndroidTestCase;
+
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hands batch responses to the outbox and checks the result of every report of the batch.
+ * Reports that are sent again stay queued, the others are acknowledged or dropped.
+ */
+public class OutboxBatchTest extends AndroidTestCase {
+
+    private static final String URL = "https://api.example.com/reports";
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private Outbox outbox;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File directory = new File(getContext().getCacheDir(), "flytrap_outbox_test");
+        outbox = new Outbox(getContext(), directory, new ThroughputEstimator(null),
+                new BlobCache(null, BlobCache.DEFAULT_CAPACITY), ArtifactStore.get(getContext()));
+    }
+
+    public void testPartialSuccessIsHandledPerReport() throws Exception {
+        List<Outbox.Entry> batch = batch("a", "b", "c", "d", "e");
+        String json = "{\"results\":["
+                + "{\"id\":\"a\",\"status\":201,\"report_id\":\"r-1\"},"
+                + "{\"id\":\"b\",\"status\":200,\"extra\":{\"nested\":[1,2]}},"
+                + "{\"id\":\"c\",\"status\":422,\"error\":\"Invalid metadata\"},"
+                + "{\"id\":\"d\",\"status\":503},"
+                + "{\"id\":\"unknown\",\"status\":201}"
+                + "],\"server\":\"v2\"}";
+
+        int[] results = outbox.results(batch, response(json));
+
+        // The server didn't answer for 'e', it is sent again
+        assertResults(results, Outbox.SENT, Outbox.SENT, Outbox.REJECTED, Outbox.RETRY, Outbox.RETRY);
+        assertEquals("r-1", batch.get(0).reportId);
+        assertNull(batch.get(1).reportId);
+        assertNull(batch.get(4).reportId);
+    }
+
+    public void testMalformedResponseKeepsEveryReportQueued() throws Exception {
+        List<String> malformed = Arrays.asList(
+                "",
+                "Service Unavailable",
+                "{\"results\":[{\"id\":\"a\",\"status\":201,\"report_id\":\"r-1\"},{\"id\":\"b\",\"sta",
+                "{\"results\":{\"id\":\"a\",\"status\":201}}",
+                "{\"results\":[{\"id\":\"a\",\"status\":\"created\"}]}",
+                "[{\"id\":\"a\",\"status\":201}]"
+        );
+
+        for(String json: malformed){
+            List<Outbox.Entry> batch = batch("a", "b");
+            int[] results = outbox.results(batch, response(json));
+
+            assertEquals(json, Outbox.RETRY, results[0]);
+            assertEquals(json, Outbox.RETRY, results[1]);
+            assertNull(json, batch.get(0).reportId);
+        }
+    }
+
+    public void testReportReferencingLostBlobsIsSentAgain() throws Exception {
+        List<Outbox.Entry> batch = batch("a", "b");
+        batch.get(0).referencesBlobs = true;
+        String json = "{\"results\":[{\"id\":\"a\",\"status\":409},{\"id\":\"b\",\"status\":409}]}";
+
+        int[] results = outbox.results(batch, response(json));
+
+        // Only a conflict over blobs is worth another try
+        assertResults(results, Outbox.RETRY, Outbox.REJECTED);
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static List<Outbox.Entry> batch(String... ids){
+        List<Outbox.Entry> batch = new ArrayList<>();
+        for(String id: ids){
+            batch.add(new Outbox.Entry(id, System.currentTimeMillis(), URL, 0, false, 2000, 0, null));
+        }
+        return batch;
+    }
+
+    private static Response response(String json){
+        return new Response.Builder()
+                .request(new Request.Builder().url(URL).build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .body(ResponseBody.create(JSON, json))
+                .build();
+    }
+
+    private static void assertResults(int[] actual, int... expected){
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.test.AndroidTestCase;
+
+import com.ftinc.flytrap.model.Bug;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Plans crop regions around bugs with {@link Utils#planCrops(List, int, int, int)} and checks
+ * that every bug is covered once, within the image.
+ */
+public class CropPlanningTest extends AndroidTestCase {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    public void testNoBugsPlanNoCrops() throws Exception {
+        assertTrue(Utils.planCrops(Collections.<Bug>emptyList(), 16, WIDTH, HEIGHT).isEmpty());
+    }
+
+    public void testRegionIsGrownByMarginAndRoundedOut() throws Exception {
+        List<Rect> regions = Utils.planCrops(bugs(bug(100.5f, 200.5f, 10f)), 8, WIDTH, HEIGHT);
+
+        assertEquals(1, regions.size());
+        assertEquals(new Rect(82, 182, 119, 219), regions.get(0));
+    }
+
+    public void testRegionsAreClampedToTheImage() throws Exception {
+        List<Rect> regions = Utils.planCrops(bugs(
+                bug(5f, 5f, 10f),
+                bug(1075f, 1915f, 10f)), 5, WIDTH, HEIGHT);
+
+        assertEquals(2, regions.size());
+        assertEquals(new Rect(0, 0, 20, 20), regions.get(0));
+        assertEquals(new Rect(1060, 1900, 1080, 1920), regions.get(1));
+    }
+
+    public void testBugsOutsideTheImageAreDropped() throws Exception {
+        List<Rect> regions = Utils.planCrops(bugs(
+                bug(2000f, 2000f, 10f),
+                bug(-15f, 50f, 10f),
+                bug(540f, 960f, 10f)), 5, WIDTH, HEIGHT);
+
+        assertEquals(1, regions.size());
+        assertEquals(new Rect(525, 945, 555, 975), regions.get(0));
+    }
+
+    public void testOverlappingRegionsAreMerged() throws Exception {
+        List<Rect> regions = Utils.planCrops(bugs(
+                bug(100f, 100f, 20f),
+                bug(130f, 110f, 20f),
+                bug(800f, 1500f, 20f)), 0, WIDTH, HEIGHT);
+
+        assertEquals(2, regions.size());
+        assertEquals(new Rect(80, 80, 150, 130), regions.get(0));
+        assertEquals(new Rect(780, 1480, 820, 1520), regions.get(1));
+    }
+
+    public void testTouchingRegionsAreNotMerged() throws Exception {
+        List<Rect> regions = Utils.planCrops(bugs(
+                bug(10f, 10f, 10f),
+                bug(30f, 10f, 10f)), 0, WIDTH, HEIGHT);
+
+        assertEquals(2, regions.size());
+    }
+
+    public void testMergedRegionIsMergedAgain() throws Exception {
+        // The first region only overlaps the union of the other two
+        List<Rect> regions = Utils.planCrops(bugs(
+                bug(20f, 2.5f, 2.5f),
+                bug(5f, 5f, 5f),
+                bug(14f, 14f, 6f)), 0, WIDTH, HEIGHT);
+
+        assertEquals(1, regions.size());
+        assertEquals(new Rect(0, 0, 23, 20), regions.get(0));
+    }
+
+    public void testRandomBugsAreEachCoveredByOneRegion() throws Exception {
+        Random random = new Random(42);
+        for(int round=0; round<50; round++){
+            List<Bug> bugs = new ArrayList<>();
+            int count = 1 + random.nextInt(20);
+            for(int i=0; i<count; i++){
+                bugs.add(bug(
+                        random.nextFloat() * (WIDTH + 200) - 100,
+                        random.nextFloat() * (HEIGHT + 200) - 100,
+                        8f + random.nextFloat() * 120f));
+            }
+
+            int margin = random.nextInt(48);
+            List<Rect> regions = Utils.planCrops(bugs, margin, WIDTH, HEIGHT);
+
+            for(int i=0; i<regions.size(); i++){
+                Rect region = regions.get(i);
+                assertFalse(region.isEmpty());
+                assertTrue(new Rect(0, 0, WIDTH, HEIGHT).contains(region));
+                for(int j=i+1; j<regions.size(); j++){
+                    assertFalse(region + " overlaps " + regions.get(j), Rect.intersects(region, regions.get(j)));
+                }
+            }
+
+            for(Bug bug: bugs){
+                List<Rect> single = Utils.planCrops(bugs(bug), margin, WIDTH, HEIGHT);
+                if(single.isEmpty()) continue;
+
+                int covering = 0;
+                for(Rect region: regions){
+                    if(region.contains(single.get(0))) covering++;
+                }
+                assertEquals(1, covering);
+            }
+        }
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static Bug bug(float x, float y, float radius){
+        return new Bug.Builder(0)
+                .setCenter(new PointF(x, y))
+                .setRadius(radius)
+                .build();
+    }
+
+    private static List<Bug> bugs(Bug... bugs){
+        return new ArrayList<>(Arrays.asList(bugs));
+    }
+
+}
@@ -0,0 +1,714 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Process;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.ftinc.flytrap.model.Delivery;
+import com.ftinc.flytrap.model.Report;
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.ftinc.flytrap.util.Utils;
+import com.ftinc.flytrap.util.Workers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Files a report when the app crashes. The reporter is installed as the default
+ * {@link Thread.UncaughtExceptionHandler}, on a crash it writes a minimal report, the stack trace,
+ * the crashing thread, the configuration context and the path of the last captured frame, to
+ * disk and hands the crash on to the previous handler. The report is delivered with the
+ * configured delivery on the next launch, once the reporter is installed again.
+ *
+ * The process is dying when the report is written, so the crash path does no more than fill a
+ * buffer that was allocated up front and write it to a file channel that was opened up front.
+ * Strings are encoded straight into the buffer, the one allocation it can't avoid is the copy of
+ * the frames {@link Throwable#getStackTrace()} returns for the exception and each of its causes.
+ * It never allocates bitmaps, nor touches the network, and gives up on the stack trace once the
+ * time budget passed or the buffer is full.
+ *
+ * Frames are captured with {@link #captureFrame(Activity)}, i.e. as screens are shown. The
+ * screenshots FlyTrap captures for its reports are recorded as well.
+ */
+public class CrashReporter implements Thread.UncaughtExceptionHandler {
+    private static final String TAG = CrashReporter.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final long DEFAULT_BUDGET = 250;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of crashes kept for delivery, the oldest are dropped beyond it
+     */
+    public static final int MAX_PENDING_CRASHES = 5;
+
+    public static final String SECTION_NAME = "crash";
+
+    static final int MAGIC = 0x46544352;
+    static final int VERSION = 1;
+
+    /* Record Flags */
+    static final int FLAG_TRUNCATED = 1;
+
+    /* Record Layout */
+    private static final int OFFSET_LENGTH = 8;
+    private static final int OFFSET_FLAGS = 12;
+
+    /**
+     * The room kept at the end of the buffer to close the record
+     */
+    private static final int RESERVE = 64;
+
+    private static final int MAX_HEADER_CHARS = 512;
+    private static final int MAX_CAUSES = 8;
+
+    private static final String DIRECTORY = "flytrap_crashes";
+    private static final String PENDING = "crash.pending";
+    private static final String SUFFIX = ".crash";
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static CrashReporter sInstance;
+
+    /**
+     * Install the crash reporter with the default time budget, crashes of previous launches
+     * are delivered right away. Call this once, i.e. in {@link android.app.Application#onCreate()}.
+     *
+     * @param ctx       the context
+     * @param config    the fly trap configuration, its delivery sends the crash reports
+     * @return          the installed reporter
+     */
+    public static CrashReporter install(Context ctx, FlyTrap.Config config){
+        return install(ctx, config, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Install the crash reporter, crashes of previous launches are delivered right away.
+     * Call this once, i.e. in {@link android.app.Application#onCreate()}.
+     *
+     * @param ctx       the context
+     * @param config    the fly trap configuration, its delivery sends the crash reports
+     * @param budget    the time in milliseconds the stack trace may take to write on a crash
+     * @return          the installed reporter, or null if the crash file couldn't be opened
+     */
+    public static synchronized CrashReporter install(Context ctx, FlyTrap.Config config, long budget){
+        if(sInstance != null) return sInstance;
+        if(config.deliverySystem == null)
+            throw new NullPointerException("You must provide a Delivery to send crash reports");
+
+        Context app = ctx.getApplicationContext();
+        if(config.executor != null) Workers.setExecutor(config.executor);
+
+        // Move the crash of the last launch aside before the file is reused
+        File dir = new File(app.getFilesDir(), DIRECTORY);
+        File pending = new File(dir, PENDING);
+        if(pending.length() > 0 && !pending.renameTo(new File(dir, "crash_" + System.currentTimeMillis() + SUFFIX))){
+            Log.w(TAG, "Unable to move the last crash aside");
+        }
+
+        try {
+            if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+            sInstance = new CrashReporter(pending, DEFAULT_BUFFER_SIZE, budget, getContext(app, config),
+                    Thread.getDefaultUncaughtExceptionHandler());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to install the crash reporter", e);
+            return null;
+        }
+
+        sInstance.store = ArtifactStore.get(app);
+        Thread.setDefaultUncaughtExceptionHandler(sInstance);
+
+        deliverPending(app, config, dir);
+        return sInstance;
+    }
+
+    /**
+     * Capture the window of an activity as the frame attached to the report if the app crashes.
+     * This must be called on the main thread, the frame is written to disk in the background.
+     *
+     * @param activity      the activity whose window is captured
+     */
+    public static void captureFrame(Activity activity){
+        if(getInstance() == null) return;
+
+        final Context ctx = activity.getApplicationContext();
+        final Bitmap frame;
+        final int width, height;
+        try {
+            width = activity.getWindow().getDecorView().getWidth();
+            height = activity.getWindow().getDecorView().getHeight();
+            frame = Utils.captureRootBitmap(activity);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to capture the window", e);
+            return;
+        }
+
+        try {
+            Workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    File file = Utils.saveScreenShot(ctx, frame);
+                    frame.recycle();
+                    if(file != null){
+                        onFrameCaptured(file, width, height);
+                        ArtifactStore.get(ctx).release(file);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Skipping frame capture, FlyTrap is saturated");
+            frame.recycle();
+        }
+    }
+
+    /**
+     * Record a frame that was captured, it is attached to the report if the app crashes
+     *
+     * @param file      the screenshot of the frame
+     * @param width     the width of the captured window
+     * @param height    the height of the captured window
+     */
+    static void onFrameCaptured(File file, int width, int height){
+        CrashReporter reporter = getInstance();
+        if(reporter == null) return;
+
+        Frame frame = new Frame(file.getAbsolutePath(), width, height);
+        Frame previous;
+        synchronized (reporter) {
+            previous = reporter.frame;
+            reporter.frame = frame;
+            if(reporter.store != null) reporter.store.retain(file);
+        }
+        if(previous != null && reporter.store != null) reporter.store.release(new File(previous.path));
+    }
+
+    private static synchronized CrashReporter getInstance(){
+        return sInstance;
+    }
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final ByteBuffer buffer;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long budgetNanos;
+    private final String[] context;
+    private final Thread.UncaughtExceptionHandler previous;
+
+    private final Throwable[] causes = new Throwable[MAX_CAUSES];
+    private final AtomicBoolean crashed = new AtomicBoolean();
+
+    private volatile Frame frame;
+    private ArtifactStore store;
+
+    /**
+     * Constructor, allocates the buffer and opens the crash file up front
+     *
+     * @param pending       the file the crash is written to
+     * @param bufferSize    the size of the record buffer in bytes
+     * @param budget        the time budget of the stack trace in milliseconds
+     * @param context       the configuration context as key, value pairs
+     * @param previous      the handler crashes are handed on to, or null
+     *
+     * @throws IOException  error opening the crash file
+     */
+    CrashReporter(File pending, int bufferSize, long budget, String[] context,
+                  Thread.UncaughtExceptionHandler previous) throws IOException {
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.file = new RandomAccessFile(pending, "rw");
+        this.channel = file.getChannel();
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budget);
+        this.context = context;
+        this.previous = previous;
+    }
+
+    /************************************************
+     *
+     * Handler Methods
+     *
+     */
+
+    @Override
+    public void uncaughtException(Thread thread, Throwable ex) {
+        try {
+            // Only the first crash is recorded, i.e. if another thread crashes on the way down
+            if(crashed.compareAndSet(false, true)) write(thread, ex);
+        } catch (Throwable t) {
+            // Never get in the way of the crash
+        } finally {
+            if(previous != null){
+                previous.uncaughtException(thread, ex);
+            }else{
+                Process.killProcess(Process.myPid());
+                System.exit(10);
+            }
+        }
+    }
+
+    /**
+     * Write the crash record into the crash file
+     *
+     * @param thread    the crashing thread
+     * @param ex        the uncaught exception
+     * @return          true if the stack trace was written in full
+     *
+     * @throws IOException  error writing the crash file
+     */
+    boolean write(Thread thread, Throwable ex) throws IOException {
+        long deadline = System.nanoTime() + budgetNanos;
+        ByteBuffer b = buffer;
+        b.clear();
+
+        // Header, the length and flags are filled in last
+        b.putInt(MAGIC);
+        b.putInt(VERSION);
+        b.putInt(0);
+        b.putInt(0);
+        b.putLong(System.currentTimeMillis());
+        putString(thread.getName());
+
+        Frame f = frame;
+        putString(f != null ? f.path : "");
+        b.putInt(f != null ? f.width : 0);
+        b.putInt(f != null ? f.height : 0);
+
+        b.putInt(context.length / 2);
+        for(String value: context){
+            putString(value);
+        }
+
+        // The stack trace goes last, it is cut short once out of time or room
+        int start = b.position();
+        b.putInt(0);
+        boolean complete = putStackTrace(ex, deadline);
+        b.putInt(start, b.position() - start - 4);
+
+        int length = b.position();
+        b.putInt(OFFSET_LENGTH, length);
+        b.putInt(OFFSET_FLAGS, complete ? 0 : FLAG_TRUNCATED);
+        b.flip();
+
+        long position = 0;
+        while(b.hasRemaining()){
+            position += channel.write(b, position);
+        }
+        channel.truncate(length);
+
+        // Only wait for the disk if there's time left, the page cache survives the process anyway
+        if(System.nanoTime() < deadline) channel.force(false);
+        return complete;
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Write the stack trace of the exception and its causes like
+     * {@link Throwable#printStackTrace()}, without building any strings. Each
+     * {@link Throwable#getStackTrace()} hands out a copy of the frames, that can't be helped.
+     *
+     * @return      true if the stack trace was written in full
+     */
+    private boolean putStackTrace(Throwable ex, long deadline){
+        Arrays.fill(causes, null);
+        int depth = 0;
+
+        Throwable current = ex;
+        while(current != null && depth < MAX_CAUSES){
+            for(int i=0; i<depth; i++){
+                if(causes[i] == current) return true;
+            }
+            causes[depth] = current;
+
+            if(depth > 0 && !putChars("Caused by: ")) return false;
+            if(!putChars(current.getClass().getName())) return false;
+            String message = current.getMessage();
+            if(message != null && !(putChars(": ") && putChars(message))) return false;
+            if(!putChars("\n")) return false;
+
+            for(StackTraceElement element: current.getStackTrace()){
+                if(System.nanoTime() > deadline) return false;
+
+                if(!putChars("\tat ")
+                        || !putChars(element.getClassName())
+                        || !putChars(".")
+                        || !putChars(element.getMethodName())
+                        || !putChars("(")){
+                    return false;
+                }
+
+                if(element.isNativeMethod()){
+                    if(!putChars("Native Method")) return false;
+                }else if(element.getFileName() == null){
+                    if(!putChars("Unknown Source")) return false;
+                }else{
+                    if(!putChars(element.getFileName())) return false;
+                    if(element.getLineNumber() >= 0 && !(putChars(":") && putNumber(element.getLineNumber()))) return false;
+                }
+
+                if(!putChars(")\n")) return false;
+            }
+
+            current = current.getCause();
+            depth++;
+        }
+
+        return current == null;
+    }
+
+    /**
+     * Write a length prefixed string into the header, it is cut short at {@link #MAX_HEADER_CHARS}
+     */
+    private void putString(String value){
+        int start = buffer.position();
+        buffer.putInt(0);
+        putChars(value, Math.min(value.length(), MAX_HEADER_CHARS));
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    /**
+     * Encode the characters as UTF-8 into the buffer, keeping {@link #RESERVE} bytes free
+     *
+     * @return      false if the buffer ran out of room
+     */
+    private boolean putChars(String chars){
+        return putChars(chars, chars.length());
+    }
+
+    /**
+     * Encode the leading characters as UTF-8 into the buffer, keeping {@link #RESERVE} bytes free
+     *
+     * @param chars     the characters to write
+     * @param end       the number of characters to write
+     * @return          false if the buffer ran out of room
+     */
+    private boolean putChars(String chars, int end){
+        ByteBuffer b = buffer;
+        for(int i=0; i<end; i++){
+            if(b.remaining() < RESERVE) return false;
+
+            char c = chars.charAt(i);
+            if(c < 0x80){
+                b.put((byte) c);
+            }else if(c < 0x800){
+                b.put((byte) (0xC0 | (c >> 6)));
+                b.put((byte) (0x80 | (c & 0x3F)));
+            }else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))){
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                b.put((byte) (0xF0 | (cp >> 18)));
+                b.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                b.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                b.put((byte) (0x80 | (cp & 0x3F)));
+            }else{
+                b.put((byte) (0xE0 | (c >> 12)));
+                b.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                b.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the decimal digits of a non-negative number into the buffer
+     *
+     * @return      false if the buffer ran out of room
+     */
+    private boolean putNumber(int value){
+        if(buffer.remaining() < RESERVE) return false;
+
+        int divisor = 1;
+        while(value / divisor >= 10) divisor *= 10;
+        while(divisor > 0){
+            buffer.put((byte) ('0' + (value / divisor) % 10));
+            divisor /= 10;
+        }
+        return true;
+    }
+
+    /**
+     * Build the configuration context recorded with every crash, it is built up front so the
+     * crash path only has to copy it
+     */
+    private static String[] getContext(Context ctx, FlyTrap.Config config){
+        Map<String, String> context = new LinkedHashMap<>();
+        context.put("package", ctx.getPackageName());
+        try {
+            PackageInfo info = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+            context.put("version_name", String.valueOf(info.versionName));
+            context.put("version_code", String.valueOf(info.versionCode));
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unable to look up the app version", e);
+        }
+        context.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        context.put("os_version", Build.VERSION.RELEASE);
+        context.put("sdk_int", String.valueOf(Build.VERSION.SDK_INT));
+        context.put("delivery", config.deliverySystem.getClass().getSimpleName());
+        context.put("attachment_mode", config.attachmentMode == Report.ATTACHMENTS_REGIONS ? "regions" : "full");
+        context.put("vector_shade", String.valueOf(config.vectorShade));
+        context.put("delivery_constraints", String.valueOf(config.deliveryConstraints));
+
+        String[] pairs = new String[context.size() * 2];
+        int i = 0;
+        for(Map.Entry<String, String> entry: context.entrySet()){
+            pairs[i++] = entry.getKey();
+            pairs[i++] = entry.getValue();
+        }
+        return pairs;
+    }
+
+    /**
+     * Deliver the crashes of previous launches, a crash is deleted once it was delivered
+     */
+    private static void deliverPending(final Context ctx, final FlyTrap.Config config, final File dir){
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                File[] crashes = dir.listFiles();
+                if(crashes == null) return;
+
+                // Newest first
+                Arrays.sort(crashes, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        return rhs.getName().compareTo(lhs.getName());
+                    }
+                });
+
+                int kept = 0;
+                for(final File crash: crashes){
+                    if(!crash.getName().endsWith(SUFFIX)) continue;
+
+                    Record record = null;
+                    if(kept++ < MAX_PENDING_CRASHES){
+                        try {
+                            record = Record.read(crash);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Dropping unreadable crash " + crash.getName(), e);
+                        }
+                    }
+
+                    if(record == null){
+                        crash.delete();
+                        continue;
+                    }
+
+                    final Report report = record.toReport(config);
+                    Workers.postToMain(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(ctx, config, report, crash);
+                        }
+                    });
+                }
+            }
+        };
+
+        try {
+            Workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Unable to deliver the pending crashes, FlyTrap is saturated");
+        }
+    }
+
+    private static void deliver(final Context ctx, FlyTrap.Config config, final Report report, final File crash){
+        try {
+            config.deliverySystem.onReportGenerated(ctx, report, new Delivery.OnReportResultHandler() {
+                @Override
+                public void onFinish() {
+                    crash.delete();
+                    ArtifactStore.get(ctx).release(report);
+                }
+
+                @Override
+                public void onFailure() {
+                    // Kept for the next launch
+                    Log.w(TAG, "Unable to deliver crash " + crash.getName());
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to deliver crash " + crash.getName(), e);
+        }
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * A captured frame, immutable so that the crash path reads it in one go
+     */
+    private static class Frame {
+
+        final String path;
+        final int width;
+        final int height;
+
+        Frame(String path, int width, int height){
+            this.path = path;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * A crash read back from disk, it is attached to the crash report as the 'crash' section
+     */
+    static class Record implements Report.Section {
+
+        long timestamp;
+        String thread;
+        String frame;
+        int width;
+        int height;
+        Map<String, String> context = new LinkedHashMap<>();
+        String stackTrace;
+        boolean truncated;
+
+        /**
+         * Read a crash record
+         *
+         * @param file      the crash file
+         * @return          the record
+         *
+         * @throws IOException  if the file is not a complete crash record
+         */
+        static Record read(File file) throws IOException {
+            byte[] data = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while(read < data.length){
+                    int count = in.read(data, read, data.length - read);
+                    if(count == -1) throw new IOException("Crash file was truncated");
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+
+            try {
+                ByteBuffer b = ByteBuffer.wrap(data);
+                if(b.getInt() != MAGIC) throw new IOException("Not a crash record");
+                int version = b.getInt();
+                if(version != VERSION) throw new IOException("Unsupported crash record version: " + version);
+                if(b.getInt() != data.length) throw new IOException("Incomplete crash record");
+
+                Record record = new Record();
+                record.truncated = (b.getInt() & FLAG_TRUNCATED) != 0;
+                record.timestamp = b.getLong();
+                record.thread = getString(b);
+                record.frame = getString(b);
+                record.width = b.getInt();
+                record.height = b.getInt();
+
+                int pairs = b.getInt();
+                for(int i=0; i<pairs; i++){
+                    record.context.put(getString(b), getString(b));
+                }
+
+                record.stackTrace = getString(b);
+                return record;
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed crash record", e);
+            }
+        }
+
+        private static String getString(ByteBuffer b) throws IOException {
+            int length = b.getInt();
+            if(length < 0 || length > b.remaining()) throw new IOException("Invalid string length: " + length);
+            String value = new String(b.array(), b.position(), length, "UTF-8");
+            b.position(b.position() + length);
+            return value;
+        }
+
+        /**
+         * Build the crash report, the frame is attached if it still exists
+         */
+        Report toReport(FlyTrap.Config config){
+            Report.Builder builder = new Report.Builder()
+                    .setTimestamp(timestamp)
+                    .setAttachmentMode(Report.ATTACHMENTS_FULL, 0)
+                    .setQuantization(config.quantizeScreenshots, config.ditherScreenshots)
+                    .setDeliveryConstraints(config.deliveryConstraints)
+                    .addSection(this);
+
+            if(frame.length() > 0 && new File(frame).exists()){
+                builder.setBaseScreenshot(frame)
+                        .setDimensions(width, height);
+            }
+            return builder.build();
+        }
+
+        @Override
+        public String getName() {
+            return SECTION_NAME;
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("timestamp").value(timestamp);
+            writer.name("thread").value(thread);
+            writer.name("stack_trace").value(stackTrace);
+            writer.name("truncated").value(truncated);
+            writer.name("context").beginObject();
+            for(Map.Entry<String, String> entry: context.entrySet()){
+                writer.name(entry.getKey()).value(entry.getValue());
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+    }
+
+}
@@ -19,22 +19,43 @@ package com.ftinc.flytrap;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
 
+import com.ftinc.flytrap.model.Bug;
 import com.ftinc.flytrap.model.Delivery;
 import com.ftinc.flytrap.model.EmailDelivery;
 import com.ftinc.flytrap.model.Report;
+import com.ftinc.flytrap.util.ArtifactStore;
 import com.ftinc.flytrap.util.Utils;
+import com.ftinc.flytrap.util.Workers;
 import com.ftinc.flytrap.view.FlyTrapView;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 /**
  * Created by drew.heavner on 7/2/14.
  */
 public class FlyTrap extends Activity {
+    private static final String TAG = FlyTrap.class.getName();
+
+    /**
+     * The number of headless reports that may be in flight at once, see
+     * {@link #fileReport(Activity, Config, Collection, Delivery.OnReportHandler)}
+     */
+    public static final int MAX_HEADLESS_REPORTS = 4;
+
+    private static final Semaphore sHeadlessReports = new Semaphore(MAX_HEADLESS_REPORTS);
 
     /*
      * Configuration variable
@@ -65,11 +86,18 @@ public class FlyTrap extends Activity {
          */
         view.setOnFlyTrapActionListener(new FlyTrapView.OnFlyTrapActionListener() {
             @Override
-            public void onDone(Report report) {
+            public void onDone(final Report report) {
                 if(mConfig.deliverySystem != null){
-                    mConfig.deliverySystem.onReportGenerated(FlyTrap.this, report, new Delivery.OnReportHandler() {
+                    mConfig.deliverySystem.onReportGenerated(FlyTrap.this, report, new Delivery.OnReportResultHandler() {
                         @Override
                         public void onFinish() {
+                            // Delivered, the screenshots are only kept around while still read
+                            ArtifactStore.get(FlyTrap.this).release(report);
+                            finish();
+                        }
+
+                        @Override
+                        public void onFailure() {
                             finish();
                         }
                     });
@@ -97,6 +125,7 @@ public class FlyTrap extends Activity {
         File rootScreenShot = Utils.captureRootScreenShot(ctx);
 
         if(rootScreenShot != null) {
+            recordFrame(ctx, rootScreenShot);
 
             // Generate intent to display flytrap activity
             Intent intent = new Intent(ctx, FlyTrap.class);
@@ -126,6 +155,7 @@ public class FlyTrap extends Activity {
         // Capture screen from the calling activity and store in a temporary file for later use
         File rootScreenShot = Utils.captureRootScreenShot(ctx);
         if(rootScreenShot != null) {
+            recordFrame(ctx, rootScreenShot);
 
             // Generate intent to display flytrap activity
             Intent intent = new Intent(ctx, FlyTrap.class);
@@ -142,6 +172,160 @@ public class FlyTrap extends Activity {
     }
 
 
+    /**
+     * File a report without any UI, i.e. on an assertion failure in a QA build, from a debug menu
+     * or from an automated UI test. The current window of the activity is captured as the base
+     * screenshot and the caller supplied bugs, see {@link Bug.Builder}, are rendered as a vector
+     * shade. The screenshot is encoded and the report handed to the configured delivery in the
+     * background.
+     *
+     * This must be called on the main thread, which is only held up for capturing the window.
+     * At most {@link #MAX_HEADLESS_REPORTS} reports are in flight at once, further reports are
+     * dropped until one of them was delivered.
+     *
+     * @param activity      the activity whose window is captured
+     * @param config        the fly trap configuration, only the delivery and the attachment
+     *                      settings apply
+     * @param bugs          the bugs to report, in the coordinates of the activity's window
+     * @param handler       the handler notified on the main thread once the report was delivered,
+     *                      an {@link Delivery.OnReportResultHandler} is notified of failures as well,
+     *                      or null
+     * @return              true if the report was filed, false if it was dropped
+     */
+    public static boolean fileReport(Activity activity, Config config, Collection<Bug> bugs,
+                                     Delivery.OnReportHandler handler){
+        return fileReport(activity, config, bugs, Collections.<Report.Section>emptyList(), handler);
+    }
+
+    /**
+     * File a report without any UI along with sections of diagnostics, i.e. by a monitor that
+     * caught a problem, see {@link #fileReport(Activity, Config, Collection, Delivery.OnReportHandler)}.
+     * The sections of the registered {@link Report.Contributor}s are added as well.
+     *
+     * @param activity      the activity whose window is captured
+     * @param config        the fly trap configuration
+     * @param bugs          the bugs to report, in the coordinates of the activity's window
+     * @param sections      the sections to add to the report
+     * @param handler       the handler notified on the main thread once the report was delivered,
+     *                      or null
+     * @return              true if the report was filed, false if it was dropped
+     */
+    public static boolean fileReport(Activity activity, final Config config, final Collection<Bug> bugs,
+                                     final Collection<? extends Report.Section> sections,
+                                     final Delivery.OnReportHandler handler){
+        if(config.deliverySystem == null)
+            throw new NullPointerException("You must provide a Delivery to file reports");
+
+        if(!sHeadlessReports.tryAcquire()){
+            Log.w(TAG, "Dropping report, " + MAX_HEADLESS_REPORTS + " reports are already in flight");
+            return false;
+        }
+
+        if(config.executor != null) Workers.setExecutor(config.executor);
+
+        final Context ctx = activity.getApplicationContext();
+        final Bitmap screenShot;
+        final int width, height;
+        try {
+            View decor = activity.getWindow().getDecorView();
+            width = decor.getWidth();
+            height = decor.getHeight();
+            screenShot = Utils.captureRootBitmap(activity);
+        } catch (RuntimeException e) {
+            // i.e. the window wasn't laid out yet
+            Log.e(TAG, "Unable to capture the window", e);
+            sHeadlessReports.release();
+            return false;
+        }
+
+        // Copy the bugs and sections, the caller may reuse its collections right away
+        final List<Bug> reported = new ArrayList<>(bugs);
+        final List<Report.Section> attached = new ArrayList<Report.Section>(sections);
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final File rootScreenShot = Utils.saveScreenShot(ctx, screenShot);
+                screenShot.recycle();
+                if(rootScreenShot != null) CrashReporter.onFrameCaptured(rootScreenShot, width, height);
+
+                Workers.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(rootScreenShot == null){
+                            onHeadlessReportDone(handler, false);
+                            return;
+                        }
+
+                        Report.Builder builder = new Report.Builder()
+                                .addBugs(reported)
+                                .setBaseScreenshot(rootScreenShot.getPath())
+                                .setDimensions(width, height)
+                                .setAttachmentMode(config.attachmentMode, config.cropMargin)
+                                .setQuantization(config.quantizeScreenshots, config.ditherScreenshots)
+                                .setDeliveryConstraints(config.deliveryConstraints);
+                        for(Report.Section section: attached){
+                            builder.addSection(section);
+                        }
+                        final Report report = builder.addContributions().build();
+
+                        try {
+                            config.deliverySystem.onReportGenerated(ctx, report, new Delivery.OnReportResultHandler() {
+                                @Override
+                                public void onFinish() {
+                                    ArtifactStore.get(ctx).release(report);
+                                    onHeadlessReportDone(handler, true);
+                                }
+
+                                @Override
+                                public void onFailure() {
+                                    onHeadlessReportDone(handler, false);
+                                }
+                            });
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Unable to deliver the report", e);
+                            onHeadlessReportDone(handler, false);
+                        }
+                    }
+                });
+            }
+        };
+
+        try {
+            Workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Unable to file the report, FlyTrap is saturated", e);
+            screenShot.recycle();
+            sHeadlessReports.release();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Record a captured screenshot as the last frame, in case the app crashes
+     */
+    private static void recordFrame(Activity activity, File screenShot){
+        View decor = activity.getWindow().getDecorView();
+        CrashReporter.onFrameCaptured(screenShot, decor.getWidth(), decor.getHeight());
+    }
+
+    /**
+     * Finish a headless report, making room for the next one
+     */
+    private static void onHeadlessReportDone(Delivery.OnReportHandler handler, boolean success){
+        sHeadlessReports.release();
+        if(handler == null) return;
+
+        if(success){
+            handler.onFinish();
+        }else if(handler instanceof Delivery.OnReportResultHandler){
+            ((Delivery.OnReportResultHandler) handler).onFailure();
+        }
+    }
+
+
     /**
      * FlyTrap configurations for creating fly trap screens to capture
      * feedback from the user.
@@ -161,6 +345,12 @@ public class FlyTrap extends Activity {
         public static final String CACHE_QUALITY = "drawing_cache_quality";
         public static final String ROOT_IMAGE_PATH = "root_image_path";
         public static final String DELIVERY_SYSTEM = "delivery_system";
+        public static final String VECTOR_SHADE = "vector_shade";
+        public static final String ATTACHMENT_MODE = "attachment_mode";
+        public static final String CROP_MARGIN = "crop_margin";
+        public static final String QUANTIZE = "quantize";
+        public static final String DITHER = "dither";
+        public static final String DELIVERY_CONSTRAINTS = "delivery_constraints";
 
         /******************************************
          *
@@ -202,6 +392,49 @@ public class FlyTrap extends Activity {
          */
         public Delivery deliverySystem;
 
+        /**
+         * When enabled the shade screenshot is never captured, reports only carry the
+         * bug geometry and the shade is rendered from it on demand
+         */
+        public boolean vectorShade;
+
+        /**
+         * How the base screenshot is attached to reports, either {@link Report#ATTACHMENTS_FULL}
+         * or {@link Report#ATTACHMENTS_REGIONS}
+         */
+        public int attachmentMode = Report.ATTACHMENTS_FULL;
+
+        /**
+         * The margin in pixels kept around each bug when cropping the base screenshot
+         * in {@link Report#ATTACHMENTS_REGIONS} mode
+         */
+        public int cropMargin;
+
+        /**
+         * When enabled the screenshots are reduced to a palette of at most 256 colors and
+         * attached as indexed PNGs, which is lossless for most flat UI screens
+         */
+        public boolean quantizeScreenshots;
+
+        /**
+         * When enabled quantized screenshots that need more than 256 colors are dithered
+         */
+        public boolean ditherScreenshots;
+
+        /**
+         * The conditions, {@link Delivery#CONSTRAINT_UNMETERED}, {@link Delivery#CONSTRAINT_CHARGING}
+         * and {@link Delivery#CONSTRAINT_IDLE}, the device must meet before the screenshots of a
+         * report are uploaded. The metadata is always sent right away.
+         */
+        public int deliveryConstraints;
+
+        /**
+         * The executor FlyTrap does its background work on, encoding, assembling and uploading
+         * reports, or null for FlyTrap's own bounded pool. It can't travel in the launch intent,
+         * {@link #apply(Intent)} installs it process wide, see {@link Workers#setExecutor(Executor)}.
+         */
+        public Executor executor;
+
         /**
          * Empty Constructor
          */
@@ -220,12 +453,20 @@ public class FlyTrap extends Activity {
          * @param intent        the intent to launch the FlyTrap activity
          */
         public void apply(Intent intent){
+            if(executor != null) Workers.setExecutor(executor);
+
             intent.putExtra(ACCENT_COLOR, accentColor);
             intent.putExtra(ACTIVE_COLOR, activeColor);
             intent.putExtra(DEFAULT_RADIUS, defaultRadius);
             intent.putExtra(CACHE_QUALITY, drawingCacheQuality);
             intent.putExtra(ROOT_IMAGE_PATH, rootImagePath);
             intent.putExtra(DELIVERY_SYSTEM, deliverySystem);
+            intent.putExtra(VECTOR_SHADE, vectorShade);
+            intent.putExtra(ATTACHMENT_MODE, attachmentMode);
+            intent.putExtra(CROP_MARGIN, cropMargin);
+            intent.putExtra(QUANTIZE, quantizeScreenshots);
+            intent.putExtra(DITHER, ditherScreenshots);
+            intent.putExtra(DELIVERY_CONSTRAINTS, deliveryConstraints);
         }
 
         /**
@@ -243,6 +484,12 @@ public class FlyTrap extends Activity {
             config.drawingCacheQuality = xtras.getInt(CACHE_QUALITY);
             config.rootImagePath = xtras.getString(ROOT_IMAGE_PATH);
             config.deliverySystem = xtras.getParcelable(DELIVERY_SYSTEM);
+            config.vectorShade = xtras.getBoolean(VECTOR_SHADE);
+            config.attachmentMode = xtras.getInt(ATTACHMENT_MODE, Report.ATTACHMENTS_FULL);
+            config.cropMargin = xtras.getInt(CROP_MARGIN);
+            config.quantizeScreenshots = xtras.getBoolean(QUANTIZE);
+            config.ditherScreenshots = xtras.getBoolean(DITHER);
+            config.deliveryConstraints = xtras.getInt(DELIVERY_CONSTRAINTS);
             return config;
         }
 
@@ -348,6 +595,73 @@ public class FlyTrap extends Activity {
                 return this;
             }
 
+            /**
+             * Enable vector shade mode, which skips capturing the shade screenshot and only
+             * delivers the bug geometry to render it from
+             *
+             * @param enabled       true to enable vector shade mode
+             * @return              self for chaining
+             */
+            public Builder setVectorShade(boolean enabled){
+                config.vectorShade = enabled;
+                return this;
+            }
+
+            /**
+             * Set how the base screenshot is attached to reports. In {@link Report#ATTACHMENTS_REGIONS}
+             * mode only a downscaled thumbnail and full resolution crops around the bugs are sent.
+             *
+             * @param mode          {@link Report#ATTACHMENTS_FULL} or {@link Report#ATTACHMENTS_REGIONS}
+             * @param cropMargin    the margin in pixels kept around each bug's crop
+             * @return              self for chaining
+             */
+            public Builder setAttachmentMode(int mode, int cropMargin){
+                config.attachmentMode = mode;
+                config.cropMargin = cropMargin;
+                return this;
+            }
+
+            /**
+             * Reduce the screenshots to a palette of at most 256 colors and send them as indexed
+             * PNGs. Quantization happens on the delivery's worker thread.
+             *
+             * @param quantize      true to quantize the screenshots
+             * @param dither        true to dither screenshots that need more than 256 colors
+             * @return              self for chaining
+             */
+            public Builder setQuantization(boolean quantize, boolean dither){
+                config.quantizeScreenshots = quantize;
+                config.ditherScreenshots = dither;
+                return this;
+            }
+
+            /**
+             * Defer uploading the screenshots of reports until the device meets the given
+             * conditions, i.e. to keep full resolution screenshots off cellular data. The
+             * metadata of a report is still sent right away.
+             *
+             * @param constraints   {@link Delivery#CONSTRAINT_UNMETERED}, {@link Delivery#CONSTRAINT_CHARGING}
+             *                      and {@link Delivery#CONSTRAINT_IDLE}, or 0 to send everything right away
+             * @return              self for chaining
+             */
+            public Builder setDeliveryConstraints(int constraints){
+                config.deliveryConstraints = constraints;
+                return this;
+            }
+
+            /**
+             * Supply the executor FlyTrap does its background work on instead of its own pool,
+             * i.e. to share the host app's background threads. It must not run tasks on the
+             * calling thread.
+             *
+             * @param executor      the executor to use
+             * @return              self for chaining
+             */
+            public Builder setExecutor(Executor executor){
+                config.executor = executor;
+                return this;
+            }
+
             /**
              * Build and return the configuration for FlyTrap
              *
@@ -0,0 +1,583 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.ftinc.flytrap.model.Bug;
+import com.ftinc.flytrap.model.Report;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the frame timing of an activity and files a report when it sees sustained jank, i.e.
+ * for internal builds where testers are to catch UI problems. The report carries a screenshot
+ * and the 'jank' section: a histogram of the frame durations, the main thread stacks sampled
+ * while frames were slow and the overhead of the monitor itself.
+ *
+ * The frame durations are the intervals between {@link Choreographer} frame callbacks, so the
+ * monitor requires Jelly Bean and does nothing on older devices. While a frame is late a sampler
+ * thread takes the stack of the main thread every {@link #SAMPLE_INTERVAL} milliseconds.
+ *
+ * The monitor measures the time it takes on the main thread, the frame callback and the stack
+ * samples, which suspend the main thread. If it averages more than the per frame budget over a
+ * window the stack sampling is turned off for the following window.
+ *
+ * The monitor is also a {@link Report.Contributor}, every report filed while it runs carries
+ * the 'jank' section. Start it in {@link Activity#onResume()} and stop it in
+ * {@link Activity#onPause()}.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class JankMonitor implements Report.Contributor {
+    private static final String TAG = JankMonitor.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String SECTION_NAME = "jank";
+
+    /**
+     * A frame is janky when it took this many refresh intervals or more
+     */
+    public static final float DEFAULT_JANK_FACTOR = 2f;
+
+    /**
+     * Jank is sustained once this many of the frames in a window were janky
+     */
+    public static final int DEFAULT_JANK_FRAMES = 8;
+    public static final int DEFAULT_WINDOW = 120;
+
+    /**
+     * The time after a report before another one may be filed, in milliseconds
+     */
+    public static final long DEFAULT_COOLDOWN = 60 * 1000;
+
+    /**
+     * The average time the monitor may take on the main thread per frame, in microseconds
+     */
+    public static final long DEFAULT_BUDGET = 100;
+
+    /**
+     * How often the stack of the main thread is sampled while a frame is late, in milliseconds
+     */
+    public static final long SAMPLE_INTERVAL = 8;
+
+    public static final int MAX_SAMPLES = 32;
+    public static final int MAX_STACK_DEPTH = 24;
+
+    /**
+     * The upper bounds of the histogram buckets in milliseconds, the last bucket is unbounded
+     */
+    private static final int[] BUCKETS = new int[]{ 8, 16, 24, 33, 50, 100, 250, 500, 1000 };
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final FlyTrap.Config config;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private float jankFactor = DEFAULT_JANK_FACTOR;
+    private int jankFrames = DEFAULT_JANK_FRAMES;
+    private long cooldown = DEFAULT_COOLDOWN;
+    private long budgetNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_BUDGET);
+    private OnJankListener listener;
+
+    private Activity activity;
+    private Choreographer choreographer;
+    private FrameWatcher frameCallback;
+    private HandlerThread samplerThread;
+    private Handler sampler;
+
+    // Main thread state
+    private float refreshRate;
+    private long intervalNanos;
+    private long lastFrameNanos;
+    private boolean[] window = new boolean[DEFAULT_WINDOW];
+    private int windowIndex;
+    private int windowJank;
+    private long windowOverhead;
+    private int windowFrames;
+    private long lastReport;
+
+    // Guarded by this, the stats since the last report
+    private final int[] histogram = new int[BUCKETS.length + 1];
+    private final List<Sample> samples = new ArrayList<>();
+    private long frames;
+    private long jankyFrames;
+    private long overheadNanos;
+    private long maxOverheadNanos;
+    private long windowSampleNanos;
+    private boolean samplingEnabled = true;
+
+    // The frame the sampler watches, written on the main thread
+    private volatile long watchedFrameNanos;
+
+    /**
+     * Constructor
+     *
+     * @param config    the fly trap configuration, its delivery sends the jank reports
+     */
+    public JankMonitor(FlyTrap.Config config){
+        this.config = config;
+    }
+
+    /************************************************
+     *
+     * Configuration Methods
+     *
+     */
+
+    /**
+     * Set how many refresh intervals a frame must take to count as janky
+     *
+     * @param factor        the factor, i.e. 2 for frames that missed at least one vsync
+     * @return              self for chaining
+     */
+    public JankMonitor setJankFactor(float factor){
+        jankFactor = factor;
+        return this;
+    }
+
+    /**
+     * Set when jank counts as sustained
+     *
+     * @param frames        the number of janky frames
+     * @param window        the number of consecutive frames they must occur in
+     * @return              self for chaining
+     */
+    public JankMonitor setSustainedJank(int frames, int window){
+        if(choreographer != null) throw new IllegalStateException("The monitor is running");
+        jankFrames = frames;
+        this.window = new boolean[window];
+        return this;
+    }
+
+    /**
+     * Set the time after a report before another one may be filed
+     *
+     * @param cooldown      the cooldown in milliseconds
+     * @return              self for chaining
+     */
+    public JankMonitor setCooldown(long cooldown){
+        this.cooldown = cooldown;
+        return this;
+    }
+
+    /**
+     * Set the average time the monitor may take on the main thread per frame
+     *
+     * @param budget        the budget in microseconds
+     * @return              self for chaining
+     */
+    public JankMonitor setBudget(long budget){
+        budgetNanos = TimeUnit.MICROSECONDS.toNanos(budget);
+        return this;
+    }
+
+    /**
+     * Handle sustained jank instead of filing a report right away, i.e. to ask the tester first
+     *
+     * @param listener      the listener, or null to file reports right away
+     * @return              self for chaining
+     */
+    public JankMonitor setOnJankListener(OnJankListener listener){
+        this.listener = listener;
+        return this;
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Start watching the frames of an activity, this must be called on the main thread
+     *
+     * @param activity      the activity
+     */
+    public void start(Activity activity){
+        if(choreographer != null) return;
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN){
+            Log.w(TAG, "Frame timing requires Jelly Bean, the jank monitor is disabled");
+            return;
+        }
+
+        this.activity = activity;
+        setRefreshRate(activity.getWindowManager().getDefaultDisplay().getRefreshRate());
+
+        samplerThread = new HandlerThread("FlyTrap-JankSampler", Process.THREAD_PRIORITY_BACKGROUND);
+        samplerThread.start();
+        sampler = new Handler(samplerThread.getLooper());
+
+        resetWindow();
+        lastFrameNanos = 0;
+        if(frameCallback == null) frameCallback = new FrameWatcher();
+        choreographer = Choreographer.getInstance();
+        choreographer.postFrameCallback(frameCallback);
+        Report.addContributor(this);
+    }
+
+    /**
+     * Set the refresh rate of the display the frames are rendered to
+     *
+     * @param refreshRate   the refresh rate in frames per second, 60 is assumed if it isn't known
+     */
+    void setRefreshRate(float refreshRate){
+        this.refreshRate = refreshRate;
+        intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / (refreshRate > 0 ? refreshRate : 60f));
+    }
+
+    /**
+     * Stop watching the frames, this must be called on the main thread
+     */
+    public void stop(){
+        if(choreographer == null) return;
+
+        choreographer.removeFrameCallback(frameCallback);
+        choreographer = null;
+        samplerThread.quit();
+        samplerThread = null;
+        sampler = null;
+        activity = null;
+        Report.removeContributor(this);
+    }
+
+    /**
+     * Get the average time the monitor took on the main thread per frame since the last report
+     *
+     * @return      the overhead in nanoseconds
+     */
+    public synchronized long getOverheadNanos(){
+        return frames > 0 ? overheadNanos / frames : 0;
+    }
+
+    @Override
+    public synchronized Report.Section getSection() {
+        return frames > 0 ? snapshot() : null;
+    }
+
+    /************************************************
+     *
+     * Frame Monitoring
+     *
+     */
+
+    /**
+     * Times the frames, on the main thread. It is only created by {@link #start(Activity)} once
+     * the version is checked, loading a {@link Choreographer.FrameCallback} fails before Jelly Bean.
+     */
+    private class FrameWatcher implements Choreographer.FrameCallback {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            long start = System.nanoTime();
+            if(choreographer == null) return;
+            choreographer.postFrameCallback(this);
+
+            // Watch this frame, if the main thread doesn't come back in time it is sampled
+            Handler handler = sampler;
+            watchedFrameNanos = frameTimeNanos;
+            handler.removeCallbacks(sampleTask);
+            if(samplingEnabled) handler.postDelayed(sampleTask, TimeUnit.NANOSECONDS.toMillis((long) (intervalNanos * jankFactor)));
+
+            recordFrame(frameTimeNanos, start);
+        }
+    }
+
+    /**
+     * Record the duration of a frame in the window and the stats, and file a report once the
+     * jank is sustained, on the main thread
+     *
+     * @param frameTimeNanos    the time the frame started rendering at
+     * @param start             the time the frame callback started, its overhead is measured from there
+     * @return                  true if the jank was sustained and a report was filed
+     */
+    boolean recordFrame(long frameTimeNanos, long start){
+        if(lastFrameNanos == 0){
+            lastFrameNanos = frameTimeNanos;
+            return false;
+        }
+
+        long duration = frameTimeNanos - lastFrameNanos;
+        lastFrameNanos = frameTimeNanos;
+        boolean janky = duration >= intervalNanos * jankFactor;
+
+        // Slide the window
+        if(window[windowIndex]) windowJank--;
+        window[windowIndex] = janky;
+        if(janky) windowJank++;
+        windowIndex = (windowIndex + 1) % window.length;
+        windowFrames++;
+
+        int millis = (int) TimeUnit.NANOSECONDS.toMillis(duration);
+        int bucket = 0;
+        while(bucket < BUCKETS.length && millis >= BUCKETS[bucket]) bucket++;
+
+        boolean sustained = windowJank >= jankFrames && SystemClock.elapsedRealtime() - lastReport >= cooldown;
+        long overhead = System.nanoTime() - start;
+        synchronized (this) {
+            histogram[bucket]++;
+            frames++;
+            if(janky) jankyFrames++;
+            overheadNanos += overhead;
+            maxOverheadNanos = Math.max(maxOverheadNanos, overhead);
+        }
+
+        // Check the budget once a window, sampling is turned off for the next window if over it
+        windowOverhead += overhead;
+        if(windowFrames == window.length){
+            synchronized (this) {
+                windowOverhead += windowSampleNanos;
+                windowSampleNanos = 0;
+
+                boolean enabled = windowOverhead / windowFrames <= budgetNanos;
+                if(samplingEnabled != enabled){
+                    Log.i(TAG, (enabled ? "Resuming" : "Pausing") + " stack sampling, the overhead averaged "
+                            + TimeUnit.NANOSECONDS.toMicros(windowOverhead / windowFrames) + "us per frame");
+                }
+                samplingEnabled = enabled;
+            }
+            windowOverhead = 0;
+            windowFrames = 0;
+        }
+
+        if(sustained) onSustainedJank();
+        return sustained;
+    }
+
+    /**
+     * Samples the main thread while the watched frame is late, on the sampler thread
+     */
+    private final Runnable sampleTask = new Runnable() {
+        @Override
+        public void run() {
+            long frame = watchedFrameNanos;
+            Handler handler = sampler;
+            if(handler == null) return;
+
+            long start = System.nanoTime();
+            StackTraceElement[] stack = Looper.getMainLooper().getThread().getStackTrace();
+            long cost = System.nanoTime() - start;
+
+            // The main thread moved on while the stack was taken
+            if(frame != watchedFrameNanos) return;
+
+            synchronized (JankMonitor.this) {
+                // The main thread is suspended while its stack is taken, that counts against the budget
+                overheadNanos += cost;
+                windowSampleNanos += cost;
+
+                if(!samplingEnabled || samples.size() >= MAX_SAMPLES) return;
+                long late = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - frame);
+                samples.add(new Sample(late, stack.length > MAX_STACK_DEPTH ? Arrays.copyOf(stack, MAX_STACK_DEPTH) : stack));
+            }
+            handler.postDelayed(this, SAMPLE_INTERVAL);
+        }
+    };
+
+    /**
+     * File a report, or hand the jank to the listener, on the main thread
+     */
+    private void onSustainedJank(){
+        lastReport = SystemClock.elapsedRealtime();
+        final Report.Section section;
+        synchronized (this) {
+            section = snapshot();
+            resetStats();
+        }
+        resetWindow();
+        Log.i(TAG, "Sustained jank, " + jankFrames + " or more of " + window.length + " frames were janky");
+
+        // Capture the window once the current frame is done
+        final Activity target = activity;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(target.isFinishing()) return;
+
+                if(listener != null){
+                    listener.onJank(target, section);
+                }else{
+                    FlyTrap.fileReport(target, config, Collections.<Bug>emptyList(),
+                            Collections.singletonList(section), null);
+                }
+            }
+        });
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private void resetWindow(){
+        Arrays.fill(window, false);
+        windowIndex = 0;
+        windowJank = 0;
+        windowOverhead = 0;
+        windowFrames = 0;
+    }
+
+    private void resetStats(){
+        Arrays.fill(histogram, 0);
+        samples.clear();
+        frames = 0;
+        jankyFrames = 0;
+        overheadNanos = 0;
+        maxOverheadNanos = 0;
+        windowSampleNanos = 0;
+    }
+
+    /**
+     * Copy the stats into an immutable section, the caller holds the lock
+     */
+    private JankSection snapshot(){
+        JankSection section = new JankSection();
+        section.refreshRate = refreshRate;
+        section.thresholdMillis = TimeUnit.NANOSECONDS.toMillis((long) (intervalNanos * jankFactor));
+        section.frames = frames;
+        section.jankyFrames = jankyFrames;
+        section.histogram = histogram.clone();
+        section.samples = new ArrayList<>(samples);
+        section.meanOverheadMicros = frames > 0 ? TimeUnit.NANOSECONDS.toMicros(overheadNanos / frames) : 0;
+        section.maxOverheadMicros = TimeUnit.NANOSECONDS.toMicros(maxOverheadNanos);
+        section.budgetMicros = TimeUnit.NANOSECONDS.toMicros(budgetNanos);
+        section.sampling = samplingEnabled;
+        return section;
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * Listener that handles sustained jank instead of the monitor filing a report
+     */
+    public static interface OnJankListener{
+
+        /**
+         * Called on the main thread when the monitor saw sustained jank, i.e. file the report
+         * with {@link FlyTrap#fileReport(Activity, FlyTrap.Config, java.util.Collection, java.util.Collection, com.ftinc.flytrap.model.Delivery.OnReportHandler)}
+         *
+         * @param activity      the janky activity
+         * @param section       the 'jank' section describing it
+         */
+        public void onJank(Activity activity, Report.Section section);
+    }
+
+    /**
+     * A stack of the main thread sampled while a frame was late
+     */
+    private static class Sample {
+
+        final long lateMillis;
+        final StackTraceElement[] stack;
+
+        Sample(long lateMillis, StackTraceElement[] stack){
+            this.lateMillis = lateMillis;
+            this.stack = stack;
+        }
+    }
+
+    /**
+     * The 'jank' section, a snapshot of the monitor's stats
+     */
+    private static class JankSection implements Report.Section {
+
+        float refreshRate;
+        long thresholdMillis;
+        long frames;
+        long jankyFrames;
+        int[] histogram;
+        List<Sample> samples;
+        long meanOverheadMicros;
+        long maxOverheadMicros;
+        long budgetMicros;
+        boolean sampling;
+
+        @Override
+        public String getName() {
+            return SECTION_NAME;
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("refresh_rate").value(refreshRate);
+            writer.name("threshold_ms").value(thresholdMillis);
+            writer.name("frames").value(frames);
+            writer.name("janky_frames").value(jankyFrames);
+
+            writer.name("histogram").beginArray();
+            for(int i=0; i<histogram.length; i++){
+                writer.beginObject();
+                writer.name("min_ms").value(i > 0 ? BUCKETS[i - 1] : 0);
+                if(i < BUCKETS.length) writer.name("max_ms").value(BUCKETS[i]);
+                writer.name("count").value(histogram[i]);
+                writer.endObject();
+            }
+            writer.endArray();
+
+            writer.name("samples").beginArray();
+            for(Sample sample: samples){
+                writer.beginObject();
+                writer.name("late_ms").value(sample.lateMillis);
+                writer.name("stack").beginArray();
+                for(StackTraceElement element: sample.stack){
+                    writer.value(element.toString());
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+
+            writer.name("overhead").beginObject()
+                    .name("mean_us").value(meanOverheadMicros)
+                    .name("max_us").value(maxOverheadMicros)
+                    .name("budget_us").value(budgetMicros)
+                    .name("sampling").value(sampling)
+                    .endObject();
+            writer.endObject();
+        }
+    }
+
+}
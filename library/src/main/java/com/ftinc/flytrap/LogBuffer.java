@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.ftinc.flytrap.model.Attachment;
+import com.ftinc.flytrap.model.Report;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent log lines of the app in memory, they are attached to every report filed
+ * as 'logs.txt'. Log through the static wrappers in place of {@link Log}, i.e.
+ * {@link #d(String, String)}, or hand the lines of a Timber tree to {@link #log(int, String, String, Throwable)}.
+ *
+ * The lines are recorded into a ring of fixed size slots in a single preallocated array.
+ * Recording never locks: a thread claims the next slot with an atomic increment, encodes the
+ * line into it and publishes it through the slot's sequence. A line that doesn't fit its slot
+ * is cut short. If a thread laps another one that is still writing the same slot, its line is
+ * dropped rather than waited for, the drops are counted. Recording a line without a throwable
+ * allocates nothing. The class name and message of a throwable are recorded as well, and
+ * {@link Throwable#getMessage()} may build its message, so those lines can allocate.
+ *
+ * Reports copy the slots when they are filed and format them as they are written, see
+ * {@link #getAttachment()}. A line that is overwritten while it is copied is skipped.
+ */
+public class LogBuffer implements Report.AttachmentContributor {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String SECTION_NAME = "logs";
+    public static final String PART_NAME = "logs";
+    public static final String FILE_NAME = "logs.txt";
+
+    public static final int DEFAULT_SLOTS = 512;
+    public static final int DEFAULT_SLOT_SIZE = 256;
+
+    /* Slot Layout */
+    private static final int OFFSET_TIMESTAMP = 0;
+    private static final int OFFSET_THREAD = 8;
+    private static final int OFFSET_PRIORITY = 12;
+    private static final int OFFSET_LENGTH = 13;
+    private static final int HEADER = 16;
+
+    private static final char[] PRIORITIES = new char[]{ '?', '?', 'V', 'D', 'I', 'W', 'E', 'A' };
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static volatile LogBuffer sInstance;
+
+    /**
+     * Install the log buffer with the default size, 512 lines of up to 240 bytes
+     *
+     * @return      the installed buffer
+     */
+    public static LogBuffer install(){
+        return install(DEFAULT_SLOTS, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * Install the log buffer, the lines logged through the wrappers are recorded from now on
+     * and the buffer is added to the report contributors
+     *
+     * @param slots         the number of lines kept, rounded up to a power of two
+     * @param slotSize      the size of a line in bytes, including a 16 byte header
+     * @return              the installed buffer
+     */
+    public static synchronized LogBuffer install(int slots, int slotSize){
+        if(sInstance == null){
+            sInstance = new LogBuffer(slots, slotSize);
+            Report.addContributor(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Get the installed log buffer
+     *
+     * @return      the buffer, or null if it isn't installed
+     */
+    public static LogBuffer get(){
+        return sInstance;
+    }
+
+    /************************************************
+     *
+     * Log Wrappers
+     *
+     */
+
+    public static int v(String tag, String msg){
+        record(Log.VERBOSE, tag, msg, null);
+        return Log.v(tag, msg);
+    }
+
+    public static int v(String tag, String msg, Throwable tr){
+        record(Log.VERBOSE, tag, msg, tr);
+        return Log.v(tag, msg, tr);
+    }
+
+    public static int d(String tag, String msg){
+        record(Log.DEBUG, tag, msg, null);
+        return Log.d(tag, msg);
+    }
+
+    public static int d(String tag, String msg, Throwable tr){
+        record(Log.DEBUG, tag, msg, tr);
+        return Log.d(tag, msg, tr);
+    }
+
+    public static int i(String tag, String msg){
+        record(Log.INFO, tag, msg, null);
+        return Log.i(tag, msg);
+    }
+
+    public static int i(String tag, String msg, Throwable tr){
+        record(Log.INFO, tag, msg, tr);
+        return Log.i(tag, msg, tr);
+    }
+
+    public static int w(String tag, String msg){
+        record(Log.WARN, tag, msg, null);
+        return Log.w(tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr){
+        record(Log.WARN, tag, msg, tr);
+        return Log.w(tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg){
+        record(Log.ERROR, tag, msg, null);
+        return Log.e(tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr){
+        record(Log.ERROR, tag, msg, tr);
+        return Log.e(tag, msg, tr);
+    }
+
+    private static void record(int priority, String tag, String msg, Throwable tr){
+        LogBuffer buffer = sInstance;
+        if(buffer != null) buffer.log(priority, tag, msg, tr);
+    }
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final int slots;
+    private final int slotSize;
+    private final int mask;
+    private final byte[] data;
+
+    /**
+     * The sequence of each slot, odd while a line is written into it and even once it is
+     * published, 2 * (n + 1) for the nth line
+     */
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param slots         the number of lines kept, rounded up to a power of two
+     * @param slotSize      the size of a line in bytes, including a 16 byte header
+     */
+    public LogBuffer(int slots, int slotSize){
+        if(slotSize <= HEADER || slotSize - HEADER > 0xFFFF)
+            throw new IllegalArgumentException("Invalid slot size: " + slotSize);
+
+        int size = 1;
+        while(size < slots) size <<= 1;
+        this.slots = size;
+        this.slotSize = slotSize;
+        this.mask = size - 1;
+        this.data = new byte[size * slotSize];
+        this.sequences = new AtomicLongArray(size);
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Record a log line, this has the signature of Timber's Tree#log so a tree can hand its
+     * lines straight to the buffer. Only the class and message of the throwable are recorded.
+     *
+     * @param priority      the log priority, i.e. {@link Log#DEBUG}
+     * @param tag           the tag, or null
+     * @param message       the message
+     * @param t             the throwable, or null
+     */
+    public void log(int priority, String tag, String message, Throwable t){
+        append(priority, tag, message, t);
+    }
+
+    /**
+     * Get the number of lines that were dropped because their slot was still being written
+     */
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    @Override
+    public Report.Section getSection() {
+        final long lines = head.get();
+        final long drops = dropped.get();
+        if(lines == 0) return null;
+
+        return new Report.Section() {
+            @Override
+            public String getName() {
+                return SECTION_NAME;
+            }
+
+            @Override
+            public void writeJson(JsonWriter writer) throws IOException {
+                writer.beginObject()
+                        .name("file").value(FILE_NAME)
+                        .name("lines").value(lines)
+                        .name("kept").value(Math.min(lines, slots))
+                        .name("dropped").value(drops)
+                        .endObject();
+            }
+        };
+    }
+
+    @Override
+    public Attachment getAttachment() {
+        Snapshot snapshot = snapshot();
+        return snapshot.count > 0 ? new LogAttachment(snapshot) : null;
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Record a log line, see {@link #log(int, String, String, Throwable)}
+     *
+     * @return      true if the line was recorded, false if it was dropped
+     */
+    boolean append(int priority, String tag, String message, Throwable t){
+        long seq = head.getAndIncrement();
+        int slot = (int) (seq & mask);
+        long claimed = seq * 2 + 1;
+
+        // Claim the slot, unless a lapped writer is still on it or a newer line took it already
+        long current = sequences.get(slot);
+        if((current & 1) != 0 || current > claimed || !sequences.compareAndSet(slot, current, claimed)){
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        int base = slot * slotSize;
+        int end = base + slotSize;
+        putLong(base + OFFSET_TIMESTAMP, System.currentTimeMillis());
+        putInt(base + OFFSET_THREAD, (int) Thread.currentThread().getId());
+        data[base + OFFSET_PRIORITY] = (byte) priority;
+
+        int pos = base + HEADER;
+        if(tag != null){
+            pos = putChars(tag, pos, end);
+            pos = putChars(": ", pos, end);
+        }
+        if(message != null) pos = putChars(message, pos, end);
+        if(t != null){
+            pos = putChars(" | ", pos, end);
+            pos = putChars(t.getClass().getName(), pos, end);
+            String detail = t.getMessage();
+            if(detail != null){
+                pos = putChars(": ", pos, end);
+                pos = putChars(detail, pos, end);
+            }
+        }
+
+        int length = pos - base - HEADER;
+        data[base + OFFSET_LENGTH] = (byte) (length >> 8);
+        data[base + OFFSET_LENGTH + 1] = (byte) length;
+
+        // Publish the line
+        sequences.lazySet(slot, claimed + 1);
+        return true;
+    }
+
+    /**
+     * Copy the published lines out of the ring, oldest first
+     */
+    Snapshot snapshot(){
+        long end = head.get();
+        long start = Math.max(0, end - slots);
+        byte[] copy = new byte[(int) (end - start) * slotSize];
+
+        int count = 0;
+        for(long seq=start; seq<end; seq++){
+            int slot = (int) (seq & mask);
+            long published = seq * 2 + 2;
+            if(sequences.get(slot) != published) continue;
+
+            System.arraycopy(data, slot * slotSize, copy, count * slotSize, slotSize);
+
+            // The compare and set is a full fence, the line is only kept if it wasn't overwritten
+            // while it was copied
+            if(sequences.compareAndSet(slot, published, published)) count++;
+        }
+
+        return new Snapshot(copy, count, slotSize);
+    }
+
+    private void putLong(int offset, long value){
+        for(int i=7; i>=0; i--){
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private void putInt(int offset, int value){
+        for(int i=3; i>=0; i--){
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Encode the characters as UTF-8 into the slot, a character that doesn't fit is left out
+     *
+     * @return      the position after the encoded characters
+     */
+    private int putChars(String chars, int pos, int end){
+        byte[] b = data;
+        int length = chars.length();
+        for(int i=0; i<length; i++){
+            char c = chars.charAt(i);
+            if(c < 0x80){
+                if(pos + 1 > end) return pos;
+                b[pos++] = (byte) c;
+            }else if(c < 0x800){
+                if(pos + 2 > end) return pos;
+                b[pos++] = (byte) (0xC0 | (c >> 6));
+                b[pos++] = (byte) (0x80 | (c & 0x3F));
+            }else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))){
+                if(pos + 4 > end) return pos;
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                b[pos++] = (byte) (0xF0 | (cp >> 18));
+                b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[pos++] = (byte) (0x80 | (cp & 0x3F));
+            }else{
+                if(pos + 3 > end) return pos;
+                b[pos++] = (byte) (0xE0 | (c >> 12));
+                b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * The lines copied out of the ring, in slot format
+     */
+    static class Snapshot {
+
+        final byte[] data;
+        final int count;
+        final int slotSize;
+
+        Snapshot(byte[] data, int count, int slotSize){
+            this.data = data;
+            this.count = count;
+            this.slotSize = slotSize;
+        }
+
+        /**
+         * Write the lines in the logcat 'threadtime' format, i.e.
+         * '01-31 12:34:56.789  1234 D/Tag: message'
+         */
+        void writeTo(OutputStream out) throws IOException {
+            SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+            Date date = new Date();
+
+            for(int i=0; i<count; i++){
+                int base = i * slotSize;
+                date.setTime(getLong(base + OFFSET_TIMESTAMP));
+                int thread = getInt(base + OFFSET_THREAD);
+                int priority = data[base + OFFSET_PRIORITY] & 0xFF;
+                int length = ((data[base + OFFSET_LENGTH] & 0xFF) << 8) | (data[base + OFFSET_LENGTH + 1] & 0xFF);
+
+                String prefix = String.format(Locale.US, "%s %5d %c/", format.format(date), thread,
+                        priority < PRIORITIES.length ? PRIORITIES[priority] : '?');
+                out.write(prefix.getBytes("UTF-8"));
+                out.write(data, base + HEADER, length);
+                out.write('\n');
+            }
+        }
+
+        private long getLong(int offset){
+            long value = 0;
+            for(int i=0; i<8; i++){
+                value = (value << 8) | (data[offset + i] & 0xFF);
+            }
+            return value;
+        }
+
+        private int getInt(int offset){
+            int value = 0;
+            for(int i=0; i<4; i++){
+                value = (value << 8) | (data[offset + i] & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The 'logs.txt' attachment, it is formatted from the snapshot as it is written
+     */
+    private static class LogAttachment extends Attachment {
+
+        private final Snapshot snapshot;
+
+        LogAttachment(Snapshot snapshot){
+            super(PART_NAME, FILE_NAME, Attachment.MIME_TEXT);
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            snapshot.writeTo(out);
+        }
+    }
+
+}
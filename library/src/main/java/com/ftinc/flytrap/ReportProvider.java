@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.ftinc.flytrap.model.Report;
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.ftinc.flytrap.util.Workers;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves the zip archive of a report to other apps, i.e. the mail client an
+ * {@link com.ftinc.flytrap.model.EmailDelivery} hands the report to, without ever writing the
+ * archive to disk. Every read opens a pipe and the archive is generated into it on the fly, as
+ * fast as the reader consumes it, see {@link Report#writeCompressedReport(OutputStream)}.
+ *
+ * Reports are published with {@link #publish(Context, Report)}, which returns the uri to share
+ * along with {@link android.content.Intent#FLAG_GRANT_READ_URI_PERMISSION}. The provider keeps
+ * the most recently published reports in memory, a uri outlives neither the process nor the
+ * report's screenshots. A published report holds a reference on its screenshots in the
+ * {@link ArtifactStore} until it drops out of the provider.
+ */
+public class ReportProvider extends ContentProvider {
+    private static final String TAG = ReportProvider.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String AUTHORITY_SUFFIX = ".flytrap.reports";
+    public static final String MIME_TYPE = "application/zip";
+
+    private static final int MAX_REPORTS = 8;
+
+    private static final String[] COLUMNS = new String[]{ OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static final Map<String, Report> sReports = new LinkedHashMap<String, Report>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Report> eldest) {
+            if(size() <= MAX_REPORTS) return false;
+
+            // The screenshots may go once the report can no longer be read
+            if(sStore != null) sStore.release(eldest.getValue());
+            return true;
+        }
+    };
+
+    private static ArtifactStore sStore;
+
+    /**
+     * Publish a report through the provider
+     *
+     * @param ctx       the context
+     * @param report    the report
+     * @return          the content uri of the report's zip archive
+     */
+    public static Uri publish(Context ctx, Report report){
+        String id = String.valueOf(report.getTimestamp());
+        synchronized (sReports) {
+            if(sStore == null) sStore = ArtifactStore.get(ctx);
+            if(!sReports.containsKey(id)) sStore.retain(report);
+            sReports.put(id, report);
+        }
+
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(getAuthority(ctx))
+                .appendPath(id)
+                .appendPath(report.getTitle().concat(".zip"))
+                .build();
+    }
+
+    /**
+     * Get the authority of the provider, it is declared as '${applicationId}.flytrap.reports'
+     *
+     * @param ctx       the context
+     * @return          the authority
+     */
+    public static String getAuthority(Context ctx){
+        return ctx.getPackageName().concat(AUTHORITY_SUFFIX);
+    }
+
+    /************************************************
+     *
+     * Provider Methods
+     *
+     */
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if(findReport(uri) == null) return null;
+        if(projection == null) projection = COLUMNS;
+
+        // The size isn't known until the archive was generated
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        Object[] row = new Object[projection.length];
+        for(int i=0; i<projection.length; i++){
+            if(OpenableColumns.DISPLAY_NAME.equals(projection[i])){
+                row[i] = uri.getLastPathSegment();
+            }
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if(!"r".equals(mode)) throw new FileNotFoundException("Reports are read only: " + uri);
+
+        final Report report = findReport(uri);
+        if(report == null) throw new FileNotFoundException("No such report: " + uri);
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to open a pipe: " + e.getMessage());
+        }
+
+        // The writer is paced by the reader, it runs on the bounded FlyTrap workers so that
+        // a burst of reads can't spawn a thread each
+        try {
+            Workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    OutputStream out = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
+                    try {
+                        report.writeCompressedReport(out);
+                        out.flush();
+                    } catch (IOException e) {
+                        // The reader went away before the end of the archive
+                        Log.w(TAG, "Report archive stream closed early", e);
+                    } finally {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Unable to close the report archive stream", e);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(pipe[0]);
+            closeQuietly(pipe[1]);
+            throw new FileNotFoundException("Unable to generate the report archive: " + e.getMessage());
+        }
+
+        return pipe[0];
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Reports are read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Reports are read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Reports are read only");
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static Report findReport(Uri uri){
+        List<String> segments = uri.getPathSegments();
+        if(segments.isEmpty()) return null;
+
+        synchronized (sReports) {
+            return sReports.get(segments.get(0));
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd){
+        try {
+            fd.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close the report archive pipe", e);
+        }
+    }
+
+}
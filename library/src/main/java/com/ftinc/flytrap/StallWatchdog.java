@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.ftinc.flytrap.model.Report;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the main thread for stalls, i.e. in dogfood builds where it runs all the time. A
+ * watchdog thread pings the main {@link Looper} every interval, when the main thread doesn't
+ * answer within the threshold its stack is sampled repeatedly until it does. The most recent
+ * stalls are kept in a bounded ring, and attached to every report filed as the 'stalls' section,
+ * the watchdog is a {@link Report.Contributor}.
+ *
+ * While the main thread is responsive the watchdog only wakes up once an interval to post a
+ * ping, it allocates nothing until it sees a stall. Consecutive samples of the same stack are
+ * collapsed into one with a count, to keep the section compact. The duration of a stall is
+ * measured from the unanswered ping, so it is a lower bound. A report filed during a stall, i.e.
+ * from a background thread, carries the stall so far, marked as in progress.
+ *
+ * The interval and threshold may be changed while the watchdog runs, they take effect with
+ * the next ping.
+ */
+public class StallWatchdog implements Report.Contributor {
+    private static final String TAG = StallWatchdog.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String SECTION_NAME = "stalls";
+
+    public static final long DEFAULT_INTERVAL = 500;
+    public static final long DEFAULT_THRESHOLD = 1000;
+    public static final long DEFAULT_SAMPLE_INTERVAL = 100;
+
+    /**
+     * The number of stalls kept, the oldest are dropped beyond it
+     */
+    public static final int MAX_STALLS = 8;
+
+    /**
+     * The number of distinct stacks kept per stall, and the frames kept per stack
+     */
+    public static final int MAX_STACKS = 8;
+    public static final int MAX_STACK_DEPTH = 32;
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final Executor mainExecutor;
+    private final Thread mainThread;
+
+    private volatile long interval = DEFAULT_INTERVAL;
+    private volatile long threshold = DEFAULT_THRESHOLD;
+    private volatile long sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+    // Guarded by stalls, the stall the main thread is in right now
+    private final Deque<Stall> stalls = new ArrayDeque<>();
+    private Stall current;
+    private Thread watchdog;
+
+    // Written on the main thread, read by the watchdog
+    private volatile boolean answered;
+    private volatile long answeredAt;
+
+    /**
+     * Constructor, watches the main thread
+     */
+    public StallWatchdog(){
+        this(new Executor() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        }, Looper.getMainLooper().getThread());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param mainExecutor      runs the pings on the watched thread
+     * @param mainThread        the watched thread
+     */
+    StallWatchdog(Executor mainExecutor, Thread mainThread){
+        this.mainExecutor = mainExecutor;
+        this.mainThread = mainThread;
+    }
+
+    /************************************************
+     *
+     * Configuration Methods
+     *
+     */
+
+    /**
+     * Set how often the main thread is pinged
+     *
+     * @param interval      the interval in milliseconds
+     * @return              self for chaining
+     */
+    public StallWatchdog setInterval(long interval){
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * Set how long the main thread may take to answer a ping before it counts as stalled
+     *
+     * @param threshold     the threshold in milliseconds
+     * @return              self for chaining
+     */
+    public StallWatchdog setThreshold(long threshold){
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Set how often the stack of the main thread is sampled while it is stalled
+     *
+     * @param sampleInterval    the interval in milliseconds
+     * @return                  self for chaining
+     */
+    public StallWatchdog setSampleInterval(long sampleInterval){
+        this.sampleInterval = sampleInterval;
+        return this;
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Start the watchdog thread, the watchdog is added to the report contributors
+     *
+     * @return      self for chaining
+     */
+    public synchronized StallWatchdog start(){
+        if(watchdog != null) return this;
+
+        answered = true;
+        watchdog = new Thread(watch, "FlyTrap-StallWatchdog");
+        watchdog.setDaemon(true);
+        watchdog.setPriority(Thread.MIN_PRIORITY);
+        watchdog.start();
+        Report.addContributor(this);
+        return this;
+    }
+
+    /**
+     * Stop the watchdog thread, the recorded stalls are kept
+     */
+    public synchronized void stop(){
+        if(watchdog == null) return;
+
+        watchdog.interrupt();
+        watchdog = null;
+        Report.removeContributor(this);
+    }
+
+    /**
+     * Get the number of stalls that are kept
+     */
+    public int getStallCount(){
+        synchronized (stalls) {
+            return stalls.size();
+        }
+    }
+
+    /**
+     * Return whether the main thread is stalled right now
+     */
+    public boolean isStalled(){
+        synchronized (stalls) {
+            return current != null;
+        }
+    }
+
+    @Override
+    public Report.Section getSection() {
+        synchronized (stalls) {
+            if(stalls.isEmpty() && current == null) return null;
+
+            List<Stall> section = new ArrayList<>(stalls);
+            if(current != null) section.add(current.snapshot());
+            return new StallSection(threshold, section);
+        }
+    }
+
+    /************************************************
+     *
+     * Watchdog
+     *
+     */
+
+    private final Runnable ping = new Runnable() {
+        @Override
+        public void run() {
+            answeredAt = System.nanoTime();
+            answered = true;
+        }
+    };
+
+    private final Runnable watch = new Runnable() {
+        @Override
+        public void run() {
+            long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(threshold);
+            long pingedAt = 0;
+            Stall stall = null;
+
+            try {
+                while(!Thread.currentThread().isInterrupted()){
+                    long now = System.nanoTime();
+
+                    if(answered){
+                        // The main thread is back, close the stall it was in
+                        if(stall != null){
+                            stall.duration = TimeUnit.NANOSECONDS.toMillis(answeredAt - pingedAt);
+                            onStall(stall);
+                            stall = null;
+                        }
+
+                        // Pick up a changed threshold with the next ping
+                        answered = false;
+                        pingedAt = now;
+                        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(threshold);
+                        mainExecutor.execute(ping);
+                    }else if(now - pingedAt >= thresholdNanos){
+                        if(stall == null){
+                            stall = new Stall(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(now - pingedAt));
+                        }
+
+                        StackTraceElement[] stack = mainThread.getStackTrace();
+                        synchronized (stalls) {
+                            stall.sample(stack);
+                            current = stall;
+                        }
+                    }
+
+                    Thread.sleep(stall != null ? sampleInterval : Math.min(interval, threshold));
+                }
+            } catch (InterruptedException e) {
+                // Stopped, a stall that is still open is not recorded
+                synchronized (stalls) {
+                    current = null;
+                }
+            }
+        }
+    };
+
+    private void onStall(Stall stall){
+        Log.w(TAG, "The main thread stalled for " + stall.duration + "ms");
+        synchronized (stalls) {
+            current = null;
+            if(stalls.size() == MAX_STALLS) stalls.removeFirst();
+            stalls.addLast(stall);
+        }
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * A stall of the main thread, it is immutable once recorded
+     */
+    private static class Stall {
+
+        final long timestamp;
+        long duration;
+        int samples;
+        int dropped;
+        boolean inProgress;
+        final List<StackTraceElement[]> stacks = new ArrayList<>();
+        final List<Integer> counts = new ArrayList<>();
+
+        Stall(long timestamp){
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Copy a stall that is still open, its duration is the time it lasted so far
+         */
+        Stall snapshot(){
+            Stall copy = new Stall(timestamp);
+            copy.duration = System.currentTimeMillis() - timestamp;
+            copy.samples = samples;
+            copy.dropped = dropped;
+            copy.inProgress = true;
+            copy.stacks.addAll(stacks);
+            copy.counts.addAll(counts);
+            return copy;
+        }
+
+        void sample(StackTraceElement[] stack){
+            samples++;
+            if(stack.length > MAX_STACK_DEPTH) stack = Arrays.copyOf(stack, MAX_STACK_DEPTH);
+
+            // Collapse consecutive samples of the same stack
+            int last = stacks.size() - 1;
+            if(last >= 0 && Arrays.equals(stacks.get(last), stack)){
+                counts.set(last, counts.get(last) + 1);
+            }else if(stacks.size() < MAX_STACKS){
+                stacks.add(stack);
+                counts.add(1);
+            }else{
+                dropped++;
+            }
+        }
+    }
+
+    /**
+     * The 'stalls' section, the most recent stalls oldest first
+     */
+    private static class StallSection implements Report.Section {
+
+        final long threshold;
+        final List<Stall> stalls;
+
+        StallSection(long threshold, List<Stall> stalls){
+            this.threshold = threshold;
+            this.stalls = stalls;
+        }
+
+        @Override
+        public String getName() {
+            return SECTION_NAME;
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("threshold_ms").value(threshold);
+            writer.name("stalls").beginArray();
+            for(Stall stall: stalls){
+                writer.beginObject();
+                writer.name("timestamp").value(stall.timestamp);
+                writer.name("duration_ms").value(stall.duration);
+                writer.name("samples").value(stall.samples);
+                if(stall.inProgress) writer.name("in_progress").value(true);
+                if(stall.dropped > 0) writer.name("dropped").value(stall.dropped);
+
+                writer.name("stacks").beginArray();
+                for(int i=0; i<stall.stacks.size(); i++){
+                    writer.beginObject();
+                    writer.name("count").value(stall.counts.get(i));
+                    writer.name("frames").beginArray();
+                    for(StackTraceElement element: stall.stacks.get(i)){
+                        writer.value(element.toString());
+                    }
+                    writer.endArray();
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+
+}
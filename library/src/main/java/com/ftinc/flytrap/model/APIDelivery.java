@@ -17,24 +17,25 @@
 package com.ftinc.flytrap.model;
 
 import android.content.Context;
-import android.os.AsyncTask;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.Parcel;
 import android.util.Log;
-import android.util.Pair;
 
-import com.squareup.okhttp.Headers;
+import com.ftinc.flytrap.net.ChunkedUploader;
+import com.ftinc.flytrap.net.Outbox;
+import com.ftinc.flytrap.net.ThroughputEstimator;
+import com.ftinc.flytrap.util.Workers;
 import com.squareup.okhttp.MediaType;
-import com.squareup.okhttp.MultipartBuilder;
-import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.RequestBody;
 
-import org.json.JSONObject;
-
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This delivery will send a POST request to the URL endpoint supplied in the constructor
@@ -62,8 +63,57 @@ import java.io.IOException;
  *
  *  }
  *
+ *  When {@link #META_BINARY} is used the 'meta' part is sent as {@link BinaryMetadata} with
+ *  the media type {@link BinaryMetadata#MEDIA_TYPE} instead.
+ *
+ *  With metadata compression enabled the 'meta' part carries a 'Content-Encoding' header. It is
+ *  either 'gzip', or 'deflate', a zlib stream deflated with the preset {@link MetadataDictionary}
+ *  whose id is in the stream header.
+ *
  *  'base' - is the base screenshot of the application
- *  'shade' - is the flytrap feedback screen that lays on top of the base
+ *  'shade' - is the flytrap feedback screen that lays on top of the base, this part is
+ *            omitted in vector shade mode, see {@link com.ftinc.flytrap.util.ShadeRenderer}
+ *
+ *  In {@link Report#ATTACHMENTS_REGIONS} mode 'base' is replaced by 'thumbnail', a downscaled
+ *  copy of the base screenshot, and 'crop_0'...'crop_N', full resolution crops around the bugs
+ *  whose coordinates are listed in the metadata.
+ *
+ *  With chunked uploads enabled each attachment larger than a chunk is first uploaded with the
+ *  resumable {@link ChunkedUploader} protocol and its part only contains the upload url, as 'text/uri-list'.
+ *
+ *  With deduplication enabled image parts are deduplicated by their SHA-256. Before one is sent the
+ *  server is asked for it with 'HEAD {url}/blobs/{sha-256}', a 200 means the server has it and the
+ *  part only contains the blob url, as 'text/uri-list'. A report referencing a blob the server no
+ *  longer has is answered with a 409.
+ *
+ *  Reports are queued in the durable {@link Outbox} and the delivery finishes as soon as the report
+ *  is queued. The request is retried until the server answers with a 2xx, so it may arrive more
+ *  than once, repeats carry the same {@link Outbox#HEADER_IDEMPOTENCY_KEY} header.
+ *
+ *  With progressive uploads enabled, or when the report has delivery constraints the device doesn't
+ *  meet, see {@link Delivery#CONSTRAINT_UNMETERED}, the report is sent in two requests. The first
+ *  holds the 'meta' part, and with progressive uploads 'preview', a small JPEG of the annotated
+ *  screenshot. It is sent right away. The screenshots follow up in a second request, once the
+ *  first was delivered and the device meets the constraints. Instead of 'meta' it leads with a
+ *  'report_id' part, the report id the server assigned the first request, taken from the
+ *  'Location' header or the 'id' of a JSON response, or else the first request's 'Idempotency-Key'.
+ *
+ *  With adaptive quality enabled the screenshots are encoded at the {@link QualityTier} that is
+ *  estimated to upload within the target time, 'base' may then be a downscaled JPEG. The metadata
+ *  records the tier:
+ *  {
+ *      quality: { tier: "medium", sample_size: 2, format: "jpeg" }
+ *  }
+ *
+ *  With batch uploads enabled reports filed within the batch window are sent together as a
+ *  'multipart/mixed' request. Every part holds one report's multipart form body, described above,
+ *  along with its 'Idempotency-Key' header. The server answers with the status of every report:
+ *  {
+ *      results: [
+ *          { id: "{idempotency key}", status: 201 },
+ *          ...
+ *      ]
+ *  }
  *
  *  Created by drew.heavner on 7/9/14.
  */
@@ -77,6 +127,22 @@ public class APIDelivery extends Delivery {
 
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
     public static final MediaType PNG = MediaType.parse("image/png");
+    public static final MediaType BINARY_META = MediaType.parse(BinaryMetadata.MEDIA_TYPE);
+    public static final MediaType UPLOAD_REFERENCE = MediaType.parse("text/uri-list");
+
+    /* Metadata Formats */
+    public static final int META_JSON = 0;
+    public static final int META_BINARY = 1;
+
+    /* Metadata Compression */
+    public static final int COMPRESS_NONE = 0;
+    public static final int COMPRESS_GZIP = 1;
+    public static final int COMPRESS_DEFLATE = 2;
+
+    /**
+     * A batch window that comfortably covers reports filed back to back during a bug bash
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 10 * 1000;
 
     /************************************************
      *
@@ -89,6 +155,46 @@ public class APIDelivery extends Delivery {
      */
     public String url;
 
+    /**
+     * The format the 'meta' part is sent in, either {@link #META_JSON} or {@link #META_BINARY}
+     */
+    public int metaFormat = META_JSON;
+
+    /**
+     * How the 'meta' part is compressed, {@link #COMPRESS_NONE}, {@link #COMPRESS_GZIP}
+     * or {@link #COMPRESS_DEFLATE}
+     */
+    public int metaCompression = COMPRESS_NONE;
+
+    /**
+     * The chunk size of resumable attachment uploads, or 0 to send the attachments
+     * inline in the report request. See {@link ChunkedUploader}.
+     */
+    public int chunkSize;
+
+    /**
+     * How long a queued report waits for more reports to be sent with it in a single batch
+     * request in milliseconds, or 0 to send every report in its own request
+     */
+    public long batchWindow;
+
+    /**
+     * The time the screenshots of a report should take to upload in milliseconds, or 0 to
+     * always send them as configured. See {@link QualityTier}.
+     */
+    public long targetUploadTime;
+
+    /**
+     * Whether reports are sent in two phases, the metadata and a preview first and the full
+     * resolution screenshots as a follow-up
+     */
+    public boolean progressive;
+
+    /**
+     * Whether image parts the server already has are referenced by their SHA-256 instead of sent
+     */
+    public boolean deduplicate;
+
     /**
      * Constructor
      *
@@ -98,6 +204,17 @@ public class APIDelivery extends Delivery {
         this.url = url;
     }
 
+    /**
+     * Constructor
+     *
+     * @param url           the api endpoint url
+     * @param metaFormat    the format to send the metadata in, {@link #META_JSON} or {@link #META_BINARY}
+     */
+    public APIDelivery(String url, int metaFormat){
+        this.url = url;
+        this.metaFormat = metaFormat;
+    }
+
     /**
      * Parcel Constructor
      *
@@ -105,6 +222,94 @@ public class APIDelivery extends Delivery {
      */
     public APIDelivery(Parcel in){
         url = in.readString();
+        metaFormat = in.readInt();
+        chunkSize = in.readInt();
+        batchWindow = in.readLong();
+        targetUploadTime = in.readLong();
+        progressive = in.readInt() == 1;
+        metaCompression = in.readInt();
+        deduplicate = in.readInt() == 1;
+    }
+
+    /**
+     * Compress the 'meta' part. {@link #COMPRESS_DEFLATE} primes the deflater with the
+     * {@link MetadataDictionary}, which compresses the metadata of small reports far better
+     * than gzip. The endpoint must decode the part's 'Content-Encoding'.
+     *
+     * @param compression   {@link #COMPRESS_NONE}, {@link #COMPRESS_GZIP} or {@link #COMPRESS_DEFLATE}
+     * @return              self for chaining
+     */
+    public APIDelivery setMetadataCompression(int compression){
+        this.metaCompression = compression;
+        return this;
+    }
+
+    /**
+     * Upload the attachments with the resumable chunked upload protocol before sending the report,
+     * see {@link ChunkedUploader}
+     *
+     * @param chunkSize     the size of each chunk in bytes, or 0 to disable chunked uploads
+     * @return              self for chaining
+     */
+    public APIDelivery setChunkedUploads(int chunkSize){
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Coalesce reports that are filed within the batch window of each other into a single
+     * 'multipart/mixed' request, see {@link Outbox}. The endpoint must accept batch requests.
+     *
+     * @param batchWindow   the batch window in milliseconds, i.e. {@link #DEFAULT_BATCH_WINDOW},
+     *                      or 0 to send every report in its own request
+     * @return              self for chaining
+     */
+    public APIDelivery setBatchUploads(long batchWindow){
+        this.batchWindow = batchWindow;
+        return this;
+    }
+
+    /**
+     * Adapt the resolution, format and quality of the screenshots to the measured upload
+     * throughput, so that they are estimated to upload within the target time. The chosen
+     * {@link QualityTier} is recorded in the metadata as 'quality'.
+     *
+     * @param targetUploadTime  the target upload time in milliseconds, or 0 to always send
+     *                          the screenshots as configured
+     * @return                  self for chaining
+     */
+    public APIDelivery setAdaptiveQuality(long targetUploadTime){
+        this.targetUploadTime = targetUploadTime;
+        return this;
+    }
+
+    /**
+     * Send reports in two phases. The metadata goes first along with 'preview', a small JPEG of
+     * the annotated screenshot, so that triage can start right away. The full resolution
+     * screenshots follow up in a second request that references the report, it is retried, or
+     * dropped, on its own.
+     *
+     * @param enabled       true to send reports in two phases
+     * @return              self for chaining
+     */
+    public APIDelivery setProgressiveUploads(boolean enabled){
+        this.progressive = enabled;
+        return this;
+    }
+
+    /**
+     * Deduplicate the screenshots by their SHA-256. Before a screenshot is sent the endpoint is
+     * asked whether it already has it with 'HEAD {url}/blobs/{sha-256}', and if it does the part
+     * only references the blob. This costs a request per screenshot the first time, so it only
+     * pays off when the same screenshots are sent again, i.e. follow-ups of re-filed reports.
+     * The endpoint must serve the blob resource.
+     *
+     * @param enabled       true to deduplicate screenshots
+     * @return              self for chaining
+     */
+    public APIDelivery setDeduplication(boolean enabled){
+        this.deduplicate = enabled;
+        return this;
     }
 
     /************************************************
@@ -115,51 +320,66 @@ public class APIDelivery extends Delivery {
 
     @Override
     public void onReportGenerated(final Context ctx, final Report report, final OnReportHandler handler) {
-        // Generate API request and data in an async task
-        new AsyncTask<Void, Void, String>(){
+        // Generate API request and data on a FlyTrap worker
+        Runnable task = new Runnable(){
             @Override
-            protected String doInBackground(Void... params) {
+            public void run() {
+
+                // Pick the quality tier from the throughput of previous uploads, unless the
+                // screenshots were already encoded for every delivery of a MultiDelivery
+                if(targetUploadTime > 0 && !report.hasPreparedAttachments()){
+                    double throughput = ThroughputEstimator.get(ctx).getBytesPerSecond();
+                    report.setQualityTier(QualityTier.select(report.estimateScreenshotBytes(), throughput, targetUploadTime));
+                }
 
                 report.generateAPIReport(ctx, new Report.OnAPIReportGeneratedListener() {
                     @Override
-                    public void onGenerated(JSONObject meta, Pair<File, File> screens) {
-
-                        // Build the multipart body
-                        OkHttpClient client = new OkHttpClient();
-                        RequestBody body = new MultipartBuilder()
-                                .type(MultipartBuilder.FORM)
-                                .addPart(
-                                    Headers.of("Content-Disposition", "form-data; name=meta"),
-                                    RequestBody.create(JSON, meta.toString())
-                                )
-                                .addPart(
-                                    Headers.of("Content-Disposition", "form-data; name=base"),
-                                    RequestBody.create(PNG, screens.first)
-                                )
-                                .addPart(
-                                    Headers.of("Content-Disposition", "form-data; name=shade"),
-                                    RequestBody.create(PNG, screens.second)
-                                )
-                                .build();
-
-                        // Build the request
-                        Request request = new Request.Builder()
-                                .url(url)
-                                .post(body)
-                                .build();
-
-                        // Execute request
+                    public void onGenerated(List<Attachment> attachments) {
+
+                        // The metadata goes first, followed by the screenshots, or their thumbnail and crops
+                        Attachment metadata = new MetadataAttachment(report, metaFormat, metaCompression);
+                        List<Attachment> parts = new ArrayList<>();
+                        parts.add(metadata);
+
+                        // Everything but the screenshots, i.e. the logs, is small and goes along with the metadata
+                        List<Attachment> screenshots = new ArrayList<>();
+                        for(Attachment attachment: attachments){
+                            if(attachment.getMimeType().startsWith("image/")){
+                                screenshots.add(attachment);
+                            }else{
+                                parts.add(attachment);
+                            }
+                        }
+
+                        // Hand the report to the outbox, it is delivered in the background and
+                        // survives failed requests and the app being killed
+                        Outbox outbox = Outbox.get(ctx);
+                        int constraints = report.getDeliveryConstraints();
+                        boolean defer = constraints != 0 && !outbox.isSatisfied(constraints);
+                        boolean queued = false;
                         try {
-                            client.newCall(request).execute();
+                            if((progressive || defer) && report.hasScreenshot()){
+                                // Send the metadata, and a preview, right away so that triage can start.
+                                // The full resolution screenshots follow up once the report was
+                                // delivered, and once the device meets the constraints.
+                                if(progressive) parts.add(report.getPreviewAttachment());
+                                outbox.enqueue(url, chunkSize, deduplicate, batchWindow, 0, parts,
+                                        defer ? constraints : 0, screenshots);
+                            }else{
+                                parts.addAll(screenshots);
+                                outbox.enqueue(url, chunkSize, deduplicate, batchWindow, 0, parts);
+                            }
+                            queued = true;
                         } catch (IOException e) {
-                            e.printStackTrace();
+                            Log.e(APIDelivery.class.getName(), "Unable to queue the report for upload", e);
                         }
 
                         // Post finish in the main thread
-                        new Handler(Looper.getMainLooper()).post(new Runnable() {
+                        final boolean success = queued;
+                        Workers.postToMain(new Runnable() {
                             @Override
                             public void run() {
-                                handler.onFinish();
+                                finish(handler, success);
                             }
                         });
 
@@ -168,13 +388,23 @@ public class APIDelivery extends Delivery {
                     @Override
                     public void onFailure() {
                         Log.e(APIDelivery.class.getName(), "Failed to generate api report to send to server");
-                        handler.onFinish();
+                        Workers.postToMain(new Runnable() {
+                            @Override
+                            public void run() {
+                                finish(handler, false);
+                            }
+                        });
                     }
                 });
-
-                return null;
             }
-        }.execute();
+        };
+
+        try {
+            Workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(APIDelivery.class.getName(), "Unable to generate the api report, FlyTrap is saturated", e);
+            finish(handler, false);
+        }
 
 
     }
@@ -184,6 +414,70 @@ public class APIDelivery extends Delivery {
         return Delivery.TYPE_API;
     }
 
+    /************************************************
+     *
+     * Parts
+     *
+     */
+
+    /**
+     * The 'meta' part of the report, streamed from the report in the configured format
+     * and compression
+     */
+    private static class MetadataAttachment extends Attachment {
+
+        private final Report report;
+        private final int format;
+        private final int compression;
+
+        MetadataAttachment(Report report, int format, int compression){
+            super("meta", format == META_BINARY ? "metadata.bin" : "metadata.json",
+                    format == META_BINARY ? BinaryMetadata.MEDIA_TYPE : JSON.toString());
+            this.report = report;
+            this.format = format;
+            this.compression = compression;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            switch (compression){
+                case COMPRESS_GZIP: return "gzip";
+                case COMPRESS_DEFLATE: return "deflate";
+                default: return null;
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if(compression == COMPRESS_GZIP){
+                GZIPOutputStream gzip = new GZIPOutputStream(out);
+                writeMetadata(gzip);
+                gzip.finish();
+            }else if(compression == COMPRESS_DEFLATE){
+                Deflater deflater = MetadataDictionary.newDeflater();
+                try {
+                    DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater);
+                    writeMetadata(deflate);
+                    deflate.finish();
+                } finally {
+                    deflater.end();
+                }
+            }else{
+                writeMetadata(out);
+            }
+        }
+
+        private void writeMetadata(OutputStream out) throws IOException {
+            if(format == META_BINARY){
+                report.writeBinaryMetadata(out);
+            }else {
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                report.writeMetadata(writer);
+                writer.flush();
+            }
+        }
+    }
+
     /************************************************
      *
      * Parcelable Methods
@@ -193,6 +487,13 @@ public class APIDelivery extends Delivery {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(url);
+        dest.writeInt(metaFormat);
+        dest.writeInt(chunkSize);
+        dest.writeLong(batchWindow);
+        dest.writeLong(targetUploadTime);
+        dest.writeInt(progressive ? 1 : 0);
+        dest.writeInt(metaCompression);
+        dest.writeInt(deduplicate ? 1 : 0);
     }
 
     /**
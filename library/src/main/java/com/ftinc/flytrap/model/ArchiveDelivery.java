@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.util.Log;
+
+import com.ftinc.flytrap.util.Workers;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps a local archive of reports, every report is written as a zip archive, see
+ * {@link Report#writeCompressedReport(OutputStream)}, into the archive directory. Only the
+ * newest reports are kept.
+ *
+ * Useful along with another delivery in a {@link MultiDelivery}, i.e. to keep a copy of every
+ * report that is sent to the API.
+ */
+public class ArchiveDelivery extends Delivery {
+    private static final String TAG = ArchiveDelivery.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String DEFAULT_DIRECTORY = "flytrap_archive";
+    public static final int DEFAULT_MAX_REPORTS = 20;
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    /**
+     * The absolute path of the archive directory, or null for {@link #DEFAULT_DIRECTORY}
+     * in the app's private files
+     */
+    public String directory;
+
+    /**
+     * The number of reports to keep, the oldest are deleted beyond it
+     */
+    public int maxReports = DEFAULT_MAX_REPORTS;
+
+    /**
+     * Constructor
+     */
+    public ArchiveDelivery(){}
+
+    /**
+     * Constructor
+     *
+     * @param directory     the archive directory
+     * @param maxReports    the number of reports to keep
+     */
+    public ArchiveDelivery(File directory, int maxReports){
+        this.directory = directory.getAbsolutePath();
+        this.maxReports = maxReports;
+    }
+
+    /**
+     * Parcel Constructor
+     *
+     * @param in    the input data parcel
+     */
+    public ArchiveDelivery(Parcel in){
+        directory = in.readString();
+        maxReports = in.readInt();
+    }
+
+    /************************************************
+     *
+     * Delivery Methods
+     *
+     */
+
+    @Override
+    public void onReportGenerated(final Context ctx, final Report report, final OnReportHandler handler) {
+        Runnable task = new Runnable(){
+            @Override
+            public void run() {
+                final boolean success = archive(ctx, report);
+                Workers.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(handler, success);
+                    }
+                });
+            }
+        };
+
+        try {
+            Workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Unable to archive the report, FlyTrap is saturated", e);
+            finish(handler, false);
+        }
+    }
+
+    @Override
+    public int getType() {
+        return Delivery.TYPE_ARCHIVE;
+    }
+
+    /**
+     * Get the archive directory
+     *
+     * @param ctx       the context
+     * @return          the directory the reports are archived in
+     */
+    public File getDirectory(Context ctx){
+        return directory != null ? new File(directory) : new File(ctx.getFilesDir(), DEFAULT_DIRECTORY);
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Write the report into the archive
+     *
+     * @return      true if it was archived
+     */
+    private boolean archive(Context ctx, Report report){
+        File dir = getDirectory(ctx);
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            Log.e(TAG, "Unable to create the report archive " + dir);
+            return false;
+        }
+
+        // Write next to the archive and move into place, so a half written report never shows up
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("ARCHIVE_", ".tmp", dir);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                report.writeCompressedReport(out);
+            } finally {
+                out.close();
+            }
+
+            if(!tmp.renameTo(new File(dir, report.getTitle().concat(".zip")))){
+                throw new IOException("Unable to archive " + report.getTitle());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to archive the report", e);
+            if(tmp != null) tmp.delete();
+            return false;
+        }
+
+        trim(dir);
+        return true;
+    }
+
+    /**
+     * Delete the oldest reports beyond {@link #maxReports}
+     */
+    private void trim(File dir){
+        File[] reports = dir.listFiles();
+        if(reports == null || reports.length <= maxReports) return;
+
+        Arrays.sort(reports, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return lhs.lastModified() < rhs.lastModified() ? 1 : lhs.lastModified() > rhs.lastModified() ? -1 : 0;
+            }
+        });
+        for(int i=maxReports; i<reports.length; i++){
+            reports[i].delete();
+        }
+    }
+
+    /************************************************
+     *
+     * Parcelable Methods
+     *
+     */
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(directory);
+        dest.writeInt(maxReports);
+    }
+
+    /**
+     * The parcel creator for this class
+     */
+    public static final Creator<ArchiveDelivery> CREATOR = new Creator<ArchiveDelivery>() {
+        @Override
+        public ArchiveDelivery createFromParcel(Parcel source) {
+            return new ArchiveDelivery(source);
+        }
+
+        @Override
+        public ArchiveDelivery[] newArray(int size) {
+            return new ArchiveDelivery[size];
+        }
+    };
+}
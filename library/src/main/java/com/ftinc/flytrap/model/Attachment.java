@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.ftinc.flytrap.util.PaletteQuantizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A single file that is delivered along with a report, i.e. a screenshot, a crop of
+ * a screenshot or a thumbnail. Each attachment becomes a part of the multipart upload
+ * in {@link APIDelivery} and an entry in the zip archive of the report.
+ *
+ * Attachments that are not backed by a file are encoded as they are written. Encoding
+ * is CPU heavy, attachments must only be written from a worker thread.
+ */
+public abstract class Attachment {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_TEXT = "text/plain; charset=utf-8";
+
+    /* Encode Flags */
+    public static final int ENCODE_QUANTIZE = 1;
+    public static final int ENCODE_DITHER = 2;
+    public static final int ENCODE_JPEG = 4;
+
+    private static final int DEFAULT_JPEG_QUALITY = 90;
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final String partName;
+    private final String fileName;
+    private final String mimeType;
+
+    /**
+     * Constructor
+     *
+     * @param partName      the name of the multipart form part
+     * @param fileName      the name of the entry in the report archive
+     * @param mimeType      the mime type of the attachment
+     */
+    protected Attachment(String partName, String fileName, String mimeType){
+        this.partName = partName;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+    }
+
+    /************************************************
+     *
+     * Accessor Methods
+     *
+     */
+
+    public String getPartName(){ return partName; }
+    public String getFileName(){ return fileName; }
+    public String getMimeType(){ return mimeType; }
+
+    /**
+     * Get the content coding this attachment is compressed with, sent as its 'Content-Encoding'
+     *
+     * @return      the content coding, i.e. 'gzip' or 'deflate', or null if it is not compressed
+     */
+    public String getContentEncoding(){
+        return null;
+    }
+
+    /**
+     * Get the length of this attachment in bytes
+     *
+     * @return      the length, or -1 if it is not known until written
+     */
+    public long length(){
+        return -1;
+    }
+
+    /**
+     * Get the file backing this attachment
+     *
+     * @return      the file, or null if this attachment is encoded as it is written
+     */
+    public File getFile(){
+        return null;
+    }
+
+    /**
+     * Write the contents of this attachment to the output stream. The
+     * stream is not closed.
+     *
+     * @param out       the stream to write to
+     *
+     * @throws IOException  error writing the attachment
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Write the contents of this attachment to an okio sink, i.e. a request body. Encoded
+     * attachments are written into the sink as they are encoded so that the upload can begin
+     * with the first encoded bytes. The sink is not closed.
+     *
+     * @param sink      the sink to write to
+     *
+     * @throws IOException  error writing the attachment
+     */
+    public void writeTo(BufferedSink sink) throws IOException {
+        OutputStream out = sink.outputStream();
+        writeTo(out);
+        out.flush();
+    }
+
+    /************************************************
+     *
+     * Static Methods
+     *
+     */
+
+    /**
+     * Create an attachment backed by a file on disk
+     *
+     * @param partName  the multipart form part name
+     * @param mimeType  the mime type of the file
+     * @param file      the file
+     * @return          the attachment
+     */
+    public static Attachment fromFile(String partName, String mimeType, File file){
+        return new FileAttachment(partName, mimeType, file);
+    }
+
+    /**
+     * Create an attachment that re-encodes an image, i.e. to quantize it
+     *
+     * @param partName      the multipart form part name
+     * @param source        the source image
+     * @param encodeFlags   {@link #ENCODE_QUANTIZE} and {@link #ENCODE_DITHER}, or 0
+     * @return              the attachment
+     */
+    public static Attachment fromImage(String partName, File source, int encodeFlags){
+        return new ThumbnailAttachment(partName, source.getName(), source, 1, encodeFlags, DEFAULT_JPEG_QUALITY);
+    }
+
+    /**
+     * Create an attachment that re-encodes an image at a lower resolution or in another format,
+     * i.e. at a {@link QualityTier}
+     *
+     * @param partName      the multipart form part name
+     * @param source        the source image
+     * @param sampleSize    the downscale factor, see {@link BitmapFactory.Options#inSampleSize}
+     * @param encodeFlags   {@link #ENCODE_QUANTIZE}, {@link #ENCODE_DITHER} and {@link #ENCODE_JPEG}, or 0
+     * @param jpegQuality   the quality of {@link #ENCODE_JPEG}, 0 - 100
+     * @return              the attachment
+     */
+    public static Attachment fromImage(String partName, File source, int sampleSize, int encodeFlags, int jpegQuality){
+        String fileName = source.getName();
+        if((encodeFlags & ENCODE_JPEG) != 0){
+            int dot = fileName.lastIndexOf('.');
+            fileName = (dot > 0 ? fileName.substring(0, dot) : fileName).concat(".jpg");
+        }
+        return new ThumbnailAttachment(partName, fileName, source, sampleSize, encodeFlags, jpegQuality);
+    }
+
+    /**
+     * Create an attachment that encodes a full resolution region of an image
+     *
+     * @param partName      the multipart form part name
+     * @param fileName      the archive entry name
+     * @param source        the source image
+     * @param region        the region of the source image to encode
+     * @param encodeFlags   {@link #ENCODE_QUANTIZE}, {@link #ENCODE_DITHER} and {@link #ENCODE_JPEG}, or 0
+     * @return              the attachment
+     */
+    public static Attachment fromRegion(String partName, String fileName, File source, Rect region, int encodeFlags){
+        return new RegionAttachment(partName, fileName, source, region, encodeFlags, DEFAULT_JPEG_QUALITY);
+    }
+
+    /**
+     * Create an attachment that encodes a downscaled copy of an image
+     *
+     * @param partName      the multipart form part name
+     * @param fileName      the archive entry name
+     * @param source        the source image
+     * @param sampleSize    the downscale factor, see {@link BitmapFactory.Options#inSampleSize}
+     * @param encodeFlags   {@link #ENCODE_QUANTIZE}, {@link #ENCODE_DITHER} and {@link #ENCODE_JPEG}, or 0
+     * @return              the attachment
+     */
+    public static Attachment fromThumbnail(String partName, String fileName, File source, int sampleSize, int encodeFlags){
+        return new ThumbnailAttachment(partName, fileName, source, sampleSize, encodeFlags, DEFAULT_JPEG_QUALITY);
+    }
+
+    /**
+     * Create an attachment that encodes a downscaled copy of a report's base screenshot with its
+     * shade drawn on top, as a JPEG. The shade of vector shade reports is rendered from the bugs.
+     *
+     * @param partName      the multipart form part name
+     * @param fileName      the archive entry name
+     * @param report        the report
+     * @param sampleSize    the downscale factor, see {@link BitmapFactory.Options#inSampleSize}
+     * @param jpegQuality   the JPEG quality, 0 - 100
+     * @return              the attachment
+     */
+    public static Attachment fromAnnotated(String partName, String fileName, Report report, int sampleSize, int jpegQuality){
+        return new AnnotatedAttachment(partName, fileName, report, sampleSize, jpegQuality);
+    }
+
+    /**
+     * Create an attachment of a short piece of text, i.e. a plain form field
+     *
+     * @param partName      the multipart form part name
+     * @param text          the text
+     * @return              the attachment
+     */
+    public static Attachment fromText(String partName, String text){
+        return new TextAttachment(partName, text);
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * Attachment backed by a file on disk
+     */
+    static class FileAttachment extends Attachment {
+
+        final File file;
+
+        FileAttachment(String partName, String mimeType, File file){
+            super(partName, file.getName(), mimeType);
+            this.file = file;
+        }
+
+        @Override
+        public long length() {
+            return file.length();
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = fis.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                fis.close();
+            }
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            Source source = Okio.source(file);
+            try {
+                sink.writeAll(source);
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Attachment of a short piece of text
+     */
+    static class TextAttachment extends Attachment {
+
+        final byte[] bytes;
+
+        TextAttachment(String partName, String text){
+            super(partName, partName.concat(".txt"), MIME_TEXT);
+            this.bytes = text.getBytes(Charset.forName("UTF-8"));
+        }
+
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Attachment that is encoded from a decoded bitmap as it is written, either as a
+     * 32-bit PNG, as a palette quantized PNG or as a JPEG
+     */
+    abstract static class BitmapAttachment extends Attachment {
+
+        final int encodeFlags;
+        final int jpegQuality;
+
+        BitmapAttachment(String partName, String fileName, int encodeFlags, int jpegQuality){
+            super(partName, fileName, (encodeFlags & ENCODE_JPEG) != 0 ? MIME_JPEG : MIME_PNG);
+            this.encodeFlags = encodeFlags;
+            this.jpegQuality = jpegQuality;
+        }
+
+        /**
+         * Decode the bitmap to encode
+         */
+        abstract Bitmap decode() throws IOException;
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            Bitmap bitmap = decode();
+            try {
+                if((encodeFlags & ENCODE_JPEG) != 0){
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out);
+                }else if((encodeFlags & ENCODE_QUANTIZE) != 0){
+                    new PaletteQuantizer(new BitmapPixelSource(bitmap), (encodeFlags & ENCODE_DITHER) != 0)
+                            .writePng(out);
+                }else{
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                }
+            } finally {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Attachment that decodes only a region of the source image and
+     * encodes it at full resolution
+     */
+    static class RegionAttachment extends BitmapAttachment {
+
+        final File source;
+        final Rect region;
+
+        RegionAttachment(String partName, String fileName, File source, Rect region, int encodeFlags, int jpegQuality){
+            super(partName, fileName, encodeFlags, jpegQuality);
+            this.source = source;
+            this.region = region;
+        }
+
+        @Override
+        Bitmap decode() throws IOException {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(source.getPath(), false);
+            try {
+                Bitmap crop = decoder.decodeRegion(region, null);
+                if(crop == null) throw new IOException("Unable to decode region " + region);
+                return crop;
+            } finally {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Attachment that decodes a, possibly subsampled, copy of the source image
+     */
+    static class ThumbnailAttachment extends BitmapAttachment {
+
+        final File source;
+        final int sampleSize;
+
+        ThumbnailAttachment(String partName, String fileName, File source, int sampleSize, int encodeFlags, int jpegQuality){
+            super(partName, fileName, encodeFlags, jpegQuality);
+            this.source = source;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        Bitmap decode() throws IOException {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = sampleSize;
+            Bitmap bitmap = BitmapFactory.decodeFile(source.getPath(), opts);
+            if(bitmap == null) throw new IOException("Unable to decode " + source);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Attachment that composes the shade of a report onto a, possibly subsampled,
+     * copy of its base screenshot
+     */
+    static class AnnotatedAttachment extends BitmapAttachment {
+
+        final Report report;
+        final int sampleSize;
+
+        AnnotatedAttachment(String partName, String fileName, Report report, int sampleSize, int jpegQuality){
+            super(partName, fileName, ENCODE_JPEG, jpegQuality);
+            this.report = report;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        Bitmap decode() throws IOException {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = sampleSize;
+            opts.inMutable = true;
+            Bitmap bitmap = BitmapFactory.decodeFile(report.getBaseScreenshot(), opts);
+            if(bitmap == null) throw new IOException("Unable to decode " + report.getBaseScreenshot());
+
+            Bitmap shade = null;
+            if(!report.isVectorShade()){
+                shade = BitmapFactory.decodeFile(report.getShadeScreenshot(), opts);
+            }else if(report.getWidth() > 0 && report.getHeight() > 0){
+                shade = report.renderShade(bitmap.getWidth(), bitmap.getHeight());
+            }
+
+            if(shade != null){
+                Rect bounds = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+                new Canvas(bitmap).drawBitmap(shade, null, bounds, new Paint(Paint.FILTER_BITMAP_FLAG));
+                shade.recycle();
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Reads the pixels of a bitmap in strips for the {@link PaletteQuantizer}
+     */
+    static class BitmapPixelSource implements PaletteQuantizer.PixelSource {
+
+        final Bitmap bitmap;
+
+        BitmapPixelSource(Bitmap bitmap){
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public int getWidth() {
+            return bitmap.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return bitmap.getHeight();
+        }
+
+        @Override
+        public void readRows(int y, int rows, int[] pixels) {
+            bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, y, bitmap.getWidth(), rows);
+        }
+    }
+
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a report's metadata, an alternative to the JSON
+ * produced by {@link Report#writeMetadata(java.io.Writer)}. This class has no Android
+ * dependencies so that server-side tooling can use it to decode uploaded reports.
+ *
+ * Layout (all multi-byte fixed width values are big-endian):
+ * <pre>
+ *   magic      4 bytes     'F' 'T' 'R' 'M'
+ *   version    varint
+ *   title      string
+ *   timestamp  varint      report creation time in epoch millis
+ *   width      varint      (version 2+) width of the annotated view
+ *   height     varint      (version 2+) height of the annotated view
+ *   flags      varint      (version 2+) {@link #FLAG_VECTOR_SHADE}
+ *   thumbnail  varint      (version 3+) thumbnail sample size, 0 when the full base screenshot is attached
+ *   crops      varint      (version 3+) count, followed by that many crops:
+ *                  left, top, right, bottom    varint
+ *   quality    string      (version 4+) the {@link QualityTier} the screenshots were encoded at, empty if none
+ *   sample     varint      (version 4+) the sample size of the full screenshots, 0 if no tier was applied
+ *   strings    varint count, followed by that many strings
+ *   bugs       varint count, followed by that many bugs:
+ *                  id          varint
+ *                  x, y        float32
+ *                  radius      float32
+ *                  color       int32 (ARGB)
+ *                  comment     varint index into the string table
+ *   sections   varint      (version 5+) count, followed by that many sections:
+ *                  name        string
+ *                  value       string, the JSON value of the section
+ *
+ *   string     varint byte length followed by UTF-8 bytes
+ * </pre>
+ *
+ * Comments are interned in the string table so that repeated comments are only
+ * stored once.
+ */
+public class BinaryMetadata {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String MEDIA_TYPE = "application/vnd.flytrap.meta";
+    public static final int VERSION = 5;
+
+    /* Flags */
+    public static final int FLAG_VECTOR_SHADE = 1;
+
+    private static final byte[] MAGIC = new byte[]{ 'F', 'T', 'R', 'M' };
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    public String title;
+    public long timestamp;
+    public int width;
+    public int height;
+    public int flags;
+    public int thumbnailSampleSize;
+    public List<Entry> bugs = new ArrayList<>();
+    public List<Crop> crops = new ArrayList<>();
+    public Map<String, String> sections = new LinkedHashMap<>();
+    public String quality = "";
+    public int sampleSize;
+
+    /**
+     * The version this metadata was decoded from, or {@link #VERSION} when
+     * it was created locally
+     */
+    public int version = VERSION;
+
+    /************************************************
+     *
+     * Encoding
+     *
+     */
+
+    /**
+     * Add a bug entry to this metadata
+     *
+     * @param id        the bug id
+     * @param x         the bug center x-coordinate
+     * @param y         the bug center y-coordinate
+     * @param radius    the bug radius
+     * @param color     the bug accent color
+     * @param comment   the bug comment
+     */
+    public void addBug(int id, float x, float y, float radius, int color, String comment){
+        Entry entry = new Entry();
+        entry.id = id;
+        entry.x = x;
+        entry.y = y;
+        entry.radius = radius;
+        entry.color = color;
+        entry.comment = comment != null ? comment : "";
+        bugs.add(entry);
+    }
+
+    /**
+     * Add a crop region of the base screenshot to this metadata
+     *
+     * @param left      the left edge of the crop
+     * @param top       the top edge of the crop
+     * @param right     the right edge of the crop, exclusive
+     * @param bottom    the bottom edge of the crop, exclusive
+     */
+    public void addCrop(int left, int top, int right, int bottom){
+        Crop crop = new Crop();
+        crop.left = left;
+        crop.top = top;
+        crop.right = right;
+        crop.bottom = bottom;
+        crops.add(crop);
+    }
+
+    /**
+     * Add a section of diagnostics to this metadata, see {@link Report.Section}
+     *
+     * @param name      the section name
+     * @param json      the JSON value of the section
+     */
+    public void addSection(String name, String json){
+        sections.put(name, json);
+    }
+
+    /**
+     * Encode this metadata into the output stream. The stream is flushed
+     * but not closed.
+     *
+     * @param output        the stream to write to
+     *
+     * @throws IOException  error writing to the stream
+     */
+    public void encode(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+
+        out.write(MAGIC);
+        writeVarint(out, VERSION);
+        writeString(out, title != null ? title : "");
+        writeVarint(out, timestamp);
+        writeVarint(out, width);
+        writeVarint(out, height);
+        writeVarint(out, flags);
+        writeVarint(out, thumbnailSampleSize);
+        writeVarint(out, crops.size());
+        for(Crop crop: crops){
+            writeVarint(out, crop.left);
+            writeVarint(out, crop.top);
+            writeVarint(out, crop.right);
+            writeVarint(out, crop.bottom);
+        }
+        writeString(out, quality != null ? quality : "");
+        writeVarint(out, sampleSize);
+
+        // Intern the comments into the string table
+        Map<String, Integer> indices = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for(Entry bug: bugs){
+            if(!indices.containsKey(bug.comment)){
+                indices.put(bug.comment, strings.size());
+                strings.add(bug.comment);
+            }
+        }
+
+        writeVarint(out, strings.size());
+        for(String string: strings){
+            writeString(out, string);
+        }
+
+        writeVarint(out, bugs.size());
+        for(Entry bug: bugs){
+            writeVarint(out, bug.id);
+            out.writeFloat(bug.x);
+            out.writeFloat(bug.y);
+            out.writeFloat(bug.radius);
+            out.writeInt(bug.color);
+            writeVarint(out, indices.get(bug.comment));
+        }
+
+        writeVarint(out, sections.size());
+        for(Map.Entry<String, String> section: sections.entrySet()){
+            writeString(out, section.getKey());
+            writeString(out, section.getValue());
+        }
+
+        out.flush();
+    }
+
+    /************************************************
+     *
+     * Decoding
+     *
+     */
+
+    /**
+     * Decode binary metadata from the input stream
+     *
+     * @param input     the stream to read from
+     * @return          the decoded metadata
+     *
+     * @throws IOException  if the stream is malformed or is of an unsupported version
+     */
+    public static BinaryMetadata decode(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for(int i=0; i<MAGIC.length; i++){
+            if(magic[i] != MAGIC[i]) throw new IOException("Not a FlyTrap binary metadata stream");
+        }
+
+        BinaryMetadata meta = new BinaryMetadata();
+        meta.version = (int) readVarint(in);
+        if(meta.version < 1 || meta.version > VERSION){
+            throw new IOException("Unsupported binary metadata version: " + meta.version);
+        }
+
+        meta.title = readString(in);
+        meta.timestamp = readVarint(in);
+        if(meta.version >= 2){
+            meta.width = (int) readVarint(in);
+            meta.height = (int) readVarint(in);
+            meta.flags = (int) readVarint(in);
+        }
+        if(meta.version >= 3){
+            meta.thumbnailSampleSize = (int) readVarint(in);
+            int cropCount = (int) readVarint(in);
+            for(int i=0; i<cropCount; i++){
+                meta.addCrop((int) readVarint(in), (int) readVarint(in), (int) readVarint(in), (int) readVarint(in));
+            }
+        }
+        if(meta.version >= 4){
+            meta.quality = readString(in);
+            meta.sampleSize = (int) readVarint(in);
+        }
+
+        int stringCount = (int) readVarint(in);
+        String[] strings = new String[stringCount];
+        for(int i=0; i<stringCount; i++){
+            strings[i] = readString(in);
+        }
+
+        int bugCount = (int) readVarint(in);
+        for(int i=0; i<bugCount; i++){
+            Entry bug = new Entry();
+            bug.id = (int) readVarint(in);
+            bug.x = in.readFloat();
+            bug.y = in.readFloat();
+            bug.radius = in.readFloat();
+            bug.color = in.readInt();
+
+            int index = (int) readVarint(in);
+            if(index < 0 || index >= stringCount) throw new IOException("Invalid string index: " + index);
+            bug.comment = strings[index];
+
+            meta.bugs.add(bug);
+        }
+
+        if(meta.version >= 5){
+            int sectionCount = (int) readVarint(in);
+            for(int i=0; i<sectionCount; i++){
+                meta.addSection(readString(in), readString(in));
+            }
+        }
+
+        return meta;
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Write an unsigned LEB128 varint
+     */
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0){
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Read an unsigned LEB128 varint
+     */
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for(int shift=0; shift<64; shift+=7){
+            int b = in.read();
+            if(b == -1) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Write a length prefixed UTF-8 string
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a length prefixed UTF-8 string
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = (int) readVarint(in);
+        if(length < 0) throw new IOException("Invalid string length: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * A single decoded bug, a plain representation of {@link Bug}
+     */
+    public static class Entry {
+        public int id;
+        public float x;
+        public float y;
+        public float radius;
+        public int color;
+        public String comment;
+    }
+
+    /**
+     * A crop region of the base screenshot, the crop attached as 'crop_N' in the report
+     * corresponds to the Nth crop
+     */
+    public static class Crop {
+        public int left;
+        public int top;
+        public int right;
+        public int bottom;
+    }
+
+}
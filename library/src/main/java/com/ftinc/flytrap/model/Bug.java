@@ -21,12 +21,17 @@ import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
 
 import com.ftinc.flytrap.util.Utils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * This is a single bug instance on the FlyTrap view that indicates where
  * the user tapped to indicate a bug. This gives locational data to the where
@@ -60,6 +65,42 @@ public class Bug {
         return bug;
     }
 
+    /**
+     * Read a 'Bug' object from a streaming json reader that is positioned at the
+     * start of a Bug's json object. Unknown keys are skipped.
+     *
+     * @param reader    the json reader to read from
+     * @return          the inflated Bug object
+     *
+     * @throws IOException  error reading the json stream
+     */
+    public static Bug fromJson(JsonReader reader) throws IOException {
+        Bug bug = new Bug();
+        bug.center = new PointF();
+
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            if(KEY_ID.equals(name)){
+                bug.id = reader.nextInt();
+            }else if(KEY_CENTER.equals(name)){
+                readPoint(reader, bug.center);
+            }else if(KEY_RADIUS.equals(name)){
+                bug.radius = (float) reader.nextDouble();
+            }else if(KEY_COLOR.equals(name)){
+                bug.accentColor = reader.peek() == JsonToken.STRING ?
+                        Utils.parseHexColor(reader.nextString()) : reader.nextInt();
+            }else if(KEY_COMMENT.equals(name)){
+                bug.comment = reader.nextString();
+            }else{
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return bug;
+    }
+
     /***************************************************************************
      *
      * Constants
@@ -238,7 +279,8 @@ public class Bug {
         this.id = json.optInt(KEY_ID);
         this.center = jsonToPoint(json.optJSONObject(KEY_CENTER));
         this.radius = (float) json.optDouble(KEY_RADIUS);
-        this.accentColor = json.optInt(KEY_COLOR);
+        Object color = json.opt(KEY_COLOR);
+        this.accentColor = color instanceof String ? Utils.parseHexColor((String) color) : json.optInt(KEY_COLOR);
         this.comment = json.optString(KEY_COMMENT);
     }
 
@@ -270,6 +312,29 @@ public class Bug {
         return point;
     }
 
+    /**
+     * Read a streamed json point into the supplied PointF object
+     *
+     * @param reader    the json reader positioned at the point object
+     * @param point     the point to fill
+     *
+     * @throws IOException  error reading the json stream
+     */
+    private static void readPoint(JsonReader reader, PointF point) throws IOException {
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            if("x".equals(name)){
+                point.x = (float) reader.nextDouble();
+            }else if("y".equals(name)){
+                point.y = (float) reader.nextDouble();
+            }else{
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
     /**
      * Check if point in space collides with this bug
      *
@@ -300,7 +365,7 @@ public class Bug {
             json.put(KEY_ID, id);
             json.put(KEY_CENTER, pointToJson(center));
             json.put(KEY_RADIUS, radius);
-            json.put(KEY_COLOR, String.format("#%06X", (0xFFFFFF & accentColor)));
+            json.put(KEY_COLOR, Utils.toHexColor(accentColor));
             json.put(KEY_COMMENT, comment);
         } catch (JSONException e) {
             e.printStackTrace();
@@ -309,6 +374,27 @@ public class Bug {
         return json;
     }
 
+    /**
+     * Stream a JSON representation of this class into a json writer
+     * without building an intermediate {@link JSONObject}
+     *
+     * @param writer    the json writer to write to
+     *
+     * @throws IOException  error writing to the json stream
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(KEY_ID).value(id);
+        writer.name(KEY_CENTER).beginObject()
+                .name("x").value(center.x)
+                .name("y").value(center.y)
+                .endObject();
+        writer.name(KEY_RADIUS).value(radius);
+        writer.name(KEY_COLOR).value(Utils.toHexColor(accentColor));
+        writer.name(KEY_COMMENT).value(comment);
+        writer.endObject();
+    }
+
     /**
      * Render this bug on the canvas
      *
@@ -380,6 +466,17 @@ public class Bug {
             return this;
         }
 
+        /**
+         * Set the comment describing the bug, i.e. when reports are filed from code
+         *
+         * @param comment   the comment
+         * @return          self for chaining
+         */
+        public Builder setComment(String comment){
+            bug.comment = comment != null ? comment : "";
+            return this;
+        }
+
         /**
          * Build the Bug object
          *
@@ -32,6 +32,13 @@ public abstract class Delivery implements Parcelable{
 
     public static final int TYPE_EMAIL = 0;
     public static final int TYPE_API = 1;
+    public static final int TYPE_MULTI = 2;
+    public static final int TYPE_ARCHIVE = 3;
+
+    /* Delivery Constraints */
+    public static final int CONSTRAINT_UNMETERED = 1;
+    public static final int CONSTRAINT_CHARGING = 2;
+    public static final int CONSTRAINT_IDLE = 4;
 
     /************************************************
      *
@@ -61,6 +68,21 @@ public abstract class Delivery implements Parcelable{
         return 0;
     }
 
+    /**
+     * Let the handler know the delivery finished, and whether it succeeded if the handler
+     * wants to know, see {@link OnReportResultHandler}
+     *
+     * @param handler   the report handler
+     * @param success   true if the report was delivered, or handed off for delivery
+     */
+    protected static void finish(OnReportHandler handler, boolean success){
+        if(!success && handler instanceof OnReportResultHandler){
+            ((OnReportResultHandler) handler).onFailure();
+        }else{
+            handler.onFinish();
+        }
+    }
+
     /**
      * Interface to let the FlyTrap activity know when the
      * delivery system has finished handling the report
@@ -69,4 +91,12 @@ public abstract class Delivery implements Parcelable{
         public void onFinish();
     }
 
+    /**
+     * A report handler that also learns when a delivery failed, {@link #onFailure()} is
+     * called instead of {@link #onFinish()} then
+     */
+    public static interface OnReportResultHandler extends OnReportHandler{
+        public void onFailure();
+    }
+
 }
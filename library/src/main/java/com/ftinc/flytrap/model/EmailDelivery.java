@@ -16,16 +16,21 @@
 
 package com.ftinc.flytrap.model;
 
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Parcel;
 import android.util.Log;
 
+import com.ftinc.flytrap.ReportProvider;
 import com.ftinc.flytrap.util.Utils;
 
-import java.io.File;
-
 /**
  * Created by drew.heavner on 7/9/14.
  */
@@ -83,42 +88,46 @@ public class EmailDelivery extends Delivery {
      *
      */
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     @Override
     public void onReportGenerated(final Context ctx, Report report, final OnReportHandler handler) {
-        // Generate the compressed zip of the report then prepare intent to be sent
-        report.generateCompressedReport(ctx, new Report.OnCompressedReportGeneratedListener() {
-            @Override
-            public void onGenerated(File zipFile) {
-
-                // File generated! Prepare the intent to send this file off via email
-                Intent intent = new Intent(Intent.ACTION_SEND);
-                intent.setType("message/rfc822");
-                intent.putExtra(Intent.EXTRA_EMAIL, new String[]{address});
-                intent.putExtra(Intent.EXTRA_SUBJECT, subject);
-                intent.putExtra(Intent.EXTRA_TEXT, message);
-
-                // Attach the report file
-                Uri uri = Uri.parse("file://" + zipFile.getPath());
-                intent.putExtra(Intent.EXTRA_STREAM, uri);
-
-                // Check for intent availability
-                if (Utils.isIntentAvailable(ctx, intent)) {
-                    // Send intent
-                    ctx.startActivity(intent);
-                } else {
-                    Log.w(EmailDelivery.class.getName(), "Unable to send report, no email client available.");
-                }
-
-                handler.onFinish();
+        // Serve the zip of the report through the provider, it is generated as the email
+        // client reads it so the chooser opens right away and nothing is written to storage
+        Uri uri = ReportProvider.publish(ctx, report);
+
+        // Prepare the intent to send this file off via email
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("message/rfc822");
+        intent.putExtra(Intent.EXTRA_EMAIL, new String[]{address});
+        intent.putExtra(Intent.EXTRA_SUBJECT, subject);
+        intent.putExtra(Intent.EXTRA_TEXT, message);
+
+        // Attach the report, the email client is granted access to this one uri only
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            // The grant flag covers the clip data, the stream is only migrated to it on launch
+            intent.setClipData(ClipData.newRawUri(null, uri));
+        }else{
+            // Before Jelly Bean the flag doesn't reach EXTRA_STREAM, grant every client directly
+            for(ResolveInfo info: ctx.getPackageManager().queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY)){
+                ctx.grantUriPermission(info.activityInfo.packageName, uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
             }
+        }
 
-            @Override
-            public void onFailure() {
-                Log.w(EmailDelivery.class.getName(), "Failed to generate zip file of the report!");
-                handler.onFinish();
-            }
-        });
+        // Headless reports are delivered with the application context
+        if(!(ctx instanceof Activity)) intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        // Check for intent availability
+        boolean available = Utils.isIntentAvailable(ctx, intent);
+        if (available) {
+            // Send intent
+            ctx.startActivity(intent);
+        } else {
+            Log.w(EmailDelivery.class.getName(), "Unable to send report, no email client available.");
+        }
 
+        finish(handler, available);
     }
 
     @Override
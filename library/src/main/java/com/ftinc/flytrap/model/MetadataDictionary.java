@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The preset deflate dictionary of report metadata. The metadata of every report repeats the
+ * same keys, enum values and title pattern, and a dictionary that already holds them lets even
+ * a report with a single bug compress well.
+ *
+ * Metadata deflated with the dictionary is a regular zlib stream, see RFC 1950, whose header
+ * carries the id of the dictionary, the Adler-32 checksum of its bytes. The server picks the
+ * dictionary to inflate with by that id, see {@link #getId(int)}. A published dictionary must
+ * never change, changes are made as a new version.
+ *
+ * This class has no Android dependencies so that server-side tooling can use it to inflate
+ * uploaded reports.
+ */
+public class MetadataDictionary {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The dictionaries by version. The most frequent strings go last, zlib reaches them with the
+     * shortest distances.
+     */
+    private static final String[] DICTIONARIES = new String[]{
+            // Version 1
+            "\"format\":\"png\"\"format\":\"jpeg\"\"tier\":\"low\"\"tier\":\"medium\"\"tier\":\"high\"" +
+            "\"tier\":\"full\"\"quality\":{\"tier\":\"\"sample_size\":1\"sample_size\":2" +
+            "\"crops\":[{\"name\":\"crop_0.png\"},{\"name\":\"crop_1.jpg\",\"left\":\"top\":\"right\":" +
+            "\"bottom\":\"thumbnail_sample_size\":4\"attachments\":\"regions\"\"attachments\":\"full\"" +
+            "{\"title\":\"TRAP_REPORT_20\",\"timestamp\":\"20\",\"width\":1080,\"height\":1920," +
+            "\"shade\":\"image\"\"shade\":\"vector\",\"bugs\":[{\"id\":0,\"center\":{\"x\":.0,\"y\":.0}," +
+            "\"radius\":.0,\"accent_color\":\"#\",\"comment\":\"\"},{\"id\":1,\"center\":{\"x\":"
+    };
+
+    /**
+     * Hidden Constructor
+     */
+    private MetadataDictionary(){}
+
+    /************************************************
+     *
+     * Static Methods
+     *
+     */
+
+    /**
+     * Get the bytes of a dictionary
+     *
+     * @param version   the dictionary version, 1 through {@link #VERSION}
+     * @return          the dictionary
+     */
+    public static byte[] get(int version){
+        if(version < 1 || version > DICTIONARIES.length){
+            throw new IllegalArgumentException("Unknown dictionary version " + version);
+        }
+        return DICTIONARIES[version - 1].getBytes(UTF_8);
+    }
+
+    /**
+     * Get the id of a dictionary, as found in the header of a zlib stream deflated with it
+     *
+     * @param version   the dictionary version
+     * @return          the Adler-32 checksum of the dictionary
+     */
+    public static long getId(int version){
+        Adler32 adler = new Adler32();
+        adler.update(get(version));
+        return adler.getValue();
+    }
+
+    /**
+     * Create a deflater primed with the current dictionary. The caller must {@link Deflater#end()} it.
+     *
+     * @return      the deflater
+     */
+    public static Deflater newDeflater(){
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setDictionary(get(VERSION));
+        return deflater;
+    }
+
+    /**
+     * Inflate metadata deflated with any version of the dictionary, or with none
+     *
+     * @param data      the zlib stream
+     * @return          the inflated metadata
+     *
+     * @throws DataFormatException  the data is corrupt or was deflated with an unknown dictionary
+     */
+    public static byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[4096];
+            while(!inflater.finished()){
+                int count = inflater.inflate(buffer);
+                if(count > 0){
+                    out.write(buffer, 0, count);
+                }else if(inflater.needsDictionary()){
+                    inflater.setDictionary(get(versionOf(inflater.getAdler())));
+                }else if(inflater.needsInput()){
+                    throw new DataFormatException("Truncated metadata");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Find the version of a dictionary by its id
+     */
+    private static int versionOf(long id) throws DataFormatException {
+        for(int version=1; version<=DICTIONARIES.length; version++){
+            if(getId(version) == id) return version;
+        }
+        throw new DataFormatException("Unknown dictionary " + Long.toHexString(id));
+    }
+
+}
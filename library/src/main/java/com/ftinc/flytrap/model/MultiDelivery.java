@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.ftinc.flytrap.util.Workers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers every report to several deliveries at once, i.e. to the API, a local
+ * {@link ArchiveDelivery} and email.
+ *
+ * The screenshots are encoded once, see {@link Report#prepareAttachments(File)}, and the encoded
+ * files are shared by all of the deliveries. The deliveries are then started concurrently on the
+ * FlyTrap {@link Workers}. The handler is finished once every delivery finished or the timeout
+ * passed, whichever comes first, and the outcome and latency of each delivery are logged and
+ * handed to the {@link OnDeliveryResultListener}, if one is set.
+ */
+public class MultiDelivery extends Delivery {
+    private static final String TAG = MultiDelivery.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+    /* Delivery Results */
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_FAILURE = 1;
+    public static final int RESULT_TIMEOUT = 2;
+
+    private static final String PREPARED_DIRECTORY = "flytrap_prepared_";
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static OnDeliveryResultListener sResultListener;
+
+    /**
+     * Set the listener that is handed the outcome of every delivery of every report. It is
+     * static because the delivery itself is parcelled into the FlyTrap activity.
+     *
+     * @param listener      the listener, or null to only log the results
+     */
+    public static synchronized void setOnDeliveryResultListener(OnDeliveryResultListener listener){
+        sResultListener = listener;
+    }
+
+    private static synchronized OnDeliveryResultListener getOnDeliveryResultListener(){
+        return sResultListener;
+    }
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    /**
+     * The deliveries every report is handed to
+     */
+    public List<Delivery> deliveries = new ArrayList<>();
+
+    /**
+     * How long to wait for the deliveries in milliseconds before the handler is finished anyway
+     */
+    public long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Constructor
+     *
+     * @param deliveries    the deliveries every report is handed to
+     */
+    public MultiDelivery(Delivery... deliveries){
+        this.deliveries.addAll(Arrays.asList(deliveries));
+    }
+
+    /**
+     * Parcel Constructor
+     *
+     * @param in    the input data parcel
+     */
+    public MultiDelivery(Parcel in){
+        timeout = in.readLong();
+        int count = in.readInt();
+        for(int i=0; i<count; i++){
+            Delivery delivery = in.readParcelable(Delivery.class.getClassLoader());
+            if(delivery != null) deliveries.add(delivery);
+        }
+    }
+
+    /**
+     * Add a delivery every report is handed to
+     *
+     * @param delivery      the delivery
+     * @return              self for chaining
+     */
+    public MultiDelivery addDelivery(Delivery delivery){
+        deliveries.add(delivery);
+        return this;
+    }
+
+    /**
+     * Set how long to wait for the deliveries before the handler is finished anyway, deliveries
+     * that are still running carry on in the background
+     *
+     * @param timeout       the timeout in milliseconds
+     * @return              self for chaining
+     */
+    public MultiDelivery setTimeout(long timeout){
+        this.timeout = timeout;
+        return this;
+    }
+
+    /************************************************
+     *
+     * Delivery Methods
+     *
+     */
+
+    @Override
+    public void onReportGenerated(final Context ctx, final Report report, final OnReportHandler handler) {
+        if(deliveries.isEmpty()){
+            handler.onFinish();
+            return;
+        }
+
+        final Dispatch dispatch = new Dispatch(ctx, report, handler);
+        dispatch.arm();
+        try {
+            Workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Encode the screenshots once for all of the deliveries, if that fails each
+                    // delivery encodes them on its own
+                    try {
+                        report.prepareAttachments(dispatch.preparedDir);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to prepare the report attachments", e);
+                    }
+
+                    dispatch.start();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Unable to deliver the report, FlyTrap is saturated", e);
+            dispatch.fail();
+        }
+    }
+
+    @Override
+    public int getType() {
+        return Delivery.TYPE_MULTI;
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * The outcome of a single delivery of a report
+     */
+    public static class Result {
+
+        public final Delivery delivery;
+
+        /**
+         * {@link #RESULT_SUCCESS}, {@link #RESULT_FAILURE} or {@link #RESULT_TIMEOUT}
+         */
+        public final int result;
+
+        /**
+         * How long the delivery took in milliseconds, or the timeout if it didn't finish
+         */
+        public final long latency;
+
+        Result(Delivery delivery, int result, long latency){
+            this.delivery = delivery;
+            this.result = result;
+            this.latency = latency;
+        }
+
+        @Override
+        public String toString() {
+            String outcome = result == RESULT_SUCCESS ? "delivered" : result == RESULT_FAILURE ? "failed" : "timed out";
+            return delivery.getClass().getSimpleName() + " " + outcome + " in " + latency + "ms";
+        }
+    }
+
+    /**
+     * Listener that is handed the outcome of every delivery of a report
+     */
+    public static interface OnDeliveryResultListener{
+
+        /**
+         * Called on the main thread once every delivery finished or the timeout passed
+         *
+         * @param report    the report
+         * @param results   the outcome of every delivery, in the order of the deliveries
+         */
+        public void onDeliveryResults(Report report, List<Result> results);
+    }
+
+    /**
+     * The fan out of a single report, tracks the deliveries until they all finished
+     */
+    private class Dispatch implements Runnable {
+
+        private final Context ctx;
+        private final Report report;
+        private final OnReportHandler handler;
+        private final File preparedDir;
+
+        private final int[] results;
+        private final long[] latencies;
+        private final boolean[] done;
+        private long start;
+        private int remaining;
+        private boolean finished;
+
+        Dispatch(Context ctx, Report report, OnReportHandler handler){
+            this.ctx = ctx;
+            this.report = report;
+            this.handler = handler;
+            this.preparedDir = ArtifactStore.get(ctx).newDirectory(PREPARED_DIRECTORY + report.getTimestamp());
+            this.results = new int[deliveries.size()];
+            this.latencies = new long[deliveries.size()];
+            this.done = new boolean[deliveries.size()];
+            Arrays.fill(results, RESULT_TIMEOUT);
+            Arrays.fill(latencies, timeout);
+        }
+
+        /**
+         * Start the clock, the timeout covers preparing the attachments as well
+         */
+        void arm(){
+            synchronized (this) {
+                start = SystemClock.elapsedRealtime();
+                remaining = deliveries.size();
+            }
+            Workers.postToMain(this, timeout);
+        }
+
+        /**
+         * Fail every delivery that didn't finish yet
+         */
+        void fail(){
+            for(int i=0; i<deliveries.size(); i++){
+                onDelivered(i, RESULT_FAILURE);
+            }
+        }
+
+        /**
+         * Start every delivery, each one on the executor
+         */
+        void start(){
+            for(int i=0; i<deliveries.size(); i++){
+                final int index = i;
+                Runnable delivery = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            deliveries.get(index).onReportGenerated(ctx, report, new OnReportResultHandler() {
+                                @Override
+                                public void onFinish() {
+                                    onDelivered(index, RESULT_SUCCESS);
+                                }
+
+                                @Override
+                                public void onFailure() {
+                                    onDelivered(index, RESULT_FAILURE);
+                                }
+                            });
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Delivery " + deliveries.get(index).getClass().getSimpleName() + " failed", e);
+                            onDelivered(index, RESULT_FAILURE);
+                        }
+                    }
+                };
+
+                try {
+                    Workers.execute(delivery);
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "Unable to start delivery " + deliveries.get(index).getClass().getSimpleName(), e);
+                    onDelivered(index, RESULT_FAILURE);
+                }
+            }
+        }
+
+        /**
+         * Record the outcome of a delivery, finishing the dispatch with the last one
+         */
+        private void onDelivered(int index, int result){
+            boolean last;
+            synchronized (this) {
+                if(done[index]) return;
+                done[index] = true;
+                results[index] = result;
+                latencies[index] = SystemClock.elapsedRealtime() - start;
+                last = --remaining == 0;
+            }
+
+            if(last){
+                // Every delivery is done with the shared attachments now, later reads of the
+                // report, i.e. through the ReportProvider, encode them again
+                report.releasePreparedAttachments();
+                ArtifactStore.get(ctx).release(preparedDir);
+                Workers.removeFromMain(this);
+                Workers.postToMain(this);
+            }
+        }
+
+        /**
+         * Finish the handler, on the main thread once all deliveries finished or the timeout passed
+         */
+        @Override
+        public void run() {
+            List<Result> outcome = new ArrayList<>();
+            boolean success = false;
+            synchronized (this) {
+                if(finished) return;
+                finished = true;
+
+                for(int i=0; i<results.length; i++){
+                    outcome.add(new Result(deliveries.get(i), results[i], latencies[i]));
+                    success |= results[i] == RESULT_SUCCESS;
+                }
+            }
+
+            Log.i(TAG, "Delivered " + report.getTitle() + ": " + outcome);
+            OnDeliveryResultListener listener = getOnDeliveryResultListener();
+            if(listener != null) listener.onDeliveryResults(report, Collections.unmodifiableList(outcome));
+
+            finish(handler, success);
+        }
+    }
+
+    /************************************************
+     *
+     * Parcelable Methods
+     *
+     */
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(timeout);
+        dest.writeInt(deliveries.size());
+        for(Delivery delivery: deliveries){
+            dest.writeParcelable(delivery, flags);
+        }
+    }
+
+    /**
+     * The parcel creator for this class
+     */
+    public static final Creator<MultiDelivery> CREATOR = new Creator<MultiDelivery>() {
+        @Override
+        public MultiDelivery createFromParcel(Parcel source) {
+            return new MultiDelivery(source);
+        }
+
+        @Override
+        public MultiDelivery[] newArray(int size) {
+            return new MultiDelivery[size];
+        }
+    };
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+/**
+ * A resolution, format and quality the screenshots of a report are encoded at. Tiers are picked
+ * per report from the measured upload throughput so that the screenshots upload within a target
+ * time, see {@link #select(long, double, long)}.
+ *
+ * The size of each tier is estimated as a ratio of the size of the captured PNG screenshots. The
+ * ratios are deliberately conservative, measured on flat UI screens, so that a tier rather
+ * undershoots the target time than overshoots it.
+ */
+public class QualityTier {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    /**
+     * The captured screenshots as they are
+     */
+    public static final QualityTier FULL = new QualityTier("full", 1, 0, 0, 1.0);
+
+    /**
+     * Full resolution, reduced to a dithered palette of 256 colors
+     */
+    public static final QualityTier HIGH = new QualityTier("high", 1,
+            Attachment.ENCODE_QUANTIZE | Attachment.ENCODE_DITHER, 0, 0.5);
+
+    /**
+     * Half resolution JPEG
+     */
+    public static final QualityTier MEDIUM = new QualityTier("medium", 2, Attachment.ENCODE_JPEG, 85, 0.12);
+
+    /**
+     * Quarter resolution JPEG
+     */
+    public static final QualityTier LOW = new QualityTier("low", 4, Attachment.ENCODE_JPEG, 60, 0.03);
+
+    /**
+     * All tiers, best first
+     */
+    public static final QualityTier[] TIERS = new QualityTier[]{ FULL, HIGH, MEDIUM, LOW };
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    public final String name;
+    public final int sampleSize;
+    public final int encodeFlags;
+    public final int jpegQuality;
+    public final double sizeRatio;
+
+    /**
+     * Constructor
+     *
+     * @param name          the name of the tier as recorded in the metadata
+     * @param sampleSize    the downscale factor of the screenshots
+     * @param encodeFlags   the {@link Attachment} encode flags
+     * @param jpegQuality   the JPEG quality for {@link Attachment#ENCODE_JPEG}
+     * @param sizeRatio     the estimated size of the encoded screenshots relative to the captured PNGs
+     */
+    private QualityTier(String name, int sampleSize, int encodeFlags, int jpegQuality, double sizeRatio){
+        this.name = name;
+        this.sampleSize = sampleSize;
+        this.encodeFlags = encodeFlags;
+        this.jpegQuality = jpegQuality;
+        this.sizeRatio = sizeRatio;
+    }
+
+    /**
+     * Get the format the base screenshot is encoded in at this tier
+     *
+     * @return      'png' or 'jpeg'
+     */
+    public String getFormat(){
+        return (encodeFlags & Attachment.ENCODE_JPEG) != 0 ? "jpeg" : "png";
+    }
+
+    /**
+     * Estimate the size of the screenshots encoded at this tier
+     *
+     * @param capturedBytes     the size of the captured PNG screenshots
+     * @return                  the estimated size in bytes
+     */
+    public long estimateBytes(long capturedBytes){
+        return (long) Math.ceil(capturedBytes * sizeRatio);
+    }
+
+    /************************************************
+     *
+     * Static Methods
+     *
+     */
+
+    /**
+     * Select the best tier whose screenshots are estimated to upload within the target time
+     *
+     * @param capturedBytes     the size of the captured PNG screenshots
+     * @param bytesPerSecond    the estimated upload throughput, or a value of 0 or less if unknown
+     * @param targetMillis      the target upload time in milliseconds
+     * @return                  the best tier that meets the target, {@link #LOW} if none does,
+     *                          or {@link #FULL} if the throughput is unknown
+     */
+    public static QualityTier select(long capturedBytes, double bytesPerSecond, long targetMillis){
+        if(bytesPerSecond <= 0) return FULL;
+
+        double budget = bytesPerSecond * targetMillis / 1000d;
+        for(QualityTier tier: TIERS){
+            if(tier.estimateBytes(capturedBytes) <= budget) return tier;
+        }
+        return LOW;
+    }
+
+    /**
+     * Find a tier by its name
+     *
+     * @param name      the tier name
+     * @return          the tier, or null if there is no such tier
+     */
+    public static QualityTier forName(String name){
+        for(QualityTier tier: TIERS){
+            if(tier.name.equals(name)) return tier;
+        }
+        return null;
+    }
+
+}
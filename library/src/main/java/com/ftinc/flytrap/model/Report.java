@@ -17,26 +17,35 @@
 package com.ftinc.flytrap.model;
 
 import android.content.Context;
-import android.os.AsyncTask;
-import android.util.Pair;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.util.JsonWriter;
+import android.util.Log;
 
+import com.ftinc.flytrap.util.ShadeRenderer;
 import com.ftinc.flytrap.util.Utils;
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.ftinc.flytrap.util.Workers;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * This is the collective bug report object that will handle all the collection and
@@ -50,6 +59,55 @@ import java.util.List;
  */
 public class Report {
 
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    /* Attachment Modes */
+    public static final int ATTACHMENTS_FULL = 0;
+    public static final int ATTACHMENTS_REGIONS = 1;
+
+    /**
+     * The subsample factor of the full frame thumbnail sent in {@link #ATTACHMENTS_REGIONS} mode
+     */
+    public static final int THUMBNAIL_SAMPLE_SIZE = 8;
+
+    /**
+     * The subsample factor and JPEG quality of the annotated preview sent ahead of the
+     * full resolution screenshots, see {@link #getPreviewAttachment()}
+     */
+    public static final int PREVIEW_SAMPLE_SIZE = 4;
+    public static final int PREVIEW_JPEG_QUALITY = 75;
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static final List<Contributor> sContributors = new CopyOnWriteArrayList<>();
+
+    /**
+     * Register a contributor whose section is added to every report filed from now on,
+     * see {@link Builder#addContributions()}
+     *
+     * @param contributor       the contributor
+     */
+    public static void addContributor(Contributor contributor){
+        if(!sContributors.contains(contributor)) sContributors.add(contributor);
+    }
+
+    /**
+     * Unregister a contributor
+     *
+     * @param contributor       the contributor
+     */
+    public static void removeContributor(Contributor contributor){
+        sContributors.remove(contributor);
+    }
+
     /************************************************
      *
      * Variables
@@ -63,11 +121,27 @@ public class Report {
     private String baseScreenShot;
     private String shadeScreenShot;
 
+    private int width;
+    private int height;
+
+    private int attachmentMode = ATTACHMENTS_FULL;
+    private int cropMargin;
+    private int encodeFlags;
+    private int deliveryConstraints;
+    private QualityTier qualityTier;
+
+    private List<Rect> cropRegions;
+    private volatile List<Attachment> preparedAttachments;
+    private List<Section> sections;
+    private List<Attachment> extraAttachments;
+
     /**
      * Empty Constructor
      */
     private Report(){
         bugs = new ArrayList<>();
+        sections = new ArrayList<>();
+        extraAttachments = new ArrayList<>();
         timestamp = System.currentTimeMillis();
     }
 
@@ -77,75 +151,262 @@ public class Report {
      *
      */
 
-    public String getTitle(){ return title; }
+    public String getTitle(){
+        if(title == null) title = generateTitle();
+        return title;
+    }
+
     public long getTimestamp(){ return timestamp; }
     public List<Bug> getBugs(){ return bugs; }
     public String getBaseScreenshot(){ return baseScreenShot; }
     public String getShadeScreenshot(){ return shadeScreenShot; }
+    public int getWidth(){ return width; }
+    public int getHeight(){ return height; }
 
-    /************************************************
-     *
-     * Helper Methods
+    /**
+     * Return whether this report was generated in vector shade mode, i.e. it carries no
+     * shade screenshot and the shade must be rendered from the bug geometry
+     * with {@link #renderShade()}
+     */
+    public boolean isVectorShade(){ return shadeScreenShot == null; }
+
+    /**
+     * Return whether this report carries a screenshot, reports filed after a crash may not
+     */
+    public boolean hasScreenshot(){ return baseScreenShot != null; }
+
+    public List<Section> getSections(){ return sections; }
+
+    public int getAttachmentMode(){ return attachmentMode; }
+    public int getDeliveryConstraints(){ return deliveryConstraints; }
+    public QualityTier getQualityTier(){ return qualityTier; }
+
+    /**
+     * Encode the screenshots of this report at a quality tier, i.e. one that was picked to
+     * upload within a target time. The tier is recorded in the metadata.
      *
+     * @param tier      the quality tier, or null to attach the screenshots as configured
      */
+    public void setQualityTier(QualityTier tier){
+        qualityTier = tier;
+    }
 
     /**
-     * Generate the data needed to send this report to an
-     * API webserver service.
+     * Get the attachments that are delivered with this report. In {@link #ATTACHMENTS_FULL} mode
+     * these are the base and shade screenshots. In {@link #ATTACHMENTS_REGIONS} mode the base
+     * screenshot is replaced by a downscaled thumbnail and full resolution crops around the bugs,
+     * see {@link #getCropRegions()}. The attachments added to the builder, i.e. by
+     * {@link AttachmentContributor}s, follow the screenshots.
      *
-     * @param ctx       the application context
+     * @return      the list of attachments
      */
-    public void generateAPIReport(final Context ctx, final OnAPIReportGeneratedListener listener){
+    public List<Attachment> getAttachments(){
+        List<Attachment> prepared = preparedAttachments;
+        if(prepared != null) return new ArrayList<>(prepared);
+
+        List<Attachment> attachments = new ArrayList<>();
+        if(hasScreenshot()) addScreenshotAttachments(attachments);
+        attachments.addAll(extraAttachments);
+        return attachments;
+    }
 
-        // Generate a title
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        title = String.format("TRAP_REPORT_%s", timestamp);
+    /**
+     * Add the attachments of the screenshots, as configured
+     */
+    private void addScreenshotAttachments(List<Attachment> attachments){
+        File baseScreen = new File(baseScreenShot);
 
-        // Serialize metadata into JSON
-        JSONObject meta = new JSONObject();
-        try {
-            meta.put("title", title);
-            meta.put("timestamp", timestamp);
+        // A quality tier adds its format to the configured encoding and downscales the full screenshots
+        int flags = encodeFlags | (qualityTier != null ? qualityTier.encodeFlags : 0);
+        int sampleSize = qualityTier != null ? qualityTier.sampleSize : 1;
+        int jpegQuality = qualityTier != null ? qualityTier.jpegQuality : 0;
+        String extension = getImageExtension();
 
-            // Insert all the bugs
-            JSONArray bugData = new JSONArray();
-            for (Bug bug : bugs) {
-                bugData.put(bug.toJSON());
+        if(attachmentMode == ATTACHMENTS_REGIONS){
+            attachments.add(Attachment.fromThumbnail("thumbnail", "thumbnail" + extension, baseScreen, THUMBNAIL_SAMPLE_SIZE, flags));
+
+            List<Rect> regions = getCropRegions();
+            for(int i=0; i<regions.size(); i++){
+                attachments.add(Attachment.fromRegion("crop_" + i, "crop_" + i + extension, baseScreen, regions.get(i), flags));
             }
-            meta.put("bugs", bugData);
+        }else{
+            attachments.add(screenshotAttachment("base", baseScreen, sampleSize, flags, jpegQuality));
+        }
 
-            // Create the new item directory
-            File reportDir = new File(ctx.getExternalCacheDir(), title);
-            reportDir.mkdir();
+        if(!isVectorShade()){
+            // The shade is translucent, it is quantized instead of being turned into a JPEG
+            int shadeFlags = (flags & Attachment.ENCODE_JPEG) != 0 ?
+                    (flags & ~Attachment.ENCODE_JPEG) | Attachment.ENCODE_QUANTIZE : flags;
+            attachments.add(screenshotAttachment("shade", new File(shadeScreenShot), sampleSize, shadeFlags, 0));
+        }
+    }
 
-            // Now copy over the saved screenshots from
-            File baseScreen = new File(baseScreenShot);
-            File shadeScreen = new File(shadeScreenShot);
+    /**
+     * Encode the attachments of this report into files once, so that several deliveries of the
+     * report share them instead of each one encoding the screenshots again.
+     * {@link #getAttachments()} returns the prepared attachments from then on, changing the
+     * quality tier no longer has an effect. Encoding is CPU heavy, call this from a worker thread.
+     *
+     * @param dir       the directory to write the encoded attachments to, it is owned by the caller
+     *                  and must outlive every delivery of the report
+     *
+     * @throws IOException  error encoding the attachments
+     */
+    public synchronized void prepareAttachments(File dir) throws IOException {
+        if(preparedAttachments != null) return;
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+
+        List<Attachment> prepared = new ArrayList<>();
+        for(Attachment attachment: getAttachments()){
+            // Screenshots that are attached as captured are files already
+            if(attachment.getFile() != null){
+                prepared.add(attachment);
+                continue;
+            }
 
-            File baseOutput = new File(reportDir, baseScreen.getName());
-            File shadeOutput = new File(reportDir, shadeScreen.getName());
+            File file = new File(dir, attachment.getFileName());
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                attachment.writeTo(out);
+            } finally {
+                out.close();
+            }
+            prepared.add(Attachment.fromFile(attachment.getPartName(), attachment.getMimeType(), file));
+        }
+        preparedAttachments = prepared;
+    }
 
-            boolean cpResult1 = copy(baseScreen, baseOutput);
-            boolean cpResult2 = copy(shadeScreen, shadeOutput);
+    /**
+     * Go back to encoding the attachments from the screenshots, i.e. before the prepared files
+     * are deleted while the report may still be read, see {@link com.ftinc.flytrap.ReportProvider}
+     */
+    public synchronized void releasePreparedAttachments(){
+        preparedAttachments = null;
+    }
+
+    /**
+     * Return whether the attachments of this report were encoded ahead of its deliveries,
+     * see {@link #prepareAttachments(File)}
+     */
+    public boolean hasPreparedAttachments(){
+        return preparedAttachments != null;
+    }
+
+    /**
+     * Create the attachment of a full screenshot, it is only re-encoded when it is quantized,
+     * downscaled or turned into a JPEG
+     */
+    private Attachment screenshotAttachment(String partName, File screenshot, int sampleSize, int flags, int jpegQuality){
+        if(sampleSize == 1 && (flags & (Attachment.ENCODE_QUANTIZE | Attachment.ENCODE_JPEG)) == 0){
+            return Attachment.fromFile(partName, Attachment.MIME_PNG, screenshot);
+        }
+        return Attachment.fromImage(partName, screenshot, sampleSize, flags, jpegQuality);
+    }
+
+    /**
+     * Get a small preview of the annotated screenshot, the base screenshot with the shade drawn
+     * on top, that is sent ahead of the full resolution screenshots so that triage can start
+     * right away
+     *
+     * @return      the preview attachment, named 'preview'
+     */
+    public Attachment getPreviewAttachment(){
+        return Attachment.fromAnnotated("preview", "preview.jpg", this, PREVIEW_SAMPLE_SIZE, PREVIEW_JPEG_QUALITY);
+    }
+
+    /**
+     * Get the file extension of the re-encoded images, the thumbnail and crops
+     */
+    private String getImageExtension(){
+        return qualityTier != null && (qualityTier.encodeFlags & Attachment.ENCODE_JPEG) != 0 ? ".jpg" : ".png";
+    }
 
-            if (cpResult1 && cpResult2) {
-                // Return the result
-                listener.onGenerated(meta, Pair.create(baseOutput, shadeOutput));
+    /**
+     * Estimate the size of the screenshots this report attaches as captured, before any
+     * quality tier is applied. In {@link #ATTACHMENTS_REGIONS} mode only the share of the base
+     * screenshot that is cropped and thumbnailed counts.
+     *
+     * @return      the estimated size in bytes
+     */
+    public long estimateScreenshotBytes(){
+        if(!hasScreenshot()) return 0;
+
+        File baseScreen = new File(baseScreenShot);
+        long bytes = baseScreen.length();
+
+        if(attachmentMode == ATTACHMENTS_REGIONS){
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(baseScreenShot, opts);
+
+            long area = (long) opts.outWidth * opts.outHeight;
+            if(area > 0){
+                long cropped = 0;
+                for(Rect region: getCropRegions()){
+                    cropped += (long) region.width() * region.height();
+                }
+                bytes = (long) (bytes * ((double) cropped / area + 1d / (THUMBNAIL_SAMPLE_SIZE * THUMBNAIL_SAMPLE_SIZE)));
             }
+        }
 
-        } catch(JSONException e){
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if(!isVectorShade()){
+            bytes += new File(shadeScreenShot).length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the regions of the base screenshot that are cropped out in {@link #ATTACHMENTS_REGIONS}
+     * mode. Each region is the bounding box of a bug grown by the crop margin and clamped to the
+     * screenshot, overlapping regions are merged so that no pixel is encoded twice.
+     *
+     * @return      the crop regions in screenshot coordinates
+     */
+    public List<Rect> getCropRegions(){
+        if(cropRegions == null && !hasScreenshot()){
+            cropRegions = new ArrayList<>();
+        }else if(cropRegions == null){
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(baseScreenShot, opts);
+            cropRegions = Utils.planCrops(bugs, cropMargin, opts.outWidth, opts.outHeight);
+        }
+        return cropRegions;
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Generate the data needed to send this report to an
+     * API webserver service. Nothing is staged on disk, the attachments are
+     * streamed from the captured screenshots as they are sent.
+     *
+     * @param ctx       the application context
+     */
+    public void generateAPIReport(final Context ctx, final OnAPIReportGeneratedListener listener){
+
+        // Generate a title
+        title = generateTitle();
+
+        // Make sure the screenshots are still there, they are streamed from where they were captured
+        if(hasScreenshot() && (!new File(baseScreenShot).exists() || (!isVectorShade() && !new File(shadeScreenShot).exists()))){
+            listener.onFailure();
+            return;
         }
 
-        listener.onFailure();
+        // Return the result, the metadata is streamed by the listener via writeMetadata()
+        listener.onGenerated(getAttachments());
     }
 
     /**
-     * Generate the bug report into a temp zip file
-     * on the disk to be used to upload to a server or
-     * to storage dump
+     * Generate the bug report into a temp zip file in the
+     * app's private cache to be used to upload to a server or
+     * to storage dump. To share the report with other apps
+     * use {@link com.ftinc.flytrap.ReportProvider} instead.
      *
      * @param ctx       the application context
      * @param listener  the listener callback
@@ -155,132 +416,263 @@ public class Report {
         /*
          * Generate the report into a compressed archive to be sent to the developer
          */
-        new AsyncTask<Void, Void, File>(){
+        Runnable task = new Runnable(){
             @Override
-            protected File doInBackground(Void... params) {
+            public void run() {
+                final File zipFile = compress(ctx);
+                Workers.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(zipFile != null){
+                            listener.onGenerated(zipFile);
+                        }else{
+                            listener.onFailure();
+                        }
+                    }
+                });
+            }
+        };
 
-                // Generate a title
-                String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-                title = String.format("TRAP_REPORT_%s", timestamp);
+        try {
+            Workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(Report.class.getName(), "Unable to generate the compressed report, FlyTrap is saturated", e);
+            listener.onFailure();
+        }
+    }
 
-                // Serialize metadata into JSON
-                JSONObject meta = new JSONObject();
-                FileWriter writer = null;
-                try {
-                    meta.put("title", title);
-                    meta.put("timestamp", timestamp);
+    /**
+     * Write the report into a zip file in the cache
+     *
+     * @return      the zip file, or null if it couldn't be written
+     */
+    private File compress(Context ctx){
 
-                    // Insert all the bugs
-                    JSONArray bugData = new JSONArray();
-                    for(Bug bug: bugs){
-                        bugData.put(bug.toJSON());
-                    }
-                    meta.put("bugs", bugData);
-
-                    // Create the new item directory
-                    File reportDir = new File(ctx.getExternalCacheDir(), title);
-                    reportDir.mkdir();
-
-                    // Write the meta json to the dir
-                    File metaFile = new File(reportDir, "metadata.json");
-                    writer = new FileWriter(metaFile);
-                    writer.write(meta.toString());
-                    writer.close();
-                    writer = null;
-
-                    // Now copy over the saved screenshots from
-                    File baseScreen = new File(baseScreenShot);
-                    File shadeScreen = new File(shadeScreenShot);
-
-                    File baseOutput = new File(reportDir, baseScreen.getName());
-                    File shadeOutput = new File(reportDir, shadeScreen.getName());
-
-                    boolean cpResult1 = copy(baseScreen, baseOutput);
-                    boolean cpResult2 = copy(shadeScreen, shadeOutput);
-
-                    if(cpResult1 && cpResult2){
-                        // All file and data are now in the report directory, now we must compress the directory into a zip file
-                        File output = new File(ctx.getExternalCacheDir(), title.concat(".zip"));
-                        if(Utils.compress(reportDir, output)){
-                            return output;
-                        }
-                    }
+        // Generate a title
+        title = generateTitle();
 
-                } catch (JSONException e) {
-                    e.printStackTrace();
+        // Stream the metadata and screenshots straight into the archive
+        File output = ArtifactStore.get(ctx).getFile(title.concat(".zip"));
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(output));
+            writeCompressedReport(out);
+            out.close();
+            out = null;
+            return output;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally{
+            if(out != null){
+                try {
+                    out.close();
                 } catch (IOException e) {
                     e.printStackTrace();
-                } finally{
-                    if(writer != null){
-                        try {
-                            writer.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
                 }
-                return null;
             }
+        }
 
-            @Override
-            protected void onPostExecute(File zipFile) {
-                if(zipFile != null){
-                    listener.onGenerated(zipFile);
-                }else{
-                    listener.onFailure();
-                }
-            }
-        }.execute();
+        output.delete();
+        return null;
     }
 
     /**
-     * Copy files from one source to another
+     * Stream the JSON metadata of this report, i.e. the title, timestamp and all of its bugs,
+     * into the supplied writer. The writer is flushed but not closed so that it can be
+     * backed by a zip entry or a request body.
      *
-     * @param input     the input source file
-     * @param output    the destination file
-     * @return          true if operation was successful
+     * @param out       the writer to stream the metadata into
      *
-     * @throws IOException
+     * @throws IOException  error writing the metadata
      */
-    private static boolean copy(File input, File output) throws IOException {
+    public void writeMetadata(Writer out) throws IOException {
+        if(title == null) title = generateTitle();
+
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("title").value(title);
+        writer.name("timestamp").value(formatTimestamp());
+        writer.name("width").value(width);
+        writer.name("height").value(height);
+        writer.name("shade").value(isVectorShade() ? "vector" : "image");
+
+        // Record where the crops were taken from so that they can be placed back on the thumbnail
+        if(!hasScreenshot()){
+            writer.name("attachments").value("none");
+        }else if(attachmentMode == ATTACHMENTS_REGIONS){
+            writer.name("attachments").value("regions");
+            writer.name("thumbnail_sample_size").value(THUMBNAIL_SAMPLE_SIZE);
+            writer.name("crops").beginArray();
+            List<Rect> regions = getCropRegions();
+            for(int i=0; i<regions.size(); i++){
+                Rect region = regions.get(i);
+                writer.beginObject()
+                        .name("name").value("crop_" + i + getImageExtension())
+                        .name("left").value(region.left)
+                        .name("top").value(region.top)
+                        .name("right").value(region.right)
+                        .name("bottom").value(region.bottom)
+                        .endObject();
+            }
+            writer.endArray();
+        }else{
+            writer.name("attachments").value("full");
+        }
 
-        FileInputStream fis = null;
-        FileOutputStream fos = null;
-        try {
-            fis = new FileInputStream(input);
-            fos = new FileOutputStream(output);
+        // Record how the screenshots were adapted to the upload throughput
+        if(qualityTier != null){
+            writer.name("quality").beginObject()
+                    .name("tier").value(qualityTier.name)
+                    .name("sample_size").value(qualityTier.sampleSize)
+                    .name("format").value(qualityTier.getFormat())
+                    .endObject();
+        }
 
-            byte[] buffer = new byte[256];
+        // Insert all the bugs
+        writer.name("bugs").beginArray();
+        for(Bug bug: bugs){
+            bug.writeJson(writer);
+        }
+        writer.endArray();
+
+        // Insert the sections, each one under its own name
+        if(!sections.isEmpty()){
+            writer.name("sections").beginObject();
+            for(Section section: sections){
+                writer.name(section.getName());
+                section.writeJson(writer);
+            }
+            writer.endObject();
+        }
+
+        writer.endObject();
+        writer.flush();
+    }
 
-            int count;
-            while ((count = fis.read(buffer)) > 0) {
-                fos.write(buffer, 0, count);
+    /**
+     * Write the metadata of this report in the compact {@link BinaryMetadata} encoding
+     * into the supplied stream. The stream is flushed but not closed.
+     *
+     * @param out       the stream to write the metadata into
+     *
+     * @throws IOException  error writing the metadata
+     */
+    public void writeBinaryMetadata(OutputStream out) throws IOException {
+        if(title == null) title = generateTitle();
+
+        BinaryMetadata meta = new BinaryMetadata();
+        meta.title = title;
+        meta.timestamp = timestamp;
+        meta.width = width;
+        meta.height = height;
+        meta.flags = isVectorShade() ? BinaryMetadata.FLAG_VECTOR_SHADE : 0;
+        if(hasScreenshot() && attachmentMode == ATTACHMENTS_REGIONS){
+            meta.thumbnailSampleSize = THUMBNAIL_SAMPLE_SIZE;
+            for(Rect region: getCropRegions()){
+                meta.addCrop(region.left, region.top, region.right, region.bottom);
             }
+        }
+        if(qualityTier != null){
+            meta.quality = qualityTier.name;
+            meta.sampleSize = qualityTier.sampleSize;
+        }
+        for(Bug bug: bugs){
+            meta.addBug(bug.getId(), bug.getCenterX(), bug.getCenterY(), bug.getRadius(),
+                    bug.getAccentColor(), bug.getComment());
+        }
+        for(Section section: sections){
+            StringWriter json = new StringWriter();
+            JsonWriter writer = new JsonWriter(json);
+            section.writeJson(writer);
+            writer.flush();
+            meta.addSection(section.getName(), json.toString());
+        }
+        meta.encode(out);
+    }
 
-            fis.close();
-            fis = null;
+    /**
+     * Stream this report as a zip archive into the supplied output stream. The archive
+     * contains the 'metadata.json' entry followed by all of the report's attachments. The
+     * stream is finished, but not closed.
+     *
+     * @param out       the output stream to write the archive to
+     *
+     * @throws IOException  error writing the archive
+     */
+    public void writeCompressedReport(OutputStream out) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(out);
+
+        // Write the meta json as the first entry
+        zos.putNextEntry(new ZipEntry("metadata.json"));
+        Writer writer = new OutputStreamWriter(zos, "UTF-8");
+        writeMetadata(writer);
+        zos.closeEntry();
+
+        // Now write all of the attachments
+        for(Attachment attachment: getAttachments()){
+            zos.putNextEntry(new ZipEntry(attachment.getFileName()));
+            attachment.writeTo(zos);
+            zos.closeEntry();
+        }
 
-            fos.close();
-            fos = null;
+        zos.finish();
+    }
 
-            return true;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fis != null) {
-                fis.close();
-            }
+    /**
+     * Render the shade of this report from its bug geometry and dimensions. This is
+     * how the shade is reproduced for reports generated in vector shade mode.
+     *
+     * @return      the rendered shade, or null if the report has no dimensions
+     */
+    public Bitmap renderShade(){
+        return renderShade(width, height);
+    }
 
-            if(fos != null){
-                fos.close();
-            }
+    /**
+     * Render the shade of this report from its bug geometry, scaled to the given size
+     *
+     * @param width     the width of the rendered shade
+     * @param height    the height of the rendered shade
+     * @return          the rendered shade, or null if either size is empty. Headless and
+     *                  crash reports never get their dimensions set.
+     */
+    public Bitmap renderShade(int width, int height){
+        if(this.width <= 0 || this.height <= 0 || width <= 0 || height <= 0) return null;
+
+        float scaleX = (float) width / this.width;
+        float scaleY = (float) height / this.height;
+
+        float[] geometry = new float[bugs.size() * 3];
+        int[] colors = new int[bugs.size()];
+        for(int i=0; i<colors.length; i++){
+            Bug bug = bugs.get(i);
+            geometry[i * 3] = bug.getCenterX() * scaleX;
+            geometry[i * 3 + 1] = bug.getCenterY() * scaleY;
+            geometry[i * 3 + 2] = bug.getRadius() * (scaleX + scaleY) / 2f;
+            colors[i] = bug.getAccentColor();
         }
 
-        return false;
+        int[] pixels = ShadeRenderer.render(width, height, geometry, colors);
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
     }
 
+    /**
+     * Generate the report title from the report timestamp
+     *
+     * @return      the report title, i.e. TRAP_REPORT_yyyyMMdd_HHmmss
+     */
+    private String generateTitle(){
+        return "TRAP_REPORT_".concat(formatTimestamp());
+    }
+
+    /**
+     * Format the report timestamp the way it is presented in the title and metadata
+     *
+     * @return      the formatted timestamp
+     */
+    private String formatTimestamp(){
+        return new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date(timestamp));
+    }
 
     /************************************************
      *
@@ -337,6 +729,125 @@ public class Report {
             return this;
         }
 
+        /**
+         * Set the dimensions of the view the bugs were placed on
+         *
+         * @param width     the view width
+         * @param height    the view height
+         * @return          self for chaining
+         */
+        public Builder setDimensions(int width, int height){
+            report.width = width;
+            report.height = height;
+            return this;
+        }
+
+        /**
+         * Set how the base screenshot is attached to the report
+         *
+         * @param mode          {@link #ATTACHMENTS_FULL} or {@link #ATTACHMENTS_REGIONS}
+         * @param cropMargin    the margin in pixels added around each bug's bounding box
+         *                      in {@link #ATTACHMENTS_REGIONS} mode
+         * @return              self for chaining
+         */
+        public Builder setAttachmentMode(int mode, int cropMargin){
+            report.attachmentMode = mode;
+            report.cropMargin = cropMargin;
+            return this;
+        }
+
+        /**
+         * Reduce the screenshots to a palette of at most 256 colors and attach them as indexed
+         * PNGs. Screenshots with few enough colors are reduced losslessly.
+         *
+         * @param quantize      true to quantize the screenshots
+         * @param dither        true to dither screenshots that can't be reduced losslessly
+         * @return              self for chaining
+         */
+        public Builder setQuantization(boolean quantize, boolean dither){
+            report.encodeFlags = (quantize ? Attachment.ENCODE_QUANTIZE : 0)
+                    | (quantize && dither ? Attachment.ENCODE_DITHER : 0);
+            return this;
+        }
+
+        /**
+         * Set the conditions the device must meet before the screenshots of the report are
+         * delivered, the metadata is delivered right away
+         *
+         * @param constraints   {@link Delivery#CONSTRAINT_UNMETERED}, {@link Delivery#CONSTRAINT_CHARGING}
+         *                      and {@link Delivery#CONSTRAINT_IDLE}, or 0 to deliver everything right away
+         * @return              self for chaining
+         */
+        public Builder setDeliveryConstraints(int constraints){
+            report.deliveryConstraints = constraints;
+            return this;
+        }
+
+        /**
+         * Add a section of diagnostics to the report, it is written into the metadata
+         * under its name
+         *
+         * @param section       the section to add
+         * @return              self for chaining
+         */
+        public Builder addSection(Section section){
+            report.sections.add(section);
+            return this;
+        }
+
+        /**
+         * Add an attachment that is delivered along with the screenshots, i.e. a log file
+         *
+         * @param attachment    the attachment, its part and file names must be unique
+         * @return              self for chaining
+         */
+        public Builder addAttachment(Attachment attachment){
+            report.extraAttachments.add(attachment);
+            return this;
+        }
+
+        /**
+         * Add the sections of every registered {@link Contributor}, that contributes one, and the
+         * attachments of every {@link AttachmentContributor}. Sections that were added already
+         * take precedence over contributed ones of the same name.
+         *
+         * @return              self for chaining
+         */
+        public Builder addContributions(){
+            for(Contributor contributor: sContributors){
+                try {
+                    Section section = contributor.getSection();
+                    if(section != null && !hasSection(section.getName())) report.sections.add(section);
+
+                    if(contributor instanceof AttachmentContributor){
+                        Attachment attachment = ((AttachmentContributor) contributor).getAttachment();
+                        if(attachment != null) report.extraAttachments.add(attachment);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(Report.class.getName(), "Section contributor failed", e);
+                }
+            }
+            return this;
+        }
+
+        private boolean hasSection(String name){
+            for(Section section: report.sections){
+                if(section.getName().equals(name)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Set the time the report was created at, by default the time it was built
+         *
+         * @param timestamp     the time in epoch millis
+         * @return              self for chaining
+         */
+        public Builder setTimestamp(long timestamp){
+            report.timestamp = timestamp;
+            return this;
+        }
+
         /**
          * Build and Return the report
          * @return
@@ -362,8 +873,59 @@ public class Report {
      *
      */
     public static interface OnAPIReportGeneratedListener{
-        public void onGenerated(JSONObject meta, Pair<File, File> screens);
+        public void onGenerated(List<Attachment> attachments);
         public void onFailure();
     }
 
+    /**
+     * A named section of diagnostics attached to a report, i.e. the stack trace of a crash.
+     * Sections are written into the metadata as {"sections": {name: value}}. They are written
+     * whenever the report is delivered, so they should be immutable once added.
+     */
+    public static interface Section{
+
+        /**
+         * Get the name the section is written under, unique within a report
+         */
+        public String getName();
+
+        /**
+         * Write the section as a single JSON value
+         *
+         * @param writer    the writer to write the value to
+         *
+         * @throws IOException  error writing the value
+         */
+        public void writeJson(JsonWriter writer) throws IOException;
+    }
+
+    /**
+     * Contributes a section to every report that is filed, i.e. the recent diagnostics of a
+     * monitor. Register it with {@link Report#addContributor(Contributor)}.
+     */
+    public static interface Contributor{
+
+        /**
+         * Get a snapshot of the section to add to a report being filed, this is called on the
+         * main thread and should be quick
+         *
+         * @return      the section, or null to add none
+         */
+        public Section getSection();
+    }
+
+    /**
+     * A {@link Contributor} that contributes an attachment to every report as well
+     */
+    public static interface AttachmentContributor extends Contributor{
+
+        /**
+         * Get a snapshot of the attachment to add to a report being filed, this is called on the
+         * main thread and should be quick, the attachment is written in the background
+         *
+         * @return      the attachment, or null to add none
+         */
+        public Attachment getAttachment();
+    }
+
 }
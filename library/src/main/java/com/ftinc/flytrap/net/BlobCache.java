@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used set of the content hashes of attachments the server is known to
+ * have. The {@link Outbox} references such attachments by their hash instead of uploading them
+ * again, without asking the server first.
+ */
+class BlobCache {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    static final int DEFAULT_CAPACITY = 128;
+
+    private static final String PREFS = "flytrap_blobs";
+    private static final String KEY_HASHES = "hashes";
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static BlobCache sInstance;
+
+    /**
+     * Get the blob cache of the application
+     *
+     * @param ctx       the context
+     * @return          the cache
+     */
+    static synchronized BlobCache get(Context ctx){
+        if(sInstance == null){
+            sInstance = new BlobCache(ctx.getApplicationContext()
+                    .getSharedPreferences(PREFS, Context.MODE_PRIVATE), DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final SharedPreferences prefs;
+    private final LinkedHashMap<String, Boolean> hashes;
+
+    /**
+     * Constructor
+     *
+     * @param prefs         the preferences to keep the hashes in, or null to keep them in memory only
+     * @param capacity      the max number of hashes to remember
+     */
+    BlobCache(SharedPreferences prefs, final int capacity){
+        this.prefs = prefs;
+        this.hashes = new LinkedHashMap<String, Boolean>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        String saved = prefs != null ? prefs.getString(KEY_HASHES, null) : null;
+        if(saved != null && !saved.isEmpty()){
+            for(String hash: saved.split(",")){
+                hashes.put(hash, Boolean.TRUE);
+            }
+        }
+    }
+
+    /************************************************
+     *
+     * Methods
+     *
+     */
+
+    /**
+     * Return whether the server is known to have a blob, marking it as recently used
+     *
+     * @param hash      the content hash of the blob
+     */
+    synchronized boolean contains(String hash){
+        return hashes.get(hash) != null;
+    }
+
+    /**
+     * Remember blobs the server has
+     *
+     * @param blobs     the content hashes of the blobs, empty hashes are ignored
+     */
+    void addAll(Collection<String> blobs){
+        boolean changed = false;
+        synchronized (this) {
+            for(String hash: blobs){
+                if(hash == null || hash.isEmpty()) continue;
+                changed |= hashes.put(hash, Boolean.TRUE) == null;
+            }
+        }
+        if(changed) save();
+    }
+
+    /**
+     * Forget blobs, i.e. ones the server no longer has
+     *
+     * @param blobs     the content hashes of the blobs
+     */
+    void removeAll(Collection<String> blobs){
+        boolean changed = false;
+        synchronized (this) {
+            for(String hash: blobs){
+                changed |= hashes.remove(hash) != null;
+            }
+        }
+        if(changed) save();
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private void save(){
+        if(prefs == null) return;
+
+        String saved;
+        synchronized (this) {
+            saved = TextUtils.join(",", hashes.keySet());
+        }
+        prefs.edit().putString(KEY_HASHES, saved).apply();
+    }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import android.util.Log;
+
+import com.ftinc.flytrap.model.Attachment;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Uploads attachments in fixed size chunks so that an upload interrupted by a dropped
+ * connection resumes from the last chunk the server acknowledged instead of starting over.
+ *
+ * The protocol is modelled on tus.io:
+ * <pre>
+ *   POST  {url}/uploads      Upload-Length, Upload-Name, Upload-Type
+ *                            -> 201 Created, Location: {upload}
+ *
+ *   PATCH {upload}           Upload-Offset, Upload-Checksum: crc32 {hex}, body: the chunk
+ *                            -> 204 No Content, Upload-Offset: {new offset}
+ *
+ *   HEAD  {upload}           -> 200 OK, Upload-Offset: {acknowledged offset}
+ * </pre>
+ *
+ * After a failed chunk the uploader asks the server for the acknowledged offset with a HEAD
+ * request and resumes from there. A chunk whose checksum doesn't match is rejected by the server
+ * with 460 and is simply sent again. A chunk the server accepts without advancing the offset
+ * counts as a failed one, so a misbehaving server can't keep the uploader sending forever.
+ *
+ * The location and the acknowledged offset of an upload are reported to a {@link Listener} as
+ * the upload progresses. Passing them back in resumes the upload in a later attempt, even after
+ * the process was restarted, as long as the attachment is backed by the same file.
+ */
+public class ChunkedUploader {
+    private static final String TAG = ChunkedUploader.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final MediaType OFFSET_OCTET_STREAM = MediaType.parse("application/offset+octet-stream");
+
+    public static final String HEADER_LENGTH = "Upload-Length";
+    public static final String HEADER_NAME = "Upload-Name";
+    public static final String HEADER_TYPE = "Upload-Type";
+    public static final String HEADER_OFFSET = "Upload-Offset";
+    public static final String HEADER_CHECKSUM = "Upload-Checksum";
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF = 1000L;
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final HttpUrl endpoint;
+    private final File spoolDir;
+    private final int chunkSize;
+    private long backoff = BASE_BACKOFF;
+
+    /**
+     * Constructor
+     *
+     * @param url           the api endpoint url, uploads are created at {url}/uploads
+     * @param spoolDir      directory to spool encoded attachments to so that their chunks can be re-read
+     * @param chunkSize     the size of each chunk in bytes
+     */
+    public ChunkedUploader(String url, File spoolDir, int chunkSize){
+        this.endpoint = HttpUrl.parse(url);
+        this.spoolDir = spoolDir;
+        this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * Set how long to wait before resuming after a failed chunk, the wait doubles with every
+     * further failure in a row
+     *
+     * @param backoff       the wait after the first failure in milliseconds
+     * @return              self for chaining
+     */
+    public ChunkedUploader setBackoff(long backoff){
+        this.backoff = backoff;
+        return this;
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Upload an attachment in chunks
+     *
+     * @param attachment    the attachment to upload
+     * @return              the url of the completed upload on the server
+     *
+     * @throws IOException  if the upload failed after all retries
+     */
+    public String upload(Attachment attachment) throws IOException {
+        return upload(attachment, null, 0, null);
+    }
+
+    /**
+     * Upload an attachment in chunks, resuming an upload of an earlier attempt
+     *
+     * @param attachment    the attachment to upload
+     * @param location      the location of the earlier upload of this attachment, or null to start a new one
+     * @param offset        the offset the server last acknowledged for the earlier upload, used if the
+     *                      server can't be asked for it
+     * @param listener      the listener to report the progress of the upload to, may be null
+     * @return              the url of the completed upload on the server
+     *
+     * @throws IOException  if the upload failed after all retries
+     */
+    public String upload(Attachment attachment, String location, long offset, Listener listener) throws IOException {
+        File spool = null;
+        File file = attachment.getFile();
+
+        // Only a file backed attachment is guaranteed to have the same content in a later attempt
+        if(file == null) location = null;
+
+        // Encoded attachments don't know their length, so spool them once to be able to seek
+        if(file == null){
+            spool = File.createTempFile("UPLOAD_", ".tmp", spoolDir);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(spool));
+            try {
+                attachment.writeTo(out);
+            } finally {
+                out.close();
+            }
+            file = spool;
+        }
+
+        try {
+            long length = file.length();
+            HttpUrl url = location != null ? HttpUrl.parse(location) : null;
+            if(url != null){
+                offset = queryOffset(url, offset);
+                if(offset < 0 || offset > length) url = null;
+            }
+
+            if(url == null){
+                url = create(attachment, length);
+                offset = 0;
+                if(listener != null) listener.onProgress(url.toString(), 0);
+            }
+
+            send(url, file, length, offset, listener);
+            return url.toString();
+        } finally {
+            if(spool != null) spool.delete();
+        }
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Create the upload on the server
+     */
+    private HttpUrl create(Attachment attachment, long length) throws IOException {
+        HttpUrl uploads = endpoint.newBuilder()
+                .addPathSegment("uploads")
+                .build();
+
+        Request request = new Request.Builder()
+                .url(uploads)
+                .header(HEADER_LENGTH, String.valueOf(length))
+                .header(HEADER_NAME, attachment.getPartName())
+                .header(HEADER_TYPE, attachment.getMimeType())
+                .post(RequestBody.create(null, new byte[0]))
+                .build();
+
+        Response response = Transport.getClient().newCall(request).execute();
+        try {
+            String location = response.header("Location");
+            if(response.code() != 201 || location == null){
+                throw new IOException("Unable to create upload, HTTP " + response.code());
+            }
+
+            HttpUrl url = uploads.resolve(location);
+            if(url == null) throw new IOException("Invalid upload location: " + location);
+            return url;
+        } finally {
+            response.body().close();
+        }
+    }
+
+    /**
+     * Send the file chunk by chunk from an offset, resuming from the acknowledged offset after a failure
+     */
+    private void send(HttpUrl location, File file, long length, long offset, Listener listener) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        byte[] chunk = new byte[(int) Math.min(chunkSize, Math.max(length, 1))];
+        CRC32 crc = new CRC32();
+
+        try {
+            int failures = 0;
+            while(offset < length){
+                int count = (int) Math.min(chunk.length, length - offset);
+                input.seek(offset);
+                input.readFully(chunk, 0, count);
+
+                crc.reset();
+                crc.update(chunk, 0, count);
+
+                try {
+                    long acknowledged = patch(location, offset, chunk, count, crc.getValue());
+                    if(acknowledged <= offset || acknowledged > length){
+                        throw new IOException("Chunk at " + offset + " accepted without advancing the offset, server reported " + acknowledged);
+                    }
+
+                    offset = acknowledged;
+                    failures = 0;
+                    if(listener != null) listener.onProgress(location.toString(), offset);
+                } catch (IOException e) {
+                    if(++failures >= MAX_ATTEMPTS) throw e;
+                    Log.w(TAG, "Chunk at " + offset + " failed, resuming (" + failures + "/" + MAX_ATTEMPTS + ")", e);
+                    backoff(failures);
+                    long resumed = resumeOffset(location, offset);
+                    if(resumed >= 0 && resumed <= length) offset = resumed;
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Send a single chunk
+     *
+     * @return      the offset acknowledged by the server
+     */
+    private long patch(HttpUrl location, long offset, byte[] chunk, int count, long checksum) throws IOException {
+        Request request = new Request.Builder()
+                .url(location)
+                .header(HEADER_OFFSET, String.valueOf(offset))
+                .header(HEADER_CHECKSUM, "crc32 " + Long.toHexString(checksum))
+                .patch(RequestBody.create(OFFSET_OCTET_STREAM, chunk, 0, count))
+                .build();
+
+        Response response = Transport.getClient().newCall(request).execute();
+        try {
+            if(!response.isSuccessful()){
+                throw new IOException("Chunk at " + offset + " rejected, HTTP " + response.code());
+            }
+            return parseOffset(response, offset + count);
+        } finally {
+            response.body().close();
+        }
+    }
+
+    /**
+     * Ask the server for the offset it has acknowledged
+     *
+     * @param fallback      the offset to use if the server can't be reached
+     */
+    private long resumeOffset(HttpUrl location, long fallback) {
+        Request request = new Request.Builder()
+                .url(location)
+                .head()
+                .build();
+
+        try {
+            Response response = Transport.getClient().newCall(request).execute();
+            try {
+                return response.isSuccessful() ? parseOffset(response, fallback) : fallback;
+            } finally {
+                response.body().close();
+            }
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Ask the server for the offset it has acknowledged for an upload of an earlier attempt
+     *
+     * @param fallback      the offset to use if the server can't be reached
+     * @return              the acknowledged offset, or -1 if the server no longer knows the upload
+     */
+    private long queryOffset(HttpUrl location, long fallback) {
+        Request request = new Request.Builder()
+                .url(location)
+                .head()
+                .build();
+
+        try {
+            Response response = Transport.getClient().newCall(request).execute();
+            try {
+                if(response.isSuccessful()) return parseOffset(response, -1);
+                return response.code() == 404 || response.code() == 410 ? -1 : fallback;
+            } finally {
+                response.body().close();
+            }
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    private static long parseOffset(Response response, long fallback){
+        String offset = response.header(HEADER_OFFSET);
+        if(offset == null) return fallback;
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private void backoff(int failures){
+        try {
+            Thread.sleep(backoff << (failures - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * Listener for the progress of an upload
+     */
+    public interface Listener {
+
+        /**
+         * Called when an upload was created and every time the server acknowledged a chunk of it
+         *
+         * @param location      the location of the upload on the server
+         * @param offset        the offset the server acknowledged
+         */
+        void onProgress(String location, long offset);
+    }
+
+}
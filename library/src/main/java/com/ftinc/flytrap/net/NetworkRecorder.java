@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import android.util.JsonWriter;
+
+import com.ftinc.flytrap.model.Report;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Records the recent network activity of the host app, so that the backend side of a bug is
+ * in its report. Add the recorder to the app's client with {@link #attach(OkHttpClient)}, the
+ * most recent calls are kept in a bounded ring and attached to every report filed as the HAR
+ * like 'network' section, the recorder is a {@link Report.Contributor}.
+ *
+ * Every call records its method, url, status, headers, timings and sizes. Recording a call
+ * only allocates its entry, the headers are kept as the immutable {@link Headers} of the call
+ * and are only redacted and formatted when a report is written. Bodies aren't buffered unless
+ * a body limit is set, see {@link #setBodyLimit(int)}, and then only textual bodies are kept,
+ * truncated to the limit.
+ *
+ * Headers and query parameters are redacted by a rule set that is compiled whenever a rule is
+ * added, by default the 'Authorization', 'Proxy-Authorization', 'Cookie' and 'Set-Cookie'
+ * headers are redacted.
+ */
+public class NetworkRecorder implements Interceptor, Report.Contributor {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String SECTION_NAME = "network";
+    public static final String REDACTED = "[redacted]";
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * The largest request body that is buffered to capture its text, larger bodies aren't
+     */
+    private static final long MAX_BUFFERED_REQUEST = 256 * 1024;
+
+    private static final String HEADER_SENT_MILLIS = "OkHttp-Sent-Millis";
+    private static final String HEADER_RECEIVED_MILLIS = "OkHttp-Received-Millis";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final int mask;
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile int bodyLimit = 0;
+    private volatile Rules rules = Rules.DEFAULT;
+
+    /**
+     * Constructor, keeps the default number of calls
+     */
+    public NetworkRecorder(){
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries    the number of calls kept, rounded up to a power of two
+     */
+    public NetworkRecorder(int maxEntries){
+        int size = 1;
+        while(size < maxEntries) size <<= 1;
+        mask = size - 1;
+        entries = new AtomicReferenceArray<>(size);
+    }
+
+    /************************************************
+     *
+     * Configuration Methods
+     *
+     */
+
+    /**
+     * Set the number of bytes of the textual request and response bodies that are kept
+     *
+     * @param bodyLimit     the limit in bytes, or 0 to not record bodies
+     * @return              self for chaining
+     */
+    public NetworkRecorder setBodyLimit(int bodyLimit){
+        this.bodyLimit = Math.max(0, bodyLimit);
+        return this;
+    }
+
+    /**
+     * Redact the values of a header
+     *
+     * @param name      the name of the header, case insensitive
+     * @return          self for chaining
+     */
+    public synchronized NetworkRecorder redactHeader(String name){
+        rules = rules.withHeader(name);
+        return this;
+    }
+
+    /**
+     * Redact the values of every header whose name matches the expression
+     *
+     * @param regex     the expression the whole name is matched against, case insensitive
+     * @return          self for chaining
+     */
+    public synchronized NetworkRecorder redactHeaders(String regex){
+        rules = rules.withHeaderPattern(regex);
+        return this;
+    }
+
+    /**
+     * Redact the values of a query parameter in the recorded urls
+     *
+     * @param name      the name of the parameter
+     * @return          self for chaining
+     */
+    public synchronized NetworkRecorder redactQueryParameter(String name){
+        rules = rules.withQueryParameter(name);
+        return this;
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Add the recorder to the application interceptors of a client, the recorder is added to
+     * the report contributors
+     *
+     * @param client    the client to record
+     * @return          self for chaining
+     */
+    public NetworkRecorder attach(OkHttpClient client){
+        if(!client.interceptors().contains(this)) client.interceptors().add(this);
+        Report.addContributor(this);
+        return this;
+    }
+
+    /**
+     * Remove the recorder from a client and from the report contributors, the recorded calls
+     * are kept
+     *
+     * @param client    the client to stop recording
+     */
+    public void detach(OkHttpClient client){
+        client.interceptors().remove(this);
+        Report.removeContributor(this);
+    }
+
+    /**
+     * Get the number of calls that were recorded since the recorder was created
+     */
+    public long getRecordedCount(){
+        return head.get();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        int limit = bodyLimit;
+        Entry entry = new Entry(request, System.currentTimeMillis());
+        if(limit > 0) entry.requestText = captureRequest(request.body(), limit);
+
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            entry.time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            entry.error = e.toString();
+            record(entry);
+            throw e;
+        }
+        entry.time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        entry.setResponse(response);
+
+        if(limit > 0){
+            long receiving = System.nanoTime();
+            entry.responseText = captureResponse(response.body(), limit);
+            entry.receive = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - receiving);
+        }
+
+        record(entry);
+        return response;
+    }
+
+    @Override
+    public Report.Section getSection() {
+        List<Entry> recorded = snapshot();
+        if(recorded.isEmpty()) return null;
+        return new NetworkSection(recorded, rules);
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Get the recorded calls that are still in the ring, oldest first
+     */
+    List<Entry> snapshot(){
+        long end = head.get();
+        long start = Math.max(0, end - (mask + 1));
+
+        List<Entry> recorded = new ArrayList<>();
+        for(long seq=start; seq<end; seq++){
+            Entry entry = entries.get((int) (seq & mask));
+            if(entry != null && entry.seq == seq) recorded.add(entry);
+        }
+        return recorded;
+    }
+
+    Rules getRules(){
+        return rules;
+    }
+
+    private void record(Entry entry){
+        entry.seq = head.getAndIncrement();
+        entries.set((int) (entry.seq & mask), entry);
+    }
+
+    private static String captureRequest(RequestBody body, int limit) throws IOException {
+        if(body == null || !isText(body.contentType())) return null;
+
+        long length = body.contentLength();
+        if(length < 0 || length > MAX_BUFFERED_REQUEST) return null;
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return readText(buffer, limit, body.contentType());
+    }
+
+    /**
+     * Capture the start of a response body, it is read ahead into the body's own buffer so it
+     * is left intact for the caller
+     */
+    private static String captureResponse(ResponseBody body, int limit) throws IOException {
+        if(body == null || !isText(body.contentType())) return null;
+
+        BufferedSource source = body.source();
+        source.request(limit);
+        Buffer copy = new Buffer();
+        source.buffer().copyTo(copy, 0, Math.min(limit, source.buffer().size()));
+        return readText(copy, limit, body.contentType());
+    }
+
+    private static String readText(Buffer buffer, int limit, MediaType type){
+        long count = Math.min(limit, buffer.size());
+        try {
+            return buffer.readString(count, type.charset(UTF8));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if a body is worth keeping as text, streams that never end are left out
+     */
+    private static boolean isText(MediaType type){
+        if(type == null) return false;
+        String subtype = type.subtype().toLowerCase(Locale.US);
+        if(subtype.equals("event-stream")) return false;
+
+        return type.type().equalsIgnoreCase("text")
+                || subtype.contains("json")
+                || subtype.contains("xml")
+                || subtype.contains("javascript")
+                || subtype.equals("x-www-form-urlencoded");
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * A recorded call, it is immutable once recorded. Only the parts of the request and the
+     * response that are written are kept, not their bodies.
+     */
+    static class Entry {
+
+        final long startedAt;
+        final String method;
+        final HttpUrl url;
+        final Headers requestHeaders;
+        final long requestSize;
+        final MediaType requestType;
+
+        long seq;
+        long time;
+        long receive;
+        String error;
+        String requestText;
+
+        int status;
+        String statusText;
+        String protocol = "unknown";
+        Headers responseHeaders;
+        long responseSize;
+        MediaType responseType;
+        String responseText;
+
+        Entry(Request request, long startedAt) throws IOException {
+            this.startedAt = startedAt;
+            method = request.method();
+            url = request.httpUrl();
+            requestHeaders = request.headers();
+
+            RequestBody body = request.body();
+            requestSize = body != null ? body.contentLength() : 0;
+            requestType = body != null ? body.contentType() : null;
+        }
+
+        void setResponse(Response response) throws IOException {
+            status = response.code();
+            statusText = response.message();
+            protocol = response.protocol().toString();
+            responseHeaders = response.headers();
+
+            ResponseBody body = response.body();
+            responseSize = body != null ? body.contentLength() : 0;
+            responseType = body != null ? body.contentType() : null;
+        }
+    }
+
+    /**
+     * The compiled redaction rules, a new set is compiled with every rule that is added
+     */
+    static class Rules {
+
+        static final Rules DEFAULT = new Rules(null, Collections.<String>emptySet(), null)
+                .withHeader("Authorization")
+                .withHeader("Proxy-Authorization")
+                .withHeader("Cookie")
+                .withHeader("Set-Cookie");
+
+        final Set<String> headers;
+        final Set<String> queryParameters;
+        final String headerRegex;
+        final Pattern headerPattern;
+
+        Rules(Set<String> headers, Set<String> queryParameters, String headerRegex){
+            this.headers = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            if(headers != null) this.headers.addAll(headers);
+            this.queryParameters = queryParameters;
+            this.headerRegex = headerRegex;
+            this.headerPattern = headerRegex != null ? Pattern.compile(headerRegex, Pattern.CASE_INSENSITIVE) : null;
+        }
+
+        Rules withHeader(String name){
+            Rules rules = new Rules(headers, queryParameters, headerRegex);
+            rules.headers.add(name);
+            return rules;
+        }
+
+        Rules withHeaderPattern(String regex){
+            String combined = headerRegex != null ? headerRegex + "|(?:" + regex + ")" : "(?:" + regex + ")";
+            return new Rules(headers, queryParameters, combined);
+        }
+
+        Rules withQueryParameter(String name){
+            Set<String> names = new TreeSet<>(queryParameters);
+            names.add(name);
+            return new Rules(headers, names, headerRegex);
+        }
+
+        boolean isRedactedHeader(String name){
+            return headers.contains(name) || (headerPattern != null && headerPattern.matcher(name).matches());
+        }
+
+        String redactUrl(HttpUrl url){
+            if(queryParameters.isEmpty() || url.encodedQuery() == null) return url.toString();
+
+            HttpUrl.Builder builder = null;
+            for(String name: url.queryParameterNames()){
+                if(queryParameters.contains(name)){
+                    if(builder == null) builder = url.newBuilder();
+                    builder.setQueryParameter(name, REDACTED);
+                }
+            }
+            return builder != null ? builder.build().toString() : url.toString();
+        }
+    }
+
+    /**
+     * The 'network' section, the recorded calls oldest first in the layout of a HAR log
+     */
+    private static class NetworkSection implements Report.Section {
+
+        final List<Entry> entries;
+        final Rules rules;
+
+        NetworkSection(List<Entry> entries, Rules rules){
+            this.entries = entries;
+            this.rules = rules;
+        }
+
+        @Override
+        public String getName() {
+            return SECTION_NAME;
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            writer.beginObject();
+            writer.name("version").value("1.2");
+            writer.name("creator").beginObject()
+                    .name("name").value("FlyTrap")
+                    .endObject();
+
+            writer.name("entries").beginArray();
+            for(Entry entry: entries){
+                writeEntry(writer, entry, format);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+
+        private void writeEntry(JsonWriter writer, Entry entry, SimpleDateFormat format) throws IOException {
+            writer.beginObject();
+            writer.name("startedDateTime").value(format.format(new Date(entry.startedAt)));
+            writer.name("time").value(entry.time + entry.receive);
+
+            // Request
+            writer.name("request").beginObject();
+            writer.name("method").value(entry.method);
+            writer.name("url").value(rules.redactUrl(entry.url));
+            writer.name("httpVersion").value(entry.protocol);
+            writeHeaders(writer, entry.requestHeaders);
+            writer.name("bodySize").value(entry.requestSize);
+            if(entry.requestText != null){
+                writer.name("postData").beginObject()
+                        .name("mimeType").value(String.valueOf(entry.requestType))
+                        .name("text").value(entry.requestText)
+                        .endObject();
+            }
+            writer.endObject();
+
+            // Response
+            writer.name("response").beginObject();
+            if(entry.responseHeaders != null){
+                writer.name("status").value(entry.status);
+                writer.name("statusText").value(entry.statusText);
+                writer.name("httpVersion").value(entry.protocol);
+                writeHeaders(writer, entry.responseHeaders);
+                writer.name("bodySize").value(entry.responseSize);
+                writer.name("content").beginObject();
+                writer.name("size").value(entry.responseSize);
+                writer.name("mimeType").value(entry.responseType != null ? entry.responseType.toString() : "");
+                if(entry.responseText != null) writer.name("text").value(entry.responseText);
+                writer.endObject();
+            }else{
+                writer.name("status").value(0);
+                writer.name("statusText").value("");
+                writer.name("_error").value(entry.error);
+            }
+            writer.endObject();
+
+            // Timings, split at the moments OkHttp sent the request and received the response
+            long wait = entry.time;
+            long blocked = -1;
+            if(entry.responseHeaders != null){
+                long sent = parseMillis(entry.responseHeaders.get(HEADER_SENT_MILLIS));
+                long received = parseMillis(entry.responseHeaders.get(HEADER_RECEIVED_MILLIS));
+                if(sent >= entry.startedAt && received >= sent){
+                    blocked = sent - entry.startedAt;
+                    wait = received - sent;
+                }
+            }
+            writer.name("timings").beginObject()
+                    .name("blocked").value(blocked)
+                    .name("send").value(0)
+                    .name("wait").value(wait)
+                    .name("receive").value(entry.receive)
+                    .endObject();
+
+            writer.endObject();
+        }
+
+        private void writeHeaders(JsonWriter writer, Headers headers) throws IOException {
+            writer.name("headers").beginArray();
+            for(int i=0; i<headers.size(); i++){
+                String name = headers.name(i);
+                writer.beginObject()
+                        .name("name").value(name)
+                        .name("value").value(rules.isRedactedHeader(name) ? REDACTED : headers.value(i))
+                        .endObject();
+            }
+            writer.endArray();
+        }
+
+        private static long parseMillis(String value){
+            if(value == null) return -1;
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+}
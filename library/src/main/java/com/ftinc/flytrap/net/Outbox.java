@@ -0,0 +1,1354 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.Log;
+
+import com.ftinc.flytrap.model.APIDelivery;
+import com.ftinc.flytrap.model.Attachment;
+import com.ftinc.flytrap.model.Delivery;
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.MultipartBuilder;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okio.BufferedSink;
+
+/**
+ * A durable, on-disk queue of report uploads. A report is spooled into the outbox and recorded
+ * in the {@link OutboxJournal} before the tester is let go, and a background flusher delivers it
+ * whenever the network allows. Reports survive failed requests as well as the app being killed
+ * mid-upload.
+ *
+ * <ul>
+ *     <li>Each entry is only acknowledged in the journal once the server answered with a 2xx, an
+ *     entry whose request was interrupted is sent again. Every request carries the entry id in
+ *     the {@link #HEADER_IDEMPOTENCY_KEY} header so that the server can discard repeats.</li>
+ *     <li>Failed flushes are retried with exponential backoff and full jitter. While entries are
+ *     pending {@link OutboxReceiver} is enabled and resumes flushing, after a random delay, once
+ *     connectivity returns, so that a network coming back doesn't fire every queued upload of
+ *     every tester at once.</li>
+ *     <li>Reports filed within the batch window of each other are coalesced into a single
+ *     'multipart/mixed' request with one part per report, which the server answers with the
+ *     status of every report, see {@link #send(List)}.</li>
+ *     <li>Entries may carry delivery constraints, i.e. an unmetered network or a charging device.
+ *     Such entries are held back until the device meets them, without blocking the other entries,
+ *     and the outbox is woken up by the job scheduler, or by {@link OutboxReceiver} on devices
+ *     older than Lollipop, once it does.</li>
+ *     <li>An entry can be the follow-up of another, i.e. the full resolution screenshots of a
+ *     report whose metadata went first. A follow-up waits for its parent to be delivered and
+ *     references the report id the server assigned the parent. It is retried on its own, and is
+ *     dropped along with its parent.</li>
+ *     <li>Parts backed by a file of the {@link ArtifactStore}, i.e. the captured screenshots, aren't
+ *     copied into the outbox. The entry references the file and pins it in the store, so that it
+ *     outlives the process, and unpins it once the entry is delivered or dropped. Only the parts
+ *     that are encoded as they are written, i.e. the metadata or a preview, are spooled. A pinned
+ *     file that the system deleted along with the rest of the cache is left out of the request,
+ *     an entry whose spooled parts are gone, or that has no parts left, is dropped.</li>
+ *     <li>Entries may opt into deduplication. Their screenshots are hashed, and before one is
+ *     uploaded the server is asked whether it already has it, with a 'HEAD {url}/blobs/{sha-256}' request, and if it does
+ *     the blob is referenced by its url instead of being sent again. Hashes the server is known to
+ *     have are kept in the {@link BlobCache} and referenced without asking. The server answers a
+ *     report that references a blob it no longer has with a 409, the outbox then forgets the blobs
+ *     of the report and sends it again.</li>
+ *     <li>The location and acknowledged offset of every chunked upload, see {@link ChunkedUploader},
+ *     are journaled as its chunks are acknowledged. A later attempt resumes the upload from there
+ *     instead of starting it over, even after the process was restarted.</li>
+ *     <li>Entries older than the max age are dropped, and the oldest entries are dropped while
+ *     the outbox exceeds its size cap.</li>
+ * </ul>
+ */
+public class Outbox {
+    private static final String TAG = Outbox.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+    public static final String PART_REPORT_ID = "report_id";
+
+    public static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_MAX_BYTES = 25 * 1024 * 1024;
+
+    private static final String DIRECTORY = "flytrap_outbox";
+    private static final String JOURNAL = "journal";
+    private static final String BLOBS = "blobs";
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+    private static final long RECONNECT_JITTER = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int MAX_BATCH_REPORTS = 10;
+    private static final long MAX_BATCH_BYTES = 4 * 1024 * 1024;
+
+    /* Flush Results */
+    static final int SENT = 0;
+    static final int REJECTED = 1;
+    static final int RETRY = 2;
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static Outbox sInstance;
+
+    /**
+     * Get the outbox of the application, replaying its journal the first time
+     *
+     * @param ctx       the context
+     * @return          the outbox
+     */
+    public static synchronized Outbox get(Context ctx){
+        if(sInstance == null){
+            sInstance = new Outbox(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final Context context;
+    private final File directory;
+    private final OutboxJournal journal;
+    private final List<Entry> pending = new ArrayList<>();
+
+    private final Handler handler;
+    private final Random random = new Random();
+    private final ThroughputEstimator throughput;
+    private final BlobCache blobs;
+    private final ArtifactStore artifacts;
+
+    private long maxAge = DEFAULT_MAX_AGE;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    private volatile int failures;
+    private long flushAt;
+    private boolean receiverEnabled;
+    private int scheduledJobs;
+    private BroadcastReceiver screenOffReceiver;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Hidden Constructor
+     */
+    private Outbox(Context ctx){
+        this(ctx, new File(ctx.getFilesDir(), DIRECTORY), ThroughputEstimator.get(ctx), BlobCache.get(ctx),
+                ArtifactStore.get(ctx));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ctx           the context
+     * @param directory     the directory to spool the entries and the journal in
+     * @param throughput    the estimator to record the upload throughput in
+     * @param blobs         the cache of the blobs the server has
+     * @param artifacts     the store the referenced artifacts are pinned in
+     */
+    Outbox(Context ctx, File directory, ThroughputEstimator throughput, BlobCache blobs, ArtifactStore artifacts){
+        context = ctx;
+        this.directory = directory;
+        directory.mkdirs();
+        journal = new OutboxJournal(new File(directory, JOURNAL));
+        this.throughput = throughput;
+        this.blobs = blobs;
+        this.artifacts = artifacts;
+
+        HandlerThread thread = new HandlerThread("FlyTrap-Outbox", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                flush();
+            }
+        });
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Configure the caps of the outbox, entries beyond them are dropped oldest first
+     *
+     * @param maxAge        the max age of an entry in milliseconds
+     * @param maxBytes      the max size of all entries in bytes
+     */
+    public synchronized void setLimits(long maxAge, long maxBytes){
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Spool a report upload into the outbox and schedule a flush. When this returns the
+     * upload is durable. Parts backed by a file of the {@link ArtifactStore} are pinned in the
+     * store, the others are written to disk, call it from a worker thread.
+     *
+     * @param url           the url to post the report to
+     * @param chunkSize     the chunk size of resumable attachment uploads, or 0 to send inline,
+     *                      see {@link ChunkedUploader}
+     * @param deduplicate   true to reference the images the server already has instead of sending them
+     * @param batchWindow   how long to wait for more reports to send along in a single batch
+     *                      request in milliseconds, or 0 to always send this report on its own
+     * @param constraints   the conditions the device must meet before the report is sent, see
+     *                      {@link Delivery#CONSTRAINT_UNMETERED}, or 0 to send it right away
+     * @param parts         the parts of the multipart report request, in order
+     * @return              the id of the queued report, it is sent as its {@link #HEADER_IDEMPOTENCY_KEY}
+     *
+     * @throws IOException  error spooling the report, it was not queued
+     */
+    public String enqueue(String url, int chunkSize, boolean deduplicate, long batchWindow, int constraints,
+                          List<Attachment> parts) throws IOException {
+        return enqueue(url, chunkSize, deduplicate, batchWindow, constraints, parts, 0, null);
+    }
+
+    /**
+     * Spool a report upload along with a follow-up into the outbox and schedule a flush. Both are
+     * recorded at once, so the report can't be delivered before its follow-up is queued. The
+     * follow-up is only sent once the report was delivered and carries the report id the server
+     * assigned the report in its {@link #PART_REPORT_ID} part.
+     *
+     * @param url                   the url to post the report and its follow-up to
+     * @param chunkSize             the chunk size of resumable attachment uploads, or 0 to send inline,
+     *                              see {@link ChunkedUploader}
+     * @param deduplicate           true to reference the images the server already has instead of sending them
+     * @param batchWindow           how long to wait for more reports to send along in a single batch
+     *                              request in milliseconds, or 0 to always send this report on its own
+     * @param constraints           the conditions the device must meet before the report is sent, see
+     *                              {@link Delivery#CONSTRAINT_UNMETERED}, or 0 to send it right away
+     * @param parts                 the parts of the multipart report request, in order
+     * @param followUpConstraints   the conditions the device must meet before the follow-up is sent
+     * @param followUpParts         the parts of the multipart follow-up request, in order, or null to
+     *                              queue the report on its own
+     * @return                      the id of the queued report, it is sent as its {@link #HEADER_IDEMPOTENCY_KEY}
+     *
+     * @throws IOException  error spooling the report, neither it nor its follow-up was queued
+     */
+    public String enqueue(String url, int chunkSize, boolean deduplicate, long batchWindow, int constraints,
+                          List<Attachment> parts, int followUpConstraints, List<Attachment> followUpParts)
+            throws IOException {
+        awaitLoaded();
+
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(UUID.randomUUID().toString(), now, url, chunkSize, deduplicate, batchWindow,
+                constraints, null);
+        Entry followUp = followUpParts != null ? new Entry(UUID.randomUUID().toString(), now, url, chunkSize,
+                deduplicate, batchWindow, followUpConstraints, entry.id) : null;
+
+        try {
+            spool(entry, parts, directory, artifacts);
+            if(followUp != null) spool(followUp, followUpParts, directory, artifacts);
+
+            synchronized (this) {
+                if(followUp != null){
+                    journal.add(entry, followUp);
+                    pending.add(entry);
+                    pending.add(followUp);
+                }else{
+                    journal.add(entry);
+                    pending.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            discard(entry);
+            if(followUp != null) discard(followUp);
+            throw e;
+        }
+
+        // Give the reports filed right after this one a chance to join its batch, without
+        // postponing a flush that is already due or cutting a backoff short
+        if(failures == 0) scheduleNoLaterThan(batchWindow);
+        return entry.id;
+    }
+
+    /**
+     * Return whether the device currently meets the given delivery constraints
+     *
+     * @param constraints   {@link Delivery#CONSTRAINT_UNMETERED}, {@link Delivery#CONSTRAINT_CHARGING}
+     *                      and {@link Delivery#CONSTRAINT_IDLE}
+     * @return              true if all of the constraints are met
+     */
+    @SuppressWarnings("deprecation")
+    public boolean isSatisfied(int constraints){
+        if((constraints & Delivery.CONSTRAINT_UNMETERED) != 0){
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            if(info == null || !info.isConnected()) return false;
+
+            boolean metered = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ?
+                    cm.isActiveNetworkMetered() :
+                    info.getType() != ConnectivityManager.TYPE_WIFI && info.getType() != ConnectivityManager.TYPE_ETHERNET;
+            if(metered) return false;
+        }
+
+        if((constraints & Delivery.CONSTRAINT_CHARGING) != 0){
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if(battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) return false;
+        }
+
+        if((constraints & Delivery.CONSTRAINT_IDLE) != 0){
+            // Without the scheduler's notion of idle, a screen that is off is the closest approximation
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            boolean interactive = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH ?
+                    pm.isInteractive() : pm.isScreenOn();
+            if(interactive) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Called by {@link OutboxReceiver} when the device regains connectivity or starts charging
+     */
+    void onConditionsChanged(){
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                failures = 0;
+                schedule((long) (random.nextDouble() * RECONNECT_JITTER));
+            }
+        });
+    }
+
+    /************************************************
+     *
+     * Flush Methods
+     *
+     */
+
+    /**
+     * Replay the journal and unpin the artifacts of entries that no longer exist
+     */
+    private void load(){
+        synchronized (this) {
+            pending.clear();
+            boolean replayed = false;
+            try {
+                pending.addAll(replay(journal, directory));
+                replayed = true;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to replay the outbox journal", e);
+            }
+
+            receiverEnabled = context.getPackageManager().getComponentEnabledSetting(receiverComponent())
+                    == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+
+            // Unpin the artifacts of entries that crashed before being recorded or after being
+            // acknowledged, the pins of the live entries were restored by the store
+            if(replayed){
+                Set<String> referenced = new HashSet<>();
+                for(Entry entry: pending){
+                    referenced.addAll(entry.partFiles);
+                }
+                for(File file: artifacts.getPinned()){
+                    while(!referenced.contains(file.getAbsolutePath()) && artifacts.isPinned(file)){
+                        artifacts.unpin(file);
+                    }
+                }
+            }
+        }
+        loaded.countDown();
+    }
+
+    /**
+     * Replay the journal of an outbox and compact it. Entries that can't be sent anymore are
+     * dropped along with their follow-ups, see {@link Entry#isComplete(File)}, and the spool
+     * directories of entries that no longer exist are deleted, i.e. ones that crashed before
+     * being recorded or after being acknowledged.
+     *
+     * @param journal       the journal of the outbox
+     * @param directory     the directory the entries are spooled in
+     * @return              the live entries, oldest first
+     *
+     * @throws IOException  error replaying the journal, nothing was cleaned up
+     */
+    static List<Entry> replay(OutboxJournal journal, File directory) throws IOException {
+        List<Entry> live = journal.replay();
+
+        // Follow-ups are recorded after their parent, so a single pass catches them
+        Set<String> dropped = new HashSet<>();
+        for(Entry entry: new ArrayList<>(live)){
+            boolean orphaned = entry.parent != null && dropped.contains(entry.parent);
+            if(!orphaned && entry.isComplete(directory)) continue;
+
+            if(!orphaned) Log.w(TAG, "Dropping report " + entry.id + ", its parts were deleted");
+            journal.drop(entry.id);
+            dropped.add(entry.id);
+            live.remove(entry);
+        }
+
+        try {
+            journal.compact(live);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact the outbox journal", e);
+        }
+
+        Set<String> ids = new HashSet<>();
+        for(Entry entry: live){
+            ids.add(entry.id);
+        }
+
+        File[] files = directory.listFiles();
+        if(files != null){
+            for(File file: files){
+                if(file.isDirectory() && !ids.contains(file.getName())) delete(file);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Deliver the pending entries oldest first, until the outbox is empty or a delivery fails.
+     * Only ever runs on the outbox thread.
+     */
+    private void flush(){
+        synchronized (this) {
+            flushAt = 0;
+        }
+
+        List<Entry> batch;
+        while((batch = nextBatch()) != null){
+            if(!isConnected()){
+                // Wait for the receiver to report the network is back
+                return;
+            }
+
+            int[] results = batch.size() == 1 ? new int[]{ send(batch.get(0)) } : send(batch);
+
+            boolean retry = false;
+            for(int i=0; i<batch.size(); i++){
+                switch (results[i]){
+                    case SENT:
+                        remove(batch.get(i), false);
+                        break;
+
+                    case REJECTED:
+                        remove(batch.get(i), true);
+                        break;
+
+                    default:
+                        retry = true;
+                }
+            }
+
+            if(retry){
+                failures++;
+                schedule(backoff());
+                return;
+            }
+            failures = 0;
+        }
+    }
+
+    /**
+     * Evict expired and oversized entries and collect the next entries to deliver. The oldest
+     * entry whose constraints are met is collected together with the following entries that allow
+     * batching and share its endpoint and constraints, up to {@link #MAX_BATCH_REPORTS} reports and
+     * {@link #MAX_BATCH_BYTES} bytes. Entries whose constraints aren't met are left for when the
+     * device meets them, see {@link #waitFor(int)}.
+     *
+     * @return      the next entries to deliver, or null if the outbox is empty
+     */
+    private synchronized List<Entry> nextBatch(){
+        long now = System.currentTimeMillis();
+        while(!pending.isEmpty()){
+            long total = 0;
+            for(Entry entry: pending){
+                total += entry.bytes;
+            }
+
+            Entry oldest = pending.get(0);
+            boolean expired = now - oldest.created > maxAge;
+            boolean oversized = total > maxBytes && pending.size() > 1;
+            if(!expired && !oversized) break;
+
+            // Dropping an entry also drops its follow-ups
+            Log.w(TAG, "Dropping report " + oldest.id + (expired ? ", it expired" : ", the outbox is full"));
+            remove(oldest, true);
+        }
+
+        // The system may have cleared the spooled parts since the journal was replayed
+        for(Entry entry: new ArrayList<>(pending)){
+            if(pending.contains(entry) && !entry.isComplete(directory)){
+                Log.w(TAG, "Dropping report " + entry.id + ", its parts were deleted");
+                remove(entry, true);
+            }
+        }
+
+        setReceiverEnabled(!pending.isEmpty());
+
+        // Check each distinct set of constraints once
+        int satisfied = 0;
+        int unsatisfied = 0;
+        List<Entry> batch = new ArrayList<>();
+        long bytes = 0;
+
+        for(Entry entry: pending){
+            // Follow-ups wait for their parent to be delivered
+            if(entry.parent != null && entry.reference == null){
+                if(isPending(entry.parent)) continue;
+                entry.reference = entry.parent;
+            }
+
+            int bit = 1 << entry.constraints;
+            if((satisfied & bit) == 0 && (unsatisfied & bit) == 0){
+                if(isSatisfied(entry.constraints)){
+                    satisfied |= bit;
+                }else{
+                    unsatisfied |= bit;
+                    waitFor(entry.constraints);
+                }
+            }
+            if((unsatisfied & bit) != 0) continue;
+
+            if(batch.isEmpty()){
+                batch.add(entry);
+                bytes = entry.bytes;
+                continue;
+            }
+
+            Entry first = batch.get(0);
+            if(first.batchWindow <= 0 || batch.size() >= MAX_BATCH_REPORTS) break;
+            if(entry.batchWindow <= 0 || !entry.url.equals(first.url) || entry.chunkSize != first.chunkSize
+                    || entry.constraints != first.constraints || bytes + entry.bytes > MAX_BATCH_BYTES) continue;
+
+            batch.add(entry);
+            bytes += entry.bytes;
+        }
+
+        return batch.isEmpty() ? null : batch;
+    }
+
+    /**
+     * Make sure the outbox is woken up once the device meets a set of constraints. The job
+     * scheduler takes care of this where it is available and keeps the job across restarts.
+     * On older devices {@link OutboxReceiver} is woken by connectivity changes and power being
+     * connected, and the screen turning off is listened for while the app is running.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void waitFor(int constraints){
+        if((scheduledJobs & (1 << constraints)) != 0) return;
+        scheduledJobs |= 1 << constraints;
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            JobInfo job = new JobInfo.Builder(OutboxJobService.JOB_ID + constraints, new ComponentName(context, OutboxJobService.class))
+                    .setRequiredNetworkType((constraints & Delivery.CONSTRAINT_UNMETERED) != 0 ?
+                            JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                    .setRequiresCharging((constraints & Delivery.CONSTRAINT_CHARGING) != 0)
+                    .setRequiresDeviceIdle((constraints & Delivery.CONSTRAINT_IDLE) != 0)
+                    .setPersisted(true)
+                    .build();
+
+            JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            scheduler.schedule(job);
+        }else if((constraints & Delivery.CONSTRAINT_IDLE) != 0 && screenOffReceiver == null){
+            screenOffReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context ctx, Intent intent) {
+                    onConditionsChanged();
+                }
+            };
+            context.registerReceiver(screenOffReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+        }
+    }
+
+    /**
+     * Called by {@link OutboxJobService} when the device meets the constraints of one of its jobs
+     *
+     * @param constraints   the constraints of the job
+     * @param onFinished    called on the outbox thread once the flush is done
+     */
+    void runJob(final int constraints, final Runnable onFinished){
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Outbox.this) {
+                    scheduledJobs &= ~(1 << constraints);
+                }
+                flush();
+                onFinished.run();
+            }
+        });
+    }
+
+    /**
+     * Record an entry as delivered or dropped and delete its spooled parts. The follow-ups of a
+     * delivered entry are handed its report id, the follow-ups of a dropped entry are dropped too.
+     */
+    private synchronized void remove(Entry entry, boolean dropped){
+        String reportId = entry.reportId != null ? entry.reportId : entry.id;
+        try {
+            if(dropped){
+                journal.drop(entry.id);
+            }else{
+                journal.ack(entry.id, reportId);
+            }
+        } catch (IOException e) {
+            // The entry is sent again after a restart, the server discards it by its idempotency key
+            Log.e(TAG, "Unable to record report " + entry.id, e);
+        }
+
+        pending.remove(entry);
+        delete(entry.getDirectory(directory));
+        unpin(entry);
+
+        for(Entry followUp: new ArrayList<>(pending)){
+            if(!entry.id.equals(followUp.parent)) continue;
+            if(dropped){
+                Log.w(TAG, "Dropping follow-up " + followUp.id + " of dropped report " + entry.id);
+                remove(followUp, true);
+            }else{
+                followUp.reference = reportId;
+            }
+        }
+
+        if(journal.needsCompaction(pending.size())){
+            try {
+                journal.compact(pending);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to compact the outbox journal", e);
+            }
+        }
+    }
+
+    /**
+     * Send a single entry
+     *
+     * @return      {@link #SENT}, {@link #REJECTED} if the server refused it for good, or
+     *              {@link #RETRY}
+     */
+    int send(Entry entry){
+        try {
+            RequestBody body = buildReport(entry);
+            Request request = new Request.Builder()
+                    .url(entry.url)
+                    .header(HEADER_IDEMPOTENCY_KEY, entry.id)
+                    .post(body)
+                    .build();
+
+            long start = SystemClock.elapsedRealtime();
+            Response response = Transport.getClient().newCall(request).execute();
+            try {
+                if(response.isSuccessful()){
+                    throughput.record(body.contentLength(), SystemClock.elapsedRealtime() - start);
+                    entry.reportId = readReportId(response);
+                }else{
+                    Log.w(TAG, "Report upload failed with HTTP " + response.code());
+                }
+                return result(entry, response.code());
+            } finally {
+                response.body().close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Report upload failed", e);
+            return RETRY;
+        }
+    }
+
+    /**
+     * Send several entries in a single 'multipart/mixed' request. Each part is the multipart form
+     * body of one report and carries the report's {@link #HEADER_IDEMPOTENCY_KEY} header, the
+     * server answers with the status of each report, see {@link #parseBatchResults(Response)}.
+     *
+     * @return      the result of every entry, in order
+     */
+    private int[] send(List<Entry> batch){
+        int[] results = new int[batch.size()];
+        Arrays.fill(results, RETRY);
+
+        try {
+            MultipartBuilder multipart = new MultipartBuilder().type(MultipartBuilder.MIXED);
+            for(Entry entry: batch){
+                multipart.addPart(Headers.of(HEADER_IDEMPOTENCY_KEY, entry.id), buildReport(entry));
+            }
+
+            RequestBody body = multipart.build();
+            Request request = new Request.Builder()
+                    .url(batch.get(0).url)
+                    .post(body)
+                    .build();
+
+            long start = SystemClock.elapsedRealtime();
+            Response response = Transport.getClient().newCall(request).execute();
+            try {
+                if(!response.isSuccessful()){
+                    Log.w(TAG, "Batch upload of " + batch.size() + " reports failed with HTTP " + response.code());
+                    for(int i=0; i<batch.size(); i++){
+                        results[i] = result(batch.get(i), response.code());
+                    }
+                    return results;
+                }
+                throughput.record(body.contentLength(), SystemClock.elapsedRealtime() - start);
+                return results(batch, response);
+            } finally {
+                response.body().close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Batch upload of " + batch.size() + " reports failed", e);
+        }
+
+        return results;
+    }
+
+    /**
+     * Match the answers of a successful batch response to the entries of the batch. Reports the
+     * server didn't answer for are sent again, all of them if the response can't be read.
+     *
+     * @return      the result of every entry, in order
+     */
+    int[] results(List<Entry> batch, Response response){
+        int[] results = new int[batch.size()];
+        Arrays.fill(results, RETRY);
+
+        Map<String, BatchResult> answers;
+        try {
+            answers = parseBatchResults(response);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the answers to a batch of " + batch.size() + " reports", e);
+            return results;
+        }
+
+        for(int i=0; i<batch.size(); i++){
+            BatchResult answer = answers.get(batch.get(i).id);
+            if(answer != null){
+                results[i] = result(batch.get(i), answer.status);
+                batch.get(i).reportId = answer.reportId;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Build the multipart form body of a single report from its spooled parts
+     */
+    private RequestBody buildReport(Entry entry) throws IOException {
+        File dir = entry.getDirectory(directory);
+        MultipartBuilder multipart = new MultipartBuilder().type(MultipartBuilder.FORM);
+        ChunkedUploader uploader = entry.chunkSize > 0 ?
+                new ChunkedUploader(entry.url, context.getCacheDir(), entry.chunkSize) : null;
+
+        // A follow-up leads with the report id of the report it follows up on
+        if(entry.parent != null){
+            multipart.addPart(
+                    Headers.of("Content-Disposition", "form-data; name=" + PART_REPORT_ID),
+                    new AttachmentBody(Attachment.fromText(PART_REPORT_ID, entry.reference))
+            );
+        }
+
+        entry.referencesBlobs = false;
+        for(int i=0; i<entry.partNames.size(); i++){
+            File file = entry.getPartFile(dir, i);
+            if(!file.exists()){
+                Log.w(TAG, "Leaving out part " + entry.partNames.get(i) + " of report " + entry.id + ", its file was deleted");
+                continue;
+            }
+            Attachment part = Attachment.fromFile(entry.partNames.get(i), entry.mimeTypes.get(i), file);
+
+            // Blobs the server already has are referenced instead of sent, and parts that
+            // fit into a single chunk gain nothing from a resumable upload
+            RequestBody body;
+            Headers headers = Headers.of("Content-Disposition", "form-data; name=" + part.getPartName());
+            HttpUrl blob = blobUrl(entry, i, file);
+            if(blob != null && (blobs.contains(entry.partHashes.get(i)) || hasBlob(blob, entry.partHashes.get(i)))){
+                body = RequestBody.create(APIDelivery.UPLOAD_REFERENCE, blob.toString());
+                entry.referencesBlobs = true;
+            }else if(uploader != null && part.length() > entry.chunkSize){
+                long start = SystemClock.elapsedRealtime();
+                Long offset = entry.uploadOffsets.get(i);
+                String location = uploader.upload(part, entry.uploadLocations.get(i),
+                        offset != null ? offset : 0, new UploadProgress(entry, i));
+                body = RequestBody.create(APIDelivery.UPLOAD_REFERENCE, location);
+                throughput.record(part.length(), SystemClock.elapsedRealtime() - start);
+            }else{
+                body = new AttachmentBody(part);
+
+                // Compressed parts are spooled compressed and declare their coding
+                String encoding = entry.partEncodings.get(i);
+                if(!encoding.isEmpty()) headers = headers.newBuilder().add("Content-Encoding", encoding).build();
+            }
+
+            multipart.addPart(headers, body);
+        }
+
+        return multipart.build();
+    }
+
+    /**
+     * Ask the server whether it already has a blob, remembering it if it does
+     *
+     * @return      true if the server has the blob
+     */
+    private boolean hasBlob(HttpUrl blob, String hash) throws IOException {
+        Request request = new Request.Builder()
+                .url(blob)
+                .head()
+                .build();
+
+        if(Transport.execute(request) != 200) return false;
+        blobs.addAll(Collections.singletonList(hash));
+        return true;
+    }
+
+    /**
+     * Get the url of a part on the blob endpoint of its report's endpoint, hashing a referenced
+     * artifact the first time
+     *
+     * @return      the url of the blob, or null if the entry isn't deduplicated or the part isn't an image
+     */
+    private static HttpUrl blobUrl(Entry entry, int index, File file) throws IOException {
+        if(!entry.deduplicate || !isBlob(entry.mimeTypes.get(index))) return null;
+
+        String hash = entry.partHashes.get(index);
+        if(hash.isEmpty()){
+            hash = hash(file);
+            entry.partHashes.set(index, hash);
+        }
+
+        HttpUrl url = HttpUrl.parse(entry.url);
+        return url != null ? url.newBuilder().addPathSegment(BLOBS).addPathSegment(hash).build() : null;
+    }
+
+    /**
+     * Read the report id the server assigned a delivered report, either the 'Location' of
+     * the created report or the 'id' of a JSON response
+     *
+     * @return      the report id, or null if the response doesn't carry one
+     */
+    private static String readReportId(Response response) throws IOException {
+        String location = response.header("Location");
+        if(location != null) return location;
+
+        MediaType type = response.body().contentType();
+        if(type == null || !"json".equals(type.subtype())) return null;
+
+        JsonReader reader = new JsonReader(response.body().charStream());
+        try {
+            reader.beginObject();
+            while(reader.hasNext()){
+                if("id".equals(reader.nextName())){
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Malformed report response", e);
+        }
+        return null;
+    }
+
+    /**
+     * Parse the per report statuses of a batch response,
+     * <pre>
+     *  { "results": [ { "id": "{idempotency key}", "status": 201, "report_id": "{report id}" }, ... ] }
+     * </pre>
+     *
+     * @return      the answer for each report by its id
+     */
+    private static Map<String, BatchResult> parseBatchResults(Response response) throws IOException {
+        Map<String, BatchResult> answers = new HashMap<>();
+        JsonReader reader = new JsonReader(response.body().charStream());
+        try {
+            reader.beginObject();
+            while(reader.hasNext()){
+                if(!"results".equals(reader.nextName())){
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while(reader.hasNext()){
+                    String id = null;
+                    BatchResult answer = new BatchResult();
+                    reader.beginObject();
+                    while(reader.hasNext()){
+                        String name = reader.nextName();
+                        if("id".equals(name)){
+                            id = reader.nextString();
+                        }else if("status".equals(name)){
+                            answer.status = reader.nextInt();
+                        }else if(PART_REPORT_ID.equals(name)){
+                            answer.reportId = reader.nextString();
+                        }else{
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if(id != null) answers.put(id, answer);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed batch response", e);
+        } catch (NumberFormatException e) {
+            // A status that isn't a number
+            throw new IOException("Malformed batch response", e);
+        }
+        return answers;
+    }
+
+    /**
+     * Map a response status to the result of a delivery. The blobs of a delivered report are
+     * remembered, a report that references blobs the server no longer has is sent again in full.
+     */
+    private int result(Entry entry, int code){
+        if(code >= 200 && code < 300){
+            blobs.addAll(hashesOf(entry));
+            return SENT;
+        }
+
+        if(code == 409 && entry.referencesBlobs){
+            Log.w(TAG, "Server is missing blobs of report " + entry.id + ", sending them again");
+            blobs.removeAll(hashesOf(entry));
+            return RETRY;
+        }
+
+        boolean retry = code >= 500 || code == 408 || code == 429;
+        return retry ? RETRY : REJECTED;
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Wait for the journal to be replayed, so that the orphan cleanup can't mistake
+     * an entry that is being spooled for a leftover
+     */
+    private void awaitLoaded() throws IOException {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening the outbox");
+        }
+    }
+
+    /**
+     * Spool and sync the parts of a new entry before it is recorded, hashing the images on the way
+     * if the entry is deduplicated. The artifacts are pinned and referenced in place, they are
+     * hashed when they are first sent.
+     *
+     * @param entry         the new entry
+     * @param parts         the parts of the entry, in order
+     * @param directory     the directory the entries are spooled in
+     * @param artifacts     the store the referenced artifacts are pinned in
+     *
+     * @throws IOException  error spooling the parts
+     */
+    static void spool(Entry entry, List<Attachment> parts, File directory, ArtifactStore artifacts)
+            throws IOException {
+        File dir = entry.getDirectory(directory);
+        if(!dir.mkdirs()) throw new IOException("Unable to create " + dir);
+
+        long referenced = 0;
+        for(int i=0; i<parts.size(); i++){
+            Attachment part = parts.get(i);
+            entry.partNames.add(part.getPartName());
+            entry.mimeTypes.add(part.getMimeType());
+            entry.partEncodings.add(part.getContentEncoding() != null ? part.getContentEncoding() : "");
+
+            File file = part.getFile();
+            if(file != null && artifacts.pin(file)){
+                entry.partFiles.add(file.getAbsolutePath());
+                entry.partHashes.add("");
+                referenced += file.length();
+                continue;
+            }
+
+            MessageDigest digest = entry.deduplicate && isBlob(part.getMimeType()) ? newDigest() : null;
+            FileOutputStream fos = new FileOutputStream(new File(dir, String.valueOf(i)));
+            try {
+                OutputStream out = new BufferedOutputStream(fos);
+                if(digest != null) out = new DigestOutputStream(out, digest);
+                part.writeTo(out);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            entry.partFiles.add("");
+            entry.partHashes.add(digest != null ? toHex(digest.digest()) : "");
+        }
+        entry.bytes = sizeOf(dir) + referenced;
+    }
+
+    /**
+     * Undo the spooling of an entry that couldn't be recorded
+     */
+    private void discard(Entry entry){
+        unpin(entry);
+        delete(entry.getDirectory(directory));
+    }
+
+    private void unpin(Entry entry){
+        for(String path: entry.partFiles){
+            if(!path.isEmpty()) artifacts.unpin(new File(path));
+        }
+    }
+
+    private synchronized void schedule(long delay){
+        flushAt = SystemClock.uptimeMillis() + delay;
+        handler.removeCallbacks(flushTask);
+        handler.postAtTime(flushTask, flushAt);
+    }
+
+    private synchronized void scheduleNoLaterThan(long delay){
+        if(flushAt != 0 && flushAt <= SystemClock.uptimeMillis() + delay) return;
+        schedule(delay);
+    }
+
+    /**
+     * Exponential backoff with full jitter, a random delay up to the exponential bound
+     */
+    private long backoff(){
+        long bound = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures - 1, 16));
+        return (long) (random.nextDouble() * bound);
+    }
+
+    private boolean isConnected(){
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * Only listen for connectivity and power changes while there is something to deliver. The receiver
+     * stays enabled across restarts, so it also resumes the outbox of a killed app.
+     */
+    private void setReceiverEnabled(boolean enabled){
+        if(enabled == receiverEnabled) return;
+        receiverEnabled = enabled;
+
+        if(!enabled && screenOffReceiver != null){
+            context.unregisterReceiver(screenOffReceiver);
+            screenOffReceiver = null;
+        }
+
+        context.getPackageManager().setComponentEnabledSetting(
+                receiverComponent(),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    private boolean isPending(String id){
+        for(Entry entry: pending){
+            if(entry.id.equals(id)) return true;
+        }
+        return false;
+    }
+
+    private ComponentName receiverComponent(){
+        return new ComponentName(context, OutboxReceiver.class);
+    }
+
+    /**
+     * Only images are worth deduplicating, testers file several reports against the same screen
+     */
+    private static boolean isBlob(String mimeType){
+        return mimeType.startsWith("image/");
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(HASH_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Get the hashes of the parts of an entry that were hashed
+     */
+    private static List<String> hashesOf(Entry entry){
+        List<String> hashes = new ArrayList<>();
+        for(String hash: entry.partHashes){
+            if(!hash.isEmpty()) hashes.add(hash);
+        }
+        return hashes;
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while((count = in.read(buffer)) != -1){
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes){
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b: bytes){
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static long sizeOf(File dir){
+        long size = 0;
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file: files){
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void delete(File dir){
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file: files){
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * A queued report upload, its parts are either artifacts it references or spooled to files
+     * named by their index in the entry's directory
+     */
+    static class Entry {
+
+        final String id;
+        final long created;
+        final String url;
+        final int chunkSize;
+        final boolean deduplicate;
+        final long batchWindow;
+        final int constraints;
+        final String parent;
+        final List<String> partNames = new ArrayList<>();
+        final List<String> mimeTypes = new ArrayList<>();
+        final List<String> partHashes = new ArrayList<>();
+        final List<String> partEncodings = new ArrayList<>();
+
+        /**
+         * The path of each part's artifact, or an empty string if the part is spooled
+         */
+        final List<String> partFiles = new ArrayList<>();
+
+        /**
+         * The location and acknowledged offset of the chunked upload of a part, by part index
+         */
+        final Map<Integer, String> uploadLocations = new HashMap<>();
+        final Map<Integer, Long> uploadOffsets = new HashMap<>();
+        long bytes;
+
+        /**
+         * The report id of the parent of a follow-up, once the parent was delivered
+         */
+        String reference;
+
+        /**
+         * The report id the server assigned this entry when it was delivered
+         */
+        String reportId;
+
+        /**
+         * Whether the last request built for this entry referenced blobs instead of sending them
+         */
+        boolean referencesBlobs;
+
+        Entry(String id, long created, String url, int chunkSize, boolean deduplicate, long batchWindow,
+              int constraints, String parent){
+            this.id = id;
+            this.created = created;
+            this.url = url;
+            this.chunkSize = chunkSize;
+            this.deduplicate = deduplicate;
+            this.batchWindow = batchWindow;
+            this.constraints = constraints;
+            this.parent = parent;
+        }
+
+        File getDirectory(File outbox){
+            return new File(outbox, id);
+        }
+
+        File getPartFile(File dir, int index){
+            String path = partFiles.get(index);
+            return path.isEmpty() ? new File(dir, String.valueOf(index)) : new File(path);
+        }
+
+        /**
+         * Return whether the entry can still be sent, i.e. all of its spooled parts exist and
+         * at least one of its parts does. An artifact the system deleted with the rest of the
+         * cache is left out of the request, the spooled metadata can't be.
+         *
+         * @param outbox    the directory the entries are spooled in
+         */
+        boolean isComplete(File outbox){
+            File dir = getDirectory(outbox);
+            boolean any = false;
+            for(int i=0; i<partNames.size(); i++){
+                boolean exists = getPartFile(dir, i).exists();
+                if(!exists && partFiles.get(i).isEmpty()) return false;
+                any |= exists;
+            }
+            return any;
+        }
+    }
+
+    /**
+     * Journals the progress of the chunked upload of a part, so that a later attempt resumes it
+     */
+    private class UploadProgress implements ChunkedUploader.Listener {
+
+        private final Entry entry;
+        private final int part;
+
+        UploadProgress(Entry entry, int part){
+            this.entry = entry;
+            this.part = part;
+        }
+
+        @Override
+        public void onProgress(String location, long offset) {
+            synchronized (Outbox.this) {
+                entry.uploadLocations.put(part, location);
+                entry.uploadOffsets.put(part, offset);
+                try {
+                    journal.progress(entry.id, part, location, offset);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to journal the upload progress of report " + entry.id, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The answer of the server for a single report of a batch
+     */
+    private static class BatchResult {
+        int status;
+        String reportId;
+    }
+
+    /**
+     * Request body that streams a spooled part into the request
+     */
+    private static class AttachmentBody extends RequestBody {
+
+        private final Attachment attachment;
+        private final MediaType type;
+
+        AttachmentBody(Attachment attachment){
+            this.attachment = attachment;
+            this.type = MediaType.parse(attachment.getMimeType());
+        }
+
+        @Override
+        public MediaType contentType() {
+            return type;
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return attachment.length();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            attachment.writeTo(sink);
+        }
+    }
+
+}
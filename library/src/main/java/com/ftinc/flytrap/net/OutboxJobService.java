@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+/**
+ * Wakes the {@link Outbox} once the device meets the delivery constraints of its held back
+ * reports. There is one job per distinct set of constraints, its id is {@link #JOB_ID} plus the
+ * constraint flags.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class OutboxJobService extends JobService {
+
+    /**
+     * The id of the first outbox job, picked to stay clear of the host app's own job ids
+     */
+    public static final int JOB_ID = 0x46540000;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Outbox.get(this).runJob(params.getJobId() - JOB_ID, new Runnable() {
+            @Override
+            public void run() {
+                // Reports that are still held back schedule a new job
+                jobFinished(params, false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return true;
+    }
+
+}
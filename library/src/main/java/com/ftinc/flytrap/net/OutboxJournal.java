@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only journal of the {@link Outbox}. Every change to the outbox is a single line
+ * record that is synced to disk before the change is considered made:
+ * <pre>
+ *   {crc32} ADD  {id} {created} {bytes} {url} {chunk size} {part count} [{part name} {mime type}]...
+ *                {batch window} {constraints} {parent id} {parent report id} {part hashes}
+ *                {part content encodings} {part files} {deduplicate}
+ *   {crc32} ACK  {id} {report id}
+ *   {crc32} DROP {id}
+ *   {crc32} PROG {id} {part index} {upload location} {acknowledged offset}
+ * </pre>
+ * The report id the server assigned an entry is recorded with its acknowledgement and handed to
+ * the entry's follow-ups. Dropping an entry drops its follow-ups along with it. The progress of a
+ * chunked upload of a part is recorded as the server acknowledges its chunks, the last record of
+ * a part wins.
+ * Fields are tab separated and prefixed with the checksum of the rest of the line. A record torn
+ * by a crash, or otherwise corrupt, fails its checksum and is ignored on replay, so the journal
+ * always replays to the last complete change. A torn last record is cut off the journal on replay,
+ * so that the next record starts on a line of its own.
+ */
+class OutboxJournal {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String ADD = "ADD";
+    static final String ACK = "ACK";
+    static final String DROP = "DROP";
+    static final String PROG = "PROG";
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final File file;
+    private int deadRecords;
+
+    /**
+     * Constructor
+     *
+     * @param file      the journal file
+     */
+    OutboxJournal(File file){
+        this.file = file;
+    }
+
+    /************************************************
+     *
+     * Methods
+     *
+     */
+
+    /**
+     * Replay the journal
+     *
+     * @return      the entries that were added and not yet acknowledged or dropped, oldest first
+     *
+     * @throws IOException  error reading the journal
+     */
+    List<Outbox.Entry> replay() throws IOException {
+        Map<String, Outbox.Entry> live = new LinkedHashMap<>();
+        deadRecords = 0;
+        if(!file.exists()) return new ArrayList<>(live.values());
+        if(truncateTornTail()) deadRecords++;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] fields = parse(line);
+                if(fields == null){
+                    deadRecords++;
+                    continue;
+                }
+
+                if(ADD.equals(fields[0])){
+                    Outbox.Entry entry = decodeEntry(fields);
+                    if(entry != null) live.put(entry.id, entry);
+                    continue;
+                }
+
+                if(PROG.equals(fields[0])){
+                    Outbox.Entry entry = live.get(fields[1]);
+                    if(entry != null) decodeProgress(entry, fields);
+                    deadRecords++;
+                    continue;
+                }
+
+                String id = fields[1];
+                live.remove(id);
+                deadRecords += 2;
+
+                // Hand the report id to the follow-ups, or drop them along with their parent
+                Iterator<Outbox.Entry> it = live.values().iterator();
+                while(it.hasNext()){
+                    Outbox.Entry entry = it.next();
+                    if(!id.equals(entry.parent)) continue;
+
+                    if(ACK.equals(fields[0])){
+                        entry.reference = fields.length > 2 ? fields[2] : id;
+                    }else{
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * Durably record new entries, all of them are written with a single sync
+     */
+    void add(Outbox.Entry... entries) throws IOException {
+        StringBuilder records = new StringBuilder();
+        for(Outbox.Entry entry: entries){
+            records.append(encodeEntry(entry));
+        }
+        append(records.toString());
+    }
+
+    /**
+     * Durably record that an entry was delivered
+     */
+    void ack(String id, String reportId) throws IOException {
+        append(record(ACK, id, reportId));
+        deadRecords += 2;
+    }
+
+    /**
+     * Durably record that an entry was given up on
+     */
+    void drop(String id) throws IOException {
+        append(record(DROP, id));
+        deadRecords += 2;
+    }
+
+    /**
+     * Durably record the progress of the chunked upload of one of an entry's parts
+     *
+     * @param id            the id of the entry
+     * @param part          the index of the part
+     * @param location      the location of the upload
+     * @param offset        the offset the server acknowledged
+     */
+    void progress(String id, int part, String location, long offset) throws IOException {
+        append(record(PROG, id, String.valueOf(part), location, String.valueOf(offset)));
+        deadRecords++;
+    }
+
+    /**
+     * Return whether the journal holds enough dead records to be worth compacting
+     *
+     * @param liveCount     the number of live entries
+     */
+    boolean needsCompaction(int liveCount){
+        return deadRecords > 32 && deadRecords > liveCount * 2;
+    }
+
+    /**
+     * Rewrite the journal with only the live entries. The new journal is written and synced
+     * next to the old one and then renamed over it, so a crash leaves one or the other intact.
+     *
+     * @param live      the live entries
+     *
+     * @throws IOException  error writing the journal
+     */
+    void compact(List<Outbox.Entry> live) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            for(Outbox.Entry entry: live){
+                out.write(encodeEntry(entry).getBytes(UTF_8));
+                for(Map.Entry<Integer, String> upload: entry.uploadLocations.entrySet()){
+                    Long offset = entry.uploadOffsets.get(upload.getKey());
+                    out.write(record(PROG, entry.id, String.valueOf(upload.getKey()), upload.getValue(),
+                            String.valueOf(offset != null ? offset : 0)).getBytes(UTF_8));
+                }
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if(!tmp.renameTo(file)){
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+        deadRecords = 0;
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Cut a record torn by a crash off the end of the journal, the next record would otherwise
+     * be appended to the same line and be lost along with it
+     *
+     * @return      true if a torn record was cut off
+     */
+    private boolean truncateTornTail() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long end = raf.length();
+            long length = end;
+            while(length > 0){
+                raf.seek(length - 1);
+                if(raf.read() == '\n') break;
+                length--;
+            }
+
+            if(length == end) return false;
+            raf.setLength(length);
+            raf.getFD().sync();
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void append(String record) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(record.getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String encodeEntry(Outbox.Entry entry){
+        List<String> fields = new ArrayList<>();
+        fields.add(ADD);
+        fields.add(entry.id);
+        fields.add(String.valueOf(entry.created));
+        fields.add(String.valueOf(entry.bytes));
+        fields.add(entry.url);
+        fields.add(String.valueOf(entry.chunkSize));
+        fields.add(String.valueOf(entry.partNames.size()));
+        for(int i=0; i<entry.partNames.size(); i++){
+            fields.add(entry.partNames.get(i));
+            fields.add(entry.mimeTypes.get(i));
+        }
+        fields.add(String.valueOf(entry.batchWindow));
+        fields.add(String.valueOf(entry.constraints));
+        fields.add(entry.parent != null ? entry.parent : "");
+        fields.add(entry.reference != null ? entry.reference : "");
+
+        fields.add(join(entry.partHashes));
+        fields.add(join(entry.partEncodings));
+        fields.add(join(entry.partFiles));
+        fields.add(entry.deduplicate ? "1" : "0");
+        return record(fields.toArray(new String[fields.size()]));
+    }
+
+    private Outbox.Entry decodeEntry(String[] fields){
+        try {
+            int parts = Integer.parseInt(fields[6]);
+            int trailer = 7 + parts * 2;
+
+            // The trailing fields were added after the first records were written
+            String parent = fields.length > trailer + 2 ? fields[trailer + 2] : "";
+            String reference = fields.length > trailer + 3 ? fields[trailer + 3] : "";
+            String[] hashes = fields.length > trailer + 4 ? fields[trailer + 4].split(",", -1) : new String[0];
+            String[] encodings = fields.length > trailer + 5 ? fields[trailer + 5].split(",", -1) : new String[0];
+            String[] files = fields.length > trailer + 6 ? fields[trailer + 6].split(",", -1) : new String[0];
+            boolean deduplicate = fields.length > trailer + 7 && "1".equals(fields[trailer + 7]);
+
+            Outbox.Entry entry = new Outbox.Entry(fields[1], Long.parseLong(fields[2]), fields[4],
+                    Integer.parseInt(fields[5]), deduplicate,
+                    fields.length > trailer ? Long.parseLong(fields[trailer]) : 0,
+                    fields.length > trailer + 1 ? Integer.parseInt(fields[trailer + 1]) : 0,
+                    parent.isEmpty() ? null : parent);
+            entry.bytes = Long.parseLong(fields[3]);
+            if(!reference.isEmpty()) entry.reference = reference;
+
+            for(int i=0; i<parts; i++){
+                entry.partNames.add(fields[7 + i * 2]);
+                entry.mimeTypes.add(fields[8 + i * 2]);
+                entry.partHashes.add(hashes.length == parts ? hashes[i] : "");
+                entry.partEncodings.add(encodings.length == parts ? encodings[i] : "");
+                entry.partFiles.add(files.length == parts ? files[i] : "");
+            }
+            return entry;
+        } catch (RuntimeException e) {
+            deadRecords++;
+            return null;
+        }
+    }
+
+    private static void decodeProgress(Outbox.Entry entry, String[] fields){
+        if(fields.length < 5) return;
+        try {
+            int part = Integer.parseInt(fields[2]);
+            entry.uploadLocations.put(part, fields[3]);
+            entry.uploadOffsets.put(part, Long.parseLong(fields[4]));
+        } catch (NumberFormatException e) {
+            // A record that doesn't parse is ignored like a torn one
+        }
+    }
+
+    private static String join(List<String> values){
+        StringBuilder joined = new StringBuilder();
+        for(int i=0; i<values.size(); i++){
+            if(i > 0) joined.append(',');
+            joined.append(values.get(i));
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Build a record line from its fields
+     */
+    private static String record(String... fields){
+        StringBuilder payload = new StringBuilder();
+        for(int i=0; i<fields.length; i++){
+            if(i > 0) payload.append('\t');
+            escape(fields[i], payload);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toString().getBytes(UTF_8));
+        return Long.toHexString(crc.getValue()) + '\t' + payload + '\n';
+    }
+
+    /**
+     * Parse and verify a record line
+     *
+     * @return      the fields of the record, or null if it is corrupt
+     */
+    private static String[] parse(String line){
+        int split = line.indexOf('\t');
+        if(split <= 0) return null;
+
+        String payload = line.substring(split + 1);
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(UTF_8));
+        try {
+            if(Long.parseLong(line.substring(0, split), 16) != crc.getValue()) return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for(int i=0; i<payload.length(); i++){
+            char c = payload.charAt(i);
+            if(c == '\\' && i + 1 < payload.length()){
+                char next = payload.charAt(++i);
+                field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }else if(c == '\t'){
+                fields.add(field.toString());
+                field.setLength(0);
+            }else{
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+
+        return fields.size() >= 2 ? fields.toArray(new String[fields.size()]) : null;
+    }
+
+    private static void escape(String value, StringBuilder out){
+        for(int i=0; i<value.length(); i++){
+            char c = value.charAt(i);
+            switch (c){
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+}
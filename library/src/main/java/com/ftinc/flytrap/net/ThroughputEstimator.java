@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * A rolling estimate of the upload throughput, an exponentially weighted moving average of the
+ * throughput of previous uploads. The estimate is kept in shared preferences so that it carries
+ * over from one session to the next.
+ *
+ * Transfers smaller than {@link #MIN_SAMPLE_BYTES} are ignored, their duration is dominated by
+ * latency rather than throughput.
+ */
+public class ThroughputEstimator {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+    /**
+     * The weight of the newest sample
+     */
+    private static final double ALPHA = 0.3;
+
+    private static final String PREFS = "flytrap_throughput";
+    private static final String KEY_BYTES_PER_SECOND = "bytes_per_second";
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static ThroughputEstimator sInstance;
+
+    /**
+     * Get the throughput estimator of the application
+     *
+     * @param ctx       the context
+     * @return          the estimator
+     */
+    public static synchronized ThroughputEstimator get(Context ctx){
+        if(sInstance == null){
+            sInstance = new ThroughputEstimator(ctx.getApplicationContext()
+                    .getSharedPreferences(PREFS, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final SharedPreferences prefs;
+    private double bytesPerSecond;
+
+    /**
+     * Constructor
+     *
+     * @param prefs     the preferences to keep the estimate in, or null to keep it in memory only
+     */
+    ThroughputEstimator(SharedPreferences prefs){
+        this.prefs = prefs;
+        this.bytesPerSecond = prefs != null ? prefs.getFloat(KEY_BYTES_PER_SECOND, 0f) : 0;
+    }
+
+    /************************************************
+     *
+     * Methods
+     *
+     */
+
+    /**
+     * Get the estimated upload throughput
+     *
+     * @return      the throughput in bytes per second, or 0 if nothing was measured yet
+     */
+    public synchronized double getBytesPerSecond(){
+        return bytesPerSecond;
+    }
+
+    /**
+     * Record a finished upload
+     *
+     * @param bytes     the number of bytes sent
+     * @param millis    how long sending them took
+     */
+    public void record(long bytes, long millis){
+        if(bytes < MIN_SAMPLE_BYTES) return;
+
+        double sample = bytes * 1000d / Math.max(millis, 1);
+        float estimate;
+        synchronized (this) {
+            bytesPerSecond = bytesPerSecond <= 0 ? sample : ALPHA * sample + (1 - ALPHA) * bytesPerSecond;
+            estimate = (float) bytesPerSecond;
+        }
+
+        if(prefs != null){
+            prefs.edit().putFloat(KEY_BYTES_PER_SECOND, estimate).apply();
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The library wide HTTP transport. All FlyTrap network traffic goes through a single shared
+ * {@link OkHttpClient} so that connections, and their TLS sessions, are reused from one report
+ * to the next instead of paying for a new client with every report.
+ *
+ * Host apps that already have a configured client can hand it to FlyTrap with
+ * {@link #setClient(OkHttpClient)}.
+ */
+public class Transport {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final long DEFAULT_CONNECT_TIMEOUT = 15;
+    public static final long DEFAULT_READ_TIMEOUT = 30;
+    public static final long DEFAULT_WRITE_TIMEOUT = 60;
+
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long KEEP_ALIVE_DURATION = TimeUnit.MINUTES.toMillis(5);
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private static OkHttpClient sClient;
+
+    /**
+     * Hidden Constructor
+     */
+    private Transport(){}
+
+    /************************************************
+     *
+     * Static Methods
+     *
+     */
+
+    /**
+     * Get the shared client, creating the default one if the host app hasn't supplied its own
+     *
+     * @return      the shared http client
+     */
+    public static synchronized OkHttpClient getClient(){
+        if(sClient == null){
+            sClient = new OkHttpClient();
+            sClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION));
+            sClient.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.SECONDS);
+            sClient.setReadTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.SECONDS);
+            sClient.setWriteTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.SECONDS);
+        }
+        return sClient;
+    }
+
+    /**
+     * Supply the client FlyTrap uses for all of its network traffic, i.e. to share the host
+     * app's connection pool, interceptors and certificate pinning
+     *
+     * @param client    the client to use, or null to restore the default client
+     */
+    public static synchronized void setClient(OkHttpClient client){
+        sClient = client;
+    }
+
+    /**
+     * Configure the timeouts of the shared client
+     *
+     * @param connect   the connect timeout
+     * @param read      the read timeout
+     * @param write     the write timeout
+     * @param unit      the unit of the timeouts
+     */
+    public static synchronized void setTimeouts(long connect, long read, long write, TimeUnit unit){
+        OkHttpClient client = getClient();
+        client.setConnectTimeout(connect, unit);
+        client.setReadTimeout(read, unit);
+        client.setWriteTimeout(write, unit);
+    }
+
+    /**
+     * Execute a request on the shared client and close the response body so that the
+     * connection is released back to the pool
+     *
+     * @param request   the request to execute
+     * @return          the response code
+     *
+     * @throws IOException  error executing the request
+     */
+    public static int execute(Request request) throws IOException {
+        Response response = getClient().newCall(request).execute();
+        try {
+            return response.code();
+        } finally {
+            response.body().close();
+        }
+    }
+
+}
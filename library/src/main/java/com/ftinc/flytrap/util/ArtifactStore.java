@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.ftinc.flytrap.model.Report;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Owns the temporary files FlyTrap creates, the captured screenshots, prepared attachments and
+ * generated archives. They all live in a single directory in the app's cache, so that they can
+ * be accounted for and cleaned up even after the process died.
+ *
+ * <ul>
+ *     <li>Every artifact is reference counted. The files of a report are released once it was
+ *     delivered, see {@link #release(Report)}, and deleted when the last reference is gone, i.e.
+ *     once an email client finished reading it through {@link com.ftinc.flytrap.ReportProvider}.</li>
+ *     <li>An artifact can be pinned, i.e. a screenshot of a report queued in the
+ *     {@link com.ftinc.flytrap.net.Outbox}. Pins are references that are persisted, so they
+ *     outlive the process, until the outbox unpins the artifact once the report was delivered.</li>
+ *     <li>A directory artifact is deleted along with its contents, except for the files in it that
+ *     are still referenced on their own. The directory is kept until the last of them is deleted.</li>
+ *     <li>The directory is kept under a byte budget, the least recently used artifacts that
+ *     aren't referenced are deleted beyond it. Undelivered reports are left to the budget.</li>
+ *     <li>The first use of the store in a process cleans up on a worker thread, including the
+ *     artifacts that older versions left in the cache.</li>
+ * </ul>
+ */
+public class ArtifactStore {
+    private static final String TAG = ArtifactStore.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final String DIRECTORY = "flytrap";
+    private static final String PREFS = "flytrap_artifacts";
+
+    /**
+     * The exact names of the artifacts older versions left in the cache directories, the
+     * screenshots, i.e. 'PNG_20150609_120000_1234.png', and the report directories and archives,
+     * i.e. 'TRAP_REPORT_20150609_120000.zip'. Anything else in there belongs to the host app.
+     */
+    private static final Pattern[] LEGACY_NAMES = new Pattern[]{
+            Pattern.compile("PNG_\\d{8}_\\d{6}_-?\\d+\\.png"),
+            Pattern.compile("TRAP_REPORT_\\d{8}_\\d{6}(\\.zip)?")
+    };
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static ArtifactStore sInstance;
+
+    /**
+     * Get the artifact store of the application, the first call schedules a cleanup
+     *
+     * @param ctx       the context
+     * @return          the store
+     */
+    public static synchronized ArtifactStore get(Context ctx){
+        if(sInstance == null){
+            sInstance = new ArtifactStore(ctx.getApplicationContext());
+            sInstance.scheduleCleanup(true);
+        }
+        return sInstance;
+    }
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final Context context;
+    private final File directory;
+    private final SharedPreferences pins;
+    private final Map<String, Integer> references = new HashMap<>();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * Hidden Constructor
+     */
+    private ArtifactStore(Context ctx){
+        this(ctx, new File(ctx.getCacheDir(), DIRECTORY), ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ctx           the context, it is only used to clean up after older versions
+     * @param directory     the directory of the artifacts
+     * @param pins          the preferences the pins are persisted in
+     */
+    ArtifactStore(Context ctx, File directory, SharedPreferences pins){
+        this.context = ctx;
+        this.directory = directory;
+        this.pins = pins;
+
+        // The pins of the previous processes are references from the start
+        for(Map.Entry<String, ?> pin: pins.getAll().entrySet()){
+            if(pin.getValue() instanceof Integer) references.put(pin.getKey(), (Integer) pin.getValue());
+        }
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Set the byte budget of the store, unreferenced artifacts beyond it are deleted least
+     * recently used first
+     *
+     * @param maxBytes      the budget in bytes
+     */
+    public synchronized void setMaxBytes(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Create a new artifact file, it starts out with a single reference
+     *
+     * @param prefix    the prefix of the file name
+     * @param suffix    the suffix of the file name, i.e. '.png'
+     * @return          the new, empty file
+     *
+     * @throws IOException  error creating the file
+     */
+    public File newFile(String prefix, String suffix) throws IOException {
+        File file;
+        synchronized (this) {
+            file = File.createTempFile(prefix, suffix, getDirectory());
+            retain(file);
+        }
+        scheduleCleanup(false);
+        return file;
+    }
+
+    /**
+     * Create a new artifact directory, it starts out with a single reference and is deleted
+     * along with its contents once released
+     *
+     * @param name      the name of the directory
+     * @return          the directory
+     */
+    public synchronized File newDirectory(String name){
+        File dir = new File(getDirectory(), name);
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            Log.w(TAG, "Unable to create " + dir);
+        }
+        retain(dir);
+        return dir;
+    }
+
+    /**
+     * Get an artifact file by name, i.e. a generated archive that is handed to the host app.
+     * It isn't referenced, it is left to the byte budget.
+     *
+     * @param name      the name of the file
+     * @return          the file, it is not created
+     */
+    public File getFile(String name){
+        File file = new File(getDirectory(), name);
+        scheduleCleanup(false);
+        return file;
+    }
+
+    /**
+     * Add a reference to an artifact, files outside of the store are ignored
+     *
+     * @param file      the artifact
+     */
+    public synchronized void retain(File file){
+        if(!contains(file)) return;
+        String path = file.getAbsolutePath();
+        Integer count = references.get(path);
+        references.put(path, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Drop a reference to an artifact, it is deleted with the last one. Files outside of the
+     * store are never deleted.
+     *
+     * @param file      the artifact
+     */
+    public synchronized void release(File file){
+        if(!contains(file)) return;
+        String path = file.getAbsolutePath();
+        Integer count = references.get(path);
+        if(count != null && count > 1){
+            references.put(path, count - 1);
+            return;
+        }
+
+        references.remove(path);
+        delete(file);
+
+        // A released directory that was only kept for this file goes along with it
+        File parent = file.getAbsoluteFile().getParentFile();
+        while(contains(parent) && !references.containsKey(parent.getAbsolutePath()) && parent.delete()){
+            parent = parent.getParentFile();
+        }
+    }
+
+    /**
+     * Pin an artifact, a reference that outlives the process until it is unpinned. Pins are
+     * written synchronously, call this from a worker thread.
+     *
+     * @param file      the artifact
+     * @return          true if the artifact was pinned, false if it is outside of the store
+     */
+    public synchronized boolean pin(File file){
+        if(!contains(file)) return false;
+        String path = file.getAbsolutePath();
+        retain(file);
+        pins.edit().putInt(path, pins.getInt(path, 0) + 1).commit();
+        return true;
+    }
+
+    /**
+     * Drop a pin of an artifact, it is deleted with the last reference
+     *
+     * @param file      the artifact
+     */
+    public synchronized void unpin(File file){
+        if(!isPinned(file)) return;
+        String path = file.getAbsolutePath();
+        int count = pins.getInt(path, 0);
+        SharedPreferences.Editor editor = pins.edit();
+        if(count > 1){
+            editor.putInt(path, count - 1);
+        }else{
+            editor.remove(path);
+        }
+        editor.apply();
+        release(file);
+    }
+
+    /**
+     * Return whether an artifact is pinned
+     *
+     * @param file      the artifact
+     */
+    public synchronized boolean isPinned(File file){
+        return file != null && pins.contains(file.getAbsolutePath());
+    }
+
+    /**
+     * Get the pinned artifacts, i.e. to reconcile them with the owner's own records
+     *
+     * @return      the pinned artifacts
+     */
+    public synchronized List<File> getPinned(){
+        List<File> pinned = new ArrayList<>();
+        for(String path: pins.getAll().keySet()){
+            pinned.add(new File(path));
+        }
+        return pinned;
+    }
+
+    /**
+     * Add a reference to the screenshots of a report
+     *
+     * @param report    the report
+     */
+    public void retain(Report report){
+        if(report.getBaseScreenshot() != null) retain(new File(report.getBaseScreenshot()));
+        if(!report.isVectorShade()) retain(new File(report.getShadeScreenshot()));
+    }
+
+    /**
+     * Drop a reference to the screenshots of a report, i.e. once it was delivered
+     *
+     * @param report    the report
+     */
+    public void release(Report report){
+        if(report.getBaseScreenshot() != null) release(new File(report.getBaseScreenshot()));
+        if(!report.isVectorShade()) release(new File(report.getShadeScreenshot()));
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private File getDirectory(){
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            Log.w(TAG, "Unable to create " + directory);
+        }
+        return directory;
+    }
+
+    private boolean contains(File file){
+        if(file == null) return false;
+        File parent = file.getAbsoluteFile().getParentFile();
+        while(parent != null){
+            if(parent.equals(directory.getAbsoluteFile())) return true;
+            parent = parent.getParentFile();
+        }
+        return false;
+    }
+
+    /**
+     * Clean up on a worker thread, the cleanup is skipped if the workers are saturated
+     *
+     * @param legacy    true to also delete the artifacts older versions left in the cache
+     */
+    private void scheduleCleanup(final boolean legacy){
+        try {
+            Workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(legacy) deleteLegacy();
+                    trim();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Skipping artifact cleanup, the workers are saturated");
+        }
+    }
+
+    /**
+     * Delete unreferenced artifacts, least recently used first, until the store fits its budget
+     */
+    private void trim(){
+        File[] files = getDirectory().listFiles();
+        if(files == null) return;
+
+        final Map<File, Long> modified = new HashMap<>();
+        long total = 0;
+        for(File file: files){
+            total += sizeOf(file);
+            modified.put(file, file.lastModified());
+        }
+
+        List<File> oldest = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(oldest, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = modified.get(lhs), r = modified.get(rhs);
+                return l < r ? -1 : l > r ? 1 : 0;
+            }
+        });
+
+        for(File file: oldest){
+            synchronized (this) {
+                if(total <= maxBytes) return;
+                if(references.containsKey(file.getAbsolutePath())) continue;
+
+                long size = sizeOf(file);
+                Log.d(TAG, "Deleting " + file.getName() + ", the artifacts exceed their budget");
+                delete(file);
+                total -= size - sizeOf(file);
+            }
+        }
+    }
+
+    private void deleteLegacy(){
+        List<File> dirs = new ArrayList<>();
+        dirs.add(context.getCacheDir());
+        File external = context.getExternalCacheDir();
+        if(external != null) dirs.add(external);
+
+        for(File dir: dirs){
+            File[] files = dir.listFiles();
+            if(files == null) continue;
+
+            for(File file: files){
+                for(Pattern name: LEGACY_NAMES){
+                    if(name.matcher(file.getName()).matches()){
+                        synchronized (this) {
+                            delete(file);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static long sizeOf(File file){
+        if(!file.isDirectory()) return file.length();
+
+        long size = 0;
+        File[] files = file.listFiles();
+        if(files != null){
+            for(File child: files){
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Delete an artifact along with its contents, skipping the files in it that are referenced
+     * on their own, i.e. a prepared attachment pinned by the outbox. A directory that still holds
+     * such a file is kept.
+     */
+    private void delete(File file){
+        File[] files = file.listFiles();
+        if(files != null){
+            for(File child: files){
+                if(references.containsKey(child.getAbsolutePath())) continue;
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streaming writer of palette based (indexed color) PNG images. Rows are written one at a
+ * time and compressed as they are written, so the full image never has to be held in memory.
+ * The bit depth is picked from the palette size, i.e. palettes of 16 colors or fewer are
+ * written with 4 bits per pixel.
+ */
+public class IndexedPngWriter {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    private static final byte[] SIGNATURE = new byte[]{ (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int IDAT_SIZE = 32 * 1024;
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+
+    private final byte[] row;
+    private final Deflater deflater;
+    private final DeflaterOutputStream idat;
+    private int rowsWritten;
+
+    /**
+     * Create a new writer and write the PNG header, palette and transparency chunks
+     *
+     * @param out       the stream to write the PNG to, it is not closed
+     * @param width     the image width
+     * @param height    the image height
+     * @param palette   the ARGB palette, at most 256 colors
+     *
+     * @throws IOException  error writing to the stream
+     */
+    public IndexedPngWriter(OutputStream out, int width, int height, int[] palette) throws IOException {
+        if(palette.length == 0 || palette.length > 256){
+            throw new IllegalArgumentException("Palette must have between 1 and 256 colors");
+        }
+
+        this.out = out;
+        this.width = width;
+        this.height = height;
+
+        int colors = palette.length;
+        bitDepth = colors <= 2 ? 1 : colors <= 4 ? 2 : colors <= 16 ? 4 : 8;
+        row = new byte[1 + (width * bitDepth + 7) / 8];
+
+        out.write(SIGNATURE);
+
+        // IHDR
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = COLOR_TYPE_INDEXED;
+        writeChunk("IHDR", header, header.length);
+
+        // PLTE
+        byte[] plte = new byte[colors * 3];
+        int lastTranslucent = -1;
+        for(int i=0; i<colors; i++){
+            plte[i * 3] = (byte) (palette[i] >> 16);
+            plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+            plte[i * 3 + 2] = (byte) palette[i];
+            if((palette[i] >>> 24) != 0xFF) lastTranslucent = i;
+        }
+        writeChunk("PLTE", plte, plte.length);
+
+        // tRNS, trailing opaque entries can be omitted
+        if(lastTranslucent >= 0){
+            byte[] trns = new byte[lastTranslucent + 1];
+            for(int i=0; i<trns.length; i++){
+                trns[i] = (byte) (palette[i] >>> 24);
+            }
+            writeChunk("tRNS", trns, trns.length);
+        }
+
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        idat = new DeflaterOutputStream(new ChunkOutputStream(), deflater, 8192);
+    }
+
+    /**
+     * Write the next row of the image
+     *
+     * @param indices       the palette index of every pixel in the row
+     * @param offset        the offset of the row's first pixel in indices
+     *
+     * @throws IOException  error writing to the stream
+     */
+    public void writeRow(byte[] indices, int offset) throws IOException {
+        if(rowsWritten >= height) throw new IllegalStateException("All rows have already been written");
+
+        // Filter type 'None' followed by the packed indices
+        row[0] = 0;
+        if(bitDepth == 8){
+            System.arraycopy(indices, offset, row, 1, width);
+        }else{
+            int pixelsPerByte = 8 / bitDepth;
+            int mask = (1 << bitDepth) - 1;
+            for(int i=1; i<row.length; i++) row[i] = 0;
+            for(int x=0; x<width; x++){
+                int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                row[1 + x / pixelsPerByte] |= (indices[offset + x] & mask) << shift;
+            }
+        }
+
+        idat.write(row);
+        rowsWritten++;
+    }
+
+    /**
+     * Finish the compressed image data and write the end chunk
+     *
+     * @throws IOException  error writing to the stream
+     */
+    public void finish() throws IOException {
+        if(rowsWritten != height) throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+
+        idat.close();
+        deflater.end();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Write a PNG chunk, the length, type, data and CRC of type and data
+     */
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] tag = type.getBytes("US-ASCII");
+        byte[] buffer = new byte[4];
+
+        putInt(buffer, 0, length);
+        out.write(buffer);
+        out.write(tag);
+        out.write(data, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(tag);
+        crc.update(data, 0, length);
+        putInt(buffer, 0, (int) crc.getValue());
+        out.write(buffer);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value){
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Buffers the compressed stream and emits it as a series of IDAT chunks
+     */
+    private class ChunkOutputStream extends OutputStream {
+
+        private final byte[] buffer = new byte[IDAT_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            if(count == buffer.length) flushChunk();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0){
+                if(count == buffer.length) flushChunk();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if(count > 0){
+                writeChunk("IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reduces an ARGB image to a palette of at most 256 colors and writes it as an indexed PNG
+ * with {@link IndexedPngWriter}. Images with 256 distinct colors or fewer are written with
+ * an exact palette, i.e. losslessly. Anything else is reduced with median cut, optionally
+ * with Floyd-Steinberg dithering.
+ *
+ * The image is read in strips of rows through a {@link PixelSource}, so besides the strip the
+ * quantizer only needs a fixed amount of memory for its color histogram. Quantizing is CPU
+ * heavy and should never be done on the main thread.
+ */
+public class PaletteQuantizer {
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final int MAX_COLORS = 256;
+
+    private static final int STRIP_ROWS = 32;
+    private static final int BINS = 1 << 16;
+
+    /* Exact color table, must be a power of 2 larger than MAX_COLORS */
+    private static final int TABLE_SIZE = 1024;
+
+    /************************************************
+     *
+     * Variables
+     *
+     */
+
+    private final PixelSource source;
+    private final boolean dither;
+
+    private int[] palette;
+    private boolean exact;
+
+    // Exact color lookup table, open addressing on the color value
+    private final int[] tableColors = new int[TABLE_SIZE];
+    private final short[] tableIndices = new short[TABLE_SIZE];
+    private final boolean[] tableUsed = new boolean[TABLE_SIZE];
+
+    // Nearest palette index of each ARGB4444 bin, -1 if not yet computed
+    private int[] nearest;
+
+    /**
+     * Constructor
+     *
+     * @param source    the image to quantize
+     * @param dither    true to apply Floyd-Steinberg dithering when the palette is not exact
+     */
+    public PaletteQuantizer(PixelSource source, boolean dither){
+        this.source = source;
+        this.dither = dither;
+    }
+
+    /************************************************
+     *
+     * Public Methods
+     *
+     */
+
+    /**
+     * Quantize the image and write it as an indexed PNG
+     *
+     * @param out       the stream to write to, it is not closed
+     *
+     * @throws IOException  error writing to the stream
+     */
+    public void writePng(OutputStream out) throws IOException {
+        if(palette == null) buildPalette();
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        IndexedPngWriter writer = new IndexedPngWriter(out, width, height, palette);
+        int[] pixels = new int[width * STRIP_ROWS];
+        byte[] indices = new byte[width];
+
+        // Floyd-Steinberg error rows, 4 channels per pixel with a pixel of padding on either side
+        int[] errors = null, nextErrors = null;
+        if(dither && !exact){
+            errors = new int[(width + 2) * 4];
+            nextErrors = new int[(width + 2) * 4];
+        }
+
+        for(int y=0; y<height; y+=STRIP_ROWS){
+            int rows = Math.min(STRIP_ROWS, height - y);
+            source.readRows(y, rows, pixels);
+
+            for(int r=0; r<rows; r++){
+                int offset = r * width;
+                if(exact){
+                    for(int x=0; x<width; x++){
+                        indices[x] = (byte) lookup(pixels[offset + x]);
+                    }
+                }else if(errors == null){
+                    for(int x=0; x<width; x++){
+                        indices[x] = (byte) nearest(pixels[offset + x]);
+                    }
+                }else{
+                    ditherRow(pixels, offset, width, indices, errors, nextErrors);
+                    int[] swap = errors;
+                    errors = nextErrors;
+                    nextErrors = swap;
+                    Arrays.fill(nextErrors, 0);
+                }
+                writer.writeRow(indices, 0);
+            }
+        }
+
+        writer.finish();
+    }
+
+    /**
+     * Get the palette the image is reduced to
+     *
+     * @return      the ARGB palette
+     */
+    public int[] getPalette(){
+        if(palette == null) buildPalette();
+        return palette;
+    }
+
+    /**
+     * Return whether the image has few enough colors to be written losslessly
+     */
+    public boolean isExact(){
+        if(palette == null) buildPalette();
+        return exact;
+    }
+
+    /************************************************
+     *
+     * Palette Methods
+     *
+     */
+
+    /**
+     * Scan the image once, collecting its distinct colors while they fit in the palette and
+     * an ARGB4444 histogram for median cut in case they don't
+     */
+    private void buildPalette(){
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] pixels = new int[width * STRIP_ROWS];
+
+        int[] counts = new int[BINS];
+        long[] sums = new long[BINS * 4];
+        int distinct = 0;
+
+        for(int y=0; y<height; y+=STRIP_ROWS){
+            int rows = Math.min(STRIP_ROWS, height - y);
+            source.readRows(y, rows, pixels);
+
+            for(int i=0, n=rows * width; i<n; i++){
+                int color = pixels[i];
+
+                if(distinct <= MAX_COLORS && insert(color, distinct)){
+                    distinct++;
+                }
+
+                int bin = bin(color);
+                counts[bin]++;
+                sums[bin * 4] += color >>> 24;
+                sums[bin * 4 + 1] += (color >> 16) & 0xFF;
+                sums[bin * 4 + 2] += (color >> 8) & 0xFF;
+                sums[bin * 4 + 3] += color & 0xFF;
+            }
+        }
+
+        if(distinct <= MAX_COLORS){
+            exact = true;
+            palette = new int[Math.max(1, distinct)];
+            for(int i=0; i<TABLE_SIZE; i++){
+                if(tableUsed[i]) palette[tableIndices[i]] = tableColors[i];
+            }
+        }else{
+            exact = false;
+            palette = medianCut(counts, sums);
+            nearest = new int[BINS];
+            Arrays.fill(nearest, -1);
+        }
+    }
+
+    /**
+     * Insert a color into the exact color table
+     *
+     * @return      true if the color was not in the table yet
+     */
+    private boolean insert(int color, int index){
+        int slot = hash(color);
+        while(tableUsed[slot]){
+            if(tableColors[slot] == color) return false;
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+
+        // Stop recording once the table overflows the palette, it is only used if it doesn't
+        if(index < MAX_COLORS){
+            tableUsed[slot] = true;
+            tableColors[slot] = color;
+            tableIndices[slot] = (short) index;
+        }
+        return true;
+    }
+
+    /**
+     * Find the palette index of a color in the exact color table
+     */
+    private int lookup(int color){
+        int slot = hash(color);
+        while(tableColors[slot] != color || !tableUsed[slot]){
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return tableIndices[slot];
+    }
+
+    private static int hash(int color){
+        int h = color * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & (TABLE_SIZE - 1);
+    }
+
+    private static int bin(int color){
+        return ((color >>> 16) & 0xF000) | ((color >>> 12) & 0x0F00) | ((color >>> 8) & 0x00F0) | ((color >>> 4) & 0x000F);
+    }
+
+    /**
+     * Reduce the histogram to at most {@link #MAX_COLORS} colors by repeatedly splitting the
+     * most populated box of bins along its widest channel at the median pixel
+     */
+    private static int[] medianCut(int[] counts, long[] sums){
+        int used = 0;
+        for(int count: counts) if(count > 0) used++;
+
+        // Sort keys pack the channel value above the bin index
+        long[] keys = new long[used];
+        int[] means = new int[BINS];
+        int k = 0;
+        for(int bin=0; bin<BINS; bin++){
+            if(counts[bin] > 0){
+                keys[k++] = bin;
+                int count = counts[bin];
+                means[bin] = (int) (sums[bin * 4] / count) << 24
+                        | (int) (sums[bin * 4 + 1] / count) << 16
+                        | (int) (sums[bin * 4 + 2] / count) << 8
+                        | (int) (sums[bin * 4 + 3] / count);
+            }
+        }
+
+        List<int[]> boxes = new ArrayList<>();
+        boxes.add(new int[]{ 0, used });
+
+        while(boxes.size() < MAX_COLORS){
+            // Pick the most populated box that can still be split
+            int best = -1;
+            long bestPopulation = 0;
+            for(int i=0; i<boxes.size(); i++){
+                int[] box = boxes.get(i);
+                if(box[1] - box[0] < 2) continue;
+                long population = 0;
+                for(int j=box[0]; j<box[1]; j++) population += counts[(int) (keys[j] & 0xFFFF)];
+                if(population > bestPopulation){
+                    bestPopulation = population;
+                    best = i;
+                }
+            }
+            if(best < 0) break;
+
+            int[] box = boxes.get(best);
+            int shift = widestChannel(keys, box, means);
+
+            for(int j=box[0]; j<box[1]; j++){
+                int bin = (int) (keys[j] & 0xFFFF);
+                keys[j] = ((long) ((means[bin] >>> shift) & 0xFF) << 16) | bin;
+            }
+            Arrays.sort(keys, box[0], box[1]);
+
+            // Split at the median pixel, keeping at least one bin on either side
+            long half = bestPopulation / 2, seen = 0;
+            int split = box[0] + 1;
+            for(int j=box[0]; j<box[1] - 1; j++){
+                seen += counts[(int) (keys[j] & 0xFFFF)];
+                split = j + 1;
+                if(seen >= half) break;
+            }
+
+            boxes.set(best, new int[]{ box[0], split });
+            boxes.add(new int[]{ split, box[1] });
+        }
+
+        // Each palette color is the pixel weighted average of its box
+        int[] palette = new int[boxes.size()];
+        for(int i=0; i<boxes.size(); i++){
+            int[] box = boxes.get(i);
+            long a = 0, r = 0, g = 0, b = 0, n = 0;
+            for(int j=box[0]; j<box[1]; j++){
+                int bin = (int) (keys[j] & 0xFFFF);
+                a += sums[bin * 4];
+                r += sums[bin * 4 + 1];
+                g += sums[bin * 4 + 2];
+                b += sums[bin * 4 + 3];
+                n += counts[bin];
+            }
+            palette[i] = (int) (a / n) << 24 | (int) (r / n) << 16 | (int) (g / n) << 8 | (int) (b / n);
+        }
+
+        return palette;
+    }
+
+    /**
+     * Find the channel with the widest range of values in a box
+     *
+     * @return      the bit shift of that channel in an ARGB color
+     */
+    private static int widestChannel(long[] keys, int[] box, int[] means){
+        int bestShift = 0, bestRange = -1;
+        for(int shift=0; shift<32; shift+=8){
+            int min = 255, max = 0;
+            for(int j=box[0]; j<box[1]; j++){
+                int value = (means[(int) (keys[j] & 0xFFFF)] >>> shift) & 0xFF;
+                if(value < min) min = value;
+                if(value > max) max = value;
+            }
+            if(max - min > bestRange){
+                bestRange = max - min;
+                bestShift = shift;
+            }
+        }
+        return bestShift;
+    }
+
+    /************************************************
+     *
+     * Mapping Methods
+     *
+     */
+
+    /**
+     * Find the nearest palette index of a color, cached per ARGB4444 bin
+     */
+    private int nearest(int color){
+        int bin = bin(color);
+        int index = nearest[bin];
+        if(index < 0){
+            index = search(color);
+            nearest[bin] = index;
+        }
+        return index;
+    }
+
+    /**
+     * Linear search for the nearest palette color
+     */
+    private int search(int color){
+        int a = color >>> 24, r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+        int best = 0, bestDistance = Integer.MAX_VALUE;
+        for(int i=0; i<palette.length; i++){
+            int p = palette[i];
+            int da = a - (p >>> 24), dr = r - ((p >> 16) & 0xFF), dg = g - ((p >> 8) & 0xFF), db = b - (p & 0xFF);
+            int distance = da * da + dr * dr + dg * dg + db * db;
+            if(distance < bestDistance){
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Map a row to the palette while diffusing the quantization error
+     * to the neighbouring pixels, Floyd-Steinberg style
+     */
+    private void ditherRow(int[] pixels, int offset, int width, byte[] indices, int[] errors, int[] nextErrors){
+        for(int x=0; x<width; x++){
+            int color = pixels[offset + x];
+            int e = (x + 1) * 4;
+
+            int a = clamp((color >>> 24) + errors[e] / 16);
+            int r = clamp(((color >> 16) & 0xFF) + errors[e + 1] / 16);
+            int g = clamp(((color >> 8) & 0xFF) + errors[e + 2] / 16);
+            int b = clamp((color & 0xFF) + errors[e + 3] / 16);
+
+            int index = nearest(a << 24 | r << 16 | g << 8 | b);
+            indices[x] = (byte) index;
+
+            int p = palette[index];
+            diffuse(errors, nextErrors, e, 0, a - (p >>> 24));
+            diffuse(errors, nextErrors, e, 1, r - ((p >> 16) & 0xFF));
+            diffuse(errors, nextErrors, e, 2, g - ((p >> 8) & 0xFF));
+            diffuse(errors, nextErrors, e, 3, b - (p & 0xFF));
+        }
+    }
+
+    private static void diffuse(int[] errors, int[] nextErrors, int e, int channel, int error){
+        errors[e + 4 + channel] += error * 7;
+        nextErrors[e - 4 + channel] += error * 3;
+        nextErrors[e + channel] += error * 5;
+        nextErrors[e + 4 + channel] += error;
+    }
+
+    private static int clamp(int value){
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * Source of the ARGB pixels to quantize
+     */
+    public static interface PixelSource {
+        public int getWidth();
+        public int getHeight();
+
+        /**
+         * Read a strip of rows into the pixel buffer, row by row with a stride of the image width
+         *
+         * @param y         the first row to read
+         * @param rows      the number of rows to read
+         * @param pixels    the buffer to read into
+         */
+        public void readRows(int y, int rows, int[] pixels);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import com.ftinc.flytrap.model.BinaryMetadata;
+
+import java.util.Arrays;
+
+/**
+ * Deterministic, pure java renderer of the FlyTrap shade. When a report is sent in vector
+ * shade mode only the bug geometry and view dimensions are delivered, and this renderer
+ * rebuilds the shade from them on demand: a translucent fill with every bug punched out
+ * and outlined by its accent ring.
+ *
+ * This class has no Android dependencies so it can be used by server-side tooling
+ * together with {@link BinaryMetadata}.
+ */
+public class ShadeRenderer {
+
+    /**
+     * The shade fill color, this matches R.color.black65
+     */
+    public static final int SHADE_COLOR = 0xA5000000;
+
+    /**
+     * The stroke width of the accent ring drawn around each bug
+     */
+    public static final float ACCENT_STROKE_WIDTH = 5f;
+
+    /**
+     * Render the shade from decoded binary metadata
+     *
+     * @param meta      the decoded metadata, must carry the view dimensions
+     * @return          the ARGB pixels of the shade, row by row
+     */
+    public static int[] render(BinaryMetadata meta){
+        float[] geometry = new float[meta.bugs.size() * 3];
+        int[] colors = new int[meta.bugs.size()];
+        for(int i=0; i<colors.length; i++){
+            BinaryMetadata.Entry bug = meta.bugs.get(i);
+            geometry[i * 3] = bug.x;
+            geometry[i * 3 + 1] = bug.y;
+            geometry[i * 3 + 2] = bug.radius;
+            colors[i] = bug.color;
+        }
+        return render(meta.width, meta.height, geometry, colors);
+    }
+
+    /**
+     * Render the shade
+     *
+     * @param width         the width of the shade
+     * @param height        the height of the shade
+     * @param geometry      the bug circles as consecutive (x, y, radius) triples
+     * @param colors        the accent color of each bug
+     * @return              the ARGB pixels of the shade, row by row
+     */
+    public static int[] render(int width, int height, float[] geometry, int[] colors){
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, SHADE_COLOR);
+
+        int count = colors.length;
+
+        // Punch out all of the bugs first
+        for(int i=0; i<count; i++){
+            float x = geometry[i * 3];
+            float y = geometry[i * 3 + 1];
+            float r = geometry[i * 3 + 2];
+            fill(pixels, width, height, x, y, 0, r, 0);
+        }
+
+        // Then render the accent rings over the punch outs
+        float halfStroke = ACCENT_STROKE_WIDTH / 2f;
+        for(int i=0; i<count; i++){
+            float x = geometry[i * 3];
+            float y = geometry[i * 3 + 1];
+            float r = geometry[i * 3 + 2];
+            fill(pixels, width, height, x, y, Math.max(0, r - halfStroke), r + halfStroke, colors[i] | 0xFF000000);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Fill every pixel whose center lies in the ring between the inner and
+     * outer radius with the given color
+     */
+    private static void fill(int[] pixels, int width, int height, float cx, float cy,
+                             float inner, float outer, int color){
+        if(outer <= 0) return;
+
+        int left = Math.max(0, (int) Math.floor(cx - outer));
+        int right = Math.min(width - 1, (int) Math.ceil(cx + outer));
+        int top = Math.max(0, (int) Math.floor(cy - outer));
+        int bottom = Math.min(height - 1, (int) Math.ceil(cy + outer));
+
+        float inner2 = inner * inner;
+        float outer2 = outer * outer;
+        for(int py=top; py<=bottom; py++){
+            float dy = py + 0.5f - cy;
+            int row = py * width;
+            for(int px=left; px<=right; px++){
+                float dx = px + 0.5f - cx;
+                float dist2 = dx * dx + dy * dy;
+                if(dist2 < outer2 && dist2 >= inner2){
+                    pixels[row + px] = color;
+                }
+            }
+        }
+    }
+
+}
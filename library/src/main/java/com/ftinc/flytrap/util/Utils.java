@@ -23,6 +23,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.Bitmap;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.View;
@@ -37,6 +38,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -47,6 +49,52 @@ import java.util.zip.ZipOutputStream;
  */
 public class Utils {
 
+    /*
+     * Upper-case hex digits used by {@link #toHexColor(int)}
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Format the RGB portion of a color as a '#RRGGBB' string without
+     * going through {@link String#format(String, Object...)}
+     *
+     * @param color     the color to format
+     * @return          the formatted hex color string
+     */
+    public static String toHexColor(int color){
+        char[] out = new char[7];
+        out[0] = '#';
+        for(int i=6; i>0; i--){
+            out[i] = HEX_DIGITS[color & 0xF];
+            color >>>= 4;
+        }
+        return new String(out);
+    }
+
+    /**
+     * Parse a '#RRGGBB' or '#AARRGGBB' hex color string back into a color int. Colors
+     * without an alpha component are returned fully opaque.
+     *
+     * @param value     the hex color string
+     * @return          the parsed color, or 0 if the string is malformed
+     */
+    public static int parseHexColor(String value){
+        if(value == null) return 0;
+
+        int start = value.startsWith("#") ? 1 : 0;
+        int length = value.length() - start;
+        if(length != 6 && length != 8) return 0;
+
+        int color = 0;
+        for(int i=start; i<value.length(); i++){
+            int digit = Character.digit(value.charAt(i), 16);
+            if(digit < 0) return 0;
+            color = (color << 4) | digit;
+        }
+
+        return length == 6 ? (0xFF000000 | color) : color;
+    }
+
     /**
      * Compute the distance between two points
      *
@@ -72,6 +120,50 @@ public class Utils {
         return distSqr < (b1.getRadius() + b2.getRadius()) * (b1.getRadius() + b2.getRadius());
     }
 
+    /**
+     * Plan the crop regions around a set of bugs. Each bug's bounding box is grown by the
+     * margin and clamped to the image, then overlapping boxes are merged into their union
+     * until no two regions overlap so that no pixel is covered twice.
+     *
+     * @param bugs      the bugs to crop around
+     * @param margin    the margin to add around each bug's bounding box
+     * @param width     the width of the image being cropped
+     * @param height    the height of the image being cropped
+     * @return          the non-overlapping crop regions
+     */
+    public static List<Rect> planCrops(List<Bug> bugs, int margin, int width, int height){
+        List<Rect> regions = new ArrayList<>();
+        for(Bug bug: bugs){
+            float extent = bug.getRadius() + margin;
+            Rect region = new Rect(
+                    (int) Math.floor(bug.getCenterX() - extent),
+                    (int) Math.floor(bug.getCenterY() - extent),
+                    (int) Math.ceil(bug.getCenterX() + extent),
+                    (int) Math.ceil(bug.getCenterY() + extent));
+
+            if(region.intersect(0, 0, width, height)){
+                regions.add(region);
+            }
+        }
+
+        // Merge overlapping regions, a merged region can overlap others so repeat until stable
+        boolean merged = true;
+        while(merged){
+            merged = false;
+            for(int i=0; i<regions.size() && !merged; i++){
+                for(int j=i+1; j<regions.size(); j++){
+                    if(Rect.intersects(regions.get(i), regions.get(j))){
+                        regions.get(i).union(regions.remove(j));
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return regions;
+    }
+
     /**
      * Convert dp to px
      *
@@ -158,6 +250,17 @@ public class Utils {
      * @return              the File object representation of the temporary image file stored
      */
     public static File captureRootScreenShot(Activity activity){
+        return saveScreenShot(activity, captureRootBitmap(activity));
+    }
+
+    /**
+     * Capture the root screenshot of a calling activity into a bitmap, this must be called
+     * on the main thread
+     *
+     * @param activity      the calling activity
+     * @return              the screenshot
+     */
+    public static Bitmap captureRootBitmap(Activity activity){
         View decor = activity.getWindow().getDecorView();
         decor.setDrawingCacheEnabled(true);
 
@@ -173,20 +276,42 @@ public class Utils {
         // Disable drawing cache on the decor
         decor.setDrawingCacheEnabled(false);
 
+        return screenShot;
+    }
+
+    /**
+     * Store a screenshot in a temporary file to later use, this may be called on any thread
+     *
+     * @param ctx           the context
+     * @param screenShot    the screenshot
+     * @return              the File object representation of the temporary image file stored,
+     *                      or null if it couldn't be written
+     */
+    public static File saveScreenShot(Context ctx, Bitmap screenShot){
+
         // Save the newly generated screenshot into a temporary variable
         try {
 
             // Create an image file name
             String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
             String imageFileName = "PNG_" + timeStamp + "_";
-            File cacheDir = activity.getCacheDir();
-            File tempFile = File.createTempFile(imageFileName, ".png", cacheDir);
+            ArtifactStore store = ArtifactStore.get(ctx);
+            File tempFile = store.newFile(imageFileName, ".png");
 
             // Write bitmap to file
-            boolean result = screenShot.compress(Bitmap.CompressFormat.PNG, 0, new FileOutputStream(tempFile));
+            FileOutputStream out = new FileOutputStream(tempFile);
+            boolean result;
+            try {
+                result = screenShot.compress(Bitmap.CompressFormat.PNG, 0, out);
+            } finally {
+                out.close();
+            }
+
             if(result)
                 return tempFile;
 
+            store.release(tempFile);
+
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads FlyTrap does its background work on, encoding screenshots, assembling reports
+ * and network requests. The work runs on FlyTrap's own small pool of low priority threads,
+ * so it never waits behind the host app's {@link android.os.AsyncTask}s, nor holds them up.
+ *
+ * The pool is bounded, at most {@link #MAX_THREADS} threads and {@link #MAX_QUEUED} waiting
+ * tasks. Work beyond that is rejected with a {@link RejectedExecutionException} rather than
+ * piling up, the caller fails the delivery. Host apps can supply their own executor with
+ * {@link #setExecutor(Executor)}, or {@link com.ftinc.flytrap.FlyTrap.Config#executor}.
+ *
+ * A task that throws isn't swallowed by its future, the exception is logged and rethrown on
+ * the main thread, just like it would have been from an {@link android.os.AsyncTask}.
+ */
+public class Workers {
+    private static final String TAG = Workers.class.getName();
+
+    /************************************************
+     *
+     * Constants
+     *
+     */
+
+    public static final int MAX_THREADS = 2;
+    public static final int MAX_QUEUED = 32;
+
+    private static final long KEEP_ALIVE = 30;
+
+    /************************************************
+     *
+     * Static Variables
+     *
+     */
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static Executor sExecutor;
+
+    /**
+     * Hidden Constructor
+     */
+    private Workers(){}
+
+    /************************************************
+     *
+     * Static Methods
+     *
+     */
+
+    /**
+     * Get the executor background work runs on, creating the default pool if the host app
+     * hasn't supplied its own
+     *
+     * @return      the executor
+     */
+    public static synchronized Executor getExecutor(){
+        if(sExecutor == null){
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new WorkerThreadFactory(), new RejectionPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            sExecutor = pool;
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Supply the executor FlyTrap does its background work on. It must not run tasks on the
+     * calling thread, that may be the main thread.
+     *
+     * @param executor  the executor to use, or null to restore the default pool
+     */
+    public static synchronized void setExecutor(Executor executor){
+        sExecutor = executor;
+    }
+
+    /**
+     * Run a task in the background, if it throws the exception is rethrown on the main thread
+     *
+     * @param task      the task to run
+     * @return          the future of the task, cancel it to skip the task if it hasn't started
+     *                  yet or to interrupt it if it has
+     *
+     * @throws RejectedExecutionException   if the executor is saturated
+     */
+    public static Future<?> execute(Runnable task){
+        FutureTask<Void> future = new WorkerTask(task);
+        getExecutor().execute(future);
+        return future;
+    }
+
+    /**
+     * Run a task on the main thread
+     *
+     * @param task      the task to run
+     */
+    public static void postToMain(Runnable task){
+        sMainHandler.post(task);
+    }
+
+    /**
+     * Run a task on the main thread after a delay
+     *
+     * @param task      the task to run
+     * @param delay     the delay in milliseconds
+     */
+    public static void postToMain(Runnable task, long delay){
+        sMainHandler.postDelayed(task, delay);
+    }
+
+    /**
+     * Remove a task that was posted to the main thread and hasn't run yet
+     *
+     * @param task      the task to remove
+     */
+    public static void removeFromMain(Runnable task){
+        sMainHandler.removeCallbacks(task);
+    }
+
+    /************************************************
+     *
+     * Interfaces and Classes
+     *
+     */
+
+    /**
+     * Creates the low priority worker threads
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "FlyTrap-Worker-" + count.incrementAndGet());
+        }
+    }
+
+    /**
+     * The future of a background task, it surfaces the exception of a failed task instead of
+     * keeping it for a {@link Future#get()} that nobody calls
+     */
+    private static class WorkerTask extends FutureTask<Void> {
+
+        WorkerTask(Runnable task){
+            super(task, null);
+        }
+
+        @Override
+        protected void done() {
+            if(isCancelled()) return;
+
+            try {
+                get();
+            } catch (InterruptedException e) {
+                // The task is done, get() doesn't block
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                Log.e(TAG, "Background work failed", cause);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        if(cause instanceof Error) throw (Error) cause;
+                        throw new RuntimeException(cause);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Logs and rejects work while the pool is saturated
+     */
+    private static class RejectionPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            Log.w(TAG, "Rejecting background work, " + executor.getQueue().size() + " tasks are queued");
+            throw new RejectedExecutionException("FlyTrap workers are saturated");
+        }
+    }
+
+}
@@ -53,6 +53,8 @@ import com.ftinc.flytrap.FlyTrap;
 import com.ftinc.flytrap.R;
 import com.ftinc.flytrap.model.Bug;
 import com.ftinc.flytrap.model.Report;
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.ftinc.flytrap.util.ShadeRenderer;
 import com.ftinc.flytrap.util.Utils;
 
 import java.io.File;
@@ -208,7 +210,7 @@ public class FlyTrapView extends RelativeLayout implements GestureDetector.OnGes
         // Define the accent paint style
         mAccentPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mAccentPaint.setStyle(Paint.Style.STROKE);
-        mAccentPaint.setStrokeWidth(5);
+        mAccentPaint.setStrokeWidth(ShadeRenderer.ACCENT_STROKE_WIDTH);
 
         // Define the active state paint object
         mActivePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -772,6 +774,22 @@ public class FlyTrapView extends RelativeLayout implements GestureDetector.OnGes
     public void onClick(View v) {
         Log.d(TAG, "Done! Progressing to the next stage of FlyTrap");
 
+        // In vector shade mode the shade is rendered from the bug geometry later, skip capturing it
+        if(mConfig.vectorShade){
+            Report report = new Report.Builder()
+                    .addBugs(mBugs)
+                    .setBaseScreenshot(mConfig.rootImagePath)
+                    .setDimensions(getWidth(), getHeight())
+                    .setAttachmentMode(mConfig.attachmentMode, mConfig.cropMargin)
+                    .setQuantization(mConfig.quantizeScreenshots, mConfig.ditherScreenshots)
+                    .setDeliveryConstraints(mConfig.deliveryConstraints)
+                    .addContributions()
+                    .build();
+
+            if(mActionListener != null) mActionListener.onDone(report);
+            return;
+        }
+
         // Mask screen shot
         setDrawingCacheEnabled(true);
         Bitmap flyTrapMask = Bitmap.createBitmap(getDrawingCache());
@@ -786,11 +804,18 @@ public class FlyTrapView extends RelativeLayout implements GestureDetector.OnGes
             // Create an image file name
             String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
             String imageFileName = "PNG_" + timeStamp + "_";
-            File cacheDir = getContext().getCacheDir();
-            File tempFile = File.createTempFile(imageFileName, ".png", cacheDir);
+            ArtifactStore store = ArtifactStore.get(getContext());
+            File tempFile = store.newFile(imageFileName, ".png");
 
             // Write bitmap to file
-            boolean result = flyTrapMask.compress(Bitmap.CompressFormat.PNG, 0, new FileOutputStream(tempFile));
+            FileOutputStream out = new FileOutputStream(tempFile);
+            boolean result;
+            try {
+                result = flyTrapMask.compress(Bitmap.CompressFormat.PNG, 0, out);
+            } finally {
+                out.close();
+            }
+
             if(result){
 
                 // Generate screen of the originating activity
@@ -798,11 +823,18 @@ public class FlyTrapView extends RelativeLayout implements GestureDetector.OnGes
                         .addBugs(mBugs)
                         .setBaseScreenshot(mConfig.rootImagePath)
                         .setShadeScreenshot(tempFile.getPath())
+                        .setDimensions(getWidth(), getHeight())
+                        .setAttachmentMode(mConfig.attachmentMode, mConfig.cropMargin)
+                        .setQuantization(mConfig.quantizeScreenshots, mConfig.ditherScreenshots)
+                        .setDeliveryConstraints(mConfig.deliveryConstraints)
+                        .addContributions()
                         .build();
 
                 // finish activity
                 if(mActionListener != null) mActionListener.onDone(report);
 
+            }else{
+                store.release(tempFile);
             }
 
         } catch (IOException e) {
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JankMonitorTest {
+
+    /**
+     * Frames at 60fps, janky frames missed two vsyncs
+     */
+    private static final long SMOOTH = TimeUnit.MILLISECONDS.toNanos(16);
+    private static final long JANKY = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private JankMonitor monitor;
+    private long frameTime;
+
+    @Before
+    public void setUp() throws Exception {
+        monitor = new JankMonitor(null)
+                .setSustainedJank(3, 10)
+                .setCooldown(0);
+        monitor.setRefreshRate(60f);
+
+        // The first frame only starts the clock
+        frameTime = TimeUnit.SECONDS.toNanos(1);
+        assertFalse(monitor.recordFrame(frameTime, System.nanoTime()));
+    }
+
+    @Test
+    public void sustainedJankFilesAReport() throws Exception {
+        assertFalse(frame(JANKY));
+        assertFalse(frame(SMOOTH));
+        assertFalse(frame(JANKY));
+        assertNotNull(monitor.getSection());
+
+        assertTrue(frame(JANKY));
+
+        // The stats start over after the report
+        assertNull(monitor.getSection());
+    }
+
+    @Test
+    public void isolatedJankSlidesOutOfTheWindow() throws Exception {
+        // Two janky frames in every ten never add up to three in a window
+        for(int i=0; i<100; i++){
+            assertFalse("Frame " + i, frame(i % 5 == 0 ? JANKY : SMOOTH));
+        }
+        assertNotNull(monitor.getSection());
+    }
+
+    @Test
+    public void windowStartsOverAfterAReport() throws Exception {
+        for(int i=0; i<2; i++) assertFalse(frame(JANKY));
+        assertTrue(frame(JANKY));
+
+        // The jank that triggered the report doesn't count towards the next one
+        for(int i=0; i<2; i++) assertFalse(frame(JANKY));
+        assertTrue(frame(JANKY));
+    }
+
+    @Test
+    public void jankFactorRaisesTheThreshold() throws Exception {
+        monitor.setJankFactor(4f);
+
+        // 50ms is three refresh intervals, short of four
+        for(int i=0; i<20; i++){
+            assertFalse(frame(JANKY));
+        }
+    }
+
+    /**
+     * Render a frame that took the given time
+     *
+     * @return      true if it filed a report
+     */
+    private boolean frame(long duration){
+        frameTime += duration;
+        return monitor.recordFrame(frameTime, System.nanoTime());
+    }
+
+}
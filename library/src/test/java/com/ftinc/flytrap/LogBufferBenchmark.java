@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of appending to a shared {@link LogBuffer} from one and from several
+ * threads at once. The GC profiler reports the bytes allocated per line, which should be zero
+ * for lines without a throwable.
+ *
+ * Run it from the test classpath:
+ * <pre>
+ *   java -cp {test classpath} com.ftinc.flytrap.LogBufferBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogBufferBenchmark {
+
+    private static final int PRIORITY_DEBUG = 3;
+    private static final String TAG = "Benchmark";
+    private static final String MESSAGE = "Loaded 42 items from the cache in 3ms, refreshing in the background";
+
+    private LogBuffer buffer;
+    private Throwable throwable;
+
+    @Setup
+    public void setUp(){
+        buffer = new LogBuffer(LogBuffer.DEFAULT_SLOTS, LogBuffer.DEFAULT_SLOT_SIZE);
+        throwable = new IllegalStateException("Cache is stale");
+    }
+
+    @Benchmark
+    public void log(){
+        buffer.log(PRIORITY_DEBUG, TAG, MESSAGE, null);
+    }
+
+    @Benchmark
+    public void logWithThrowable(){
+        buffer.log(PRIORITY_DEBUG, TAG, MESSAGE, throwable);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads: new int[]{ 1, 2, 4, 8 }){
+            Options options = new OptionsBuilder()
+                    .include(LogBufferBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
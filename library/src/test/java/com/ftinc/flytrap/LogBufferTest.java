@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogBufferTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int LINES = 20000;
+    private static final int PRIORITY_DEBUG = 3;
+    private static final int PADDING = 24;
+
+    @Test
+    public void snapshotNeverReturnsTornLines() throws Exception {
+        // Long lines in a small ring give the producers the most chances to overwrite a line
+        // while it is copied
+        final int padding = 1000;
+        final LogBuffer buffer = new LogBuffer(8, 1100);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> torn = new AtomicReference<>();
+        final AtomicLong snapshots = new AtomicLong();
+
+        // Check every snapshot taken while the producers lap the ring over and over
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(!done.get() && torn.get() == null){
+                        String error = check(read(buffer.snapshot()), padding);
+                        if(error != null) torn.set(error);
+                        snapshots.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    torn.set(e.toString());
+                }
+            }
+        });
+        reader.start();
+
+        RecordingProducers producers = produce(buffer, padding);
+        done.set(true);
+        reader.join();
+
+        assertNull(torn.get(), torn.get());
+        assertTrue(snapshots.get() > 0);
+        assertNull(check(read(buffer.snapshot()), padding));
+        assertEquals(PRODUCERS * LINES, producers.recorded.get() + buffer.getDroppedCount());
+    }
+
+    @Test
+    public void everyLineIsKeptWithoutLapping() throws Exception {
+        LogBuffer buffer = new LogBuffer(PRODUCERS * LINES, 64);
+        RecordingProducers producers = produce(buffer, PADDING);
+
+        List<String> lines = read(buffer.snapshot());
+        assertEquals(0, buffer.getDroppedCount());
+        assertEquals(PRODUCERS * LINES, producers.recorded.get());
+        assertEquals(PRODUCERS * LINES, lines.size());
+        assertNull(check(lines, PADDING));
+        assertEquals(PRODUCERS * LINES, new HashSet<>(lines).size());
+    }
+
+    @Test
+    public void droppedLinesAreCounted() throws Exception {
+        // A ring of a single slot makes the producers lap each other all the time, every line
+        // is either recorded or counted as dropped
+        LogBuffer buffer = new LogBuffer(1, 64);
+        RecordingProducers producers = produce(buffer, PADDING);
+
+        assertEquals(PRODUCERS * LINES, producers.recorded.get() + buffer.getDroppedCount());
+        assertTrue(read(buffer.snapshot()).size() <= 1);
+    }
+
+    @Test
+    public void longLinesAreCutShort() throws Exception {
+        LogBuffer buffer = new LogBuffer(4, 32);
+        buffer.log(PRIORITY_DEBUG, "Tag", "A message much longer than the sixteen bytes a slot holds", null);
+
+        List<String> lines = read(buffer.snapshot());
+        assertEquals(1, lines.size());
+        assertEquals("Tag: A message m", lines.get(0));
+    }
+
+    @Test
+    public void recordingWithoutThrowableDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        LogBuffer buffer = new LogBuffer(64, 128);
+        String tag = "Tag";
+        String message = "A line that is logged over and over, café";
+        for(int i=0; i<LINES; i++){
+            buffer.log(PRIORITY_DEBUG, tag, message, null);
+        }
+
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for(int i=0; i<LINES; i++){
+            buffer.log(PRIORITY_DEBUG, tag, message, null);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        // Leave room for the measurement itself, a single allocation per line would be far more
+        assertTrue("Recording allocated " + allocated + " bytes", allocated < LINES / 10);
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static class RecordingProducers {
+        final AtomicLong recorded = new AtomicLong();
+    }
+
+    /**
+     * Log {@link #LINES} lines from each of {@link #PRODUCERS} threads at once, counting the
+     * lines that were recorded
+     */
+    private static RecordingProducers produce(final LogBuffer buffer, final int padding) throws InterruptedException {
+        final RecordingProducers producers = new RecordingProducers();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for(int p=0; p<PRODUCERS; p++){
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for(int i=0; i<LINES; i++){
+                        String message = message(producer, i, padding);
+                        if(buffer.append(PRIORITY_DEBUG, "T", message, null)) producers.recorded.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for(Thread thread: threads){
+            thread.join();
+        }
+        return producers;
+    }
+
+    /**
+     * Build a line that names its producer and index and is padded with a letter derived from
+     * both, so that a line mixed from two writes stands out
+     */
+    private static String message(int producer, int index, int padding){
+        StringBuilder message = new StringBuilder();
+        message.append(producer).append(' ').append(index).append(' ');
+        char fill = (char) ('a' + (producer * 7 + index) % 26);
+        for(int i=0; i<padding; i++){
+            message.append(fill);
+        }
+        return message.toString();
+    }
+
+    /**
+     * Check that every line is whole and that the lines of each producer are in order
+     *
+     * @return      a description of the first bad line, or null
+     */
+    private static String check(List<String> lines, int padding){
+        int[] last = new int[PRODUCERS];
+        for(int p=0; p<PRODUCERS; p++){
+            last[p] = -1;
+        }
+
+        for(String line: lines){
+            String[] fields = line.split(" ");
+            if(fields.length != 4 || !"T:".equals(fields[0])) return "Malformed line: " + line;
+
+            int producer;
+            int index;
+            try {
+                producer = Integer.parseInt(fields[1]);
+                index = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException e) {
+                return "Malformed line: " + line;
+            }
+            if(producer < 0 || producer >= PRODUCERS || index < 0 || index >= LINES) return "Malformed line: " + line;
+            if(!line.equals("T: " + message(producer, index, padding))) return "Torn line: " + line;
+            if(index <= last[producer]) return "Out of order line: " + line;
+            last[producer] = index;
+        }
+        return null;
+    }
+
+    /**
+     * Format the snapshot and strip the logcat prefix off its lines
+     */
+    private static List<String> read(LogBuffer.Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.writeTo(out);
+
+        List<String> lines = new ArrayList<>();
+        for(String line: out.toString("UTF-8").split("\n")){
+            if(line.isEmpty()) continue;
+            int start = line.indexOf(" D/");
+            if(start == -1) fail("Unexpected line format: " + line);
+            lines.add(line.substring(start + 3));
+        }
+        return lines;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU the {@link StallWatchdog} costs while the main thread is responsive, which is
+ * how it spends nearly all of its time in a dogfood build. The watchdog mostly sleeps, so its cost
+ * is the CPU time of the watchdog thread, plus the pings it runs on the main thread, over the
+ * wall time. This is not a throughput that JMH could measure, the threads are timed with the
+ * {@link ThreadMXBean} instead.
+ *
+ * Run it with the default interval, or pass the interval in milliseconds:
+ * <pre>
+ *   java -cp {test classpath} com.ftinc.flytrap.StallWatchdogBenchmark [interval] [seconds]
+ * </pre>
+ */
+public class StallWatchdogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long interval = args.length > 0 ? Long.parseLong(args[0]) : StallWatchdog.DEFAULT_INTERVAL;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!threads.isThreadCpuTimeSupported()) throw new IllegalStateException("Thread CPU time is not supported");
+        threads.setThreadCpuTimeEnabled(true);
+
+        final Thread[] mainThread = new Thread[1];
+        ExecutorService main = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                mainThread[0] = new Thread(r, "main");
+                return mainThread[0];
+            }
+        });
+        main.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+
+        StallWatchdog watchdog = new StallWatchdog(main, mainThread[0])
+                .setInterval(interval)
+                .start();
+        Thread watchdogThread = find("FlyTrap-StallWatchdog");
+
+        // Let the watchdog settle before measuring
+        Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+        long mainStart = threads.getThreadCpuTime(mainThread[0].getId());
+        long watchdogStart = threads.getThreadCpuTime(watchdogThread.getId());
+        long wallStart = System.nanoTime();
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+
+        long wall = System.nanoTime() - wallStart;
+        long pings = threads.getThreadCpuTime(mainThread[0].getId()) - mainStart;
+        long watching = threads.getThreadCpuTime(watchdogThread.getId()) - watchdogStart;
+        watchdog.stop();
+        main.shutdownNow();
+
+        long wakeups = TimeUnit.NANOSECONDS.toMillis(wall) / interval;
+        System.out.printf("interval:          %d ms%n", interval);
+        System.out.printf("wall time:         %d ms%n", TimeUnit.NANOSECONDS.toMillis(wall));
+        System.out.printf("watchdog cpu:      %d us (%.4f%%)%n", TimeUnit.NANOSECONDS.toMicros(watching), 100.0 * watching / wall);
+        System.out.printf("ping cpu on main:  %d us (%.4f%%)%n", TimeUnit.NANOSECONDS.toMicros(pings), 100.0 * pings / wall);
+        System.out.printf("cpu per wakeup:    %d ns%n", (watching + pings) / Math.max(wakeups, 1));
+        System.out.printf("stalls recorded:   %d%n", watchdog.getStallCount());
+    }
+
+    private static Thread find(String name){
+        for(Thread thread: Thread.getAllStackTraces().keySet()){
+            if(name.equals(thread.getName())) return thread;
+        }
+        throw new IllegalStateException("No thread named " + name);
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Watches a single thread executor that stands in for the main thread
+ */
+public class StallWatchdogTest {
+
+    private ExecutorService main;
+    private Thread mainThread;
+    private StallWatchdog watchdog;
+
+    @Before
+    public void setUp() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        main = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                mainThread = new Thread(r, "main");
+                started.countDown();
+                return mainThread;
+            }
+        });
+        main.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        started.await();
+
+        watchdog = new StallWatchdog(main, mainThread)
+                .setInterval(10)
+                .setThreshold(50)
+                .setSampleInterval(10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watchdog.stop();
+        main.shutdownNow();
+    }
+
+    @Test
+    public void stallInProgressIsReported() throws Exception {
+        watchdog.start();
+        CountDownLatch release = block();
+
+        assertTrue(awaitStalled(true));
+        assertNotNull(watchdog.getSection());
+        assertEquals(0, watchdog.getStallCount());
+
+        release.countDown();
+        assertTrue(awaitStalled(false));
+        assertEquals(1, watchdog.getStallCount());
+    }
+
+    @Test
+    public void thresholdChangeTakesEffectWhileRunning() throws Exception {
+        watchdog.setThreshold(TimeUnit.MINUTES.toMillis(1)).start();
+        CountDownLatch release = block();
+        Thread.sleep(200);
+        assertFalse(watchdog.isStalled());
+        release.countDown();
+
+        // Let the pending ping through so that the next one picks up the new threshold
+        watchdog.setThreshold(50);
+        Thread.sleep(100);
+        release = block();
+        assertTrue(awaitStalled(true));
+        release.countDown();
+    }
+
+    @Test
+    public void responsiveThreadLeavesNoSection() throws Exception {
+        watchdog.start();
+        Thread.sleep(200);
+        assertFalse(watchdog.isStalled());
+        assertNull(watchdog.getSection());
+    }
+
+    /**
+     * Block the main thread until the returned latch is released
+     */
+    private CountDownLatch block(){
+        final CountDownLatch release = new CountDownLatch(1);
+        main.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return release;
+    }
+
+    private boolean awaitStalled(boolean stalled) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(watchdog.isStalled() != stalled){
+            if(System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryMetadataTest {
+
+    private static final float DELTA = 0f;
+
+    @Test
+    public void everyFieldSurvivesARoundTrip() throws Exception {
+        BinaryMetadata meta = new BinaryMetadata();
+        meta.title = "Checkout – total is wrong ✓";
+        meta.timestamp = 1413849600000L;
+        meta.width = 1080;
+        meta.height = 1920;
+        meta.flags = BinaryMetadata.FLAG_VECTOR_SHADE;
+        meta.thumbnailSampleSize = 4;
+        meta.quality = "low";
+        meta.sampleSize = 2;
+        meta.addCrop(0, 12, 300, 1920);
+        meta.addCrop(540, 960, 1080, 1300);
+        meta.addBug(1, 120.5f, 340.25f, 48f, 0xFFE91E63, "Total doesn't add up");
+        meta.addBug(2, 0f, 1919.75f, 0.5f, 0x80000000, "Überlauf – 日本語");
+        meta.addBug(300, 1080f, 0f, 128f, 0, null);
+        meta.addSection("device", "{\"model\":\"Nexus 5\",\"sdk\":21}");
+        meta.addSection("logs", "[\"one\",\"two\"]");
+
+        BinaryMetadata decoded = roundTrip(meta);
+
+        assertEquals(BinaryMetadata.VERSION, decoded.version);
+        assertEquals(meta.title, decoded.title);
+        assertEquals(meta.timestamp, decoded.timestamp);
+        assertEquals(1080, decoded.width);
+        assertEquals(1920, decoded.height);
+        assertEquals(BinaryMetadata.FLAG_VECTOR_SHADE, decoded.flags);
+        assertEquals(4, decoded.thumbnailSampleSize);
+        assertEquals("low", decoded.quality);
+        assertEquals(2, decoded.sampleSize);
+
+        assertEquals(2, decoded.crops.size());
+        assertCrop(decoded.crops.get(0), 0, 12, 300, 1920);
+        assertCrop(decoded.crops.get(1), 540, 960, 1080, 1300);
+
+        assertEquals(3, decoded.bugs.size());
+        for(int i=0; i<meta.bugs.size(); i++){
+            BinaryMetadata.Entry expected = meta.bugs.get(i);
+            BinaryMetadata.Entry actual = decoded.bugs.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.x, actual.x, DELTA);
+            assertEquals(expected.y, actual.y, DELTA);
+            assertEquals(expected.radius, actual.radius, DELTA);
+            assertEquals(expected.color, actual.color);
+            assertEquals(expected.comment, actual.comment);
+        }
+        assertEquals("", decoded.bugs.get(2).comment);
+
+        assertEquals(Arrays.asList("device", "logs"), Arrays.asList(decoded.sections.keySet().toArray()));
+        assertEquals(meta.sections, decoded.sections);
+    }
+
+    @Test
+    public void emptyMetadataSurvivesARoundTrip() throws Exception {
+        BinaryMetadata decoded = roundTrip(new BinaryMetadata());
+
+        assertEquals("", decoded.title);
+        assertEquals("", decoded.quality);
+        assertTrue(decoded.bugs.isEmpty());
+        assertTrue(decoded.crops.isEmpty());
+        assertTrue(decoded.sections.isEmpty());
+    }
+
+    @Test
+    public void repeatedCommentsAreStoredOnce() throws Exception {
+        String comment = "The button overlaps the label on small screens";
+
+        BinaryMetadata distinct = new BinaryMetadata();
+        BinaryMetadata repeated = new BinaryMetadata();
+        for(int i=0; i<10; i++){
+            distinct.addBug(i, i, i, 10f, 0xFF000000, comment + " " + i);
+            repeated.addBug(i, i, i, 10f, 0xFF000000, comment);
+        }
+
+        // Ten comments of the same length, only one of which is stored
+        int saved = encode(distinct).length - encode(repeated).length;
+        assertTrue("Interning saved " + saved + " bytes", saved >= 9 * comment.length());
+
+        BinaryMetadata decoded = roundTrip(repeated);
+        assertEquals(10, decoded.bugs.size());
+        for(BinaryMetadata.Entry bug: decoded.bugs){
+            assertEquals(comment, bug.comment);
+        }
+    }
+
+    @Test
+    public void firstVersionDecodesWithDefaults() throws Exception {
+        // Version 1 only had the title, timestamp, string table and bugs
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("FTRM");
+        out.write(1);
+        writeString(out, "Old report");
+        out.write(42);
+        out.write(1);
+        writeString(out, "Legacy comment");
+        out.write(1);
+        out.write(7);
+        out.writeFloat(10f);
+        out.writeFloat(20f);
+        out.writeFloat(30f);
+        out.writeInt(0xFF00FF00);
+        out.write(0);
+
+        BinaryMetadata decoded = BinaryMetadata.decode(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(1, decoded.version);
+        assertEquals("Old report", decoded.title);
+        assertEquals(42, decoded.timestamp);
+        assertEquals(0, decoded.width);
+        assertEquals(0, decoded.height);
+        assertEquals(0, decoded.thumbnailSampleSize);
+        assertEquals("", decoded.quality);
+        assertTrue(decoded.crops.isEmpty());
+        assertTrue(decoded.sections.isEmpty());
+
+        assertEquals(1, decoded.bugs.size());
+        BinaryMetadata.Entry bug = decoded.bugs.get(0);
+        assertEquals(7, bug.id);
+        assertEquals(10f, bug.x, DELTA);
+        assertEquals(20f, bug.y, DELTA);
+        assertEquals(30f, bug.radius, DELTA);
+        assertEquals(0xFF00FF00, bug.color);
+        assertEquals("Legacy comment", bug.comment);
+    }
+
+    /************************************************
+     *
+     * Malformed Streams
+     *
+     */
+
+    @Test
+    public void badMagicIsRejected() throws Exception {
+        byte[] bytes = encode(new BinaryMetadata());
+        bytes[0] = 'X';
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void futureVersionIsRejected() throws Exception {
+        byte[] bytes = encode(new BinaryMetadata());
+        bytes[4] = (byte) (BinaryMetadata.VERSION + 1);
+        assertRejected(bytes);
+
+        bytes[4] = 0;
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void invalidStringIndexIsRejected() throws Exception {
+        BinaryMetadata meta = new BinaryMetadata();
+        meta.addBug(1, 0f, 0f, 1f, 0, "Only comment");
+        byte[] bytes = encode(meta);
+
+        // The comment index is the last byte before the empty section count
+        assertEquals(0, bytes[bytes.length - 2]);
+        bytes[bytes.length - 2] = 1;
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void truncatedStreamIsRejected() throws Exception {
+        BinaryMetadata meta = new BinaryMetadata();
+        meta.title = "Truncated";
+        meta.addCrop(0, 0, 100, 100);
+        meta.addBug(1, 50f, 50f, 10f, 0xFFFF0000, "Comment");
+        meta.addSection("device", "{}");
+        byte[] bytes = encode(meta);
+
+        for(int length=0; length<bytes.length; length++){
+            assertRejected(Arrays.copyOf(bytes, length));
+        }
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static byte[] encode(BinaryMetadata meta) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        meta.encode(out);
+        return out.toByteArray();
+    }
+
+    private static BinaryMetadata roundTrip(BinaryMetadata meta) throws IOException {
+        return BinaryMetadata.decode(new ByteArrayInputStream(encode(meta)));
+    }
+
+    private static void assertRejected(byte[] bytes){
+        try {
+            BinaryMetadata.decode(new ByteArrayInputStream(bytes));
+            fail("Decoded a malformed stream of " + bytes.length + " bytes");
+        } catch (IOException e) {
+            // Expected, EOFException included
+        }
+    }
+
+    private static void assertCrop(BinaryMetadata.Crop crop, int left, int top, int right, int bottom){
+        assertEquals(left, crop.left);
+        assertEquals(top, crop.top);
+        assertEquals(right, crop.right);
+        assertEquals(bottom, crop.bottom);
+    }
+
+    /**
+     * Write a string the way the format does, short enough for a single byte length
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.write(bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class QualityTierTest {
+
+    private static final long CAPTURED = 600 * 1024;
+    private static final long TARGET = 5000;
+    private static final double KB = 1024;
+
+    @Test
+    public void unknownThroughputKeepsFullQuality(){
+        assertSame(QualityTier.FULL, QualityTier.select(CAPTURED, 0, TARGET));
+        assertSame(QualityTier.FULL, QualityTier.select(CAPTURED, -1, TARGET));
+    }
+
+    @Test
+    public void bestTierWithinTargetIsSelected(){
+        assertSame(QualityTier.FULL, QualityTier.select(CAPTURED, 2048 * KB, TARGET));
+        assertSame(QualityTier.FULL, QualityTier.select(CAPTURED, 150 * KB, TARGET));
+        assertSame(QualityTier.HIGH, QualityTier.select(CAPTURED, 100 * KB, TARGET));
+        assertSame(QualityTier.MEDIUM, QualityTier.select(CAPTURED, 40 * KB, TARGET));
+        assertSame(QualityTier.LOW, QualityTier.select(CAPTURED, 8 * KB, TARGET));
+    }
+
+    @Test
+    public void lowestTierIsTheFallback(){
+        assertSame(QualityTier.LOW, QualityTier.select(CAPTURED, 1, TARGET));
+        assertSame(QualityTier.LOW, QualityTier.select(CAPTURED, 2048 * KB, 0));
+    }
+
+    @Test
+    public void tierFitsWhenItsEstimateEqualsTheBudget(){
+        for(int i=1; i<QualityTier.TIERS.length; i++){
+            QualityTier tier = QualityTier.TIERS[i];
+            double exact = tier.estimateBytes(CAPTURED) * 1000d / TARGET;
+
+            assertSame(tier, QualityTier.select(CAPTURED, exact, TARGET));
+            if(i + 1 < QualityTier.TIERS.length){
+                assertSame(QualityTier.TIERS[i + 1], QualityTier.select(CAPTURED, exact * 0.99, TARGET));
+            }
+        }
+    }
+
+    @Test
+    public void qualityNeverDropsAsThroughputGrows(){
+        int previous = QualityTier.TIERS.length - 1;
+        for(double rate=1; rate<16 * 1024 * KB; rate*=1.1){
+            int index = indexOf(QualityTier.select(CAPTURED, rate, TARGET));
+            assertTrue("Tier dropped at " + rate + " bytes/s", index <= previous);
+            previous = index;
+        }
+        assertEquals(0, previous);
+    }
+
+    @Test
+    public void estimatesShrinkWithEachTier(){
+        for(int i=1; i<QualityTier.TIERS.length; i++){
+            assertTrue(QualityTier.TIERS[i].estimateBytes(CAPTURED) < QualityTier.TIERS[i - 1].estimateBytes(CAPTURED));
+            assertTrue(QualityTier.TIERS[i].sampleSize >= QualityTier.TIERS[i - 1].sampleSize);
+        }
+        assertEquals(CAPTURED, QualityTier.FULL.estimateBytes(CAPTURED));
+    }
+
+    @Test
+    public void tiersAreFoundByName(){
+        for(QualityTier tier: QualityTier.TIERS){
+            assertSame(tier, QualityTier.forName(tier.name));
+        }
+        assertNull(QualityTier.forName("ultra"));
+
+        assertEquals("png", QualityTier.FULL.getFormat());
+        assertEquals("png", QualityTier.HIGH.getFormat());
+        assertEquals("jpeg", QualityTier.MEDIUM.getFormat());
+        assertEquals("jpeg", QualityTier.LOW.getFormat());
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static int indexOf(QualityTier tier){
+        for(int i=0; i<QualityTier.TIERS.length; i++){
+            if(QualityTier.TIERS[i] == tier) return i;
+        }
+        throw new IllegalArgumentException(tier.name);
+    }
+
+}
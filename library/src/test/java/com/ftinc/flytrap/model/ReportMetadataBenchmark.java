@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.model;
+
+import com.ftinc.flytrap.util.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the serialization of report metadata at 10, 1k and 10k bugs. The JSON metadata is
+ * written through android.util.JsonWriter, which is only a stub on the local test classpath, so
+ * the JSON side is covered by the part of each bug that runs on the JVM: formatting its color,
+ * next to the String.format() call it replaced. The binary metadata is encoded and decoded in full.
+ *
+ * Run it from the test classpath:
+ * <pre>
+ *   java -cp {test classpath} com.ftinc.flytrap.model.ReportMetadataBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReportMetadataBenchmark {
+
+    private static final String[] COMMENTS = {
+            "Total doesn't add up",
+            "Button is cut off in landscape",
+            "Überlauf – the label overflows",
+            ""
+    };
+
+    /**
+     * The number of bugs in the report
+     */
+    @Param({ "10", "1000", "10000" })
+    public int bugs;
+
+    private BinaryMetadata metadata;
+    private byte[] encoded;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        metadata = new BinaryMetadata();
+        metadata.title = "Checkout – total is wrong";
+        metadata.timestamp = 1413849600000L;
+        metadata.width = 1080;
+        metadata.height = 1920;
+        metadata.addSection("device", "{\"model\":\"Nexus 5\",\"sdk\":21}");
+        for(int i=0; i<bugs; i++){
+            metadata.addBug(i + 1, (i * 37) % 1080, (i * 53) % 1920, 48f,
+                    0xFF000000 | (i * 0x10204), COMMENTS[i % COMMENTS.length]);
+        }
+
+        out = new ByteArrayOutputStream(64 + bugs * 24);
+        metadata.encode(out);
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public int encodeBinary() throws IOException {
+        out.reset();
+        metadata.encode(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public BinaryMetadata decodeBinary() throws IOException {
+        return BinaryMetadata.decode(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public void formatColors(Blackhole blackhole){
+        for(BinaryMetadata.Entry bug: metadata.bugs){
+            blackhole.consume(Utils.toHexColor(bug.color));
+        }
+    }
+
+    @Benchmark
+    public void formatColorsWithStringFormat(Blackhole blackhole){
+        for(BinaryMetadata.Entry bug: metadata.bugs){
+            blackhole.consume(String.format("#%06X", 0xFFFFFF & bug.color));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(ReportMetadataBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
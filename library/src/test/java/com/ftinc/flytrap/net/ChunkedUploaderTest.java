@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.ftinc.flytrap.model.Attachment;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkedUploaderTest {
+
+    private static final int CHUNK = 32 * 1024;
+    private static final int LENGTH = 100 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private UploadServer uploads;
+    private ChunkedUploader uploader;
+    private byte[] content;
+    private Attachment attachment;
+
+    @Before
+    public void setUp() throws Exception {
+        Transport.setClient(null);
+        uploads = new UploadServer();
+        server = new MockWebServer();
+        server.setDispatcher(uploads);
+        server.start();
+
+        // Retry right away, the backoff isn't under test
+        uploader = new ChunkedUploader(server.url("/api").toString(), folder.getRoot(), CHUNK).setBackoff(0);
+
+        content = new byte[LENGTH];
+        new Random(42).nextBytes(content);
+        File file = folder.newFile("screenshot.png");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        attachment = Attachment.fromFile("screenshot", "image/png", file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Transport.setClient(null);
+        server.shutdown();
+    }
+
+    @Test
+    public void fileIsUploadedInChunks() throws Exception {
+        Progress progress = new Progress();
+        String location = uploader.upload(attachment, null, 0, progress);
+
+        assertEquals(server.url("/uploads/1").toString(), location);
+        assertUploaded();
+        assertEquals(Arrays.asList(0L, 32768L, 65536L, 98304L, 102400L), progress.offsets);
+        assertEquals(Arrays.asList("POST 0", "PATCH 0", "PATCH 32768", "PATCH 65536", "PATCH 98304"), uploads.log);
+    }
+
+    @Test
+    public void interruptedChunkResumesFromTheServerOffset() throws Exception {
+        // The connection drops halfway through the second chunk, the server kept what it got
+        uploads.interruptAt = 2;
+
+        uploader.upload(attachment, null, 0, new Progress());
+
+        assertUploaded();
+        int head = uploads.log.indexOf("HEAD 49152");
+        assertTrue(uploads.log.toString(), head > 0);
+        assertEquals("PATCH 49152", uploads.log.get(head + 1));
+    }
+
+    @Test
+    public void journaledProgressResumesInALaterAttempt() throws Exception {
+        File journalFile = folder.newFile("journal");
+        OutboxJournal journal = new OutboxJournal(journalFile);
+        Outbox.Entry entry = new Outbox.Entry("a", 1413849600000L, server.url("/api").toString(), CHUNK, false, 0, 0, null);
+        journal.add(entry);
+        JournalProgress progress = new JournalProgress(journal, entry.id);
+
+        // The server goes down after two chunks, the attempt gives up
+        uploads.failFrom = 3;
+        try {
+            uploader.upload(attachment, null, 0, progress);
+            fail("The upload succeeded while the server was down");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // A later attempt, i.e. after a restart, only knows what was journaled
+        Outbox.Entry replayed = new OutboxJournal(journalFile).replay().get(0);
+        String location = replayed.uploadLocations.get(0);
+        long offset = replayed.uploadOffsets.get(0);
+        assertEquals(server.url("/uploads/1").toString(), location);
+        assertEquals(65536L, offset);
+
+        uploads.failFrom = -1;
+        uploads.log.clear();
+        assertEquals(location, uploader.upload(attachment, location, offset, progress));
+
+        assertUploaded();
+        assertEquals(Arrays.asList("HEAD 65536", "PATCH 65536", "PATCH 98304"), uploads.log);
+        assertEquals(1, uploads.created);
+    }
+
+    @Test
+    public void stalledOffsetStopsTheUpload() throws Exception {
+        // The server accepts every chunk but never moves the offset on
+        uploads.stall = true;
+
+        try {
+            uploader.upload(attachment, null, 0, new Progress());
+            fail("The upload succeeded without the server acknowledging a byte");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertEquals(5, Collections.frequency(uploads.log, "PATCH 0"));
+        assertEquals(0, uploads.data.size());
+    }
+
+    @Test
+    public void forgottenUploadStartsOver() throws Exception {
+        String location = server.url("/uploads/7").toString();
+
+        String uploaded = uploader.upload(attachment, location, 65536, new Progress());
+
+        assertEquals(server.url("/uploads/1").toString(), uploaded);
+        assertEquals("HEAD -1", uploads.log.get(0));
+        assertEquals("POST 0", uploads.log.get(1));
+        assertUploaded();
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private void assertUploaded(){
+        byte[] received = uploads.data.toByteArray();
+        assertArrayEquals(content, received);
+        assertEquals(crc(content, content.length), crc(received, received.length));
+    }
+
+    private static long crc(byte[] bytes, int count){
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, count);
+        return crc.getValue();
+    }
+
+    /**
+     * Records the acknowledged offsets
+     */
+    private static class Progress implements ChunkedUploader.Listener {
+
+        final List<Long> offsets = new ArrayList<>();
+
+        @Override
+        public void onProgress(String location, long offset) {
+            offsets.add(offset);
+        }
+    }
+
+    /**
+     * Journals the progress of the first part of an entry, like the outbox does
+     */
+    private static class JournalProgress implements ChunkedUploader.Listener {
+
+        final OutboxJournal journal;
+        final String id;
+
+        JournalProgress(OutboxJournal journal, String id){
+            this.journal = journal;
+            this.id = id;
+        }
+
+        @Override
+        public void onProgress(String location, long offset) {
+            try {
+                journal.progress(id, 0, location, offset);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * A stand-in for the upload endpoint of the server, it knows a single upload at /uploads/1
+     * and checks the offset and checksum of every chunk
+     */
+    private static class UploadServer extends Dispatcher {
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        int created;
+        int patches;
+
+        int interruptAt = -1;
+        int failFrom = -1;
+        boolean stall;
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            String method = request.getMethod();
+            if("POST".equals(method) && request.getPath().equals("/api/uploads")){
+                created++;
+                data.reset();
+                log.add("POST 0");
+                return new MockResponse().setResponseCode(201).setHeader("Location", "/uploads/1");
+            }
+
+            if(!request.getPath().equals("/uploads/1") || created == 0){
+                log.add(method + " -1");
+                return new MockResponse().setResponseCode(404);
+            }
+
+            if("HEAD".equals(method)){
+                log.add("HEAD " + data.size());
+                return offset();
+            }
+
+            long offset = Long.parseLong(request.getHeader(ChunkedUploader.HEADER_OFFSET));
+            log.add("PATCH " + offset);
+            patches++;
+
+            if(failFrom > 0 && patches >= failFrom) return new MockResponse().setResponseCode(503);
+            if(offset != data.size()) return offset().setResponseCode(409);
+
+            byte[] chunk = request.getBody().readByteArray();
+            if(!request.getHeader(ChunkedUploader.HEADER_CHECKSUM).equals("crc32 " + Long.toHexString(crc(chunk, chunk.length)))){
+                return new MockResponse().setResponseCode(460);
+            }
+            if(stall) return offset().setResponseCode(204);
+
+            if(patches == interruptAt){
+                data.write(chunk, 0, chunk.length / 2);
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            }
+
+            data.write(chunk, 0, chunk.length);
+            return offset().setResponseCode(204);
+        }
+
+        private MockResponse offset(){
+            return new MockResponse().setHeader(ChunkedUploader.HEADER_OFFSET, String.valueOf(data.size()));
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead the {@link NetworkRecorder} adds to a call. The chain answers every
+ * call with a canned response right away, so the difference between {@link #baseline()} and
+ * {@link #record()} is the cost of the interceptor alone, with and without capturing bodies.
+ *
+ * Run it from the test classpath:
+ * <pre>
+ *   java -cp {test classpath} com.ftinc.flytrap.net.NetworkRecorderBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkRecorderBenchmark {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    /**
+     * The body limit of the recorder, 0 doesn't capture bodies
+     */
+    @Param({ "0", "1024" })
+    public int bodyLimit;
+
+    private NetworkRecorder recorder;
+    private Interceptor.Chain chain;
+
+    @Setup
+    public void setUp(){
+        recorder = new NetworkRecorder()
+                .setBodyLimit(bodyLimit)
+                .redactQueryParameter("access_token");
+
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        for(int i=0; i<100; i++){
+            if(i > 0) json.append(',');
+            json.append("{\"id\":").append(i).append(",\"name\":\"Item ").append(i).append("\"}");
+        }
+        json.append("]}");
+
+        final Request request = new Request.Builder()
+                .url("https://api.example.com/items?page=2&access_token=abc123")
+                .header("Authorization", "Bearer abc123")
+                .header("Accept", "application/json")
+                .post(RequestBody.create(JSON, "{\"query\":\"items\"}"))
+                .build();
+        final Response response = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header("Content-Type", JSON.toString())
+                .header("Set-Cookie", "session=abc123")
+                .body(ResponseBody.create(JSON, json.toString()))
+                .build();
+
+        // The canned body is only peeked at by the recorder, so it can be answered over and over
+        chain = new Interceptor.Chain() {
+            @Override
+            public Request request() {
+                return request;
+            }
+
+            @Override
+            public Response proceed(Request request) throws IOException {
+                return response;
+            }
+
+            @Override
+            public Connection connection() {
+                return null;
+            }
+        };
+    }
+
+    @Benchmark
+    public Response baseline() throws IOException {
+        return chain.proceed(chain.request());
+    }
+
+    @Benchmark
+    public Response record() throws IOException {
+        return recorder.intercept(chain);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(NetworkRecorderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
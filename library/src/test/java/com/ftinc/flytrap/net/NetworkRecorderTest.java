@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkRecorderTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final String BODY = "{\"items\":[\"one\",\"two\",\"three\"],\"next\":null}";
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private NetworkRecorder recorder;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+        recorder = new NetworkRecorder(4).attach(client);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        recorder.detach(client);
+        server.shutdown();
+    }
+
+    /************************************************
+     *
+     * Redaction
+     *
+     */
+
+    @Test
+    public void defaultHeadersAreRedacted(){
+        NetworkRecorder.Rules rules = recorder.getRules();
+        assertTrue(rules.isRedactedHeader("Authorization"));
+        assertTrue(rules.isRedactedHeader("cookie"));
+        assertTrue(rules.isRedactedHeader("SET-COOKIE"));
+        assertFalse(rules.isRedactedHeader("Content-Type"));
+    }
+
+    @Test
+    public void redactedHeaderSetIgnoresCase(){
+        recorder.redactHeader("X-Api-Key");
+
+        NetworkRecorder.Rules rules = recorder.getRules();
+        assertTrue(rules.isRedactedHeader("x-api-key"));
+        assertTrue(rules.isRedactedHeader("X-API-KEY"));
+        assertTrue(rules.isRedactedHeader("Authorization"));
+        assertFalse(rules.isRedactedHeader("X-Api-Key-Id"));
+    }
+
+    @Test
+    public void redactedHeaderPatternsMatchWholeNames(){
+        recorder.redactHeaders("X-Secret-.*")
+                .redactHeaders(".*-Token");
+
+        NetworkRecorder.Rules rules = recorder.getRules();
+        assertTrue(rules.isRedactedHeader("x-secret-key"));
+        assertTrue(rules.isRedactedHeader("X-Session-Token"));
+        assertFalse(rules.isRedactedHeader("X-Not-Secret-Key"));
+        assertFalse(rules.isRedactedHeader("X-Token-Id"));
+    }
+
+    @Test
+    public void redactedQueryParametersAreReplaced(){
+        recorder.redactQueryParameter("access_token");
+
+        NetworkRecorder.Rules rules = recorder.getRules();
+        HttpUrl url = HttpUrl.parse("https://api.example.com/items?page=2&access_token=abc123&access_token=def456");
+        HttpUrl redacted = HttpUrl.parse(rules.redactUrl(url));
+        assertEquals("2", redacted.queryParameter("page"));
+        assertEquals(1, redacted.queryParameterValues("access_token").size());
+        assertEquals(NetworkRecorder.REDACTED, redacted.queryParameter("access_token"));
+
+        HttpUrl plain = HttpUrl.parse("https://api.example.com/items?page=2");
+        assertEquals(plain.toString(), rules.redactUrl(plain));
+    }
+
+    @Test
+    public void addingRulesLeavesEarlierRuleSetsAlone(){
+        NetworkRecorder.Rules before = recorder.getRules();
+        recorder.redactHeader("X-Api-Key");
+
+        assertFalse(before.isRedactedHeader("X-Api-Key"));
+        assertTrue(recorder.getRules().isRedactedHeader("X-Api-Key"));
+    }
+
+    /************************************************
+     *
+     * Recording
+     *
+     */
+
+    @Test
+    public void capturedResponseIsLeftIntactForTheCaller() throws Exception {
+        recorder.setBodyLimit(16);
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", JSON.toString())
+                .setBody(BODY));
+
+        Response response = client.newCall(new Request.Builder().url(server.url("/items")).build()).execute();
+        assertEquals(BODY, response.body().string());
+
+        List<NetworkRecorder.Entry> entries = recorder.snapshot();
+        assertEquals(1, entries.size());
+        assertEquals(BODY.substring(0, 16), entries.get(0).responseText);
+        assertEquals(200, entries.get(0).status);
+    }
+
+    @Test
+    public void shortResponseIsCapturedWhole() throws Exception {
+        recorder.setBodyLimit(1024);
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", JSON.toString())
+                .setBody(BODY));
+
+        Response response = client.newCall(new Request.Builder().url(server.url("/items")).build()).execute();
+        assertEquals(BODY, response.body().string());
+        assertEquals(BODY, recorder.snapshot().get(0).responseText);
+    }
+
+    @Test
+    public void bodiesAreNotCapturedByDefault() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", JSON.toString())
+                .setBody(BODY));
+
+        Request request = new Request.Builder()
+                .url(server.url("/items"))
+                .post(RequestBody.create(JSON, BODY))
+                .build();
+        Response response = client.newCall(request).execute();
+        assertEquals(BODY, response.body().string());
+
+        NetworkRecorder.Entry entry = recorder.snapshot().get(0);
+        assertNull(entry.requestText);
+        assertNull(entry.responseText);
+        assertEquals(BODY.length(), entry.requestSize);
+        assertEquals("POST", entry.method);
+    }
+
+    @Test
+    public void oldestCallsAreDropped() throws Exception {
+        for(int i=0; i<6; i++){
+            server.enqueue(new MockResponse().setBody(String.valueOf(i)));
+            client.newCall(new Request.Builder().url(server.url("/" + i)).build()).execute().body().close();
+        }
+
+        List<NetworkRecorder.Entry> entries = recorder.snapshot();
+        assertEquals(6, recorder.getRecordedCount());
+        assertEquals(4, entries.size());
+        assertEquals("/2", entries.get(0).url.encodedPath());
+        assertEquals("/5", entries.get(3).url.encodedPath());
+    }
+
+}
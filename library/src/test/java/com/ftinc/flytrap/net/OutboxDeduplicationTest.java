@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.ftinc.flytrap.model.Attachment;
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.ftinc.flytrap.util.MemoryPreferences;
+import com.ftinc.flytrap.util.TestArtifactStore;
+import com.ftinc.flytrap.util.Workers;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends reports that carry the same screenshot to a stand-in server and checks that the
+ * screenshot is only uploaded once when the reports opt into deduplication.
+ */
+public class OutboxDeduplicationTest {
+
+    private static final String METADATA = "{\"title\":\"Checkout\",\"bugs\":[]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private ReportServer reports;
+    private ArtifactStore artifacts;
+    private File directory;
+    private Outbox outbox;
+    private byte[] screenshot;
+    private String hash;
+
+    @Before
+    public void setUp() throws Exception {
+        Workers.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        Transport.setClient(null);
+
+        screenshot = new byte[32 * 1024];
+        new Random(7).nextBytes(screenshot);
+        hash = sha256(screenshot);
+
+        reports = new ReportServer(screenshot, hash);
+        server = new MockWebServer();
+        server.setDispatcher(reports);
+        server.start();
+
+        // The outbox thread never runs here, the reports are sent from the test thread
+        artifacts = TestArtifactStore.create(new File(folder.getRoot(), "flytrap"), new MemoryPreferences());
+        directory = folder.newFolder("flytrap_outbox");
+        outbox = new Outbox(null, directory, new ThroughputEstimator(null),
+                new BlobCache(null, BlobCache.DEFAULT_CAPACITY), artifacts);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Transport.setClient(null);
+        Workers.setExecutor(null);
+        server.shutdown();
+    }
+
+    @Test
+    public void sameScreenshotIsUploadedOnce() throws Exception {
+        assertEquals(Outbox.SENT, outbox.send(report(true)));
+        assertEquals(Arrays.asList("HEAD 404", "POST 201 screenshot"), reports.log);
+
+        // The server has the screenshot now, the second report only references it
+        reports.log.clear();
+        assertEquals(Outbox.SENT, outbox.send(report(true)));
+        assertEquals(Collections.singletonList("POST 201 reference"), reports.log);
+        assertTrue(reports.lastBody.contains(server.url("/reports/blobs/" + hash).toString()));
+        assertEquals(1, reports.uploads);
+    }
+
+    @Test
+    public void blobTheServerAlreadyHasIsReferenced() throws Exception {
+        reports.blobs.add(hash);
+
+        assertEquals(Outbox.SENT, outbox.send(report(true)));
+        assertEquals(Arrays.asList("HEAD 200", "POST 201 reference"), reports.log);
+        assertEquals(0, reports.uploads);
+    }
+
+    @Test
+    public void deduplicationIsOptIn() throws Exception {
+        assertEquals(Outbox.SENT, outbox.send(report(false)));
+        assertEquals(Outbox.SENT, outbox.send(report(false)));
+
+        assertEquals(Arrays.asList("POST 201 screenshot", "POST 201 screenshot"), reports.log);
+        assertFalse(reports.lastBody.contains("/blobs/"));
+        assertEquals(2, reports.uploads);
+    }
+
+    @Test
+    public void blobTheServerLostIsUploadedAgain() throws Exception {
+        assertEquals(Outbox.SENT, outbox.send(report(true)));
+        reports.blobs.clear();
+        reports.log.clear();
+
+        // The report that references the lost blob is sent again in full
+        Outbox.Entry entry = report(true);
+        assertEquals(Outbox.RETRY, outbox.send(entry));
+        assertEquals(Outbox.SENT, outbox.send(entry));
+        assertEquals(Arrays.asList("POST 409 reference", "HEAD 404", "POST 201 screenshot"), reports.log);
+        assertEquals(2, reports.uploads);
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Spool a report with the screenshot, it is a separate artifact for every report
+     */
+    private Outbox.Entry report(boolean deduplicate) throws Exception {
+        File file = artifacts.newFile("SCREENSHOT_", ".png");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(screenshot);
+        } finally {
+            out.close();
+        }
+
+        Outbox.Entry entry = new Outbox.Entry(UUID.randomUUID().toString(), System.currentTimeMillis(),
+                server.url("/reports").toString(), 0, deduplicate, 0, 0, null);
+        Outbox.spool(entry, Arrays.asList(
+                Attachment.fromText("metadata", METADATA),
+                Attachment.fromFile("screenshot", "image/png", file)), directory, artifacts);
+        return entry;
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for(byte b: MessageDigest.getInstance("SHA-256").digest(bytes)){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A stand-in for the report endpoint and its blob store. A report that carries the
+     * screenshot adds it to the blobs, a report that references a blob the server doesn't
+     * have is answered with 409.
+     */
+    private static class ReportServer extends Dispatcher {
+
+        final byte[] screenshot;
+        final String hash;
+        final Set<String> blobs = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        volatile String lastBody;
+        volatile int uploads;
+
+        ReportServer(byte[] screenshot, String hash){
+            this.screenshot = screenshot;
+            this.hash = hash;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if("HEAD".equals(request.getMethod()) && request.getPath().equals("/reports/blobs/" + hash)){
+                int code = blobs.contains(hash) ? 200 : 404;
+                log.add("HEAD " + code);
+                return new MockResponse().setResponseCode(code);
+            }
+
+            if(!"POST".equals(request.getMethod()) || !request.getPath().equals("/reports")){
+                log.add(request.getMethod() + " 404");
+                return new MockResponse().setResponseCode(404);
+            }
+
+            byte[] body = request.getBody().readByteArray();
+            lastBody = new String(body, Charset.forName("ISO-8859-1"));
+            boolean uploaded = indexOf(body, screenshot) >= 0;
+            if(uploaded){
+                uploads++;
+                blobs.add(hash);
+            }else if(!blobs.contains(hash)){
+                log.add("POST 409 reference");
+                return new MockResponse().setResponseCode(409);
+            }
+
+            log.add("POST 201 " + (uploaded ? "screenshot" : "reference"));
+            return new MockResponse().setResponseCode(201).setHeader("Location", "/reports/" + log.size());
+        }
+
+        private static int indexOf(byte[] haystack, byte[] needle){
+            outer:
+            for(int i=0; i<=haystack.length - needle.length; i++){
+                for(int j=0; j<needle.length; j++){
+                    if(haystack[i + j] != needle[j]) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxJournalTest {
+
+    private static final String URL = "https://api.example.com/reports";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private OutboxJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "journal");
+        journal = new OutboxJournal(file);
+    }
+
+    @Test
+    public void emptyJournalReplaysNothing() throws Exception {
+        assertTrue(journal.replay().isEmpty());
+    }
+
+    @Test
+    public void entriesSurviveAReplay() throws Exception {
+        Outbox.Entry entry = entry("a", null);
+        entry.partNames.add("screenshot");
+        entry.mimeTypes.add("image/png");
+        entry.partHashes.add("9f86d081884c7d65");
+        entry.partEncodings.add("");
+        entry.partFiles.add("/data/cache/flytrap/PNG_1.png");
+        journal.add(entry);
+        journal.progress("a", 1, "https://api.example.com/uploads/7", 65536);
+
+        List<Outbox.Entry> replayed = new OutboxJournal(file).replay();
+        assertEquals(1, replayed.size());
+        assertEntry(entry, replayed.get(0));
+        assertEquals("https://api.example.com/uploads/7", replayed.get(0).uploadLocations.get(1));
+        assertEquals(65536L, (long) replayed.get(0).uploadOffsets.get(1));
+    }
+
+    @Test
+    public void fieldsWithSeparatorsAreEscaped() throws Exception {
+        Outbox.Entry entry = entry("a", null);
+        entry.partNames.set(0, "meta\tdata\nname\\");
+        journal.add(entry);
+
+        assertEquals("meta\tdata\nname\\", new OutboxJournal(file).replay().get(0).partNames.get(0));
+    }
+
+    @Test
+    public void acknowledgedAndDroppedEntriesAreGone() throws Exception {
+        journal.add(entry("a", null));
+        journal.add(entry("b", null));
+        journal.add(entry("c", null));
+        journal.ack("a", "report-1");
+        journal.drop("c");
+
+        List<Outbox.Entry> replayed = new OutboxJournal(file).replay();
+        assertEquals(1, replayed.size());
+        assertEquals("b", replayed.get(0).id);
+    }
+
+    @Test
+    public void followUpsFollowTheirParent() throws Exception {
+        journal.add(entry("a", null), entry("a-full", "a"));
+        journal.add(entry("b", null), entry("b-full", "b"));
+        journal.ack("a", "report-1");
+        journal.drop("b");
+
+        List<Outbox.Entry> replayed = new OutboxJournal(file).replay();
+        assertEquals(1, replayed.size());
+        assertEquals("a-full", replayed.get(0).id);
+        assertEquals("report-1", replayed.get(0).reference);
+    }
+
+    /************************************************
+     *
+     * Torn Records
+     *
+     */
+
+    @Test
+    public void truncatedFinalRecordIsIgnored() throws Exception {
+        journal.add(entry("a", null));
+        long complete = file.length();
+        journal.add(entry("b", null));
+
+        // Every cut through the last record replays to the record before it
+        long end = file.length();
+        byte[] original = read(file);
+        for(long length=end - 1; length>complete; length--){
+            write(file, original, length);
+            List<Outbox.Entry> replayed = new OutboxJournal(file).replay();
+            assertEquals("Cut at " + length, 1, replayed.size());
+            assertEquals("a", replayed.get(0).id);
+        }
+    }
+
+    @Test
+    public void recordAfterATornTailIsKept() throws Exception {
+        journal.add(entry("a", null));
+        journal.add(entry("b", null));
+        truncate(file, file.length() - 10);
+
+        // The process restarts, replays and records more changes
+        OutboxJournal restarted = new OutboxJournal(file);
+        assertEquals(1, restarted.replay().size());
+        restarted.add(entry("c", null));
+        restarted.ack("a", "report-1");
+
+        List<Outbox.Entry> replayed = new OutboxJournal(file).replay();
+        assertEquals(1, replayed.size());
+        assertEquals("c", replayed.get(0).id);
+    }
+
+    @Test
+    public void corruptRecordIsSkipped() throws Exception {
+        journal.add(entry("a", null));
+        long start = file.length();
+        journal.add(entry("b", null));
+        journal.add(entry("c", null));
+
+        // Flip a byte in the middle of the second record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(start + 20);
+            int b = raf.read();
+            raf.seek(start + 20);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        List<Outbox.Entry> replayed = new OutboxJournal(file).replay();
+        assertEquals(2, replayed.size());
+        assertEquals("a", replayed.get(0).id);
+        assertEquals("c", replayed.get(1).id);
+    }
+
+    /************************************************
+     *
+     * Compaction
+     *
+     */
+
+    @Test
+    public void compactionKeepsOnlyTheLiveEntries() throws Exception {
+        List<Outbox.Entry> live = new ArrayList<>();
+        for(int i=0; i<40; i++){
+            Outbox.Entry entry = entry("e" + i, null);
+            journal.add(entry);
+            live.add(entry);
+        }
+        for(int i=0; i<36; i++){
+            journal.progress("e" + i, 0, "https://api.example.com/uploads/" + i, 1024);
+            journal.ack("e" + i, "report-" + i);
+            live.remove(0);
+        }
+        live.get(0).uploadLocations.put(0, "https://api.example.com/uploads/36");
+        live.get(0).uploadOffsets.put(0, 2048L);
+        journal.progress("e36", 0, "https://api.example.com/uploads/36", 2048);
+
+        assertTrue(journal.needsCompaction(live.size()));
+        long before = file.length();
+        journal.compact(live);
+
+        assertFalse(journal.needsCompaction(live.size()));
+        assertTrue(file.length() < before / 5);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        List<Outbox.Entry> replayed = new OutboxJournal(file).replay();
+        assertEquals(4, replayed.size());
+        for(int i=0; i<4; i++){
+            assertEntry(live.get(i), replayed.get(i));
+        }
+        assertEquals(2048L, (long) replayed.get(0).uploadOffsets.get(0));
+        assertNull(replayed.get(1).uploadOffsets.get(0));
+
+        // The compacted journal is appended to like any other
+        journal.ack("e36", "report-36");
+        assertEquals(3, new OutboxJournal(file).replay().size());
+    }
+
+    @Test
+    public void fewDeadRecordsDontNeedCompaction() throws Exception {
+        for(int i=0; i<10; i++){
+            journal.add(entry("e" + i, null));
+            journal.ack("e" + i, "report-" + i);
+        }
+        assertFalse(journal.needsCompaction(0));
+    }
+
+    @Test
+    public void replayCountsTheDeadRecordsOfEarlierProcesses() throws Exception {
+        for(int i=0; i<20; i++){
+            journal.add(entry("e" + i, null));
+            journal.drop("e" + i);
+        }
+
+        OutboxJournal restarted = new OutboxJournal(file);
+        assertTrue(restarted.replay().isEmpty());
+        assertTrue(restarted.needsCompaction(0));
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static Outbox.Entry entry(String id, String parent){
+        Outbox.Entry entry = new Outbox.Entry(id, 1413849600000L, URL, 0, true, 2000, 1, parent);
+        entry.bytes = 1234;
+        entry.partNames.add("metadata");
+        entry.mimeTypes.add("application/json");
+        entry.partHashes.add("");
+        entry.partEncodings.add("deflate");
+        entry.partFiles.add("");
+        return entry;
+    }
+
+    private static void assertEntry(Outbox.Entry expected, Outbox.Entry actual){
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.created, actual.created);
+        assertEquals(expected.url, actual.url);
+        assertEquals(expected.chunkSize, actual.chunkSize);
+        assertEquals(expected.deduplicate, actual.deduplicate);
+        assertEquals(expected.batchWindow, actual.batchWindow);
+        assertEquals(expected.constraints, actual.constraints);
+        assertEquals(expected.parent, actual.parent);
+        assertEquals(expected.bytes, actual.bytes);
+        assertEquals(expected.partNames, actual.partNames);
+        assertEquals(expected.mimeTypes, actual.mimeTypes);
+        assertEquals(expected.partHashes, actual.partHashes);
+        assertEquals(expected.partEncodings, actual.partEncodings);
+        assertEquals(expected.partFiles, actual.partFiles);
+    }
+
+    private static byte[] read(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(File file, byte[] bytes, long length) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes, 0, (int) length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.ftinc.flytrap.model.Attachment;
+import com.ftinc.flytrap.util.ArtifactStore;
+import com.ftinc.flytrap.util.MemoryPreferences;
+import com.ftinc.flytrap.util.TestArtifactStore;
+import com.ftinc.flytrap.util.Workers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Spools entries the way {@link Outbox#enqueue} does and replays them the way a restarted
+ * outbox does, without the outbox thread.
+ */
+public class OutboxTest {
+
+    private static final String URL = "https://api.example.com/reports";
+    private static final String METADATA = "{\"title\":\"Checkout\",\"bugs\":[]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File outbox;
+    private File journalFile;
+    private MemoryPreferences pins;
+    private ArtifactStore artifacts;
+
+    @Before
+    public void setUp() throws Exception {
+        Workers.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        outbox = folder.newFolder("flytrap_outbox");
+        journalFile = new File(outbox, "journal");
+        pins = new MemoryPreferences();
+        artifacts = TestArtifactStore.create(new File(folder.getRoot(), "flytrap"), pins);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Workers.setExecutor(null);
+    }
+
+    @Test
+    public void screenshotOfAReleasedDirectoryIsReplayed() throws Exception {
+        // The prepared attachments of a report fanned out by MultiDelivery
+        File prepared = artifacts.newDirectory("flytrap_prepared_1413849600000");
+        byte[] screenshot = bytes(4096);
+        File file = write(new File(prepared, "screenshot.png"), screenshot);
+
+        Outbox.Entry entry = record(entry("a", null), Arrays.asList(
+                Attachment.fromText("metadata", METADATA),
+                Attachment.fromFile("screenshot", "image/png", file)));
+        assertEquals("", entry.partFiles.get(0));
+        assertEquals(file.getAbsolutePath(), entry.partFiles.get(1));
+        assertEquals(METADATA.length() + screenshot.length, entry.bytes);
+
+        // The last delivery is done with the prepared attachments
+        artifacts.release(prepared);
+
+        List<Outbox.Entry> replayed = replay();
+        assertEquals(1, replayed.size());
+        Outbox.Entry restored = replayed.get(0);
+        File dir = restored.getDirectory(outbox);
+        assertEquals(METADATA, new String(read(restored.getPartFile(dir, 0)), "UTF-8"));
+        assertArrayEquals(screenshot, read(restored.getPartFile(dir, 1)));
+
+        // Delivering the entry lets go of the screenshot, and of the directory it was kept in
+        artifacts.unpin(file);
+        assertFalse(file.exists());
+        assertFalse(prepared.exists());
+    }
+
+    @Test
+    public void entryWithoutItsSpooledPartsIsDropped() throws Exception {
+        Outbox.Entry entry = entry("a", null);
+        Outbox.Entry followUp = entry("a-full", "a");
+        spool(entry, Arrays.asList(Attachment.fromText("metadata", METADATA)));
+        spool(followUp, Arrays.asList(Attachment.fromText("screenshot", "full")));
+        new OutboxJournal(journalFile).add(entry, followUp);
+        record(entry("b", null), Arrays.asList(Attachment.fromText("metadata", METADATA)));
+
+        assertTrue(new File(entry.getDirectory(outbox), "0").delete());
+
+        List<Outbox.Entry> replayed = replay();
+        assertEquals(1, replayed.size());
+        assertEquals("b", replayed.get(0).id);
+        assertFalse(entry.getDirectory(outbox).exists());
+        assertFalse(followUp.getDirectory(outbox).exists());
+
+        // The drop is durable
+        assertEquals(1, new OutboxJournal(journalFile).replay().size());
+    }
+
+    @Test
+    public void entryWithoutAnyPartsLeftIsDropped() throws Exception {
+        File first = write(artifacts.newFile("PNG_", ".png"), bytes(64));
+        File second = write(artifacts.newFile("PNG_", ".png"), bytes(64));
+        record(entry("a", null), Arrays.asList(
+                Attachment.fromFile("base", "image/png", first),
+                Attachment.fromFile("shade", "image/png", second)));
+
+        // One missing screenshot is left out, the entry is still sent
+        assertTrue(first.delete());
+        assertEquals(1, replay().size());
+
+        assertTrue(second.delete());
+        assertTrue(replay().isEmpty());
+    }
+
+    @Test
+    public void entryThatCrashedBeforeBeingRecordedIsCleanedUp() throws Exception {
+        Outbox.Entry recorded = record(entry("a", null), Arrays.asList(Attachment.fromText("metadata", METADATA)));
+        Outbox.Entry crashed = entry("b", null);
+        spool(crashed, Arrays.asList(Attachment.fromText("metadata", METADATA)));
+
+        List<Outbox.Entry> replayed = replay();
+        assertEquals(1, replayed.size());
+        assertEquals(recorded.id, replayed.get(0).id);
+        assertTrue(recorded.getDirectory(outbox).exists());
+        assertFalse(crashed.getDirectory(outbox).exists());
+    }
+
+    @Test
+    public void replayCompactsTheJournal() throws Exception {
+        OutboxJournal journal = new OutboxJournal(journalFile);
+        for(int i=0; i<20; i++){
+            Outbox.Entry entry = record(entry("e" + i, null), Arrays.asList(Attachment.fromText("metadata", METADATA)));
+            if(i < 19) journal.ack(entry.id, "report-" + i);
+        }
+        long before = journalFile.length();
+
+        assertEquals(1, replay().size());
+        assertTrue(journalFile.length() < before / 10);
+        assertEquals("e19", new OutboxJournal(journalFile).replay().get(0).id);
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static Outbox.Entry entry(String id, String parent){
+        return new Outbox.Entry(id, System.currentTimeMillis(), URL, 0, false, 0, 0, parent);
+    }
+
+    private void spool(Outbox.Entry entry, List<Attachment> parts) throws IOException {
+        Outbox.spool(entry, parts, outbox, artifacts);
+    }
+
+    private Outbox.Entry record(Outbox.Entry entry, List<Attachment> parts) throws IOException {
+        spool(entry, parts);
+        new OutboxJournal(journalFile).add(entry);
+        return entry;
+    }
+
+    /**
+     * Replay the journal like a restarted outbox
+     */
+    private List<Outbox.Entry> replay() throws IOException {
+        return Outbox.replay(new OutboxJournal(journalFile), outbox);
+    }
+
+    private static byte[] bytes(int size){
+        byte[] bytes = new byte[size];
+        for(int i=0; i<size; i++){
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private static File write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while((count = in.read(buffer)) != -1){
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+}
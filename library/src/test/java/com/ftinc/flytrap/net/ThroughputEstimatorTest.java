@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.ftinc.flytrap.model.QualityTier;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputEstimatorTest {
+
+    private static final double DELTA = 0.001;
+
+    @Test
+    public void nothingIsMeasuredAtFirst(){
+        assertEquals(0, new ThroughputEstimator(null).getBytesPerSecond(), 0);
+    }
+
+    @Test
+    public void smallTransfersAreIgnored(){
+        ThroughputEstimator estimator = new ThroughputEstimator(null);
+        estimator.record(ThroughputEstimator.MIN_SAMPLE_BYTES - 1, 1);
+        assertEquals(0, estimator.getBytesPerSecond(), 0);
+
+        estimator.record(ThroughputEstimator.MIN_SAMPLE_BYTES, 1000);
+        assertEquals(ThroughputEstimator.MIN_SAMPLE_BYTES, estimator.getBytesPerSecond(), DELTA);
+    }
+
+    @Test
+    public void samplesAreWeightedTowardsTheNewest(){
+        ThroughputEstimator estimator = new ThroughputEstimator(null);
+        estimator.record(100000, 1000);
+        assertEquals(100000, estimator.getBytesPerSecond(), DELTA);
+
+        estimator.record(200000, 1000);
+        assertEquals(0.3 * 200000 + 0.7 * 100000, estimator.getBytesPerSecond(), DELTA);
+
+        estimator.record(50000, 1000);
+        assertEquals(0.3 * 50000 + 0.7 * 130000, estimator.getBytesPerSecond(), DELTA);
+    }
+
+    @Test
+    public void estimateConvergesOnASteadyRate(){
+        ThroughputEstimator estimator = new ThroughputEstimator(null);
+        estimator.record(2 * 1024 * 1024, 1000);
+
+        // The first sample's weight shrinks by 0.7 with every sample after it
+        for(int i=0; i<40; i++){
+            estimator.record(400 * 1024, 10000);
+        }
+        assertEquals(40 * 1024, estimator.getBytesPerSecond(), 40 * 1024 * 0.01);
+    }
+
+    @Test
+    public void instantTransferDoesNotDivideByZero(){
+        ThroughputEstimator estimator = new ThroughputEstimator(null);
+        estimator.record(64 * 1024, 0);
+
+        double estimate = estimator.getBytesPerSecond();
+        assertTrue(estimate > 0 && !Double.isInfinite(estimate));
+    }
+
+    @Test
+    public void measuredThroughputSelectsTheTier(){
+        ThroughputEstimator estimator = new ThroughputEstimator(null);
+        long captured = 600 * 1024;
+
+        // A fast connection that slows down step by step lowers the tier with it
+        estimator.record(4 * 1024 * 1024, 1000);
+        assertSame(QualityTier.FULL, QualityTier.select(captured, estimator.getBytesPerSecond(), 5000));
+
+        for(int i=0; i<20; i++){
+            estimator.record(400 * 1024, 10000);
+        }
+        assertSame(QualityTier.MEDIUM, QualityTier.select(captured, estimator.getBytesPerSecond(), 5000));
+
+        for(int i=0; i<20; i++){
+            estimator.record(80 * 1024, 10000);
+        }
+        assertSame(QualityTier.LOW, QualityTier.select(captured, estimator.getBytesPerSecond(), 5000));
+    }
+
+    @Test
+    public void throttledUploadLowersTheTierOfTheNextReport() throws Exception {
+        long captured = 2 * 1024 * 1024;
+
+        // The server reads the report at 32KB/s, the next report can't send more than 160KB in 5s
+        ThroughputEstimator throttled = new ThroughputEstimator(null);
+        upload(new MockResponse().throttleBody(16 * 1024, 500, TimeUnit.MILLISECONDS), throttled);
+        assertTrue(throttled.getBytesPerSecond() < 48 * 1024);
+        assertSame(QualityTier.LOW, QualityTier.select(captured, throttled.getBytesPerSecond(), 5000));
+
+        // Unthrottled the screenshots go out as captured
+        ThroughputEstimator unthrottled = new ThroughputEstimator(null);
+        upload(new MockResponse(), unthrottled);
+        assertSame(QualityTier.FULL, QualityTier.select(captured, unthrottled.getBytesPerSecond(), 5000));
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Post a 64KB report to a server that answers with the response, timing it like the outbox does
+     */
+    private static void upload(MockResponse response, ThroughputEstimator estimator) throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(response);
+        server.start();
+        try {
+            RequestBody body = RequestBody.create(MediaType.parse("application/octet-stream"), new byte[64 * 1024]);
+            Request request = new Request.Builder()
+                    .url(server.url("/reports"))
+                    .post(body)
+                    .build();
+
+            long start = System.nanoTime();
+            assertEquals(200, Transport.execute(request));
+            estimator.record(body.contentLength(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.net;
+
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TransportTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Transport.setClient(null);
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Transport.setClient(null);
+        server.shutdown();
+    }
+
+    @Test
+    public void connectionIsReusedAcrossRequests() throws Exception {
+        // Bodies are never read by the caller, closing them must still release the connection
+        StringBuilder large = new StringBuilder();
+        for(int i=0; i<4096; i++){
+            large.append("0123456789abcdef");
+        }
+        server.enqueue(new MockResponse().setBody("{\"id\":1}"));
+        server.enqueue(new MockResponse().setBody(large.toString()));
+        server.enqueue(new MockResponse().setResponseCode(204));
+        server.enqueue(new MockResponse().setBody("{\"id\":2}"));
+
+        assertEquals(200, Transport.execute(post("/reports")));
+        assertEquals(200, Transport.execute(post("/reports")));
+        assertEquals(204, Transport.execute(post("/reports")));
+        assertEquals(200, Transport.execute(post("/reports")));
+
+        // The sequence number counts the requests made on the same connection
+        for(int i=0; i<4; i++){
+            assertEquals(i, server.takeRequest().getSequenceNumber());
+        }
+        assertEquals(1, Transport.getClient().getConnectionPool().getConnectionCount());
+    }
+
+    @Test
+    public void errorResponsesReturnTheirCodeAndReleaseTheConnection() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("{\"error\":\"unavailable\"}"));
+        server.enqueue(new MockResponse().setResponseCode(413).setBody("Too large"));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        assertEquals(500, Transport.execute(post("/reports")));
+        assertEquals(413, Transport.execute(post("/reports")));
+        assertEquals(200, Transport.execute(post("/reports")));
+
+        for(int i=0; i<3; i++){
+            assertEquals(i, server.takeRequest().getSequenceNumber());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failedConnectionThrows() throws Exception {
+        Request request = post("/reports");
+        server.shutdown();
+        Transport.execute(request);
+    }
+
+    @Test
+    public void suppliedClientIsUsed() throws Exception {
+        final AtomicInteger intercepted = new AtomicInteger();
+        OkHttpClient client = new OkHttpClient();
+        client.interceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                intercepted.incrementAndGet();
+                return chain.proceed(chain.request());
+            }
+        });
+
+        Transport.setClient(client);
+        assertSame(client, Transport.getClient());
+
+        server.enqueue(new MockResponse());
+        assertEquals(200, Transport.execute(post("/reports")));
+        assertEquals(1, intercepted.get());
+
+        // Clearing it restores a default client of its own
+        Transport.setClient(null);
+        OkHttpClient restored = Transport.getClient();
+        assertNotSame(client, restored);
+        assertSame(restored, Transport.getClient());
+        assertEquals(TimeUnit.SECONDS.toMillis(Transport.DEFAULT_READ_TIMEOUT), restored.getReadTimeout());
+    }
+
+    @Test
+    public void timeoutsApplyToTheSharedClient() throws Exception {
+        Transport.setTimeouts(1, 2, 3, TimeUnit.SECONDS);
+
+        OkHttpClient client = Transport.getClient();
+        assertEquals(1000, client.getConnectTimeout());
+        assertEquals(2000, client.getReadTimeout());
+        assertEquals(3000, client.getWriteTimeout());
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private Request post(String path){
+        return new Request.Builder()
+                .url(server.url(path))
+                .post(RequestBody.create(JSON, "{\"title\":\"Report\"}"))
+                .build();
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArtifactStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private MemoryPreferences pins;
+    private ArtifactStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        // Run the cleanups right away so that their outcome can be checked
+        Workers.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        directory = new File(folder.getRoot(), "flytrap");
+        pins = new MemoryPreferences();
+        store = TestArtifactStore.create(directory, pins);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Workers.setExecutor(null);
+    }
+
+    /************************************************
+     *
+     * References
+     *
+     */
+
+    @Test
+    public void lastReleaseDeletesTheArtifact() throws Exception {
+        File file = write(store.newFile("PNG_", ".png"), 16);
+
+        store.retain(file);
+        store.release(file);
+        assertTrue(file.exists());
+
+        store.release(file);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void releasedDirectoryIsDeletedWithItsContents() throws Exception {
+        File dir = store.newDirectory("flytrap_prepared_1");
+        File file = write(new File(dir, "screenshot.png"), 16);
+
+        store.release(dir);
+        assertFalse(file.exists());
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void filesOutsideOfTheStoreAreLeftAlone() throws Exception {
+        File outside = write(folder.newFile("host.png"), 16);
+
+        store.retain(outside);
+        store.release(outside);
+        assertFalse(store.pin(outside));
+        assertTrue(outside.exists());
+    }
+
+    /************************************************
+     *
+     * Pins
+     *
+     */
+
+    @Test
+    public void pinnedFileOutlivesItsReleasedDirectory() throws Exception {
+        File dir = store.newDirectory("flytrap_prepared_1");
+        File pinned = write(new File(dir, "screenshot.png"), 16);
+        File other = write(new File(dir, "metadata.json"), 16);
+        assertTrue(store.pin(pinned));
+
+        store.release(dir);
+        assertTrue(pinned.exists());
+        assertFalse(other.exists());
+
+        // The directory goes with the last file it was kept for
+        store.unpin(pinned);
+        assertFalse(pinned.exists());
+        assertFalse(dir.exists());
+        assertTrue(directory.exists());
+    }
+
+    @Test
+    public void pinsOutliveTheProcess() throws Exception {
+        File dir = store.newDirectory("flytrap_prepared_1");
+        File pinned = write(new File(dir, "screenshot.png"), 16);
+        assertTrue(store.pin(pinned));
+        assertTrue(store.pin(pinned));
+
+        // A new process only knows the pins, not the directory
+        ArtifactStore restarted = TestArtifactStore.create(directory, pins);
+        assertTrue(restarted.isPinned(pinned));
+        assertEquals(1, restarted.getPinned().size());
+        restarted.setMaxBytes(0);
+        restarted.getFile("trim");
+        assertTrue(pinned.exists());
+
+        restarted.unpin(pinned);
+        assertTrue(pinned.exists());
+        restarted.unpin(pinned);
+        assertFalse(restarted.isPinned(pinned));
+        assertFalse(pinned.exists());
+    }
+
+    /************************************************
+     *
+     * Budget
+     *
+     */
+
+    @Test
+    public void trimDeletesUnreferencedArtifactsOldestFirst() throws Exception {
+        File oldest = write(new File(directory, "TRAP_REPORT_1.zip"), 100);
+        File older = write(new File(directory, "TRAP_REPORT_2.zip"), 100);
+        File newest = write(new File(directory, "TRAP_REPORT_3.zip"), 100);
+        File referenced = write(store.newFile("PNG_", ".png"), 100);
+        oldest.setLastModified(1000);
+        older.setLastModified(2000);
+        newest.setLastModified(3000);
+        referenced.setLastModified(500);
+
+        // getFile() cleans up, which runs right away here
+        store.setMaxBytes(250);
+        store.getFile("TRAP_REPORT_4.zip");
+
+        assertFalse(oldest.exists());
+        assertFalse(older.exists());
+        assertTrue(newest.exists());
+        assertTrue(referenced.exists());
+    }
+
+    @Test
+    public void trimKeepsPinnedFilesOfUnreferencedDirectories() throws Exception {
+        File dir = store.newDirectory("flytrap_prepared_1");
+        File pinned = write(new File(dir, "screenshot.png"), 100);
+        File other = write(new File(dir, "thumbnail.png"), 100);
+        store.pin(pinned);
+        store.release(dir);
+        assertFalse(other.exists());
+
+        // Forget the directory was ever referenced, like a restart would
+        ArtifactStore restarted = TestArtifactStore.create(directory, pins);
+        write(new File(dir, "leftover.png"), 100);
+        restarted.setMaxBytes(0);
+        restarted.getFile("trim");
+
+        assertTrue(pinned.exists());
+        assertFalse(new File(dir, "leftover.png").exists());
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    private static File write(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Quantizes synthetic images and decodes the PNGs written with the platform's image reader to
+ * check them against the source pixels.
+ */
+public class PaletteQuantizerTest {
+
+    // Odd sizes so that the last strip and the last packed byte of a row are partial
+    private static final int WIDTH = 67;
+    private static final int HEIGHT = 75;
+
+    @Test
+    public void singleColorIsExact() throws Exception {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 0xFF3F51B5);
+
+        PaletteQuantizer quantizer = new PaletteQuantizer(new Pixels(WIDTH, HEIGHT, pixels), true);
+        assertTrue(quantizer.isExact());
+        assertEquals(1, quantizer.getPalette().length);
+        assertPixels(pixels, decode(quantizer));
+    }
+
+    @Test
+    public void fewColorsAreWrittenLosslessly() throws Exception {
+        // 2, 4, 16 and 256 colors cover every bit depth the writer picks
+        for(int colors: new int[]{ 2, 3, 4, 5, 16, 17, 256 }){
+            int[] pixels = new int[WIDTH * HEIGHT];
+            for(int i=0; i<pixels.length; i++){
+                int c = (i * 31 + i / WIDTH) % colors;
+                pixels[i] = (c * 0x010305 * 7) & 0xFFFFFF | 0xFF000000;
+            }
+            int[] distinct = distinct(pixels);
+            assertEquals(colors, distinct.length);
+
+            PaletteQuantizer quantizer = new PaletteQuantizer(new Pixels(WIDTH, HEIGHT, pixels), true);
+            assertTrue(quantizer.isExact());
+            assertEquals(colors, quantizer.getPalette().length);
+            assertPixels(pixels, decode(quantizer));
+        }
+    }
+
+    @Test
+    public void translucentColorsAreWrittenLosslessly() throws Exception {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        int[] colors = new int[]{ 0xFFFFFFFF, 0x80E91E63, 0x00000000, 0x40000000, 0xFF009688 };
+        for(int i=0; i<pixels.length; i++){
+            pixels[i] = colors[(i / 7) % colors.length];
+        }
+
+        PaletteQuantizer quantizer = new PaletteQuantizer(new Pixels(WIDTH, HEIGHT, pixels), false);
+        assertTrue(quantizer.isExact());
+
+        // Fully transparent pixels decode to transparent black either way
+        assertPixels(pixels, decode(quantizer));
+    }
+
+    @Test
+    public void manyColorsAreReducedToThePalette() throws Exception {
+        int[] pixels = gradient();
+        assertTrue(distinct(pixels).length > PaletteQuantizer.MAX_COLORS);
+
+        for(boolean dither: new boolean[]{ false, true }){
+            PaletteQuantizer quantizer = new PaletteQuantizer(new Pixels(WIDTH, HEIGHT, pixels), dither);
+            assertFalse(quantizer.isExact());
+
+            int[] palette = quantizer.getPalette();
+            assertTrue(palette.length <= PaletteQuantizer.MAX_COLORS);
+
+            Set<Integer> allowed = new HashSet<>();
+            for(int color: palette) allowed.add(color);
+
+            int[] decoded = decode(quantizer);
+            for(int color: decoded){
+                assertTrue(Integer.toHexString(color) + " is not in the palette", allowed.contains(color));
+            }
+
+            double error = meanError(pixels, decoded);
+            assertTrue("Mean error " + error + " with dither " + dither, error < 6);
+        }
+    }
+
+    @Test
+    public void ditheringKeepsTheAverageColor() throws Exception {
+        int[] pixels = gradient();
+        int[] plain = decode(new PaletteQuantizer(new Pixels(WIDTH, HEIGHT, pixels), false));
+        int[] dithered = decode(new PaletteQuantizer(new Pixels(WIDTH, HEIGHT, pixels), true));
+
+        // Dithering trades per pixel error for a closer average over each block
+        assertTrue(blockError(pixels, dithered) <= blockError(pixels, plain));
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * A smooth opaque gradient with far more colors than fit in the palette
+     */
+    private static int[] gradient(){
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for(int y=0; y<HEIGHT; y++){
+            for(int x=0; x<WIDTH; x++){
+                int r = x * 255 / (WIDTH - 1);
+                int g = y * 255 / (HEIGHT - 1);
+                int b = (x + y) * 255 / (WIDTH + HEIGHT - 2);
+                pixels[y * WIDTH + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] decode(PaletteQuantizer quantizer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        quantizer.writePng(out);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        return image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+    }
+
+    private static void assertPixels(int[] expected, int[] actual){
+        for(int i=0; i<expected.length; i++){
+            int color = expected[i] >>> 24 == 0 ? 0 : expected[i];
+            int decoded = actual[i] >>> 24 == 0 ? 0 : actual[i];
+            assertEquals("Pixel " + i, Integer.toHexString(color), Integer.toHexString(decoded));
+        }
+    }
+
+    private static int[] distinct(int[] pixels){
+        Set<Integer> colors = new HashSet<>();
+        for(int color: pixels) colors.add(color);
+
+        int[] distinct = new int[colors.size()];
+        int i = 0;
+        for(int color: colors) distinct[i++] = color;
+        return distinct;
+    }
+
+    /**
+     * Mean absolute error per channel over all pixels
+     */
+    private static double meanError(int[] expected, int[] actual){
+        long error = 0;
+        for(int i=0; i<expected.length; i++){
+            for(int shift=0; shift<32; shift+=8){
+                error += Math.abs(((expected[i] >>> shift) & 0xFF) - ((actual[i] >>> shift) & 0xFF));
+            }
+        }
+        return error / (expected.length * 4.0);
+    }
+
+    /**
+     * Mean absolute error per channel of the average color of each 4x4 block
+     */
+    private static double blockError(int[] expected, int[] actual){
+        double error = 0;
+        int blocks = 0;
+        for(int by=0; by+4<=HEIGHT; by+=4){
+            for(int bx=0; bx+4<=WIDTH; bx+=4){
+                for(int shift=0; shift<32; shift+=8){
+                    int sum = 0;
+                    for(int y=by; y<by+4; y++){
+                        for(int x=bx; x<bx+4; x++){
+                            int i = y * WIDTH + x;
+                            sum += ((expected[i] >>> shift) & 0xFF) - ((actual[i] >>> shift) & 0xFF);
+                        }
+                    }
+                    error += Math.abs(sum / 16.0);
+                }
+                blocks++;
+            }
+        }
+        return error / (blocks * 4);
+    }
+
+    private static class Pixels implements PaletteQuantizer.PixelSource {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+
+        Pixels(int width, int height, int[] pixels){
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRows(int y, int rows, int[] pixels) {
+            System.arraycopy(this.pixels, y * width, pixels, 0, rows * width);
+        }
+    }
+
+}
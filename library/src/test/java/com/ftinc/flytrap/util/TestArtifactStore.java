@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+/**
+ * Creates artifact stores outside of an application for tests in other packages
+ */
+public class TestArtifactStore {
+
+    /**
+     * Create a store in a directory, it doesn't clean up after older versions
+     *
+     * @param directory     the directory of the artifacts
+     * @param pins          the preferences to persist the pins in, share them between two
+     *                      stores to simulate a restart
+     * @return              the store
+     */
+    public static ArtifactStore create(File directory, SharedPreferences pins){
+        return new ArtifactStore(null, directory, pins);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014 52inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ftinc.flytrap.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WorkersTest {
+
+    private final CountDownLatch started = new CountDownLatch(Workers.MAX_THREADS);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger ran = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        // Start every test on a fresh default pool
+        Workers.setExecutor(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        Executor executor = Workers.getExecutor();
+        if(executor instanceof ExecutorService) ((ExecutorService) executor).shutdownNow();
+        Workers.setExecutor(null);
+    }
+
+    @Test
+    public void saturatedPoolRejectsWork() throws Exception {
+        occupyWorkers();
+
+        List<Future<?>> queued = new ArrayList<>();
+        for(int i=0; i<Workers.MAX_QUEUED; i++){
+            queued.add(Workers.execute(counter()));
+        }
+
+        try {
+            Workers.execute(counter());
+            fail("The saturated pool accepted more work");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+
+        // Once the workers are free the queued work runs and new work is accepted again
+        release.countDown();
+        for(Future<?> future: queued){
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Workers.execute(counter()).get(5, TimeUnit.SECONDS);
+        assertEquals(Workers.MAX_QUEUED + 1, ran.get());
+    }
+
+    @Test
+    public void cancelledTaskIsSkipped() throws Exception {
+        occupyWorkers();
+
+        Future<?> cancelled = Workers.execute(counter());
+        Future<?> kept = Workers.execute(counter());
+        assertTrue(cancelled.cancel(false));
+
+        release.countDown();
+        kept.get(5, TimeUnit.SECONDS);
+        assertEquals(1, ran.get());
+    }
+
+    @Test
+    public void hostExecutorIsUsed() throws Exception {
+        final List<Runnable> submitted = new ArrayList<>();
+        Workers.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitted.add(command);
+            }
+        });
+
+        Future<?> future = Workers.execute(counter());
+        assertEquals(1, submitted.size());
+        assertEquals(0, ran.get());
+
+        submitted.get(0).run();
+        assertTrue(future.isDone());
+        assertEquals(1, ran.get());
+    }
+
+    @Test
+    public void hostExecutorRejectionIsPassedOn() throws Exception {
+        Workers.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("Host executor is shut down");
+            }
+        });
+
+        try {
+            Workers.execute(counter());
+            fail("The rejected task was swallowed");
+        } catch (RejectedExecutionException e) {
+            assertEquals("Host executor is shut down", e.getMessage());
+        }
+        assertEquals(0, ran.get());
+    }
+
+    /************************************************
+     *
+     * Helper Methods
+     *
+     */
+
+    /**
+     * Block every worker thread until the test releases them
+     */
+    private void occupyWorkers() throws InterruptedException {
+        for(int i=0; i<Workers.MAX_THREADS; i++){
+            Workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private Runnable counter(){
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+    }
+
+}